@@ -12,18 +12,56 @@ repositories {
     mavenCentral()
 }
 
+// JMH基准测试源码集 src/jmh/java
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations {
+    getByName("jmhImplementation").extendsFrom(implementation.get())
+    getByName("jmhRuntimeOnly").extendsFrom(runtimeOnly.get())
+}
+
 dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.6.0")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 
 
     //implementation("org.openpnp:opencv:3.4.2-2")
     // https://mvnrepository.com/artifact/org.processing/core
     implementation("org.processing:core:3.3.7")
 
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.36")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.36")
+}
+
+// SIMD内核使用孵化模块jdk.incubator.vector，运行时缺少该模块会自动退回标量实现
+val vectorModuleArgs = listOf("--add-modules", "jdk.incubator.vector")
+
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+    options.compilerArgs.addAll(vectorModuleArgs)
+}
+
+tasks.withType<JavaExec> {
+    jvmArgs(vectorModuleArgs)
 }
 
 tasks.getByName<Test>("test") {
     useJUnitPlatform()
+    jvmArgs(vectorModuleArgs)
 }
 
+// 运行基准测试，例如 ./gradlew jmh -PjmhArgs="MatrixDot -prof gc"
+// 分叉出的基准测试JVM沿用本任务的JVM参数，因此同样可以使用SIMD内核
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks in src/jmh/java"
+    dependsOn(tasks.getByName("jmhClasses"))
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    workingDir = projectDir     //基准测试按相对路径读取assets目录
+    args = (project.findProperty("jmhArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
@@ -0,0 +1,101 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.FloatBPNetwork;
+import cn.zzq.handwrite.InferenceWorkspace;
+import cn.zzq.handwrite.QuantizedBPNetwork;
+import cn.zzq.handwrite.matrix.FloatMatrix;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BP神经网络双精度、单精度与int8量化推理的耗时，batch为一次推理的图片张数
+ * <p>
+ * queryPixels与queryInt8都从0-255的原始像素开始，batch为1时即单张图片双精度与int8推理的耗时对比，
+ * 量化前后的准确率由Evaluator的int8精度参数给出。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class BPNetworkBenchmark {
+
+    @Param({"1", "64", "256"})
+    public int batch;
+
+    BPNetwork network;
+    InferenceWorkspace workspace;
+    FloatBPNetwork floatNetwork;
+    Matrix input;
+    FloatMatrix floatInput;
+    QuantizedBPNetwork quantizedNetwork;
+    byte[] pixels;      //input还原后的0-255灰度
+    Matrix pixelInput;  //queryPixels由pixels转换得到的输入
+
+    @Setup
+    public void setup() {
+        network = Models.trainedNetwork();
+        input = Models.randomImages(batch, new Random(42));
+        workspace = new InferenceWorkspace(network);
+        floatNetwork = network.toFloat();
+        floatInput = FloatMatrix.valueOf(input);
+        quantizedNetwork = QuantizedBPNetwork.quantize(network);
+        pixels = new byte[batch * 784];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) Math.round(input.get(i / 784, i % 784) * 255);
+        }
+        pixelInput = new Matrix(batch, 784);
+    }
+
+    @Benchmark
+    public Matrix query() {
+        return network.query(input);
+    }
+
+    /**
+     * 使用预先分配的工作区，配合-prof gc可以看到每次推理分配0字节
+     */
+    @Benchmark
+    public Matrix queryWorkspace() {
+        return network.query(input, workspace);
+    }
+
+    /**
+     * 从原始像素推理，包含转换为double与归一化的耗时，与queryInt8的输入相同
+     */
+    @Benchmark
+    public Matrix queryPixels() {
+        for (int i = 0; i < pixels.length; i++) {
+            pixelInput.set(i / 784, i % 784, (pixels[i] & 0xFF) / 255.0);
+        }
+        return network.query(pixelInput, workspace);
+    }
+
+    @Benchmark
+    public FloatMatrix queryFloat() {
+        return floatNetwork.query(floatInput);
+    }
+
+    /**
+     * 直接从原始像素推理，SIMD内核需要--add-modules jdk.incubator.vector
+     */
+    @Benchmark
+    public Matrix queryInt8() {
+        return quantizedNetwork.query(pixels, 0, batch);
+    }
+}
@@ -0,0 +1,87 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.train.CheckpointService;
+import cn.zzq.handwrite.train.TrainingState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每步训练的耗时：不写检查点，与每隔interval步把权重交给后台线程异步写盘的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class CheckpointBenchmark {
+
+    /**
+     * 检查点间隔的步数，为0时不写检查点
+     */
+    @Param({"0", "20"})
+    public int interval;
+
+    @Param({"32"})
+    public int batch;
+
+    BPNetwork network;
+    Matrix inputs;
+    Matrix labels;
+    Path directory;
+    CheckpointService service;
+    long step;
+
+    @Setup
+    public void setup() throws IOException {
+        network = new BPNetwork(784, 100, 10, 0.1);
+        Random random = new Random(1);
+        inputs = Models.randomImages(batch, random);
+        labels = new Matrix(batch, 10);
+        for (int i = 0; i < batch; i++) {
+            labels.set(i, random.nextInt(10), 1);
+        }
+        directory = Files.createTempDirectory("checkpoints");
+        service = new CheckpointService(directory, CheckpointService.DEFAULT_KEEP);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        service.flush();
+        System.out.printf("%n暂存%d次，写盘%d个，被取代%d个%n",
+                service.getStagedCount(), service.getWrittenCount(), service.getSupersededCount());
+        service.close();
+        for (CheckpointService.Checkpoint checkpoint : CheckpointService.list(directory)) {
+            Files.delete(checkpoint.getPath());
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public BPNetwork trainStep() {
+        network.trainBatch(inputs, labels);
+        step++;
+        if (interval > 0 && step % interval == 0) {
+            service.checkpoint(network, new TrainingState(step, 1, batch, 0, 0));    //反复训练同一批，进度只用作编号
+        }
+        return network;
+    }
+}
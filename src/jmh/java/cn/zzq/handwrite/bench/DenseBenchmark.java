@@ -0,0 +1,74 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Dense;
+import cn.zzq.handwrite.matrix.Function;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 输入层到隐藏层的全连接层：先乘后逐元素调用Function，与Dense融合内核的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class DenseBenchmark {
+
+    /**
+     * 批大小，1为界面上的单张识别
+     */
+    @Param({"1", "64"})
+    public int batch;
+
+    @Param({"SIGMOID", "FAST_SIGMOID", "TANH", "RELU", "SOFTMAX"})
+    public Activation activation;
+
+    Matrix input;       //(batch, 784)
+    Matrix weights;     //(784, 100)
+    Matrix bias;        //(1, 100)
+    Matrix hidden;      //(batch, 100)
+
+    final Function sigmoid = x -> 1 / (1 + Math.exp(-x));
+
+    @Setup
+    public void setup() {
+        input = Matrix.normals(batch, 784, 0, 1);
+        weights = Matrix.normals(784, 100, 0, 0.1);
+        bias = Matrix.normals(1, 100, 0, 1);
+        hidden = new Matrix(batch, 100);
+    }
+
+    @Benchmark
+    public Matrix functionPath() {
+        Dense.denseInto(input, weights, bias, sigmoid, hidden);
+        return hidden;
+    }
+
+    @Benchmark
+    public Matrix dotThenActivation() {
+        input.dotInto(weights, hidden);
+        hidden.mapWith(activation);
+        return hidden;
+    }
+
+    @Benchmark
+    public Matrix fused() {
+        Dense.denseInto(input, weights, bias, activation, hidden);
+        return hidden;
+    }
+}
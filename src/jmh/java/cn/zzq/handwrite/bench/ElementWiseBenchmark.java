@@ -0,0 +1,78 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Function;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐元素运算的耗时
+ * <p>
+ * 原地运算会反复作用在同一个矩阵上，加零矩阵、乘全一矩阵与乘1不改变数值，
+ * sigmoid反复作用后收敛到不动点，均不会产生非规格化数影响测量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElementWiseBenchmark {
+
+    /**
+     * 行数*列数，1*784为输入层向量，784*100为输入层到隐藏层的权重矩阵
+     */
+    @Param({"1x784", "1x100", "784x100"})
+    public String shape;
+
+    Matrix matrix;
+    Matrix zeros;
+    Matrix ones;
+
+    final Function sigmoid = x -> 1f / (1 + Math.exp(-x));
+
+    @Setup
+    public void setup() {
+        String[] dims = shape.split("x");
+        int rows = Integer.parseInt(dims[0]);
+        int columns = Integer.parseInt(dims[1]);
+        matrix = Matrix.normals(rows, columns, 0, 1);
+        zeros = new Matrix(rows, columns);
+        ones = Matrix.ones(rows, columns);
+    }
+
+    @Benchmark
+    public Matrix addWith() {
+        matrix.addWith(zeros);
+        return matrix;
+    }
+
+    @Benchmark
+    public Matrix mulWithMatrix() {
+        matrix.mulWith(ones);
+        return matrix;
+    }
+
+    @Benchmark
+    public Matrix mulWithNumber() {
+        matrix.mulWith(1.0);
+        return matrix;
+    }
+
+    @Benchmark
+    public Matrix mapWith() {
+        matrix.mapWith(sigmoid);
+        return matrix;
+    }
+}
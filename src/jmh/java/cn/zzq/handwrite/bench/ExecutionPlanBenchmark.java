@@ -0,0 +1,85 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.graph.ExecutionPlan;
+import cn.zzq.handwrite.graph.LayerGraph;
+import cn.zzq.handwrite.graph.NetworkSpec;
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐层分配中间结果的推理与编译后的执行计划上推理、训练的对比，配合-prof gc可查看每批分配的字节数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ExecutionPlanBenchmark {
+
+    /**
+     * shallow为784 -> 100 -> 10的sigmoid网络，deep为784 -> 256 -> 128 -> 64 -> 10带偏置的网络
+     */
+    @Param({"shallow", "deep"})
+    public String network;
+
+    @Param({"32"})
+    public int batch;
+
+    LayerGraph graph;
+    ExecutionPlan inference;
+    ExecutionPlan training;
+    Matrix inputs;
+    Matrix labels;
+
+    @Setup
+    public void setup() {
+        NetworkSpec spec = "deep".equals(network)
+                ? NetworkSpec.input(784)
+                        .dense(256, Activation.RELU, true)
+                        .dense(128, Activation.TANH, true)
+                        .dense(64, Activation.RELU, true)
+                        .dense(10, Activation.SOFTMAX, true)
+                : NetworkSpec.input(784).dense(100, Activation.SIGMOID).dense(10, Activation.SIGMOID);
+        graph = new LayerGraph(spec, 0.05);
+        inference = graph.compile(batch, ExecutionPlan.Mode.INFERENCE, false);
+        training = graph.compile(batch, ExecutionPlan.Mode.TRAINING, false);
+        Random random = new Random(1);
+        inputs = Models.randomImages(batch, random);
+        labels = new Matrix(batch, 10);
+        for (int i = 0; i < batch; i++) {
+            labels.set(i, random.nextInt(10), 1);
+        }
+    }
+
+    @Benchmark
+    public Matrix layerByLayerQuery() {
+        return graph.query(inputs);
+    }
+
+    @Benchmark
+    public Matrix planQuery() {
+        return graph.query(inputs, inference);
+    }
+
+    @Benchmark
+    public LayerGraph planTrain() {
+        graph.computeGradients(inputs, labels, training);
+        graph.applyGradients(training, graph.getLearningRate() / batch);
+        return graph;
+    }
+}
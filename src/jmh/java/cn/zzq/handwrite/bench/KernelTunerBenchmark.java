@@ -0,0 +1,81 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.KernelProfile;
+import cn.zzq.handwrite.matrix.KernelTuner;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 784-100-10网络一步训练所用的全部矩阵乘法：成本模型与本机调优后的内核配置的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelTunerBenchmark {
+
+    @Param({"1", "32"})
+    public int batch;
+
+    /**
+     * 为true时安装在setup中测得的配置，否则使用成本模型
+     */
+    @Param({"false", "true"})
+    public boolean tuned;
+
+    Matrix[] lefts;
+    Matrix[] rights;
+    Matrix[] outputs;
+
+    @Setup
+    public void setup() {
+        List<int[]> shapes = new ArrayList<>();
+        shapes.add(new int[]{batch, 100, 784});     //正向：输入层到隐藏层
+        shapes.add(new int[]{batch, 10, 100});      //正向：隐藏层到输出层
+        shapes.add(new int[]{784, 100, batch});     //训练：输入层到隐藏层的权重梯度
+        shapes.add(new int[]{100, 10, batch});      //训练：隐藏层到输出层的权重梯度
+        shapes.add(new int[]{batch, 100, 10});      //训练：反传到隐藏层的梯度项
+        lefts = new Matrix[shapes.size()];
+        rights = new Matrix[shapes.size()];
+        outputs = new Matrix[shapes.size()];
+        for (int i = 0; i < shapes.size(); i++) {
+            int[] shape = shapes.get(i);
+            lefts[i] = Matrix.normals(shape[0], shape[2], 0, 1);
+            rights[i] = Matrix.normals(shape[2], shape[1], 0, 1);
+            outputs[i] = new Matrix(shape[0], shape[1]);
+        }
+        KernelProfile profile = tuned ? KernelTuner.tune(shapes) : null;
+        MatrixDotParallel.setProfile(profile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MatrixDotParallel.setProfile(null);
+    }
+
+    @Benchmark
+    public Matrix[] trainingShapes() {
+        for (int i = 0; i < lefts.length; i++) {
+            MatrixDotParallel.dotInto(lefts[i], rights[i], outputs[i]);
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,74 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.FloatMatrix;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 串行与并行、双精度与单精度矩阵乘法在不同形状下的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixDotBenchmark {
+
+    /**
+     * 形状M*K*N，即(M, K)的矩阵右乘(K, N)的矩阵
+     * 1*784*100与1*100*10为单张图片推理的两层，其余为批量推理与训练中出现的形状
+     */
+    @Param({"1x784x100", "1x100x10", "64x784x100", "256x784x100", "600x600x600"})
+    public String shape;
+
+    Matrix left;
+    Matrix right;
+    FloatMatrix floatLeft;
+    FloatMatrix floatRight;
+
+    @Setup
+    public void setup() {
+        String[] dims = shape.split("x");
+        int m = Integer.parseInt(dims[0]);
+        int k = Integer.parseInt(dims[1]);
+        int n = Integer.parseInt(dims[2]);
+        left = Matrix.normals(m, k, 0, 1);
+        right = Matrix.normals(k, n, 0, 1);
+        floatLeft = FloatMatrix.valueOf(left);
+        floatRight = FloatMatrix.valueOf(right);
+    }
+
+    @Benchmark
+    public Matrix serial() {
+        return left.dot(right);
+    }
+
+    @Benchmark
+    public Matrix parallel() {
+        return MatrixDotParallel.dot(left, right);
+    }
+
+    @Benchmark
+    public FloatMatrix serialFloat() {
+        return floatLeft.dot(floatRight);
+    }
+
+    @Benchmark
+    public FloatMatrix parallelFloat() {
+        return MatrixDotParallel.dot(floatLeft, floatRight);
+    }
+}
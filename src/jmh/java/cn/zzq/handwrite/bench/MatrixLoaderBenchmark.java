@@ -0,0 +1,38 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从assets中的csv文件加载权重矩阵的耗时，需要在项目根目录下运行
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixLoaderBenchmark {
+
+    @Benchmark
+    public Matrix loadInputHiddenCsv() throws IOException {
+        return MatrixLoader.loadCsv(Models.INPUT_HIDDEN_CSV);
+    }
+
+    @Benchmark
+    public Matrix loadHiddenOutputCsv() throws IOException {
+        return MatrixLoader.loadCsv(Models.HIDDEN_OUTPUT_CSV);
+    }
+}
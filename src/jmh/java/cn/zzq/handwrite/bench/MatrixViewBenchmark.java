@@ -0,0 +1,66 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 训练中 inputs^T * hiddenDelta 的形状：先复制转置再相乘与直接使用转置视图相乘的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class MatrixViewBenchmark {
+
+    @Param({"32"})
+    public int batch;
+
+    Matrix inputs;      //(batch, 784)，约20%非零
+    Matrix delta;       //(batch, 100)
+    Matrix inputsT;     //(784, batch)
+    Matrix gradient;    //(784, 100)
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        inputs = new Matrix(batch, 784);
+        for (int i = 0; i < batch; i++) {
+            for (int j = 0; j < 784; j++) {
+                if (random.nextDouble() < 0.2) {
+                    inputs.set(i, j, random.nextDouble());
+                }
+            }
+        }
+        delta = Matrix.normals(batch, 100, 0, 1);
+        inputsT = new Matrix(784, batch);
+        gradient = new Matrix(784, 100);
+    }
+
+    @Benchmark
+    public Matrix copyTranspose() {
+        inputs.transposeInto(inputsT);
+        inputsT.dotInto(delta, gradient);
+        return gradient;
+    }
+
+    @Benchmark
+    public Matrix transposeView() {
+        inputs.transposeView().dotInto(delta.view(), gradient);
+        return gradient;
+    }
+}
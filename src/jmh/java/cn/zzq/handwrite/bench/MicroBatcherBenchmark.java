@@ -0,0 +1,91 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.server.MicroBatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个线程各自推理单张图片与经{@link MicroBatcher}合并推理的吞吐量和延迟分布，不经过HTTP
+ * 线程数默认16，可用JMH的-t参数修改，例如 ./gradlew jmh -PjmhArgs="MicroBatcher -t 4"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class MicroBatcherBenchmark {
+
+    /**
+     * 一批最多合并的图片数
+     */
+    @Param({"32"})
+    public int maxBatchSize;
+
+    /**
+     * 收到第一个请求后最多等待的微秒数
+     */
+    @Param({"200"})
+    public long maxWaitMicros;
+
+    BPNetwork network;
+    MicroBatcher batcher;
+    Matrix[] images;    //64张单行的图片，各线程轮流提交
+
+    @Setup
+    public void setup() {
+        network = Models.trainedNetwork();
+        Matrix all = Models.randomImages(64, new Random(42));
+        images = new Matrix[all.getRowSize()];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = all.rowsView(i, i + 1).toMatrix();
+        }
+        batcher = new MicroBatcher(network, 784, maxBatchSize, maxWaitMicros, 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.close();
+    }
+
+    /**
+     * 每个线程独立的图片下标
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        Matrix next(Matrix[] images) {
+            return images[next++ % images.length];
+        }
+    }
+
+    @Benchmark
+    public BatchPrediction single(Cursor cursor) {
+        return network.queryBatch(cursor.next(images));
+    }
+
+    @Benchmark
+    public BatchPrediction batched(Cursor cursor) throws InterruptedException, ExecutionException {
+        return batcher.submit(cursor.next(images)).get();
+    }
+}
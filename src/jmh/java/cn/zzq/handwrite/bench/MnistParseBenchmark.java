@@ -0,0 +1,88 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
+import cn.zzq.handwrite.mnistparser.MnistImage;
+import cn.zzq.handwrite.mnistparser.MnistLabel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MNIST图片与标签文件的解析耗时，数据在内存中生成，不受磁盘影响；
+ * MnistDataset需要映射文件，使用写入临时目录的同一份数据
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MnistParseBenchmark {
+
+    @Param({"10000"})
+    public int count;
+
+    byte[] images;
+    byte[] labels;
+    Path imageFile;
+    Path labelFile;
+    MnistDataset dataset;
+    Matrix batch;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        images = Models.idxImages(count, random);
+        labels = Models.idxLabels(count, random);
+        imageFile = Files.createTempFile("images", ".idx");
+        labelFile = Files.createTempFile("labels", ".idx");
+        Files.write(imageFile, images);
+        Files.write(labelFile, labels);
+        dataset = MnistDataset.open(imageFile, labelFile);
+        batch = new Matrix(256, dataset.getPixelCount());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(imageFile);
+        Files.deleteIfExists(labelFile);
+    }
+
+    @Benchmark
+    public MnistImage parseImages() throws IOException {
+        return new MnistImage(new ByteArrayInputStream(images));
+    }
+
+    @Benchmark
+    public MnistLabel parseLabels() throws IOException {
+        return new MnistLabel(new ByteArrayInputStream(labels));
+    }
+
+    @Benchmark
+    public MnistDataset openDataset() throws IOException {
+        return MnistDataset.open(imageFile, labelFile);
+    }
+
+    @Benchmark
+    public Matrix materializeBatch() {
+        dataset.batch(0, batch.getRowSize()).inputsInto(batch);
+        return batch;
+    }
+}
@@ -0,0 +1,83 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixLoader;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 基准测试共用的模型与输入数据
+ */
+final class Models {
+    static final String INPUT_HIDDEN_CSV = "assets/inputHidden.csv";
+    static final String HIDDEN_OUTPUT_CSV = "assets/hiddenOutput.csv";
+
+    private Models() {
+    }
+
+    /**
+     * 加载assets中训练好的权重，找不到权重文件时使用随机初始化的网络
+     */
+    static BPNetwork trainedNetwork() {
+        BPNetwork network = new BPNetwork(784, 100, 10, 0.05);
+        try {
+            network.setInputHiddenMatrix(MatrixLoader.loadCsv(INPUT_HIDDEN_CSV));
+            network.setHiddenOutputMatrix(MatrixLoader.loadCsv(HIDDEN_OUTPUT_CSV));
+        } catch (IOException e) {
+            System.err.println("权重文件加载失败，使用随机初始化的网络: " + e.getMessage());
+        }
+        return network;
+    }
+
+    /**
+     * 生成count张归一化后的随机"手写数字"，约80%的像素为0，与MNIST的稀疏程度相当
+     */
+    static Matrix randomImages(int count, Random random) {
+        Matrix images = new Matrix(count, 784);
+        for (int row = 0; row < count; row++) {
+            for (int column = 0; column < 784; column++) {
+                if (random.nextInt(5) == 0) {
+                    images.set(row, column, random.nextInt(256) / 255.0);
+                }
+            }
+        }
+        return images;
+    }
+
+    /**
+     * 在内存中生成count张28*28图片的idx3格式数据
+     */
+    static byte[] idxImages(int count, Random random) {
+        byte[] bytes = new byte[16 + count * 784];
+        writeU32(bytes, 0, 0x00000803);
+        writeU32(bytes, 4, count);
+        writeU32(bytes, 8, 28);
+        writeU32(bytes, 12, 28);
+        for (int i = 16; i < bytes.length; i++) {
+            bytes[i] = random.nextInt(5) == 0 ? (byte) random.nextInt(256) : 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * 在内存中生成count个标签的idx1格式数据
+     */
+    static byte[] idxLabels(int count, Random random) {
+        byte[] bytes = new byte[8 + count];
+        writeU32(bytes, 0, 0x00000801);
+        writeU32(bytes, 4, count);
+        for (int i = 8; i < bytes.length; i++) {
+            bytes[i] = (byte) random.nextInt(10);
+        }
+        return bytes;
+    }
+
+    private static void writeU32(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
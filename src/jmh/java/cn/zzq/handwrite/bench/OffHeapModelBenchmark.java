@@ -0,0 +1,97 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.InferenceWorkspace;
+import cn.zzq.handwrite.ModelSnapshot;
+import cn.zzq.handwrite.OffHeapModel;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.OffHeapMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对一大批输入推理：映射模型对堆外输入逐块推理，与堆上快照对同样多的堆上输入逐块推理的对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class OffHeapModelBenchmark {
+
+    @Param({"10000"})
+    public int images;
+
+    /**
+     * 每块的行数，决定堆上临时空间的大小
+     */
+    @Param({"64", "256"})
+    public int tileRows;
+
+    Path path;
+    OffHeapModel mapped;
+    ModelSnapshot snapshot;
+    InferenceWorkspace workspace;
+    Matrix[] tiles;             //堆上输入，按块切开
+    OffHeapMatrix inputs;       //堆外输入
+    OffHeapMatrix outputs;
+
+    @Setup
+    public void setup() throws IOException {
+        BPNetwork network = Models.trainedNetwork();
+        path = Files.createTempFile("offheap", ".bpnm");
+        network.save(path);
+        mapped = OffHeapModel.open(path, 1);
+        snapshot = ModelSnapshot.of(network, 1);
+        workspace = new InferenceWorkspace(snapshot);
+
+        Matrix all = Models.randomImages(images, new Random(1));
+        inputs = OffHeapMatrix.copyOf(all);
+        outputs = OffHeapMatrix.allocate(images, mapped.getOutputNodeCount());
+        tiles = new Matrix[(images + tileRows - 1) / tileRows];
+        for (int t = 0; t < tiles.length; t++) {
+            tiles[t] = new Matrix(Math.min(tileRows, images - t * tileRows), all.getColumnSize());
+            inputs.copyRowsInto(t * tileRows, tiles[t]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mapped.close();
+        inputs.close();
+        outputs.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public OffHeapMatrix offHeapTiles() {
+        mapped.queryInto(inputs, outputs, tileRows);
+        return outputs;
+    }
+
+    @Benchmark
+    public Matrix heapTiles() {
+        Matrix output = null;
+        for (Matrix tile : tiles) {
+            output = snapshot.query(tile, workspace);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,80 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SIMD内核与标量内核在784维输入层上的对比
+ * <p>
+ * 内核在类加载时选定，JMH为每个参数组合分叉新的JVM，因此在第一次使用矩阵之前设置系统属性即可切换。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SimdBenchmark {
+
+    @Param({"true", "false"})
+    public String simd;
+
+    Matrix input;       //(1, 784) 单张图片
+    Matrix weights;     //(784, 100) 输入层到隐藏层的权重
+    Matrix hidden;      //(1, 100)
+    Matrix wide;        //(64, 784) 一批图片
+    Matrix other;       //(64, 784)
+
+    @Setup
+    public void setup() {
+        System.setProperty("handwrite.simd", simd);
+        input = Matrix.normals(1, 784, 0, 1);
+        weights = Matrix.normals(784, 100, 0, 1);
+        hidden = new Matrix(1, 100);
+        wide = Matrix.normals(64, 784, 0, 1);
+        other = Matrix.normals(64, 784, 0, 1e-9);
+    }
+
+    @Benchmark
+    public Matrix dotInputLayer() {
+        input.dotInto(weights, hidden);
+        return hidden;
+    }
+
+    @Benchmark
+    public Matrix inputLayer() {
+        input.dotInto(weights, hidden);
+        hidden.sigmoidWith();
+        return hidden;
+    }
+
+    @Benchmark
+    public Matrix addWith() {
+        wide.addWith(other);
+        return wide;
+    }
+
+    @Benchmark
+    public Matrix mulWith() {
+        wide.mulWith(1.0);
+        return wide;
+    }
+
+    @Benchmark
+    public Matrix sigmoidWith() {
+        wide.sigmoidWith();
+        return wide;
+    }
+}
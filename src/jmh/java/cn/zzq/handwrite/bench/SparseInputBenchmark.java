@@ -0,0 +1,61 @@
+package cn.zzq.handwrite.bench;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 第一层矩阵乘法的耗时随输入中非零像素比例的变化，MNIST图片约为0.2
+ * 基准测试JVM开启跳过零元素，加上{@code -jvmArgsAppend -Dhandwrite.sparse=false}可与稠密计算对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dhandwrite.sparse=true")
+public class SparseInputBenchmark {
+
+    @Param({"1", "64"})
+    public int batch;
+
+    @Param({"0.2", "0.5", "1.0"})
+    public double density;
+
+    Matrix input;       //(batch, 784)
+    Matrix weights;     //(784, 100)
+    Matrix hidden;      //(batch, 100)
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        input = new Matrix(batch, 784);
+        for (int row = 0; row < batch; row++) {
+            for (int column = 0; column < 784; column++) {
+                if (random.nextDouble() < density) {
+                    input.set(row, column, (1 + random.nextInt(255)) / 255.0);
+                }
+            }
+        }
+        weights = Matrix.normals(784, 100, 0, 0.1);
+        hidden = new Matrix(batch, 100);
+    }
+
+    @Benchmark
+    public Matrix inputLayer() {
+        input.dotInto(weights, hidden);
+        return hidden;
+    }
+}
@@ -1,15 +1,42 @@
 package cn.zzq.handwrite;
 
-import cn.zzq.handwrite.matrix.Function;
+import cn.zzq.handwrite.graph.LayerGraph;
+import cn.zzq.handwrite.graph.NetworkSpec;
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Dense;
 import cn.zzq.handwrite.matrix.Matrix;
-import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.matrix.ModelFile;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 三层BP神经网络，训练时就地更新权重
+ * <p>
+ * 即结构为 输入层 -> 隐藏层(sigmoid) -> 输出层(sigmoid)、不带偏置的{@link LayerGraph}，
+ * 正向与反向传播都在{@link LayerGraph}编译出的执行计划上进行；这里提供按层命名的权重、模型文件与工作区的接口。
+ * 启动时调用{@link #tuneKernels}后，推理与训练中的矩阵乘法都使用本机实测最快的内核配置。
+ * <p>
+ * 权重没有任何同步，训练或替换权重的同时在其他线程推理会读到更新到一半的权重。
+ * 需要边训练(或边加载)边提供推理时，把权重复制为{@link ModelSnapshot}并通过{@link ModelRegistry}发布。
+ */
+public class BPNetwork extends LayerGraph {
+    /**
+     * 模型文件中输入层到隐藏层权重矩阵的名称
+     */
+    public static final String INPUT_HIDDEN_NAME = "inputHidden";
 
-public class BPNetwork {
-    private double learningRate;    //学习率
+    /**
+     * 模型文件中隐藏层到输出层权重矩阵的名称
+     */
+    public static final String HIDDEN_OUTPUT_NAME = "hiddenOutput";
 
-    private Matrix inputHiddenW;    //输入层到隐藏层的权重矩阵
-    private Matrix hiddenOutputW;   //隐藏层到输出层的权重矩阵
-    private final Function activation;    //激活函数
+    private static final int INPUT_HIDDEN = 0;     //输入层到隐藏层的权重所在的层号
+    private static final int HIDDEN_OUTPUT = 1;    //隐藏层到输出层的权重所在的层号
+    //激活函数为sigmoid函数，正向传播由Dense在矩阵乘法的每行算完后立即应用
 
     /**
      * 初始化一个BP神经网络
@@ -22,32 +49,14 @@ public class BPNetwork {
                      int hiddenNodeCount,   //隐藏层节点数目
                      int outputNodeCount,//输出层节点数目
                      double learningRate) {
-        this.learningRate = learningRate;   //学习率
-
         //输入层为一个长度为784的行向量input
         //隐藏层为一个长度为100的行向量hidden
         //网络结构可用如下矩阵运算表示 input * inputHidden = hidden
-        //则inputHidden为784行100列的矩阵
-        this.inputHiddenW = Matrix.normals(
-                inputNodeCount,    //行数
-                hiddenNodeCount,     //列数
-                0,      //正态分布均值
-                Math.pow(hiddenNodeCount, -0.5) //正态分布方差
-        );
-
-        //隐藏层为一个长度为100的行向量hidden
-        //输出层为一个长度为10的行向量output
-        //网络结构可用如下矩阵运算表示 hidden * hiddenOutput = output
-        //则inputHidden为100行10列的矩阵
-        this.hiddenOutputW = Matrix.normals(
-                hiddenNodeCount,    //行数
-                outputNodeCount,    //列数
-                0,      //正态分布均值
-                Math.pow(outputNodeCount, -0.5) //正态分布方差
-        );
-
-        //激活函数为signmoid函数
-        this.activation = x -> 1f / (1 + Math.exp(-x));
+        //则inputHidden为784行100列的矩阵，按正态分布(均值0，标准差hiddenNodeCount^-0.5)初始化
+        //hidden * hiddenOutput = output，hiddenOutput为100行10列的矩阵，标准差为outputNodeCount^-0.5
+        super(NetworkSpec.input(inputNodeCount)
+                .dense(hiddenNodeCount, Activation.SIGMOID)
+                .dense(outputNodeCount, Activation.SIGMOID), learningRate);
     }
 
     /**
@@ -55,7 +64,7 @@ public class BPNetwork {
      * @return 输入层到隐藏层的权重矩阵
      */
     public Matrix getInputHiddenMatrix() {
-        return inputHiddenW;
+        return getWeights(INPUT_HIDDEN);
     }
 
     /**
@@ -63,7 +72,7 @@ public class BPNetwork {
      * @return 隐藏层到输出层的权重矩阵
      */
     public Matrix getHiddenOutputMatrix() {
-        return hiddenOutputW;
+        return getWeights(HIDDEN_OUTPUT);
     }
 
     /**
@@ -71,66 +80,100 @@ public class BPNetwork {
      * @param inputHiddenW 输入层到隐藏层的权重矩阵
      */
     public void setInputHiddenMatrix(Matrix inputHiddenW){
-        if(this.inputHiddenW.diffShape(inputHiddenW)){  //必须形状相符的矩阵
-           throw new MatrixShapeException(this.inputHiddenW,inputHiddenW);
-        }
-        this.inputHiddenW = inputHiddenW;
+        setWeights(INPUT_HIDDEN, inputHiddenW);
     }
     /**
      * 设置隐藏层到输出层的权重矩阵
      * @param hiddenOutputW 隐藏层到输出层的权重矩阵
      */
     public void setHiddenOutputMatrix(Matrix hiddenOutputW){
-        if(this.hiddenOutputW.diffShape(hiddenOutputW)){  //必须形状相符的矩阵
-            throw new MatrixShapeException(this.hiddenOutputW,hiddenOutputW);
+        setWeights(HIDDEN_OUTPUT, hiddenOutputW);
+    }
+
+    /**
+     * 转换为单精度网络，权重舍入到最近的单精度数，之后两个网络互不影响
+     * @return 单精度网络
+     */
+    public FloatBPNetwork toFloat() {
+        return new FloatBPNetwork(this);
+    }
+
+    /**
+     * 将权重保存为二进制模型文件
+     * @param path 文件路径
+     * @throws IOException 写入失败
+     */
+    public void save(Path path) throws IOException {
+        Map<String, Matrix> matrices = new LinkedHashMap<>();
+        matrices.put(INPUT_HIDDEN_NAME, getInputHiddenMatrix());
+        matrices.put(HIDDEN_OUTPUT_NAME, getHiddenOutputMatrix());
+        ModelFile.write(path, matrices);
+    }
+
+    /**
+     * 从二进制模型文件加载权重，权重形状必须与网络相符
+     * @param path 文件路径
+     * @throws IOException 文件不存在、格式不合法或校验和不符
+     */
+    public void load(Path path) throws IOException {
+        try (ModelFile file = ModelFile.open(path)) {
+            setInputHiddenMatrix(file.read(INPUT_HIDDEN_NAME));
+            setHiddenOutputMatrix(file.read(HIDDEN_OUTPUT_NAME));
         }
-        this.hiddenOutputW = hiddenOutputW;
     }
 
     /**
-     * 正向推理
+     * 使用预先分配的工作区正向推理，批大小不变时不分配任何对象
+     * 矩阵乘法在当前线程串行计算，多个线程并发推理时各自使用自己的工作区
      *
-     * @param input 输入层向量,行向量
-     * @return 推理结果,即输出层向量，行向量
+     * @param input 输入矩阵，每行为一张图片，(图片张数, 输入层节点数)
+     * @param ws 工作区
+     * @return 工作区中的输出矩阵，下一次使用该工作区推理时会被覆盖
      */
-    public Matrix query(Matrix input) {
-        Matrix hidden = input.dot(inputHiddenW);  //隐藏层节点的输入
-        hidden.mapWith(activation);   //应用激活函数,得到隐藏层的输出行向量
-
-        Matrix output = hidden.dot(hiddenOutputW);  //输出层节点输入
-        output.mapWith(activation); //激活函数，得到最终输出层的输出向量
-        return output;
+    public Matrix query(Matrix input, InferenceWorkspace ws) {
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        ws.ensureRows(input.getRowSize());
+        Dense.denseInto(input, getInputHiddenMatrix(), null, Activation.SIGMOID, ws.hidden);     //隐藏层的输出
+        Dense.denseInto(ws.hidden, getHiddenOutputMatrix(), null, Activation.SIGMOID, ws.output);
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return ws.output;
     }
 
     /**
-     * 训练
+     * 训练单个样本
      *
      * @param input 输入层向量
      * @param label 期望的输出层向量
      */
     public void train(Matrix input,Matrix label){
-        Matrix hidden = input.dot(inputHiddenW);  //隐藏层节点的输入
-        hidden.mapWith(activation);   //应用激活函数,得到隐藏层的输出行向量
-
-        Matrix output = hidden.dot(hiddenOutputW);  //输出层节点输入
-        output.mapWith(activation); //激活函数，得到最终输出层的输出向量
-
-        //input为(1,784)矩阵
-        //inputHiddenW为(784,100)矩阵
-        //hidden = input*inputHidden为(1,100)矩阵
-        //hiddenOutputW为(100,10)矩阵
-        //output为(1,10)矩阵
-
-        //误差反向推算 error = input - output;
-        Matrix outputErrors = input.sub(output);
+        trainBatch(input, label);
+    }
 
-        Matrix deltaHiddenOutput = outputErrors
-                .mul(output)
-                .mul(output.map(x->1-x))
-                .dot(hidden.transpose())
-                .mul(learningRate);
-        this.hiddenOutputW.addWith(deltaHiddenOutput);
+    /**
+     * 计算一批样本的梯度之和，结果写入工作区中预先分配的梯度矩阵，不修改权重
+     * 梯度方向为使误差减小的方向，即权重应加上梯度乘以学习率
+     * <p>
+     * outputDelta = (label - output) * output * (1 - output)，sigmoid的导数为y(1-y)
+     * hiddenDelta = (outputDelta * hiddenOutputW^T) * hidden * (1 - hidden)
+     * hiddenOutputGradient = hidden^T * outputDelta，inputHiddenGradient = inputs^T * hiddenDelta
+     *
+     * @param inputs 输入矩阵，每行为一个样本，(batch, 输入层节点数)
+     * @param labels 期望输出矩阵，每行为对应样本的期望输出，(batch, 输出层节点数)
+     * @param ws 工作区
+     */
+    public void computeGradients(Matrix inputs, Matrix labels, TrainWorkspace ws){
+        computeGradients(inputs, labels, ws.plan(inputs.getRowSize()));
+    }
 
-        Matrix hiddenErrors = outputErrors.dot(hiddenOutputW);
+    /**
+     * 按工作区中的梯度更新权重，weight += scale * gradient
+     * @param ws 已计算好梯度的工作区
+     * @param scale 梯度的倍数，通常为学习率除以批大小
+     */
+    public void applyGradients(TrainWorkspace ws, double scale){
+        applyGradients(ws.plan, scale);
     }
 }
@@ -0,0 +1,125 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+
+/**
+ * 一批图片的推理结果，每行为一张图片在各个数字上的置信度
+ */
+public class BatchPrediction {
+    private final Matrix output;    //(图片张数, 10)
+    private final long modelVersion;    //产生该结果的模型版本，0表示未标注
+
+    public BatchPrediction(Matrix output) {
+        this(output, 0);
+    }
+
+    /**
+     * @param output 输出层矩阵
+     * @param modelVersion 产生该结果的模型版本，见{@link ModelSnapshot#getVersion()}
+     */
+    public BatchPrediction(Matrix output, long modelVersion) {
+        this.output = output;
+        this.modelVersion = modelVersion;
+    }
+
+    /**
+     * 获取产生该结果的模型版本
+     * @return 模型版本，由不带版本的分类器得到时为0
+     */
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * 获取输出层矩阵
+     * @return (图片张数, 数字个数)的置信度矩阵
+     */
+    public Matrix getOutput() {
+        return output;
+    }
+
+    /**
+     * 获取图片张数
+     * @return 图片张数
+     */
+    public int getSize() {
+        return output.getRowSize();
+    }
+
+    /**
+     * 获取第row张图片识别为digit的置信度
+     */
+    public double getConfidence(int row, int digit) {
+        return output.get(row, digit);
+    }
+
+    /**
+     * 每张图片置信度最高的数字
+     * @return 长度为图片张数的数组
+     */
+    public int[] argmax() {
+        int[] result = new int[getSize()];
+        argmaxInto(result);
+        return result;
+    }
+
+    /**
+     * 将每张图片置信度最高的数字写入result
+     * @param result 长度不小于图片张数的数组
+     */
+    public void argmaxInto(int[] result) {
+        int columns = output.getColumnSize();
+        for (int row = 0; row < getSize(); row++) {
+            int best = 0;
+            double bestValue = output.get(row, 0);
+            for (int column = 1; column < columns; column++) {
+                double value = output.get(row, column);
+                if (value > bestValue) {
+                    best = column;
+                    bestValue = value;
+                }
+            }
+            result[row] = best;
+        }
+    }
+
+    /**
+     * 每张图片置信度最高的k个数字，按置信度从高到低排列
+     * @param k 取前k个
+     * @return 长度为图片张数*k的数组，第row张图片的结果位于[row*k, row*k+k)
+     */
+    public int[] topK(int k) {
+        int[] result = new int[getSize() * k];
+        topKInto(k, result);
+        return result;
+    }
+
+    /**
+     * 将每张图片置信度最高的k个数字写入result，布局同{@link #topK(int)}
+     * @param k 取前k个
+     * @param result 长度不小于图片张数*k的数组
+     */
+    public void topKInto(int k, int[] result) {
+        int columns = output.getColumnSize();
+        if (k <= 0 || k > columns) {
+            throw new IllegalArgumentException(String.format("k必须在1到%d之间，实际为%d", columns, k));
+        }
+        for (int row = 0; row < getSize(); row++) {
+            int base = row * k;
+            //插入排序维护前k个，数字个数很少，无需堆
+            int count = 0;
+            for (int column = 0; column < columns; column++) {
+                double value = output.get(row, column);
+                if (count == k && value <= output.get(row, result[base + k - 1])) {
+                    continue;
+                }
+                int position = count < k ? count++ : k - 1;
+                while (position > 0 && output.get(row, result[base + position - 1]) < value) {
+                    result[base + position] = result[base + position - 1];
+                    position--;
+                }
+                result[base + position] = column;
+            }
+        }
+    }
+}
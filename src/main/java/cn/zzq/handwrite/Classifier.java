@@ -0,0 +1,21 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+
+/**
+ * 手写数字分类器，评估与服务只依赖该接口，不关心网络内部使用的精度
+ */
+public interface Classifier {
+    /**
+     * 批量推理
+     * @param inputs 输入矩阵，每行为一张归一化后的图片
+     * @return 推理结果
+     */
+    BatchPrediction queryBatch(Matrix inputs);
+
+    /**
+     * 获取输出层节点数，即类别数
+     * @return 输出层节点数
+     */
+    int getOutputNodeCount();
+}
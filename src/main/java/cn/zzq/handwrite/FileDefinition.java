@@ -22,4 +22,19 @@ public class FileDefinition {
      * 测试集标签
      */
     public static final File TEST_LABELS_FILE = new File("assets/t10k-labels.idx1-ubyte");
+
+    /**
+     * 输入层到隐藏层的权重矩阵
+     */
+    public static final File INPUT_HIDDEN_CSV_FILE = new File("assets/inputHidden.csv");
+
+    /**
+     * 隐藏层到输出层的权重矩阵
+     */
+    public static final File HIDDEN_OUTPUT_CSV_FILE = new File("assets/hiddenOutput.csv");
+
+    /**
+     * 二进制模型文件，包含全部权重矩阵
+     */
+    public static final File MODEL_FILE = new File("assets/model.bpnm");
 }
@@ -0,0 +1,256 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.FloatFunction;
+import cn.zzq.handwrite.matrix.FloatMatrix;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import cn.zzq.handwrite.matrix.ModelFile;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单精度的BP神经网络，结构、正向推理与反向传播都与{@link BPNetwork}相同
+ * <p>
+ * 权重与中间结果均为{@link FloatMatrix}，矩阵乘法读取的字节数减半。
+ * 模型文件以FLOAT32保存，也可以读取FLOAT64的模型文件。
+ */
+public class FloatBPNetwork implements Classifier {
+    private float learningRate;     //学习率
+
+    private FloatMatrix inputHiddenW;   //输入层到隐藏层的权重矩阵
+    private FloatMatrix hiddenOutputW;  //隐藏层到输出层的权重矩阵
+    private final FloatFunction activation = x -> 1f / (1f + (float) Math.exp(-x));    //sigmoid激活函数
+
+    private Workspace workspace;    //trainBatch使用的工作区
+
+    /**
+     * 初始化一个单精度BP神经网络，权重的初始化方式与{@link BPNetwork}相同
+     * @param inputNodeCount 输入层网络节点
+     * @param hiddenNodeCount 隐藏层网络节点
+     * @param outputNodeCount 输出层网络节点
+     * @param learningRate 学习率
+     */
+    public FloatBPNetwork(int inputNodeCount, int hiddenNodeCount, int outputNodeCount, float learningRate) {
+        this.learningRate = learningRate;
+        this.inputHiddenW = FloatMatrix.normals(inputNodeCount, hiddenNodeCount, 0, Math.pow(hiddenNodeCount, -0.5));
+        this.hiddenOutputW = FloatMatrix.normals(hiddenNodeCount, outputNodeCount, 0, Math.pow(outputNodeCount, -0.5));
+    }
+
+    /**
+     * 由双精度网络转换得到，权重舍入到最近的单精度数
+     * @param network 双精度网络
+     */
+    public FloatBPNetwork(BPNetwork network) {
+        this.learningRate = (float) network.getLearningRate();
+        this.inputHiddenW = FloatMatrix.valueOf(network.getInputHiddenMatrix());
+        this.hiddenOutputW = FloatMatrix.valueOf(network.getHiddenOutputMatrix());
+    }
+
+    /**
+     * 转换为双精度网络，转换是精确的
+     * @return 双精度网络
+     */
+    public BPNetwork toDouble() {
+        BPNetwork network = new BPNetwork(inputHiddenW.getRowSize(), inputHiddenW.getColumnSize(),
+                hiddenOutputW.getColumnSize(), learningRate);
+        network.setInputHiddenMatrix(inputHiddenW.toMatrix());
+        network.setHiddenOutputMatrix(hiddenOutputW.toMatrix());
+        return network;
+    }
+
+    public float getLearningRate() {
+        return learningRate;
+    }
+
+    public void setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public FloatMatrix getInputHiddenMatrix() {
+        return inputHiddenW;
+    }
+
+    public FloatMatrix getHiddenOutputMatrix() {
+        return hiddenOutputW;
+    }
+
+    public void setInputHiddenMatrix(FloatMatrix inputHiddenW) {
+        if (this.inputHiddenW.diffShape(inputHiddenW)) {
+            throw new MatrixShapeException(this.inputHiddenW.getRowSize(), this.inputHiddenW.getColumnSize(),
+                    inputHiddenW.getRowSize(), inputHiddenW.getColumnSize());
+        }
+        this.inputHiddenW = inputHiddenW;
+    }
+
+    public void setHiddenOutputMatrix(FloatMatrix hiddenOutputW) {
+        if (this.hiddenOutputW.diffShape(hiddenOutputW)) {
+            throw new MatrixShapeException(this.hiddenOutputW.getRowSize(), this.hiddenOutputW.getColumnSize(),
+                    hiddenOutputW.getRowSize(), hiddenOutputW.getColumnSize());
+        }
+        this.hiddenOutputW = hiddenOutputW;
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return hiddenOutputW.getColumnSize();
+    }
+
+    /**
+     * 将权重以FLOAT32保存为二进制模型文件
+     * @param path 文件路径
+     * @throws IOException 写入失败
+     */
+    public void save(Path path) throws IOException {
+        Map<String, Matrix> matrices = new LinkedHashMap<>();
+        matrices.put(BPNetwork.INPUT_HIDDEN_NAME, inputHiddenW.toMatrix());
+        matrices.put(BPNetwork.HIDDEN_OUTPUT_NAME, hiddenOutputW.toMatrix());
+        ModelFile.write(path, matrices, ModelFile.DType.FLOAT32);
+    }
+
+    /**
+     * 从二进制模型文件加载权重，权重形状必须与网络相符
+     * @param path 文件路径
+     * @throws IOException 文件不存在、格式不合法或校验和不符
+     */
+    public void load(Path path) throws IOException {
+        try (ModelFile file = ModelFile.open(path)) {
+            setInputHiddenMatrix(file.readFloat(BPNetwork.INPUT_HIDDEN_NAME));
+            setHiddenOutputMatrix(file.readFloat(BPNetwork.HIDDEN_OUTPUT_NAME));
+        }
+    }
+
+    /**
+     * 正向推理
+     * @param input 输入矩阵，每行为一张图片
+     * @return 输出层矩阵
+     */
+    public FloatMatrix query(FloatMatrix input) {
+        FloatMatrix hidden = MatrixDotParallel.dot(input, inputHiddenW);
+        hidden.mapWith(activation);
+        FloatMatrix output = MatrixDotParallel.dot(hidden, hiddenOutputW);
+        output.mapWith(activation);
+        return output;
+    }
+
+    /**
+     * 批量推理
+     * @param inputs 输入矩阵，每行为一张图片，(图片张数, 输入层节点数)
+     * @return 推理结果
+     */
+    public BatchPrediction queryBatch(FloatMatrix inputs) {
+        return new BatchPrediction(query(inputs).toMatrix());
+    }
+
+    /**
+     * 批量推理，输入先转换为单精度
+     * @param inputs 输入矩阵，每行为一张归一化后的图片
+     * @return 推理结果
+     */
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        return queryBatch(FloatMatrix.valueOf(inputs));
+    }
+
+    /**
+     * 以小批量训练一步，权重的更新量为整批样本梯度的平均值乘以学习率
+     * @param inputs 输入矩阵，每行为一个样本，(batch, 输入层节点数)
+     * @param labels 期望输出矩阵，每行为对应样本的期望输出，(batch, 输出层节点数)
+     */
+    public void trainBatch(FloatMatrix inputs, FloatMatrix labels) {
+        int batch = inputs.getRowSize();
+        if (inputs.getColumnSize() != inputHiddenW.getRowSize()) {
+            throw new MatrixShapeException(batch, inputHiddenW.getRowSize(), batch, inputs.getColumnSize());
+        }
+        if (labels.getRowSize() != batch || labels.getColumnSize() != hiddenOutputW.getColumnSize()) {
+            throw new MatrixShapeException(batch, hiddenOutputW.getColumnSize(), labels.getRowSize(), labels.getColumnSize());
+        }
+        if (workspace == null) {
+            workspace = new Workspace(inputHiddenW.getRowSize(), inputHiddenW.getColumnSize(), hiddenOutputW.getColumnSize());
+        }
+        Workspace ws = workspace;
+        ws.ensureRows(batch);
+
+        //正向传播
+        MatrixDotParallel.dotInto(inputs, inputHiddenW, ws.hidden);
+        ws.hidden.mapWith(activation);
+        MatrixDotParallel.dotInto(ws.hidden, hiddenOutputW, ws.output);
+        ws.output.mapWith(activation);
+
+        //outputDelta = (label - output) * output * (1 - output)
+        ws.outputDelta.fill(labels);
+        ws.outputDelta.subWith(ws.output);
+        ws.outputDelta.mulWith(ws.output);
+        ws.outputTmp.fill(ws.output);
+        ws.outputTmp.mapWith(x -> 1 - x);
+        ws.outputDelta.mulWith(ws.outputTmp);
+
+        //hiddenDelta = (outputDelta * hiddenOutputW^T) * hidden * (1 - hidden)
+        hiddenOutputW.transposeInto(ws.hiddenOutputT);
+        MatrixDotParallel.dotInto(ws.outputDelta, ws.hiddenOutputT, ws.hiddenDelta);
+        ws.hiddenDelta.mulWith(ws.hidden);
+        ws.hiddenTmp.fill(ws.hidden);
+        ws.hiddenTmp.mapWith(x -> 1 - x);
+        ws.hiddenDelta.mulWith(ws.hiddenTmp);
+
+        //梯度之和
+        ws.hidden.transposeInto(ws.hiddenT);
+        MatrixDotParallel.dotInto(ws.hiddenT, ws.outputDelta, ws.hiddenOutputGradient);
+        inputs.transposeInto(ws.inputsT);
+        MatrixDotParallel.dotInto(ws.inputsT, ws.hiddenDelta, ws.inputHiddenGradient);
+
+        float scale = learningRate / batch;     //对整批样本的梯度求平均
+        hiddenOutputW.addScaledWith(ws.hiddenOutputGradient, scale);
+        inputHiddenW.addScaledWith(ws.inputHiddenGradient, scale);
+    }
+
+    /**
+     * 反向传播所需的中间矩阵，与{@link TrainWorkspace}相同，只是元素为单精度
+     */
+    private static final class Workspace {
+        final int inputNodeCount;
+        final int hiddenNodeCount;
+        final int outputNodeCount;
+
+        int rows = -1;
+        FloatMatrix hidden;
+        FloatMatrix output;
+        FloatMatrix outputDelta;
+        FloatMatrix outputTmp;
+        FloatMatrix hiddenDelta;
+        FloatMatrix hiddenTmp;
+        FloatMatrix hiddenT;
+        FloatMatrix inputsT;
+
+        final FloatMatrix hiddenOutputT;
+        final FloatMatrix inputHiddenGradient;
+        final FloatMatrix hiddenOutputGradient;
+
+        Workspace(int inputNodeCount, int hiddenNodeCount, int outputNodeCount) {
+            this.inputNodeCount = inputNodeCount;
+            this.hiddenNodeCount = hiddenNodeCount;
+            this.outputNodeCount = outputNodeCount;
+            this.hiddenOutputT = new FloatMatrix(outputNodeCount, hiddenNodeCount);
+            this.inputHiddenGradient = new FloatMatrix(inputNodeCount, hiddenNodeCount);
+            this.hiddenOutputGradient = new FloatMatrix(hiddenNodeCount, outputNodeCount);
+        }
+
+        void ensureRows(int rows) {
+            if (this.rows == rows) {
+                return;
+            }
+            this.rows = rows;
+            hidden = new FloatMatrix(rows, hiddenNodeCount);
+            output = new FloatMatrix(rows, outputNodeCount);
+            outputDelta = new FloatMatrix(rows, outputNodeCount);
+            outputTmp = new FloatMatrix(rows, outputNodeCount);
+            hiddenDelta = new FloatMatrix(rows, hiddenNodeCount);
+            hiddenTmp = new FloatMatrix(rows, hiddenNodeCount);
+            hiddenT = new FloatMatrix(hiddenNodeCount, rows);
+            inputsT = new FloatMatrix(inputNodeCount, rows);
+        }
+    }
+}
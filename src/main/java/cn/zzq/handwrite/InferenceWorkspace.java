@@ -0,0 +1,64 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+
+/**
+ * 正向推理所需的中间矩阵，预先分配后反复使用
+ * <p>
+ * 每个推理线程独占一个工作区，{@link BPNetwork#query(Matrix, InferenceWorkspace)}、
+ * {@link ModelSnapshot#query(Matrix, InferenceWorkspace)}与{@link OffHeapModel#query(Matrix, InferenceWorkspace)}
+ * 在批大小不变时不分配任何对象。
+ * 返回的输出矩阵属于工作区，下一次推理会覆盖其内容。
+ */
+public class InferenceWorkspace {
+    final int hiddenNodeCount;
+    final int outputNodeCount;
+
+    int rows = -1;      //当前矩阵的行数，即批大小
+    Matrix hidden;      //(batch, hidden) 隐藏层输出
+    Matrix output;      //(batch, output) 输出层输出
+
+    /**
+     * @param network 网络，用于确定各层的节点数
+     */
+    public InferenceWorkspace(BPNetwork network) {
+        this.hiddenNodeCount = network.getInputHiddenMatrix().getColumnSize();
+        this.outputNodeCount = network.getHiddenOutputMatrix().getColumnSize();
+    }
+
+    /**
+     * @param snapshot 权重快照，用于确定各层的节点数
+     */
+    public InferenceWorkspace(ModelSnapshot snapshot) {
+        this.hiddenNodeCount = snapshot.getHiddenNodeCount();
+        this.outputNodeCount = snapshot.getOutputNodeCount();
+    }
+
+    /**
+     * @param model 堆外模型，用于确定各层的节点数
+     */
+    public InferenceWorkspace(OffHeapModel model) {
+        this.hiddenNodeCount = model.getHiddenNodeCount();
+        this.outputNodeCount = model.getOutputNodeCount();
+    }
+
+    /**
+     * 确保矩阵行数为rows，批大小变化时才重新分配
+     */
+    void ensureRows(int rows) {
+        if (this.rows == rows) {
+            return;
+        }
+        this.rows = rows;
+        hidden = new Matrix(rows, hiddenNodeCount);
+        output = new Matrix(rows, outputNodeCount);
+    }
+
+    /**
+     * 获取最近一次推理的输出
+     * @return (批大小, 输出层节点数)的矩阵，尚未推理时为null
+     */
+    public Matrix getOutput() {
+        return output;
+    }
+}
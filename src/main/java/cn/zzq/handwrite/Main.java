@@ -2,15 +2,10 @@ package cn.zzq.handwrite;
 
 import cn.zzq.handwrite.matrix.Matrix;
 import cn.zzq.handwrite.matrix.MatrixLoader;
-import cn.zzq.handwrite.mnistparser.MnistImage;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
 import processing.core.PApplet;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class Main extends PApplet {
     public static void main(String[] args) {
@@ -28,29 +23,44 @@ public class Main extends PApplet {
     final Matrix image = new Matrix(28, 28);           //手写数字存放的矩阵
 
     BPNetwork bpNetwork;    //BP神经网络
-    MnistImage mnistImage;  //MNIST图片集
+    MnistDataset mnistDataset;  //MNIST测试集
+
+    //draw每帧都会执行，推理所用的矩阵、结果数组与显示的文字都预先分配，避免每帧产生垃圾
+    final Matrix input = new Matrix(1, 784);            //归一化后的输入行向量
+    InferenceWorkspace workspace;                       //推理工作区
+    BatchPrediction prediction;                         //包装工作区中的输出矩阵
+    final int[] ranking = new int[10];                  //按置信度排序的数字
+    final StringBuilder label = new StringBuilder();    //识别结果与识别时间
+    char[] labelChars = new char[64];
 
     @Override
     public void setup() {
         //初始化手写数字矩阵
         try {
-            mnistImage = new MnistImage(new FileInputStream(FileDefinition.TEST_IMAGE_FILE));
+            mnistDataset = MnistDataset.open(FileDefinition.TEST_IMAGE_FILE, FileDefinition.TEST_LABELS_FILE);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        //加载训练好的权重文件
-        Matrix hiddenOutput = MatrixLoader.loadCsv("assets/hiddenOutput.csv");
-        Matrix inputHidden = MatrixLoader.loadCsv("assets/inputHidden.csv");
-        if(hiddenOutput == null || inputHidden == null){
-            System.err.println("权重文件找不到！！！");
+        //初始化网络
+        bpNetwork = new BPNetwork(784, 100, 10, 0.05);
+        workspace = new InferenceWorkspace(bpNetwork);
+
+        //加载训练好的权重文件，优先使用二进制模型文件，没有时从csv转换一份
+        try {
+            if (!FileDefinition.MODEL_FILE.exists()) {
+                Matrix hiddenOutput = MatrixLoader.loadCsv(FileDefinition.HIDDEN_OUTPUT_CSV_FILE.getPath());
+                Matrix inputHidden = MatrixLoader.loadCsv(FileDefinition.INPUT_HIDDEN_CSV_FILE.getPath());
+                bpNetwork.setInputHiddenMatrix(inputHidden);
+                bpNetwork.setHiddenOutputMatrix(hiddenOutput);
+                bpNetwork.save(FileDefinition.MODEL_FILE.toPath());
+            }
+            bpNetwork.load(FileDefinition.MODEL_FILE.toPath());
+        } catch (IOException e) {
+            System.err.println("权重文件加载失败！！！");
+            e.printStackTrace();
             exit();
         }
-
-        //初始化网络及权重
-        bpNetwork = new BPNetwork(784, 100, 10, 0.05);
-        bpNetwork.setInputHiddenMatrix(inputHidden);
-        bpNetwork.setHiddenOutputMatrix(hiddenOutput);
     }
 
     //将手写数字矩阵渲染到显示窗口
@@ -109,14 +119,31 @@ public class Main extends PApplet {
         render();   //渲染image矩阵
 
         long ns = System.nanoTime();
-        Matrix m1 = image.copy();               //拷贝图像矩阵
-        m1.reshape(1, 784);     //转成列向量
-        m1.mulWith(1 / 255f);               //归一化
-        String confStr = getResult(bpNetwork.query(m1)).toString(); //识别并将识别结果输出为字符串
+        input.fill(image);                  //拷贝图像矩阵，input为1*784的行向量
+        input.mulWith(1 / 255f);            //归一化
+        Matrix output = bpNetwork.query(input, workspace);  //识别
+        if (prediction == null || prediction.getOutput() != output) {
+            prediction = new BatchPrediction(output);
+        }
+        prediction.topKInto(ranking.length, ranking);
         long deltaNs = System.nanoTime() - ns;
-        String str = String.format("%s    %f ms", confStr, deltaNs / 1000000f); //得到识别结果与识别时间的字符串，ns与ms的进制转换
+
+        //得到识别结果与识别时间的字符串，ns与ms的进制转换
+        label.setLength(0);
+        label.append('[');
+        for (int i = 0; i < ranking.length; i++) {
+            if (i > 0) {
+                label.append(", ");
+            }
+            label.append(ranking[i]);
+        }
+        label.append("]    ").append(deltaNs / 1000000f).append(" ms");
+        if (labelChars.length < label.length()) {
+            labelChars = new char[label.length()];
+        }
+        label.getChars(0, label.length(), labelChars, 0);
         fill(255);          //设置画笔填充色为白色
-        text(str, 0, height-5); //输出识别结果
+        text(labelChars, 0, label.length(), 0, height-5); //输出识别结果
     }
 
     /**
@@ -125,18 +152,8 @@ public class Main extends PApplet {
      * @param m 置信度向量
      * @return 按置信度从高到低对手写数字进行排序
      */
-    List<Integer> getResult(Matrix m) {
-        //生成索引(0,9)
-        List<Integer> index = IntStream.range(0, m.getColumnSize()).boxed().collect(Collectors.toList());
-
-        //获得置信度向量
-        double[] confidences = index.stream().mapToDouble(i -> m.get(0, i)).toArray();
-
-        //排序
-        ArrayList<Integer> sortedIndex = new ArrayList<>(index);    //由于Stream的Range不支持排序，故需要转换成ArrayList
-        sortedIndex.sort((o1, o2) -> Double.compare(confidences[o2], confidences[o1]));
-
-        return sortedIndex;
+    int[] getResult(Matrix m) {
+        return new BatchPrediction(m).topK(m.getColumnSize());
     }
 
     @Override
@@ -164,7 +181,9 @@ public class Main extends PApplet {
             }
             case 'r':
                 //随机填充一个测试集图片
-                image.fill(mnistImage.getImages().get((int)(Math.random()*mnistImage.getSize())));
+                if (mnistDataset != null) {
+                    mnistDataset.imageInto((int) (Math.random() * mnistDataset.getSize()), image);
+                }
                 break;
             default:
                 break;
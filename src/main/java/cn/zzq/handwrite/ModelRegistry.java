@@ -0,0 +1,94 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 当前模型的发布点，以读-复制-更新的方式在推理期间替换权重
+ * <p>
+ * 推理方每次推理时读取一次{@link #current()}，之后整次推理都使用这个快照，读取只是一次volatile读，不加锁也不会阻塞。
+ * 发布方复制出新的{@link ModelSnapshot}后原子地替换引用：替换之后开始的推理使用新版本，
+ * 已经开始的推理继续使用旧快照直到完成，旧快照在没有推理引用它之后由GC回收。
+ * 发布之间互斥，版本号严格递增；新权重的形状须与当前版本相同，保证推理方的输入与工作区仍然可用。
+ */
+public class ModelRegistry implements Classifier {
+    private final AtomicReference<ModelSnapshot> current;
+    private final AtomicLong publishCount = new AtomicLong();
+
+    /**
+     * @param initial 初始权重，复制为版本1
+     */
+    public ModelRegistry(BPNetwork initial) {
+        this.current = new AtomicReference<>(ModelSnapshot.of(initial, 1));
+    }
+
+    /**
+     * 获取当前版本的快照，同一次推理应只调用一次，避免前后使用不同版本
+     * @return 当前快照
+     */
+    public ModelSnapshot current() {
+        return current.get();
+    }
+
+    /**
+     * 获取当前版本号
+     */
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+
+    /**
+     * 获取初始化之后发布的次数
+     */
+    public long getPublishCount() {
+        return publishCount.get();
+    }
+
+    /**
+     * 复制网络当前的权重并发布为新版本，复制期间网络不能被训练
+     * @param network 网络，权重形状须与当前版本相同
+     * @return 新发布的快照
+     */
+    public ModelSnapshot publish(BPNetwork network) {
+        return publish(network.getInputHiddenMatrix(), network.getHiddenOutputMatrix());
+    }
+
+    /**
+     * 复制给定的权重并发布为新版本
+     * @param inputHiddenW 输入层到隐藏层的权重矩阵
+     * @param hiddenOutputW 隐藏层到输出层的权重矩阵
+     * @return 新发布的快照
+     */
+    public synchronized ModelSnapshot publish(Matrix inputHiddenW, Matrix hiddenOutputW) {
+        ModelSnapshot previous = current.get();
+        ModelSnapshot next = ModelSnapshot.of(inputHiddenW, hiddenOutputW, previous.getVersion() + 1);
+        if (next.getInputNodeCount() != previous.getInputNodeCount()
+                || next.getHiddenNodeCount() != previous.getHiddenNodeCount()) {
+            throw new MatrixShapeException(previous.getInputNodeCount(), previous.getHiddenNodeCount(),
+                    next.getInputNodeCount(), next.getHiddenNodeCount());
+        }
+        if (next.getOutputNodeCount() != previous.getOutputNodeCount()) {
+            throw new MatrixShapeException(previous.getHiddenNodeCount(), previous.getOutputNodeCount(),
+                    next.getHiddenNodeCount(), next.getOutputNodeCount());
+        }
+        current.set(next);
+        publishCount.incrementAndGet();
+        return next;
+    }
+
+    /**
+     * 使用当前版本批量推理，结果中带有所用的版本号
+     */
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        return current.get().queryBatch(inputs);
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return current.get().getOutputNodeCount();
+    }
+}
@@ -0,0 +1,135 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Dense;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.metrics.Metrics;
+
+/**
+ * 不可变的网络权重快照，只用于推理
+ * <p>
+ * 创建时复制权重，之后任何人都无法修改，多个线程可以不加锁地同时推理。
+ * 训练中的{@link BPNetwork}就地更新权重，推理线程直接读取会看到更新到一半的权重；
+ * 训练方应定期创建快照并通过{@link ModelRegistry}发布，推理方总是从快照推理。
+ * 每个快照带有版本号，推理结果中记录了产生它的版本。
+ */
+public final class ModelSnapshot implements Classifier {
+    private final Matrix inputHiddenW;      //输入层到隐藏层的权重矩阵
+    private final Matrix hiddenOutputW;     //隐藏层到输出层的权重矩阵
+    private final long version;
+    private final long createdAtMillis;
+
+    private ModelSnapshot(Matrix inputHiddenW, Matrix hiddenOutputW, long version) {
+        if (inputHiddenW.getColumnSize() != hiddenOutputW.getRowSize()) {
+            throw new MatrixShapeException(inputHiddenW.getColumnSize(), hiddenOutputW.getColumnSize(),
+                    hiddenOutputW.getRowSize(), hiddenOutputW.getColumnSize());
+        }
+        this.inputHiddenW = inputHiddenW.copy();
+        this.hiddenOutputW = hiddenOutputW.copy();
+        this.version = version;
+        this.createdAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 复制网络当前的权重创建快照，复制期间网络不能被训练
+     * @param network 网络
+     * @param version 版本号
+     * @return 快照
+     */
+    public static ModelSnapshot of(BPNetwork network, long version) {
+        return new ModelSnapshot(network.getInputHiddenMatrix(), network.getHiddenOutputMatrix(), version);
+    }
+
+    /**
+     * 复制给定的权重创建快照
+     * @param inputHiddenW 输入层到隐藏层的权重矩阵
+     * @param hiddenOutputW 隐藏层到输出层的权重矩阵，行数须等于inputHiddenW的列数
+     * @param version 版本号
+     * @return 快照
+     */
+    public static ModelSnapshot of(Matrix inputHiddenW, Matrix hiddenOutputW, long version) {
+        return new ModelSnapshot(inputHiddenW, hiddenOutputW, version);
+    }
+
+    /**
+     * 获取版本号，由{@link ModelRegistry}发布的快照从1开始递增
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 获取创建时间
+     * @return 创建时的毫秒时间戳
+     */
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public int getInputNodeCount() {
+        return inputHiddenW.getRowSize();
+    }
+
+    public int getHiddenNodeCount() {
+        return inputHiddenW.getColumnSize();
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return hiddenOutputW.getColumnSize();
+    }
+
+    /**
+     * 获取输入层到隐藏层权重矩阵的副本
+     */
+    public Matrix getInputHiddenMatrix() {
+        return inputHiddenW.copy();
+    }
+
+    /**
+     * 获取隐藏层到输出层权重矩阵的副本
+     */
+    public Matrix getHiddenOutputMatrix() {
+        return hiddenOutputW.copy();
+    }
+
+    /**
+     * 正向推理，与{@link BPNetwork#query(Matrix)}相同
+     * @param input 输入矩阵，每行为一张图片
+     * @return 输出矩阵
+     */
+    public Matrix query(Matrix input) {
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        Matrix hidden = Dense.dense(input, inputHiddenW, null, Activation.SIGMOID);
+        Matrix output = Dense.dense(hidden, hiddenOutputW, null, Activation.SIGMOID);
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return output;
+    }
+
+    /**
+     * 使用预先分配的工作区正向推理，与{@link BPNetwork#query(Matrix, InferenceWorkspace)}相同
+     * @param input 输入矩阵，每行为一张图片
+     * @param ws 工作区
+     * @return 工作区中的输出矩阵，下一次使用该工作区推理时会被覆盖
+     */
+    public Matrix query(Matrix input, InferenceWorkspace ws) {
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        ws.ensureRows(input.getRowSize());
+        Dense.denseInto(input, inputHiddenW, null, Activation.SIGMOID, ws.hidden);
+        Dense.denseInto(ws.hidden, hiddenOutputW, null, Activation.SIGMOID, ws.output);
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return ws.output;
+    }
+
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        return new BatchPrediction(query(inputs), version);
+    }
+}
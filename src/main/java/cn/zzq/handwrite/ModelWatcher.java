@@ -0,0 +1,198 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.eval.Evaluator;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 监视权重文件，文件变化后重新加载并发布到{@link ModelRegistry}
+ * <p>
+ * 后台线程通过{@link WatchService}监视目录，关心的文件被创建或修改后，
+ * 等待一段时间内不再有新的变化(文件写完)再加载，避免读到写了一半的文件。
+ * 加载失败(格式不合法、校验和不符、形状不符)时保留当前版本，等待下一次变化。
+ */
+public class ModelWatcher implements AutoCloseable {
+    /**
+     * 从磁盘加载网络
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param changed 最近一次发生变化的关心的文件，事件丢失而无法确定时为null
+         */
+        BPNetwork load(Path changed) throws IOException;
+    }
+
+    /**
+     * 重新加载的结果，在监视线程上回调，应尽快返回
+     */
+    public interface Listener {
+        /**
+         * 加载成功并已发布
+         * @param snapshot 新发布的快照
+         */
+        void reloaded(ModelSnapshot snapshot);
+
+        /**
+         * 加载失败，注册表继续使用当前版本
+         * @param e 失败原因
+         */
+        void failed(Exception e);
+    }
+
+    /**
+     * 默认的静默时间，最后一次变化之后这么久没有新的变化才加载
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 500;
+
+    private final ModelRegistry registry;
+    private final Path directory;
+    private final Set<String> fileNames;
+    private final Loader loader;
+    private final long quietMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private volatile Listener listener;
+    private Path changed;   //静默期间最近一次变化的文件，只在监视线程上访问
+
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * 创建并启动监视线程
+     * @param registry 加载成功后发布到的注册表
+     * @param directory 被监视的目录
+     * @param fileNames 关心的文件名，其他文件的变化被忽略
+     * @param loader 加载网络的方式
+     * @param quietMillis 静默时间
+     * @throws IOException 无法监视该目录
+     */
+    public ModelWatcher(ModelRegistry registry, Path directory, Set<String> fileNames, Loader loader,
+                        long quietMillis) throws IOException {
+        this.registry = registry;
+        this.directory = directory;
+        this.fileNames = Set.copyOf(fileNames);
+        this.loader = loader;
+        this.quietMillis = quietMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::watch, "model-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 监视assets中的二进制模型文件与csv权重，加载发生变化的那一种：
+     * 二进制模型文件变化时读取它，csv权重变化时读取csv，即使二进制模型文件存在；
+     * 无法确定是哪个文件时按{@link Evaluator#loadNetwork()}的方式加载
+     * @param registry 加载成功后发布到的注册表
+     * @return 已启动的监视器
+     * @throws IOException 无法监视assets目录
+     */
+    public static ModelWatcher watchAssets(ModelRegistry registry) throws IOException {
+        Path directory = FileDefinition.MODEL_FILE.toPath().toAbsolutePath().getParent();
+        Set<String> fileNames = Set.of(FileDefinition.MODEL_FILE.getName(),
+                FileDefinition.INPUT_HIDDEN_CSV_FILE.getName(), FileDefinition.HIDDEN_OUTPUT_CSV_FILE.getName());
+        Path modelFileName = FileDefinition.MODEL_FILE.toPath().getFileName();
+        Loader loader = changed -> changed == null || changed.getFileName().equals(modelFileName)
+                ? Evaluator.loadNetwork() : Evaluator.loadCsvNetwork();
+        return new ModelWatcher(registry, directory, fileNames, loader, DEFAULT_QUIET_MILLIS);
+    }
+
+    /**
+     * 设置重新加载结果的回调
+     * @param listener 回调，为null时不回调
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 获取成功重新加载的次数
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * 获取加载失败的次数
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!drain(watchService.take())) {
+                    continue;
+                }
+                //等待静默：静默时间内又有变化则继续等待
+                WatchKey key;
+                while ((key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    drain(key);
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //关闭
+        }
+    }
+
+    /**
+     * 取出一个WatchKey上的全部事件，记录最近一次变化的关心的文件
+     * @return 是否有关心的文件发生变化
+     */
+    private boolean drain(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;    //事件丢失，无法确定是哪个文件，按变化处理
+                changed = null;
+            } else if (fileNames.contains(event.context().toString())) {
+                relevant = true;
+                changed = directory.resolve(event.context().toString());
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private void reload() {
+        try {
+            ModelSnapshot snapshot = registry.publish(loader.load(changed));
+            reloadCount.incrementAndGet();
+            Listener listener = this.listener;
+            if (listener != null) {
+                listener.reloaded(snapshot);
+            }
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+            Listener listener = this.listener;
+            if (listener != null) {
+                listener.failed(e);
+            }
+        }
+    }
+
+    /**
+     * 停止监视
+     * @throws IOException 关闭WatchService失败
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,163 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Dense;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.ModelFile;
+import cn.zzq.handwrite.matrix.OffHeapMatrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * 权重存放在Java堆外的只读模型，只用于推理
+ * <p>
+ * 从二进制模型文件打开时权重直接指向文件映射区，不读入堆中，多个进程打开同一文件时共享操作系统的页缓存；
+ * 同一进程中驻留很多个模型时堆的大小不随模型数增长。推理结果与{@link ModelSnapshot}逐位一致。
+ * <p>
+ * {@link #queryInto(OffHeapMatrix, OffHeapMatrix, int)}对堆外的大批输入逐块推理，每块复制到固定大小的堆上矩阵中计算，
+ * 再把输出写回堆外，处理任意多的图片时堆上只有一块的临时空间。
+ * <p>
+ * 与{@link ModelSnapshot}一样创建后不可修改，多个线程可以同时推理；使用完后应关闭以释放映射，关闭后不能再推理。
+ */
+public final class OffHeapModel implements Classifier, AutoCloseable {
+    private final OffHeapMatrix inputHiddenW;   //输入层到隐藏层的权重矩阵
+    private final OffHeapMatrix hiddenOutputW;  //隐藏层到输出层的权重矩阵
+    private final ModelFile file;               //权重所映射的模型文件，复制自堆上矩阵时为null
+    private final long version;
+
+    private OffHeapModel(OffHeapMatrix inputHiddenW, OffHeapMatrix hiddenOutputW, ModelFile file, long version) {
+        if (inputHiddenW.getColumnSize() != hiddenOutputW.getRowSize()) {
+            throw new MatrixShapeException(inputHiddenW.getColumnSize(), hiddenOutputW.getColumnSize(),
+                    hiddenOutputW.getRowSize(), hiddenOutputW.getColumnSize());
+        }
+        this.inputHiddenW = inputHiddenW;
+        this.hiddenOutputW = hiddenOutputW;
+        this.file = file;
+        this.version = version;
+    }
+
+    /**
+     * 映射{@link BPNetwork#save(Path)}保存的模型文件
+     * @param path 文件路径
+     * @param version 版本号，记录在推理结果中
+     * @return 模型
+     * @throws IOException 文件不存在、格式不合法或校验和不符
+     */
+    public static OffHeapModel open(Path path, long version) throws IOException {
+        ModelFile file = ModelFile.open(path);
+        try {
+            return new OffHeapModel(file.map(BPNetwork.INPUT_HIDDEN_NAME), file.map(BPNetwork.HIDDEN_OUTPUT_NAME),
+                    file, version);
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 把网络当前的权重复制到堆外，复制期间网络不能被训练
+     * @param network 网络
+     * @param version 版本号
+     * @return 模型
+     */
+    public static OffHeapModel of(BPNetwork network, long version) {
+        OffHeapMatrix inputHidden = OffHeapMatrix.copyOf(network.getInputHiddenMatrix());
+        OffHeapMatrix hiddenOutput = OffHeapMatrix.copyOf(network.getHiddenOutputMatrix());
+        return new OffHeapModel(inputHidden, hiddenOutput, null, version);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getInputNodeCount() {
+        return inputHiddenW.getRowSize();
+    }
+
+    public int getHiddenNodeCount() {
+        return inputHiddenW.getColumnSize();
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return hiddenOutputW.getColumnSize();
+    }
+
+    /**
+     * 权重占用的堆外字节数
+     */
+    public long getByteSize() {
+        return inputHiddenW.getByteSize() + hiddenOutputW.getByteSize();
+    }
+
+    /**
+     * 正向推理，与{@link ModelSnapshot#query(Matrix)}相同
+     * @param input 输入矩阵，每行为一张图片
+     * @return 输出矩阵
+     */
+    public Matrix query(Matrix input) {
+        InferenceWorkspace ws = new InferenceWorkspace(this);
+        return query(input, ws);
+    }
+
+    /**
+     * 使用预先分配的工作区正向推理，批大小不变时不分配任何对象
+     * @param input 输入矩阵，每行为一张图片
+     * @param ws 工作区
+     * @return 工作区中的输出矩阵，下一次使用该工作区推理时会被覆盖
+     */
+    public Matrix query(Matrix input, InferenceWorkspace ws) {
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        ws.ensureRows(input.getRowSize());
+        Dense.denseInto(input, inputHiddenW, null, Activation.SIGMOID, ws.hidden);
+        Dense.denseInto(ws.hidden, hiddenOutputW, null, Activation.SIGMOID, ws.output);
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return ws.output;
+    }
+
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        return new BatchPrediction(query(inputs), version);
+    }
+
+    /**
+     * 对堆外的一大批输入逐块推理，输出写入堆外矩阵
+     * @param inputs (图片数, 输入层节点数)的堆外矩阵
+     * @param outputs (图片数, 输出层节点数)的堆外矩阵
+     * @param tileRows 每块的行数，决定堆上临时空间的大小
+     */
+    public void queryInto(OffHeapMatrix inputs, OffHeapMatrix outputs, int tileRows) {
+        int rows = inputs.getRowSize();
+        if (outputs.getRowSize() != rows || outputs.getColumnSize() != getOutputNodeCount()) {
+            throw new MatrixShapeException(rows, getOutputNodeCount(), outputs.getRowSize(), outputs.getColumnSize());
+        }
+        InferenceWorkspace ws = new InferenceWorkspace(this);
+        Matrix tile = new Matrix(Math.min(tileRows, rows), inputs.getColumnSize());
+        for (int from = 0; from < rows; from += tileRows) {
+            int count = Math.min(tileRows, rows - from);
+            if (count != tile.getRowSize()) {
+                tile = new Matrix(count, inputs.getColumnSize());   //最后不足一块
+            }
+            inputs.copyRowsInto(from, tile);
+            outputs.copyRowsFrom(from, query(tile, ws));
+        }
+    }
+
+    /**
+     * 关闭权重；从模型文件打开时同时解除映射
+     */
+    @Override
+    public void close() {
+        inputHiddenW.close();
+        hiddenOutputW.close();
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.QuantizedMatrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
+
+/**
+ * int8量化的BP神经网络，只用于推理
+ * <p>
+ * 由{@link #quantize(BPNetwork)}做训练后量化，两个权重矩阵都按列量化为{@link QuantizedMatrix}。
+ * 输入直接使用0-255的原始灰度，第一层为uint8像素与int8权重的整数点积，以int32累加，
+ * 累加结果乘以权重的量化步长再除以255即为双精度网络的预激活值，不需要先把像素转换为double再归一化。
+ * 隐藏层sigmoid的输出在[0, 1]内，同样以1/255为步长量化为uint8，第二层也以整数点积计算。
+ */
+public class QuantizedBPNetwork implements Classifier {
+    private static final int LEVELS = 255;      //uint8的最大值，像素与隐藏层输出的量化步长为1/255
+
+    private final QuantizedMatrix inputHiddenW;     //输入层到隐藏层的权重矩阵
+    private final QuantizedMatrix hiddenOutputW;    //隐藏层到输出层的权重矩阵
+
+    private QuantizedBPNetwork(QuantizedMatrix inputHiddenW, QuantizedMatrix hiddenOutputW) {
+        this.inputHiddenW = inputHiddenW;
+        this.hiddenOutputW = hiddenOutputW;
+    }
+
+    /**
+     * 训练后量化，之后双精度网络的修改不影响量化网络
+     * @param network 训练好的双精度网络
+     * @return 量化网络
+     */
+    public static QuantizedBPNetwork quantize(BPNetwork network) {
+        return new QuantizedBPNetwork(QuantizedMatrix.quantize(network.getInputHiddenMatrix()),
+                QuantizedMatrix.quantize(network.getHiddenOutputMatrix()));
+    }
+
+    public QuantizedMatrix getInputHiddenMatrix() {
+        return inputHiddenW;
+    }
+
+    public QuantizedMatrix getHiddenOutputMatrix() {
+        return hiddenOutputW;
+    }
+
+    public int getInputNodeCount() {
+        return inputHiddenW.getRowSize();
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return hiddenOutputW.getColumnSize();
+    }
+
+    /**
+     * 推理count张连续存放的原始图片
+     * @param pixels 像素数组，每张图片为输入层节点数个字节，按无符号解释为0-255的灰度值
+     * @param offset 第一张图片的起始位置
+     * @param count 图片张数
+     * @return (count, 输出层节点数)的输出矩阵
+     */
+    public Matrix query(byte[] pixels, int offset, int count) {
+        int inputNodeCount = getInputNodeCount();
+        if (offset < 0 || count < 0 || offset + (long) count * inputNodeCount > pixels.length) {
+            throw new IndexOutOfBoundsException(String.format("像素数组长度%d不足以容纳从%d开始的%d张图片",
+                    pixels.length, offset, count));
+        }
+        Matrix output = new Matrix(count, getOutputNodeCount());
+        Workspace ws = new Workspace();
+        for (int i = 0; i < count; i++) {
+            query(pixels, offset + i * inputNodeCount, ws, output, i);
+        }
+        return output;
+    }
+
+    /**
+     * 直接从数据集的原始像素批量推理
+     * @param batch 一批图片，像素数须等于输入层节点数
+     * @return 推理结果
+     */
+    public BatchPrediction queryBatch(MnistDataset.Batch batch) {
+        byte[] pixels = new byte[batch.getSize() * getInputNodeCount()];
+        batch.pixelsInto(pixels, 0);
+        return new BatchPrediction(query(pixels, 0, batch.getSize()));
+    }
+
+    /**
+     * 批量推理，归一化后的输入先还原为0-255的灰度值
+     * @param inputs 输入矩阵，每行为一张归一化后的图片
+     * @return 推理结果
+     */
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        int rows = inputs.getRowSize();
+        int inputNodeCount = getInputNodeCount();
+        if (inputs.getColumnSize() != inputNodeCount) {
+            throw new MatrixShapeException(rows, inputNodeCount, rows, inputs.getColumnSize());
+        }
+        byte[] pixels = new byte[rows * inputNodeCount];
+        for (int i = 0; i < rows; i++) {
+            for (int k = 0; k < inputNodeCount; k++) {
+                pixels[i * inputNodeCount + k] = toUnsigned(inputs.get(i, k));
+            }
+        }
+        return new BatchPrediction(query(pixels, 0, rows));
+    }
+
+    /**
+     * 推理一张图片，结果写入output的第row行
+     */
+    private void query(byte[] pixels, int offset, Workspace ws, Matrix output, int row) {
+        inputHiddenW.dotInto(pixels, offset, ws.hiddenSum);
+        for (int j = 0; j < ws.hidden.length; j++) {
+            double x = ws.hiddenSum[j] * (inputHiddenW.getScale(j) / LEVELS);
+            ws.hidden[j] = toUnsigned(sigmoid(x));
+        }
+        hiddenOutputW.dotInto(ws.hidden, 0, ws.outputSum);
+        for (int j = 0; j < ws.outputSum.length; j++) {
+            double x = ws.outputSum[j] * (hiddenOutputW.getScale(j) / LEVELS);
+            output.set(row, j, sigmoid(x));
+        }
+    }
+
+    /**
+     * 将[0, 1]内的值量化为uint8，超出范围的值取边界
+     */
+    private static byte toUnsigned(double x) {
+        return (byte) Math.max(0, Math.min(LEVELS, Math.round(x * LEVELS)));
+    }
+
+    private static double sigmoid(double x) {
+        return 1 / (1 + Math.exp(-x));
+    }
+
+    /**
+     * 推理单张图片所需的缓冲区
+     */
+    private final class Workspace {
+        final int[] hiddenSum = new int[inputHiddenW.getColumnSize()];     //第一层的整数累加和
+        final byte[] hidden = new byte[inputHiddenW.getColumnSize()];      //量化后的隐藏层输出
+        final int[] outputSum = new int[hiddenOutputW.getColumnSize()];    //第二层的整数累加和
+    }
+}
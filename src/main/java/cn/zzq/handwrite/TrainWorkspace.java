@@ -0,0 +1,53 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.graph.ExecutionPlan;
+import cn.zzq.handwrite.graph.NetworkSpec;
+import cn.zzq.handwrite.matrix.Matrix;
+
+/**
+ * 一次反向传播所需的全部中间矩阵与梯度矩阵，预先分配后反复使用
+ * <p>
+ * 内部是按网络结构编译的训练用{@link ExecutionPlan}，中间结果按活跃区间共用缓冲区。
+ * 每个训练线程独占一个工作区；批大小超过已编译的最大行数时才重新编译，
+ * 较小的批(例如每轮最后不足一批的样本)直接使用已分配的缓冲区。
+ */
+public class TrainWorkspace {
+    final NetworkSpec spec;
+    final boolean parallel;     //矩阵乘法是否使用并行引擎
+    ExecutionPlan plan;         //尚未训练时为null
+
+    /**
+     * @param network 网络，用于确定各层的节点数
+     * @param parallel 矩阵乘法是否使用并行引擎，多个线程各自训练时应为false
+     */
+    public TrainWorkspace(BPNetwork network, boolean parallel) {
+        this.spec = network.getSpec();
+        this.parallel = parallel;
+    }
+
+    /**
+     * 确保执行计划能容纳rows行，返回该执行计划
+     */
+    ExecutionPlan plan(int rows) {
+        if (plan == null || plan.getMaxRows() < rows) {
+            plan = ExecutionPlan.compile(spec, rows, ExecutionPlan.Mode.TRAINING, parallel);
+        }
+        return plan;
+    }
+
+    /**
+     * 获取输入层到隐藏层权重的梯度，为整批样本梯度之和
+     * @return (输入层节点数, 隐藏层节点数)的梯度矩阵
+     */
+    public Matrix getInputHiddenGradient() {
+        return plan(1).getWeightGradient(0);
+    }
+
+    /**
+     * 获取隐藏层到输出层权重的梯度，为整批样本梯度之和
+     * @return (隐藏层节点数, 输出层节点数)的梯度矩阵
+     */
+    public Matrix getHiddenOutputGradient() {
+        return plan(1).getWeightGradient(1);
+    }
+}
@@ -0,0 +1,101 @@
+package cn.zzq.handwrite.eval;
+
+import java.util.Arrays;
+
+/**
+ * 测试集上的评估结果：准确率、混淆矩阵、吞吐与每批延迟的分位数
+ */
+public class EvaluationReport {
+    private final int[][] confusion;    //confusion[真实数字][识别结果]
+    private final long[] batchLatencyNs; //每批推理的耗时，已排序
+    private final long elapsedNs;        //总耗时
+    private final int total;
+    private final int correct;
+
+    EvaluationReport(int[][] confusion, long[] batchLatencyNs, long elapsedNs) {
+        this.confusion = confusion;
+        this.batchLatencyNs = batchLatencyNs.clone();
+        Arrays.sort(this.batchLatencyNs);
+        this.elapsedNs = elapsedNs;
+        int total = 0;
+        int correct = 0;
+        for (int i = 0; i < confusion.length; i++) {
+            for (int j = 0; j < confusion[i].length; j++) {
+                total += confusion[i][j];
+            }
+            correct += confusion[i][i];
+        }
+        this.total = total;
+        this.correct = correct;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getCorrect() {
+        return correct;
+    }
+
+    /**
+     * 获取准确率
+     * @return 识别正确的图片占比
+     */
+    public double getAccuracy() {
+        return total == 0 ? 0 : (double) correct / total;
+    }
+
+    /**
+     * 获取混淆矩阵，第i行第j列为真实数字为i却被识别为j的图片数
+     * @return 混淆矩阵
+     */
+    public int[][] getConfusion() {
+        return confusion;
+    }
+
+    /**
+     * 获取每秒推理的图片张数
+     * @return 图片张数/秒
+     */
+    public double getImagesPerSecond() {
+        return total / (elapsedNs / 1e9);
+    }
+
+    /**
+     * 获取每批推理延迟的分位数
+     * @param percentile 百分位，取值(0, 100]
+     * @return 延迟，单位为纳秒
+     */
+    public long getBatchLatencyPercentile(double percentile) {
+        if (batchLatencyNs.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * batchLatencyNs.length) - 1;
+        return batchLatencyNs[Math.max(0, Math.min(index, batchLatencyNs.length - 1))];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("准确率: %.2f%% (%d/%d)%n", getAccuracy() * 100, correct, total));
+        sb.append(String.format("吞吐: %.0f 张/秒, 总耗时 %.1f ms%n", getImagesPerSecond(), elapsedNs / 1e6));
+        sb.append(String.format("每批延迟: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms (%d批)%n",
+                getBatchLatencyPercentile(50) / 1e6, getBatchLatencyPercentile(90) / 1e6,
+                getBatchLatencyPercentile(99) / 1e6, getBatchLatencyPercentile(100) / 1e6,
+                batchLatencyNs.length));
+        sb.append("混淆矩阵(行为真实数字，列为识别结果):\n");
+        sb.append("     ");
+        for (int j = 0; j < confusion.length; j++) {
+            sb.append(String.format("%6d", j));
+        }
+        sb.append('\n');
+        for (int i = 0; i < confusion.length; i++) {
+            sb.append(String.format("%4d ", i));
+            for (int j = 0; j < confusion[i].length; j++) {
+                sb.append(String.format("%6d", confusion[i][j]));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
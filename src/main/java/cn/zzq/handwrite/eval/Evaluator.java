@@ -0,0 +1,190 @@
+package cn.zzq.handwrite.eval;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.Classifier;
+import cn.zzq.handwrite.FileDefinition;
+import cn.zzq.handwrite.QuantizedBPNetwork;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import cn.zzq.handwrite.matrix.MatrixLoader;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * 在测试集上评估网络，按批并行推理，统计准确率、混淆矩阵、吞吐与每批延迟
+ */
+public class Evaluator {
+    private final Classifier network;
+    private final int batchSize;
+
+    /**
+     * @param network 待评估的网络
+     * @param batchSize 每批图片张数
+     */
+    public Evaluator(Classifier network, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize必须为正数");
+        }
+        this.network = network;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 评估网络，各批在矩阵乘法所用的线程池上并行推理
+     * @param inputs 输入矩阵，每行为一张归一化后的图片
+     * @param labels 每张图片的真实数字
+     * @return 评估结果
+     */
+    public EvaluationReport evaluate(Matrix inputs, int[] labels) {
+        return evaluate(inputs, labels, MatrixDotParallel.getPool());
+    }
+
+    /**
+     * 在指定线程池上评估网络
+     * @param inputs 输入矩阵，每行为一张归一化后的图片
+     * @param labels 每张图片的真实数字
+     * @param pool 线程池
+     * @return 评估结果
+     */
+    public EvaluationReport evaluate(Matrix inputs, int[] labels, ForkJoinPool pool) {
+        int size = inputs.getRowSize();
+        if (labels.length != size) {
+            throw new IllegalArgumentException(String.format("输入有%d张图片，标签却有%d个", size, labels.length));
+        }
+        int[] order = IntStream.range(0, size).toArray();
+        int batches = (size + batchSize - 1) / batchSize;
+        int classes = network.getOutputNodeCount();
+        int[][] confusion = new int[classes][classes];
+        long[] latency = new long[batches];
+
+        long ns = System.nanoTime();
+        try {
+            pool.submit(() -> IntStream.range(0, batches).parallel().forEach(batch -> {
+                int offset = batch * batchSize;
+                int count = Math.min(batchSize, size - offset);
+                Matrix x = new Matrix(count, inputs.getColumnSize());
+                x.gatherRows(inputs, order, offset);
+
+                long start = System.nanoTime();
+                BatchPrediction prediction = network.queryBatch(x);
+                int[] predicted = prediction.argmax();
+                latency[batch] = System.nanoTime() - start;
+
+                synchronized (confusion) {
+                    for (int i = 0; i < count; i++) {
+                        confusion[labels[offset + i]][predicted[i]]++;
+                    }
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("评估被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("评估出错", e.getCause());
+        }
+        return new EvaluationReport(confusion, latency, System.nanoTime() - ns);
+    }
+
+    /**
+     * MNIST测试集
+     */
+    public static final class TestSet {
+        public final Matrix inputs;    //每行为一张归一化后的图片
+        public final int[] labels;     //每张图片的真实数字
+
+        TestSet(Matrix inputs, int[] labels) {
+            this.inputs = inputs;
+            this.labels = labels;
+        }
+    }
+
+    /**
+     * 读取MNIST测试集，像素按Main中相同的方式归一化
+     * @return 测试集
+     * @throws IOException 文件不存在或格式不合法
+     */
+    public static TestSet loadTestSet() throws IOException {
+        MnistDataset dataset = MnistDataset.open(FileDefinition.TEST_IMAGE_FILE, FileDefinition.TEST_LABELS_FILE);
+        MnistDataset.Batch all = dataset.batch(0, dataset.getSize());
+        Matrix inputs = new Matrix(dataset.getSize(), dataset.getPixelCount());
+        all.inputsInto(inputs, 1 / 255f);   //归一化
+        int[] digits = new int[dataset.getSize()];
+        all.labelsInto(digits);
+        return new TestSet(inputs, digits);
+    }
+
+    /**
+     * 加载assets中训练好的网络，优先使用二进制模型文件，不存在时读取csv权重
+     * @return 784-100-10的网络
+     * @throws IOException 文件不存在或格式不合法
+     */
+    public static BPNetwork loadNetwork() throws IOException {
+        if (!FileDefinition.MODEL_FILE.exists()) {
+            return loadCsvNetwork();
+        }
+        BPNetwork network = new BPNetwork(784, 100, 10, 0.05);
+        network.load(FileDefinition.MODEL_FILE.toPath());
+        return network;
+    }
+
+    /**
+     * 加载assets中的csv权重，不使用二进制模型文件
+     * @return 784-100-10的网络
+     * @throws IOException 文件不存在或格式不合法
+     */
+    public static BPNetwork loadCsvNetwork() throws IOException {
+        BPNetwork network = new BPNetwork(784, 100, 10, 0.05);
+        network.setInputHiddenMatrix(MatrixLoader.loadCsv(FileDefinition.INPUT_HIDDEN_CSV_FILE.getPath()));
+        network.setHiddenOutputMatrix(MatrixLoader.loadCsv(FileDefinition.HIDDEN_OUTPUT_CSV_FILE.getPath()));
+        return network;
+    }
+
+    /**
+     * 用assets中的权重(优先使用二进制模型文件)在t10k测试集上评估网络
+     * 参数依次为：每批图片张数(默认100) 重复次数(默认3，第一次包含JIT预热) 精度(double、float、both或int8，默认double)
+     * 精度为both时依次评估双精度与单精度网络，为int8时依次评估双精度网络与其量化网络，并比较两者的准确率
+     */
+    public static void main(String[] args) throws IOException {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String precision = args.length > 2 ? args[2] : "double";
+
+        BPNetwork network = loadNetwork();
+        TestSet testSet = loadTestSet();
+        EvaluationReport doubleReport = null;
+        EvaluationReport floatReport = null;
+        EvaluationReport int8Report = null;
+        if (!precision.equals("float")) {
+            doubleReport = run("双精度", new Evaluator(network, batchSize), testSet, repeat);
+        }
+        if (precision.equals("float") || precision.equals("both")) {
+            floatReport = run("单精度", new Evaluator(network.toFloat(), batchSize), testSet, repeat);
+        }
+        if (precision.equals("int8")) {
+            int8Report = run("int8", new Evaluator(QuantizedBPNetwork.quantize(network), batchSize), testSet, repeat);
+        }
+        if (doubleReport != null && floatReport != null) {
+            System.out.printf("准确率: 双精度%.4f 单精度%.4f 差值%+.4f%n", doubleReport.getAccuracy(),
+                    floatReport.getAccuracy(), floatReport.getAccuracy() - doubleReport.getAccuracy());
+        }
+        if (doubleReport != null && int8Report != null) {
+            System.out.printf("准确率: 双精度%.4f int8%.4f 差值%+.4f%n", doubleReport.getAccuracy(),
+                    int8Report.getAccuracy(), int8Report.getAccuracy() - doubleReport.getAccuracy());
+        }
+    }
+
+    private static EvaluationReport run(String name, Evaluator evaluator, TestSet testSet, int repeat) {
+        EvaluationReport report = null;
+        for (int i = 0; i < repeat; i++) {
+            System.out.printf("%s第%d次评估:%n", name, i + 1);
+            report = evaluator.evaluate(testSet.inputs, testSet.labels);
+            System.out.println(report);
+        }
+        return report;
+    }
+}
@@ -0,0 +1,560 @@
+package cn.zzq.handwrite.graph;
+
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Dense;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import cn.zzq.handwrite.matrix.MatrixView;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 由{@link NetworkSpec}编译出的固定执行计划：步骤序列、每个中间结果所在的缓冲区，以及每一步使用的内核
+ * <p>
+ * 编译时按网络结构列出全部步骤，推理只有逐层的全连接；训练还包括输出层误差、每层的权重梯度与逐层反传的梯度项。
+ * 随后对每个中间结果做活跃区间分析(从写入它的步骤到最后一个读取它的步骤)，
+ * 按线性扫描把生命期不重叠的中间结果分配到同一块缓冲区，缓冲区的大小为其中最宽者乘以最大行数。
+ * 推理时每层的输出只被下一层读取，所有隐藏层在两块缓冲区之间来回交替，与层数无关；
+ * 训练时正向传播的输出要保留到反向传播读取它为止，梯度项则在两块缓冲区之间交替。
+ * <p>
+ * 每一步的内核在编译时按该步的矩阵形状与最大行数由{@link MatrixDotParallel}选定(已安装内核配置时按本机的测量结果，否则按成本模型)：
+ * 计算量不足以摊销线程调度时固定在当前线程串行计算，省去每次调用时的判断；
+ * 按行累加还是分块计算仍由矩阵乘法内核按实际的行数与稀疏程度决定。
+ * <p>
+ * 缓冲区与梯度矩阵在编译时一次分配，之后行数不超过最大行数的任意批都直接在其上计算，
+ * 同一输入矩阵、同一批大小反复执行时不分配任何对象；批大小变化时只重新创建缓冲区上的视图。
+ * 执行计划与工作区一样由一个线程独占，多个线程各自编译自己的执行计划。
+ */
+public final class ExecutionPlan {
+
+    /**
+     * 执行计划的用途
+     */
+    public enum Mode {
+        /**
+         * 只做正向传播，最后一层的输出写入单独的矩阵返回给调用方
+         */
+        INFERENCE,
+        /**
+         * 正向传播后反向传播，计算每层权重的梯度之和
+         */
+        TRAINING
+    }
+
+    /**
+     * 一步使用的矩阵乘法内核
+     */
+    public enum Kernel {
+        /**
+         * 在当前线程串行计算
+         */
+        SERIAL,
+        /**
+         * 在{@link MatrixDotParallel#getPool()}上按块并行计算
+         */
+        PARALLEL
+    }
+
+    enum Op {
+        DENSE,              //write = activation(read0 * W + b)
+        OUTPUT_DELTA,       //write = (labels - read0) * f'(read0)
+        WEIGHT_GRADIENT,    //gradient = read0^T * read1
+        BACKPROP            //write = (read0 * W^T) * f'(read1)
+    }
+
+    private final NetworkSpec spec;
+    private final Mode mode;
+    private final int maxRows;
+    private final Tensor[] activations; //activations[0]为输入，activations[i]为第i-1层的输出
+    private final Tensor labels;        //期望输出，只在训练时使用
+    private final Step[] steps;
+    private final double[][] slots;     //共享的缓冲区
+    private final Matrix[] weightGradients;
+    private final Matrix[] biasGradients;
+    private final Matrix[] boundWeights;        //weightsT对应的权重矩阵
+    private final MatrixView[] weightsT;        //权重的转置视图，权重矩阵被替换时重新创建
+
+    private int rows = -1;      //当前视图的行数
+    private Matrix output;      //推理结果
+
+    private ExecutionPlan(NetworkSpec spec, Mode mode, int maxRows, Tensor[] activations, Tensor labels,
+                          Step[] steps, double[][] slots) {
+        this.spec = spec;
+        this.mode = mode;
+        this.maxRows = maxRows;
+        this.activations = activations;
+        this.labels = labels;
+        this.steps = steps;
+        this.slots = slots;
+        int layers = spec.getLayerCount();
+        this.boundWeights = new Matrix[layers];
+        this.weightsT = new MatrixView[layers];
+        if (mode == Mode.TRAINING) {
+            weightGradients = new Matrix[layers];
+            biasGradients = new Matrix[layers];
+            for (int i = 0; i < layers; i++) {
+                weightGradients[i] = new Matrix(spec.getInputSize(i), spec.getOutputSize(i));
+                biasGradients[i] = spec.hasBias(i) ? new Matrix(1, spec.getOutputSize(i)) : null;
+            }
+        } else {
+            weightGradients = null;
+            biasGradients = null;
+        }
+    }
+
+    /**
+     * 编译执行计划
+     * @param spec 网络结构
+     * @param maxRows 最大行数(批大小)，缓冲区按此分配
+     * @param mode 推理或训练
+     * @param parallel 是否允许并行内核，多个线程各自执行时应为false
+     * @return 执行计划
+     */
+    public static ExecutionPlan compile(NetworkSpec spec, int maxRows, Mode mode, boolean parallel) {
+        int layers = spec.getLayerCount();
+        if (layers == 0 || maxRows <= 0) {
+            throw new IllegalArgumentException("网络至少需要一层且最大行数必须为正数");
+        }
+        boolean training = mode == Mode.TRAINING;
+
+        Tensor[] activations = new Tensor[layers + 1];
+        activations[0] = new Tensor("x", spec.getInputNodeCount(), Tensor.EXTERNAL);
+        for (int i = 1; i <= layers; i++) {
+            int kind = !training && i == layers ? Tensor.RESULT : Tensor.SLOT;
+            activations[i] = new Tensor("a" + i, spec.getOutputSize(i - 1), kind);
+        }
+        Tensor labels = training ? new Tensor("y", spec.getOutputNodeCount(), Tensor.EXTERNAL) : null;
+
+        List<Step> steps = new ArrayList<>();
+        for (int i = 0; i < layers; i++) {
+            steps.add(new Step(Op.DENSE, i, activations[i + 1], activations[i]));
+        }
+        if (training) {
+            //deltas[i]为对第i-1层输出的梯度项，与activations[i]同形状
+            Tensor[] deltas = new Tensor[layers + 1];
+            for (int i = 1; i <= layers; i++) {
+                deltas[i] = new Tensor("d" + i, spec.getOutputSize(i - 1), Tensor.SLOT);
+            }
+            steps.add(new Step(Op.OUTPUT_DELTA, layers - 1, deltas[layers], activations[layers], labels));
+            for (int i = layers - 1; i >= 0; i--) {
+                steps.add(new Step(Op.WEIGHT_GRADIENT, i, null, activations[i], deltas[i + 1]));
+                if (i > 0) {
+                    steps.add(new Step(Op.BACKPROP, i, deltas[i], deltas[i + 1], activations[i]));
+                }
+            }
+        }
+
+        for (Step step : steps) {
+            step.kernel = parallel && isParallel(step, spec, maxRows) ? Kernel.PARALLEL : Kernel.SERIAL;
+        }
+        double[][] slots = assignSlots(steps, maxRows);
+        return new ExecutionPlan(spec, mode, maxRows, activations, labels, steps.toArray(new Step[0]), slots);
+    }
+
+    private static boolean isParallel(Step step, NetworkSpec spec, int rows) {
+        int[] shape = shape(step, spec, rows);
+        return shape != null && MatrixDotParallel.isParallel(shape[0], shape[1], shape[2]);
+    }
+
+    /**
+     * 一步中矩阵乘法的形状{m, n, k}，逐元素运算为null
+     */
+    private static int[] shape(Step step, NetworkSpec spec, int rows) {
+        int in = spec.getInputSize(step.layer);
+        int out = spec.getOutputSize(step.layer);
+        switch (step.op) {
+            case DENSE:
+                return new int[]{rows, out, in};
+            case WEIGHT_GRADIENT:
+                return new int[]{in, out, rows};
+            case BACKPROP:
+                return new int[]{rows, in, out};
+            default:
+                return null;    //逐元素运算
+        }
+    }
+
+    /**
+     * 活跃区间分析与线性扫描：按写入的先后依次处理中间结果，优先放入已空闲且足够宽的最窄缓冲区
+     * 区间的端点是步骤序号，一个缓冲区中上一个中间结果最后被读取的步骤必须早于下一个被写入的步骤，
+     * 因此同一步的输入与输出总是位于不同的缓冲区
+     */
+    private static double[][] assignSlots(List<Step> steps, int maxRows) {
+        List<Tensor> tensors = new ArrayList<>();
+        for (int s = 0; s < steps.size(); s++) {
+            Step step = steps.get(s);
+            for (Tensor read : step.reads) {
+                read.lastUse = s;
+            }
+            if (step.write != null) {
+                step.write.definedAt = s;
+                step.write.lastUse = Math.max(step.write.lastUse, s);
+                if (step.write.kind == Tensor.SLOT) {
+                    tensors.add(step.write);
+                }
+            }
+        }
+
+        List<int[]> slots = new ArrayList<>();  //{宽度, 最后一个中间结果最后被读取的步骤}
+        for (Tensor tensor : tensors) {
+            int best = -1;
+            for (int j = 0; j < slots.size(); j++) {
+                int[] slot = slots.get(j);
+                if (slot[1] >= tensor.definedAt) {
+                    continue;
+                }
+                if (best < 0 || better(slot[0], slots.get(best)[0], tensor.width)) {
+                    best = j;
+                }
+            }
+            if (best < 0) {
+                best = slots.size();
+                slots.add(new int[]{0, 0});
+            }
+            int[] slot = slots.get(best);
+            slot[0] = Math.max(slot[0], tensor.width);
+            slot[1] = tensor.lastUse;
+            tensor.slot = best;
+        }
+
+        double[][] buffers = new double[slots.size()][];
+        for (int j = 0; j < buffers.length; j++) {
+            buffers[j] = new double[maxRows * slots.get(j)[0]];
+        }
+        return buffers;
+    }
+
+    /**
+     * 宽度为candidate的缓冲区是否比宽度为current的更适合存放宽度为width的中间结果：
+     * 足够宽的缓冲区中选最窄的，都不够宽时选最宽的，使扩大的部分最少
+     */
+    private static boolean better(int candidate, int current, int width) {
+        if (candidate >= width) {
+            return current < width || candidate < current;
+        }
+        return current < width && candidate > current;
+    }
+
+    public NetworkSpec getSpec() {
+        return spec;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * 共享缓冲区的个数
+     */
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * 共享缓冲区占用的字节数
+     */
+    public long getSlotBytes() {
+        long bytes = 0;
+        for (double[] slot : slots) {
+            bytes += (long) slot.length * Double.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * 每个中间结果各自分配缓冲区时需要的字节数，与{@link #getSlotBytes()}比较即复用省下的内存
+     */
+    public long getUnsharedBytes() {
+        long bytes = 0;
+        for (Step step : steps) {
+            if (step.write != null && step.write.kind == Tensor.SLOT) {
+                bytes += (long) maxRows * step.write.width * Double.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 按最大行数执行时各步矩阵乘法的形状，每个为{m, n, k}，表示(m, k)与(k, n)相乘，
+     * 交给{@link cn.zzq.handwrite.matrix.KernelTuner}测量本机上最快的内核
+     * @return 按步骤顺序排列的形状，不含逐元素运算
+     */
+    public List<int[]> getMatrixShapes() {
+        List<int[]> shapes = new ArrayList<>();
+        for (Step step : steps) {
+            int[] shape = shape(step, spec, maxRows);
+            if (shape != null) {
+                shapes.add(shape);
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * 获取第layer层权重的梯度，为最近一次训练的整批样本梯度之和
+     * @param layer 层号，从0开始
+     * @return (输入节点数, 节点数)的梯度矩阵
+     */
+    public Matrix getWeightGradient(int layer) {
+        requireMode(Mode.TRAINING);
+        return weightGradients[layer];
+    }
+
+    /**
+     * 获取第layer层偏置的梯度
+     * @param layer 层号，从0开始
+     * @return (1, 节点数)的梯度矩阵，该层没有偏置时为null
+     */
+    public Matrix getBiasGradient(int layer) {
+        requireMode(Mode.TRAINING);
+        return biasGradients[layer];
+    }
+
+    /**
+     * 正向传播，返回执行计划中的输出矩阵，下一次执行时会被覆盖
+     */
+    Matrix forward(LayerGraph graph, Matrix input) {
+        requireMode(Mode.INFERENCE);
+        run(graph, input, null);
+        return output;
+    }
+
+    /**
+     * 正向与反向传播，梯度之和写入梯度矩阵，不修改权重
+     */
+    void computeGradients(LayerGraph graph, Matrix inputs, Matrix labels) {
+        requireMode(Mode.TRAINING);
+        run(graph, inputs, labels);
+    }
+
+    /**
+     * weight += scale * gradient
+     */
+    void applyGradients(LayerGraph graph, double scale) {
+        requireMode(Mode.TRAINING);
+        for (int i = weightGradients.length - 1; i >= 0; i--) {
+            graph.getWeights(i).addScaledWith(weightGradients[i], scale);
+            if (biasGradients[i] != null) {
+                graph.getBias(i).addScaledWith(biasGradients[i], scale);
+            }
+        }
+    }
+
+    private void requireMode(Mode required) {
+        if (mode != required) {
+            throw new IllegalStateException("执行计划用于" + mode + "，不能用于" + required);
+        }
+    }
+
+    private void run(LayerGraph graph, Matrix input, Matrix expected) {
+        int batch = input.getRowSize();
+        if (input.getColumnSize() != spec.getInputNodeCount()) {
+            throw new MatrixShapeException(batch, spec.getInputNodeCount(), batch, input.getColumnSize());
+        }
+        if (expected != null
+                && (expected.getRowSize() != batch || expected.getColumnSize() != spec.getOutputNodeCount())) {
+            throw new MatrixShapeException(batch, spec.getOutputNodeCount(),
+                    expected.getRowSize(), expected.getColumnSize());
+        }
+        ensureRows(batch);
+        activations[0].bind(input);
+        if (expected != null) {
+            labels.bind(expected);
+        }
+        for (Step step : steps) {
+            execute(graph, step);
+        }
+    }
+
+    /**
+     * 按行数重新创建缓冲区上的视图，行数不变时什么也不做
+     */
+    private void ensureRows(int rows) {
+        if (rows <= 0 || rows > maxRows) {
+            throw new IllegalArgumentException(String.format("批大小%d超出执行计划的范围[1, %d]", rows, maxRows));
+        }
+        if (this.rows == rows) {
+            return;
+        }
+        this.rows = rows;
+        for (Step step : steps) {
+            Tensor tensor = step.write;
+            if (tensor == null) {
+                continue;
+            }
+            if (tensor.kind == Tensor.RESULT) {
+                output = new Matrix(rows, tensor.width);
+                tensor.bind(output);
+            } else {
+                tensor.view = MatrixView.wrap(slots[tensor.slot], rows, tensor.width);
+                tensor.transposed = tensor.view.transpose();
+            }
+        }
+    }
+
+    private void execute(LayerGraph graph, Step step) {
+        int layer = step.layer;
+        switch (step.op) {
+            case DENSE: {
+                Matrix weights = graph.getWeights(layer);
+                Matrix bias = graph.getBias(layer);
+                Activation activation = spec.getActivation(layer);
+                if (step.kernel == Kernel.PARALLEL) {
+                    Dense.denseInto(step.reads[0].view, weights, bias, activation, step.write.view,
+                            MatrixDotParallel.getPool());
+                } else {
+                    Dense.denseInto(step.reads[0].view, weights, bias, activation, step.write.view);
+                }
+                break;
+            }
+            case OUTPUT_DELTA: {
+                //delta = (labels - output) * f'(output)
+                MatrixView output = step.reads[0].view;
+                MatrixView delta = step.write.view;
+                delta.assign(step.reads[1].view);
+                delta.subWith(output);
+                spec.getActivation(layer).backward(output, delta);
+                break;
+            }
+            case WEIGHT_GRADIENT: {
+                //gradient = input^T * delta，转置是视图
+                MatrixView delta = step.reads[1].view;
+                dot(step.kernel, step.reads[0].transposed, delta, weightGradients[layer]);
+                if (biasGradients[layer] != null) {
+                    sumRows(delta, biasGradients[layer]);
+                }
+                break;
+            }
+            case BACKPROP: {
+                //上一层的梯度项 = (delta * W^T) * f'(上一层的输出)
+                MatrixView delta = step.write.view;
+                dot(step.kernel, step.reads[0].view, transposedWeights(graph, layer), delta);
+                spec.getActivation(layer - 1).backward(step.reads[1].view, delta);
+                break;
+            }
+            default:
+                throw new IllegalStateException(step.op.toString());
+        }
+    }
+
+    private MatrixView transposedWeights(LayerGraph graph, int layer) {
+        Matrix weights = graph.getWeights(layer);
+        if (boundWeights[layer] != weights) {
+            boundWeights[layer] = weights;
+            weightsT[layer] = weights.transposeView();
+        }
+        return weightsT[layer];
+    }
+
+    private static void dot(Kernel kernel, MatrixView m1, MatrixView m2, Matrix out) {
+        if (kernel == Kernel.PARALLEL) {
+            MatrixDotParallel.dotInto(m1, m2, out);
+        } else {
+            m1.dotInto(m2, out);
+        }
+    }
+
+    private static void dot(Kernel kernel, MatrixView m1, MatrixView m2, MatrixView out) {
+        if (kernel == Kernel.PARALLEL) {
+            MatrixDotParallel.dotInto(m1, m2, out);
+        } else {
+            m1.dotInto(m2, out);
+        }
+    }
+
+    /**
+     * 按列求和，out = 各行之和
+     */
+    private static void sumRows(MatrixView delta, Matrix out) {
+        out.clear();
+        for (int row = 0, n = delta.getColumnSize(); row < delta.getRowSize(); row++) {
+            for (int column = 0; column < n; column++) {
+                out.set(0, column, out.get(0, column) + delta.get(row, column));
+            }
+        }
+    }
+
+    /**
+     * 列出每一步及其读写的中间结果、所在缓冲区与内核，以及缓冲区的占用
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s，%s，最多%d行%n", spec, mode, maxRows));
+        for (int s = 0; s < steps.length; s++) {
+            Step step = steps[s];
+            builder.append(String.format("  %2d %-15s 第%d层 %-8s", s, step.op, step.layer, step.kernel));
+            for (Tensor read : step.reads) {
+                builder.append(' ').append(read);
+            }
+            builder.append(" -> ").append(step.write == null ? "梯度" + step.layer : step.write.toString());
+            builder.append(System.lineSeparator());
+        }
+        builder.append(String.format("  %d块共享缓冲区%.1f KB，每个中间结果单独分配时为%.1f KB",
+                slots.length, getSlotBytes() / 1024.0, getUnsharedBytes() / 1024.0));
+        return builder.toString();
+    }
+
+    /**
+     * 中间结果：外部传入的矩阵、共享缓冲区中的一段，或推理结果
+     */
+    private static final class Tensor {
+        static final int EXTERNAL = 0;  //调用方传入的输入或期望输出
+        static final int SLOT = 1;      //位于共享缓冲区
+        static final int RESULT = 2;    //推理结果，单独分配以便返回给调用方
+
+        final String name;
+        final int width;
+        final int kind;
+        int slot = -1;
+        int definedAt = -1;     //写入它的步骤
+        int lastUse = -1;       //最后一个读取它的步骤
+        Matrix bound;           //外部矩阵或推理结果
+        MatrixView view;
+        MatrixView transposed;
+
+        Tensor(String name, int width, int kind) {
+            this.name = name;
+            this.width = width;
+            this.kind = kind;
+        }
+
+        /**
+         * 以矩阵作为该中间结果，同一矩阵形状不变时复用已创建的视图
+         */
+        void bind(Matrix matrix) {
+            if (bound != matrix || view.getRowSize() != matrix.getRowSize()
+                    || view.getColumnSize() != matrix.getColumnSize()) {
+                bound = matrix;
+                view = matrix.view();
+                transposed = matrix.transposeView();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return kind == SLOT ? name + "[缓冲区" + slot + "]" : name;
+        }
+    }
+
+    private static final class Step {
+        final Op op;
+        final int layer;
+        final Tensor write;     //写入的中间结果，计算权重梯度时为null
+        final Tensor[] reads;
+        Kernel kernel;
+
+        Step(Op op, int layer, Tensor write, Tensor... reads) {
+            this.op = op;
+            this.layer = layer;
+            this.write = write;
+            this.reads = reads;
+        }
+    }
+}
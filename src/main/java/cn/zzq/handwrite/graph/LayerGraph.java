@@ -0,0 +1,264 @@
+package cn.zzq.handwrite.graph;
+
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.Classifier;
+import cn.zzq.handwrite.matrix.Dense;
+import cn.zzq.handwrite.matrix.KernelProfile;
+import cn.zzq.handwrite.matrix.KernelTuner;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按{@link NetworkSpec}描述的多层全连接网络，持有各层的权重与偏置，训练时就地更新
+ * <p>
+ * 网络本身只保存权重，计算在{@link ExecutionPlan}上进行：{@link #compile}按网络结构编译一次执行计划，
+ * 之后{@link #query(Matrix, ExecutionPlan)}与{@link #computeGradients(Matrix, Matrix, ExecutionPlan)}
+ * 直接在执行计划预先分配的缓冲区上计算。执行计划只依赖网络结构，同一结构的网络可以共用执行计划，
+ * 权重矩阵被替换后执行计划仍然有效。
+ * <p>
+ * 与{@link cn.zzq.handwrite.BPNetwork}一样，权重没有任何同步，训练的同时在其他线程推理会读到更新到一半的权重。
+ */
+public class LayerGraph implements Classifier {
+    private final NetworkSpec spec;
+    private final Matrix[] weights;     //weights[i]为第i层的权重，(输入节点数, 节点数)
+    private final Matrix[] biases;      //biases[i]为第i层的偏置，(1, 节点数)，没有偏置时为null
+    private double learningRate;
+
+    private ExecutionPlan trainPlan;    //trainBatch使用的执行计划，批大小超过其最大行数时重新编译
+
+    /**
+     * 按结构创建网络，权重服从均值为0、标准差为该层节点数的-0.5次方的正态分布，偏置为0
+     * @param spec 网络结构，至少有一层
+     * @param learningRate 学习率
+     */
+    public LayerGraph(NetworkSpec spec, double learningRate) {
+        int layers = spec.getLayerCount();
+        if (layers == 0) {
+            throw new IllegalArgumentException("网络至少需要一层");
+        }
+        this.spec = spec;
+        this.learningRate = learningRate;
+        this.weights = new Matrix[layers];
+        this.biases = new Matrix[layers];
+        for (int i = 0; i < layers; i++) {
+            int units = spec.getOutputSize(i);
+            weights[i] = Matrix.normals(spec.getInputSize(i), units, 0, Math.pow(units, -0.5));
+            biases[i] = spec.hasBias(i) ? new Matrix(1, units) : null;
+        }
+    }
+
+    public NetworkSpec getSpec() {
+        return spec;
+    }
+
+    public int getLayerCount() {
+        return weights.length;
+    }
+
+    public int getInputNodeCount() {
+        return spec.getInputNodeCount();
+    }
+
+    @Override
+    public int getOutputNodeCount() {
+        return spec.getOutputNodeCount();
+    }
+
+    /**
+     * 获取学习率
+     * @return 学习率
+     */
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    /**
+     * 设置学习率
+     * @param learningRate 学习率
+     */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * 获取第layer层的权重矩阵
+     * @param layer 层号，从0开始
+     * @return (输入节点数, 节点数)的权重矩阵
+     */
+    public Matrix getWeights(int layer) {
+        return weights[layer];
+    }
+
+    /**
+     * 替换第layer层的权重矩阵
+     * @param layer 层号，从0开始
+     * @param matrix 形状相同的权重矩阵
+     */
+    public void setWeights(int layer, Matrix matrix) {
+        if (weights[layer].diffShape(matrix)) {  //必须形状相符的矩阵
+            throw new MatrixShapeException(weights[layer], matrix);
+        }
+        weights[layer] = matrix;
+    }
+
+    /**
+     * 获取第layer层的偏置
+     * @param layer 层号，从0开始
+     * @return (1, 节点数)的偏置，该层没有偏置时为null
+     */
+    public Matrix getBias(int layer) {
+        return biases[layer];
+    }
+
+    /**
+     * 替换第layer层的偏置
+     * @param layer 层号，从0开始
+     * @param matrix 形状相同的偏置
+     */
+    public void setBias(int layer, Matrix matrix) {
+        if (biases[layer] == null) {
+            throw new IllegalStateException("第" + layer + "层没有偏置");
+        }
+        if (biases[layer].diffShape(matrix)) {
+            throw new MatrixShapeException(biases[layer], matrix);
+        }
+        biases[layer] = matrix;
+    }
+
+    /**
+     * 按网络结构编译执行计划
+     * @param maxRows 最大批大小
+     * @param mode 推理或训练
+     * @param parallel 是否允许并行内核，多个线程各自执行时应为false
+     * @return 执行计划，由一个线程独占
+     */
+    public ExecutionPlan compile(int maxRows, ExecutionPlan.Mode mode, boolean parallel) {
+        return ExecutionPlan.compile(spec, maxRows, mode, parallel);
+    }
+
+    /**
+     * 加载或测量本机上该网络所用矩阵乘法的最快内核并安装，见{@link KernelTuner}
+     * 覆盖给定批大小下推理与训练的全部形状，之后编译的执行计划与推理都按测量结果选择内核；
+     * 已编译的执行计划在编译时已选定内核，trainBatch使用的执行计划会重新编译
+     * @param batchSizes 推理与训练的批大小
+     * @return 安装的配置，调优被系统属性关闭时为null
+     * @throws IOException 配置文件写入失败
+     */
+    public KernelProfile tuneKernels(int... batchSizes) throws IOException {
+        List<int[]> shapes = new ArrayList<>();
+        for (int batch : batchSizes) {
+            for (ExecutionPlan.Mode mode : ExecutionPlan.Mode.values()) {
+                for (int[] shape : compile(batch, mode, false).getMatrixShapes()) {
+                    if (shapes.stream().noneMatch(s -> Arrays.equals(s, shape))) {
+                        shapes.add(shape);
+                    }
+                }
+            }
+        }
+        KernelProfile profile = KernelTuner.ensure(shapes);
+        trainPlan = null;
+        return profile;
+    }
+
+    /**
+     * 正向推理，每层的输出都是新分配的矩阵
+     *
+     * @param input 输入矩阵，每行为一个样本，(batch, 输入层节点数)
+     * @return 推理结果，(batch, 输出层节点数)
+     */
+    public Matrix query(Matrix input) {
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        Matrix output = input;
+        for (int i = 0; i < weights.length; i++) {
+            output = Dense.dense(output, weights[i], biases[i], spec.getActivation(i));
+        }
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return output;
+    }
+
+    /**
+     * 在执行计划上正向推理，批大小不变时不分配任何对象
+     *
+     * @param input 输入矩阵，(batch, 输入层节点数)，batch不超过执行计划的最大行数
+     * @param plan 推理用的执行计划
+     * @return 执行计划中的输出矩阵，下一次使用该执行计划推理时会被覆盖
+     */
+    public Matrix query(Matrix input, ExecutionPlan plan) {
+        checkPlan(plan);
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        long bytes = Metrics.ENABLED ? Metrics.allocatedBytes() : 0;
+        Matrix output = plan.forward(this, input);
+        if (Metrics.ENABLED) {
+            Metrics.recordQuery(System.nanoTime() - ns, input.getRowSize(), Metrics.allocatedBytes() - bytes);
+        }
+        return output;
+    }
+
+    /**
+     * 批量推理，一次矩阵乘法完成整批图片的推理
+     *
+     * @param inputs 输入矩阵，每行为一张图片，(图片张数, 输入层节点数)
+     * @return 推理结果
+     */
+    @Override
+    public BatchPrediction queryBatch(Matrix inputs) {
+        return new BatchPrediction(query(inputs));
+    }
+
+    /**
+     * 以小批量训练一步，权重的更新量为整批样本梯度的平均值乘以学习率
+     *
+     * @param inputs 输入矩阵，每行为一个样本，(batch, 输入层节点数)
+     * @param labels 期望输出矩阵，每行为对应样本的期望输出，(batch, 输出层节点数)
+     */
+    public void trainBatch(Matrix inputs, Matrix labels) {
+        int batch = inputs.getRowSize();
+        if (trainPlan == null || batch > trainPlan.getMaxRows()) {
+            trainPlan = compile(batch, ExecutionPlan.Mode.TRAINING, true);
+        }
+        computeGradients(inputs, labels, trainPlan);
+        applyGradients(trainPlan, learningRate / batch);    //对整批样本的梯度求平均
+    }
+
+    /**
+     * 计算一批样本的梯度之和，结果写入执行计划中预先分配的梯度矩阵，不修改权重
+     * 梯度方向为使误差(期望输出与输出之差的平方和)减小的方向，即权重应加上梯度乘以学习率
+     *
+     * @param inputs 输入矩阵，(batch, 输入层节点数)，batch不超过执行计划的最大行数
+     * @param labels 期望输出矩阵，(batch, 输出层节点数)
+     * @param plan 训练用的执行计划
+     */
+    public void computeGradients(Matrix inputs, Matrix labels, ExecutionPlan plan) {
+        checkPlan(plan);
+        long ns = Metrics.ENABLED ? System.nanoTime() : 0;
+        plan.computeGradients(this, inputs, labels);
+        if (Metrics.ENABLED) {
+            Metrics.recordTrainBatch(System.nanoTime() - ns, inputs.getRowSize());
+        }
+    }
+
+    /**
+     * 按执行计划中的梯度更新权重与偏置，weight += scale * gradient
+     * @param plan 已计算好梯度的执行计划
+     * @param scale 梯度的倍数，通常为学习率除以批大小
+     */
+    public void applyGradients(ExecutionPlan plan, double scale) {
+        checkPlan(plan);
+        plan.applyGradients(this, scale);
+    }
+
+    private void checkPlan(ExecutionPlan plan) {
+        if (!plan.getSpec().equals(spec)) {
+            throw new IllegalArgumentException(String.format("执行计划的网络结构%s与网络%s不符", plan.getSpec(), spec));
+        }
+    }
+}
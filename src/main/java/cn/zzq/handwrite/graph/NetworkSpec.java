@@ -0,0 +1,147 @@
+package cn.zzq.handwrite.graph;
+
+import cn.zzq.handwrite.matrix.Activation;
+
+import java.util.Arrays;
+
+/**
+ * 多层全连接网络的结构描述：输入层节点数，以及依次排列的各层的节点数、激活函数与是否带偏置
+ * <p>
+ * 描述不可修改，{@link #dense}返回追加一层后的新描述，例如
+ * {@code NetworkSpec.input(784).dense(100, Activation.SIGMOID).dense(10, Activation.SIGMOID)}
+ * 即{@link cn.zzq.handwrite.BPNetwork}的三层结构。
+ * 描述只包含形状，不包含权重；{@link LayerGraph}按描述持有权重，{@link ExecutionPlan}按描述编译执行顺序与缓冲区。
+ */
+public final class NetworkSpec {
+    private final int inputNodeCount;
+    private final int[] units;              //各层的节点数
+    private final Activation[] activations; //各层的激活函数
+    private final boolean[] biases;         //各层是否带偏置
+
+    private NetworkSpec(int inputNodeCount, int[] units, Activation[] activations, boolean[] biases) {
+        this.inputNodeCount = inputNodeCount;
+        this.units = units;
+        this.activations = activations;
+        this.biases = biases;
+    }
+
+    /**
+     * 只有输入层的描述，再以{@link #dense}依次追加各层
+     * @param inputNodeCount 输入层节点数
+     * @return 描述
+     */
+    public static NetworkSpec input(int inputNodeCount) {
+        if (inputNodeCount <= 0) {
+            throw new IllegalArgumentException("输入层节点数必须为正数: " + inputNodeCount);
+        }
+        return new NetworkSpec(inputNodeCount, new int[0], new Activation[0], new boolean[0]);
+    }
+
+    /**
+     * 追加一个不带偏置的全连接层
+     * @param units 节点数
+     * @param activation 激活函数
+     * @return 新的描述
+     */
+    public NetworkSpec dense(int units, Activation activation) {
+        return dense(units, activation, false);
+    }
+
+    /**
+     * 追加一个全连接层
+     * @param units 节点数
+     * @param activation 激活函数
+     * @param bias 是否带偏置
+     * @return 新的描述
+     */
+    public NetworkSpec dense(int units, Activation activation, boolean bias) {
+        if (units <= 0 || activation == null) {
+            throw new IllegalArgumentException("节点数必须为正数且激活函数不能为null");
+        }
+        int count = this.units.length;
+        int[] newUnits = Arrays.copyOf(this.units, count + 1);
+        Activation[] newActivations = Arrays.copyOf(activations, count + 1);
+        boolean[] newBiases = Arrays.copyOf(biases, count + 1);
+        newUnits[count] = units;
+        newActivations[count] = activation;
+        newBiases[count] = bias;
+        return new NetworkSpec(inputNodeCount, newUnits, newActivations, newBiases);
+    }
+
+    public int getInputNodeCount() {
+        return inputNodeCount;
+    }
+
+    /**
+     * 获取全连接层的层数，不含输入层
+     */
+    public int getLayerCount() {
+        return units.length;
+    }
+
+    /**
+     * 第layer层的输入节点数，即上一层的节点数
+     */
+    public int getInputSize(int layer) {
+        return layer == 0 ? inputNodeCount : units[layer - 1];
+    }
+
+    /**
+     * 第layer层的节点数
+     */
+    public int getOutputSize(int layer) {
+        return units[layer];
+    }
+
+    public Activation getActivation(int layer) {
+        return activations[layer];
+    }
+
+    public boolean hasBias(int layer) {
+        return biases[layer];
+    }
+
+    /**
+     * 最后一层的节点数
+     */
+    public int getOutputNodeCount() {
+        return units.length == 0 ? inputNodeCount : units[units.length - 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NetworkSpec)) {
+            return false;
+        }
+        NetworkSpec other = (NetworkSpec) o;
+        return inputNodeCount == other.inputNodeCount && Arrays.equals(units, other.units)
+                && Arrays.equals(activations, other.activations) && Arrays.equals(biases, other.biases);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = inputNodeCount;
+        result = 31 * result + Arrays.hashCode(units);
+        result = 31 * result + Arrays.hashCode(activations);
+        result = 31 * result + Arrays.hashCode(biases);
+        return result;
+    }
+
+    /**
+     * 例如 784 -> 100 SIGMOID -> 10 SIGMOID
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append(inputNodeCount);
+        for (int i = 0; i < units.length; i++) {
+            builder.append(" -> ").append(units[i]).append(' ').append(activations[i]);
+            if (biases[i]) {
+                builder.append("+bias");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+/**
+ * 内置的激活函数
+ * <p>
+ * 与任意的{@link Function}不同，激活函数集合是封闭的，每个函数都有专门的标量与SIMD实现，
+ * 由{@link Dense}在矩阵乘法算完一行后立即应用，不需要经过接口逐元素调用。
+ * 激活函数按行作用：逐元素的函数与行无关，softmax在每行内归一化。
+ */
+public enum Activation {
+    /**
+     * 1 / (1 + e^-x)，与{@link Matrix#sigmoidWith()}结果相同
+     */
+    SIGMOID {
+        @Override
+        void apply(double[] data, int offset, int length) {
+            KERNELS.sigmoid(data, offset, offset + length);
+        }
+
+        @Override
+        void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length) {
+            for (int j = 0; j < length; j++) {
+                double v = y[yOff + j];
+                delta[deltaOff + j] = delta[deltaOff + j] * v * (1 - v);
+            }
+        }
+    },
+
+    /**
+     * 使用快速指数函数的sigmoid，与{@link #SIGMOID}的绝对误差不超过1e-7，
+     * 两种内核实现的结果逐位一致
+     */
+    FAST_SIGMOID {
+        @Override
+        void apply(double[] data, int offset, int length) {
+            KERNELS.fastSigmoid(data, offset, offset + length);
+        }
+
+        @Override
+        void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length) {
+            SIGMOID.derivative(y, yOff, delta, deltaOff, length);
+        }
+    },
+
+    /**
+     * 双曲正切
+     */
+    TANH {
+        @Override
+        void apply(double[] data, int offset, int length) {
+            KERNELS.tanh(data, offset, offset + length);
+        }
+
+        @Override
+        void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length) {
+            for (int j = 0; j < length; j++) {
+                double v = y[yOff + j];
+                delta[deltaOff + j] = delta[deltaOff + j] * (1 - v * v);
+            }
+        }
+    },
+
+    /**
+     * max(x, 0)
+     */
+    RELU {
+        @Override
+        void apply(double[] data, int offset, int length) {
+            KERNELS.relu(data, offset, offset + length);
+        }
+
+        @Override
+        void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length) {
+            for (int j = 0; j < length; j++) {
+                delta[deltaOff + j] = y[yOff + j] > 0 ? delta[deltaOff + j] : 0;
+            }
+        }
+    },
+
+    /**
+     * 每行e^(x - max) / sum，先减去行内最大值避免溢出
+     */
+    SOFTMAX {
+        @Override
+        void apply(double[] data, int offset, int length) {
+            int end = offset + length;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < end; i++) {
+                max = Math.max(max, data[i]);
+            }
+            for (int i = offset; i < end; i++) {
+                data[i] -= max;
+            }
+            KERNELS.exp(data, offset, end);
+            double sum = 0;
+            for (int i = offset; i < end; i++) {
+                sum += data[i];
+            }
+            KERNELS.scale(data, 1 / sum, offset, end);
+        }
+
+        /**
+         * 雅可比矩阵为diag(y) - y^T * y，因此 delta_j = y_j * (delta_j - sum_k(delta_k * y_k))
+         */
+        @Override
+        void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length) {
+            double dot = 0;
+            for (int j = 0; j < length; j++) {
+                dot += delta[deltaOff + j] * y[yOff + j];
+            }
+            for (int j = 0; j < length; j++) {
+                delta[deltaOff + j] = y[yOff + j] * (delta[deltaOff + j] - dot);
+            }
+        }
+    };
+
+    private static final MatrixKernels KERNELS = MatrixKernels.get();
+
+    /**
+     * 对data中从offset开始的一行(length个元素)应用激活函数
+     */
+    abstract void apply(double[] data, int offset, int length);
+
+    /**
+     * 把一行梯度乘以激活函数在该点的导数，导数由激活后的输出y表示，不需要保留激活前的值
+     */
+    abstract void derivative(double[] y, int yOff, double[] delta, int deltaOff, int length);
+
+    /**
+     * 对矩阵的每一行应用激活函数
+     * @param matrix 矩阵，结果写回该矩阵
+     */
+    public void apply(Matrix matrix) {
+        int columns = matrix.getColumnSize();
+        for (int i = 0, rows = matrix.getRowSize(); i < rows; i++) {
+            apply(matrix.data, i * columns, columns);
+        }
+    }
+
+    /**
+     * 反向传播经过激活函数：delta = delta * f'(x)，导数由正向传播的输出output = f(x)表示
+     * sigmoid为y(1-y)，tanh为1-y^2，relu为y>0，softmax按行乘以雅可比矩阵
+     * 两个视图的每一行必须连续，sigmoid的结果与先乘y再乘(1-y)逐位一致
+     * @param output 正向传播的输出
+     * @param delta 对输出的梯度，结果写回该视图
+     */
+    public void backward(MatrixView output, MatrixView delta) {
+        int rows = output.rowSize;
+        int columns = output.columnSize;
+        if (delta.rowSize != rows || delta.columnSize != columns) {
+            throw new MatrixShapeException(rows, columns, delta.rowSize, delta.columnSize);
+        }
+        if (columns > 1 && (output.columnStride != 1 || delta.columnStride != 1)) {
+            throw new IllegalArgumentException("视图的每一行必须连续");
+        }
+        for (int i = 0; i < rows; i++) {
+            derivative(output.data, output.offset + i * output.rowStride,
+                    delta.data, delta.offset + i * delta.rowStride, columns);
+        }
+    }
+}
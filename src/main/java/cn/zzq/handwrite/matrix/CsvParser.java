@@ -0,0 +1,239 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixParseException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * csv矩阵解析器，直接扫描字节并把数值写入矩阵的底层数组
+ * <p>
+ * 先把数据按换行符对齐切成若干块，并行统计每块的行数得到矩阵形状与每块的起始行，
+ * 再并行解析各块。数据较小时只切成一块，在当前线程完成。
+ * 空行(只含空白字符的行)被忽略，每个数值两侧允许有空格或制表符。
+ */
+final class CsvParser {
+    /**
+     * 每块至少包含的字节数
+     */
+    static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private final ByteBuffer buffer;
+    private final String source;
+
+    CsvParser(ByteBuffer buffer, String source) {
+        this.buffer = buffer;
+        this.source = source;
+    }
+
+    /**
+     * 解析整个缓冲区
+     * @param pool 并行解析所用的线程池
+     * @return 矩阵
+     * @throws MatrixParseException 内容不合法
+     */
+    Matrix parse(ForkJoinPool pool) throws MatrixParseException {
+        int size = buffer.limit();
+        int chunks = Math.max(1, Math.min(pool.getParallelism(), size / MIN_CHUNK_SIZE));
+
+        //各块的边界落在换行符之后
+        int[] bounds = new int[chunks + 1];
+        for (int i = 1; i < chunks; i++) {
+            int pos = Math.max(bounds[i - 1], (int) ((long) size * i / chunks));
+            while (pos < size && buffer.get(pos - 1) != '\n') {
+                pos++;
+            }
+            bounds[i] = pos;
+        }
+        bounds[chunks] = size;
+
+        int columns = countColumns();
+        Chunk[] tasks = new Chunk[chunks];
+        for (int i = 0; i < chunks; i++) {
+            tasks[i] = new Chunk(bounds[i], bounds[i + 1], columns);
+        }
+
+        //第一遍统计各块的行数
+        run(pool, tasks);
+        int rows = 0;
+        for (Chunk task : tasks) {
+            task.firstRow = rows;
+            rows += task.rows;
+        }
+
+        //第二遍解析数值
+        Matrix matrix = new Matrix(rows, columns);
+        for (Chunk task : tasks) {
+            task.reinitialize();
+            task.data = matrix.data;
+        }
+        run(pool, tasks);
+        for (Chunk task : tasks) {
+            if (task.error != null) {
+                throw task.error;   //各块按行排列，第一个出错的块包含最靠前的错误
+            }
+        }
+        return matrix;
+    }
+
+    private static void run(ForkJoinPool pool, Chunk[] tasks) {
+        if (tasks.length == 1) {
+            tasks[0].invoke();
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    /**
+     * 由第一个非空行的逗号个数确定列数
+     */
+    private int countColumns() {
+        int size = buffer.limit();
+        int pos = 0;
+        while (pos < size) {
+            int end = lineEnd(pos);
+            if (!isBlank(pos, end)) {
+                int columns = 1;
+                for (int i = pos; i < end; i++) {
+                    if (buffer.get(i) == ',') {
+                        columns++;
+                    }
+                }
+                return columns;
+            }
+            pos = end + 1;
+        }
+        return 0;
+    }
+
+    private int lineEnd(int pos) {
+        int size = buffer.limit();
+        while (pos < size && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isSpace(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * 一块以换行符对齐的数据，data为空时只统计行数，否则解析数值
+     */
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int start;
+        final int end;
+        final int columns;
+        int rows;
+        int firstRow;
+        double[] data;
+        MatrixParseException error;
+
+        Chunk(int start, int end, int columns) {
+            this.start = start;
+            this.end = end;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            if (data == null) {
+                countRows();
+            } else {
+                try {
+                    parseRows();
+                } catch (MatrixParseException e) {
+                    error = e;
+                }
+            }
+        }
+
+        private void countRows() {
+            int count = 0;
+            boolean content = false;
+            for (int i = start; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (content) {
+                        count++;
+                    }
+                    content = false;
+                } else if (!isSpace(b)) {
+                    content = true;
+                }
+            }
+            rows = content ? count + 1 : count;
+        }
+
+        private void parseRows() throws MatrixParseException {
+            int row = firstRow;
+            int pos = start;
+            while (pos < end) {
+                int lineEnd = pos;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (!isBlank(pos, lineEnd)) {
+                    parseRow(row, pos, lineEnd);
+                    row++;
+                }
+                pos = lineEnd + 1;
+            }
+        }
+
+        private void parseRow(int row, int pos, int lineEnd) throws MatrixParseException {
+            int offset = row * columns;
+            for (int column = 0; column < columns; column++) {
+                if (pos > lineEnd) {
+                    throw new MatrixParseException(source, row, column,
+                            String.format("应有%d列，实际只有%d列", columns, column));
+                }
+                int valueEnd = pos;
+                while (valueEnd < lineEnd && buffer.get(valueEnd) != ',') {
+                    valueEnd++;
+                }
+                int from = pos;
+                int to = valueEnd;
+                while (from < to && isSpace(buffer.get(from))) {
+                    from++;
+                }
+                while (to > from && isSpace(buffer.get(to - 1))) {
+                    to--;
+                }
+                if (from == to) {
+                    throw new MatrixParseException(source, row, column, "缺少数值");
+                }
+                try {
+                    data[offset + column] = DoubleParser.parse(buffer, from, to);
+                } catch (NumberFormatException e) {
+                    throw new MatrixParseException(source, row, column,
+                            "不合法的数值: " + DoubleParser.text(buffer, from, to));
+                }
+                pos = valueEnd + 1;
+            }
+            if (pos <= lineEnd) {
+                throw new MatrixParseException(source, row, columns,
+                        String.format("应有%d列，实际多于%d列", columns, columns));
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixDotException;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import cn.zzq.handwrite.metrics.LayerMetrics;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 全连接层内核，计算 out = activation(input * weights + bias)
+ * <p>
+ * 先乘后映射需要两遍完整地读写结果矩阵：乘法写出所有预激活值，映射再逐个读回。
+ * 这里按行融合：行数较少时每算完一行就立即加偏置并应用激活函数，这一行仍在L1缓存中；
+ * 行数较多时按{@link Gemm#MC}行一组分块计算，整组算完后立即应用，仍在L2缓存中。
+ * softmax需要完整的一行，因此不在更小的寄存器分块内应用。
+ * <p>
+ * 输入与结果也可以是{@link MatrixView}，例如执行计划中共用一块缓冲区的中间结果，计算方式与矩阵完全相同。
+ * <p>
+ * 乘法部分与{@link Matrix#dot(Matrix)}逐位一致，使用{@link Activation}时结果与先乘后映射相同；
+ * 传入任意{@link Function}的重载逐元素调用接口，是较慢的通用路径。
+ */
+public final class Dense {
+
+    private Dense() {
+    }
+
+    /**
+     * 在{@link MatrixDotParallel}的默认线程池上计算全连接层，计算量较大时按行并行
+     * @param input 输入矩阵，每行为一个样本，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @return (batch, out)的结果矩阵
+     */
+    public static Matrix dense(Matrix input, Matrix weights, Matrix bias, Activation activation) {
+        Matrix out = new Matrix(input.getRowSize(), weights.getColumnSize());
+        denseInto(input, weights, bias, activation, out, MatrixDotParallel.getPool());
+        return out;
+    }
+
+    /**
+     * 在当前线程串行计算全连接层，不分配任何对象
+     * @param input 输入矩阵，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @param out 结果矩阵，(batch, out)，不能与input或weights是同一个矩阵
+     */
+    public static void denseInto(Matrix input, Matrix weights, Matrix bias, Activation activation, Matrix out) {
+        check(input, weights, bias, out);
+        int k = input.getColumnSize();
+        rows(input.data, 0, k, 1, weights, bias, activation, out.data, 0, out.getColumnSize(), 0, input.getRowSize());
+    }
+
+    /**
+     * 在指定线程池上计算全连接层，按{@link MatrixDotParallel}的成本模型决定行方向的块数
+     * @param input 输入矩阵，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @param out 结果矩阵，(batch, out)，不能与input或weights是同一个矩阵
+     * @param forkJoinPool 线程池
+     */
+    public static void denseInto(Matrix input, Matrix weights, Matrix bias, Activation activation, Matrix out,
+                                 ForkJoinPool forkJoinPool) {
+        check(input, weights, bias, out);
+        int k = input.getColumnSize();
+        rows(input.data, 0, k, 1, weights, bias, activation, out.data, 0, out.getColumnSize(),
+                input.getRowSize(), forkJoinPool);
+    }
+
+    /**
+     * 输入与结果为视图时在当前线程串行计算全连接层，不分配任何对象，结果与矩阵版本逐位一致
+     * 输入可以是任意跨度的视图，结果视图的每一行必须连续，例如共享同一块缓冲区的中间结果
+     * @param input 输入视图，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @param out 结果视图，(batch, out)，不能与input或weights重叠
+     */
+    public static void denseInto(MatrixView input, Matrix weights, Matrix bias, Activation activation, MatrixView out) {
+        check(input, weights, bias, out);
+        rows(input.data, input.offset, input.rowStride, input.columnStride, weights, bias, activation,
+                out.data, out.offset, out.rowStride, 0, input.rowSize);
+    }
+
+    /**
+     * 输入与结果为视图时在指定线程池上计算全连接层，划分方式与矩阵版本相同
+     * @param input 输入视图，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @param out 结果视图，(batch, out)，每一行必须连续，不能与input或weights重叠
+     * @param forkJoinPool 线程池
+     */
+    public static void denseInto(MatrixView input, Matrix weights, Matrix bias, Activation activation, MatrixView out,
+                                 ForkJoinPool forkJoinPool) {
+        check(input, weights, bias, out);
+        rows(input.data, input.offset, input.rowStride, input.columnStride, weights, bias, activation,
+                out.data, out.offset, out.rowStride, input.rowSize, forkJoinPool);
+    }
+
+    /**
+     * 按{@link MatrixDotParallel}的划分决定块数，激活函数需要完整的行，只按行划分，
+     * 划分中的列块(内核配置可能按列划分)折算为行块，总块数不超过行数允许的上限
+     */
+    private static void rows(double[] a, int aOff, int rsa, int csa, Matrix weights, Matrix bias,
+                             Activation activation, double[] c, int cOff, int ldc, int m, ForkJoinPool forkJoinPool) {
+        long tiles = MatrixDotParallel.plan(m, weights.getColumnSize(), weights.getRowSize(), forkJoinPool.getParallelism());
+        int rowTiles = Math.min(Math.max(1, m / Gemm.MR),
+                MatrixDotParallel.rowTiles(tiles) * MatrixDotParallel.columnTiles(tiles));
+        if (rowTiles <= 1) {
+            rows(a, aOff, rsa, csa, weights, bias, activation, c, cOff, ldc, 0, m);
+        } else {
+            forkJoinPool.invoke(new MatrixDotParallel.TileTask(
+                    (rowFrom, rowTo, colFrom, colTo) ->
+                            rows(a, aOff, rsa, csa, weights, bias, activation, c, cOff, ldc, rowFrom, rowTo),
+                    m, weights.getColumnSize(), rowTiles, 1, 0, rowTiles));
+        }
+    }
+
+    /**
+     * 权重位于堆外时在当前线程串行计算全连接层，不分配任何对象，结果与堆上权重逐位一致
+     * @param input 输入矩阵，(batch, in)
+     * @param weights 堆外权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 激活函数
+     * @param out 结果矩阵，(batch, out)，不能与input是同一个矩阵
+     */
+    public static void denseInto(Matrix input, OffHeapMatrix weights, Matrix bias, Activation activation, Matrix out) {
+        Matrix.checkDotInto(input, weights, out);
+        if (bias != null && (bias.getRowSize() != 1 || bias.getColumnSize() != weights.getColumnSize())) {
+            throw new MatrixShapeException(1, weights.getColumnSize(), bias.getRowSize(), bias.getColumnSize());
+        }
+        int rowTo = input.getRowSize();
+        int n = out.getColumnSize();
+        int step = rowTo <= Gemm.ROW_KERNEL_MAX_ROWS ? 1 : Gemm.MC;
+        for (int from = 0; from < rowTo; from += step) {
+            int to = Math.min(rowTo, from + step);
+            Gemm.multiply(input, weights, out, from, to, 0, n);
+            activate(out.data, 0, n, n, bias, activation, from, to);
+        }
+    }
+
+    /**
+     * 通用路径：乘法与加偏置同上，激活函数逐元素经接口调用
+     * @param input 输入矩阵，(batch, in)
+     * @param weights 权重矩阵，(in, out)
+     * @param bias 偏置行向量，(1, out)，为null时不加偏置
+     * @param activation 任意映射函数
+     * @param out 结果矩阵，(batch, out)，不能与input或weights是同一个矩阵
+     */
+    public static void denseInto(Matrix input, Matrix weights, Matrix bias, Function activation, Matrix out) {
+        check(input, weights, bias, out);
+        Gemm.multiply(input, weights, out);
+        double[] c = out.data;
+        int n = out.getColumnSize();
+        for (int row = 0, m = out.getRowSize(); row < m; row++) {
+            int offset = row * n;
+            if (bias != null) {
+                addBias(c, offset, bias.data, n);
+            }
+            for (int j = offset; j < offset + n; j++) {
+                c[j] = activation.activate(c[j]);
+            }
+        }
+    }
+
+    private static void check(Matrix input, Matrix weights, Matrix bias, Matrix out) {
+        Matrix.checkDotInto(input, weights, out);
+        if (bias != null && (bias.getRowSize() != 1 || bias.getColumnSize() != weights.getColumnSize())) {
+            throw new MatrixShapeException(1, weights.getColumnSize(), bias.getRowSize(), bias.getColumnSize());
+        }
+    }
+
+    private static void check(MatrixView input, Matrix weights, Matrix bias, MatrixView out) {
+        if (input.columnSize != weights.getRowSize()) {
+            throw new MatrixDotException(input.rowSize, input.columnSize, weights.getRowSize(), weights.getColumnSize());
+        }
+        if (out.rowSize != input.rowSize || out.columnSize != weights.getColumnSize()) {
+            throw new MatrixShapeException(input.rowSize, weights.getColumnSize(), out.rowSize, out.columnSize);
+        }
+        if (out.columnStride != 1 && out.columnSize > 1) {
+            throw new IllegalArgumentException("结果视图的每一行必须连续");
+        }
+        if (bias != null && (bias.getRowSize() != 1 || bias.getColumnSize() != weights.getColumnSize())) {
+            throw new MatrixShapeException(1, weights.getColumnSize(), bias.getRowSize(), bias.getColumnSize());
+        }
+    }
+
+    /**
+     * 计算结果中[rowFrom, rowTo)行：行数不超过按行内核的上限时逐行计算，否则每次计算MC行
+     * 输入的第i行第p列位于a[aOff + i * rsa + p * csa]，结果的第i行从c[cOff + i * ldc]开始连续存放
+     */
+    private static void rows(double[] a, int aOff, int rsa, int csa, Matrix weights, Matrix bias,
+                             Activation activation, double[] c, int cOff, int ldc, int rowFrom, int rowTo) {
+        if (Metrics.ENABLED) {
+            timedRows(a, aOff, rsa, csa, weights, bias, activation, c, cOff, ldc, rowFrom, rowTo);
+            return;
+        }
+        int n = weights.getColumnSize();
+        int step = rowTo - rowFrom <= Gemm.ROW_KERNEL_MAX_ROWS ? 1 : Gemm.MC;
+        for (int from = rowFrom; from < rowTo; from += step) {
+            int to = Math.min(rowTo, from + step);
+            Gemm.multiply(a, aOff, rsa, csa, weights, c, cOff, ldc, from, to);
+            activate(c, cOff, ldc, n, bias, activation, from, to);
+        }
+    }
+
+    /**
+     * 与{@link #rows}相同，分别累计矩阵乘法与激活函数的耗时，结束后记录到该层的指标
+     */
+    private static void timedRows(double[] a, int aOff, int rsa, int csa, Matrix weights, Matrix bias,
+                                  Activation activation, double[] c, int cOff, int ldc, int rowFrom, int rowTo) {
+        int n = weights.getColumnSize();
+        int step = rowTo - rowFrom <= Gemm.ROW_KERNEL_MAX_ROWS ? 1 : Gemm.MC;
+        long dotNanos = 0, activationNanos = 0;
+        long t0 = System.nanoTime();
+        for (int from = rowFrom; from < rowTo; from += step) {
+            int to = Math.min(rowTo, from + step);
+            Gemm.multiply(a, aOff, rsa, csa, weights, c, cOff, ldc, from, to);
+            long t1 = System.nanoTime();
+            activate(c, cOff, ldc, n, bias, activation, from, to);
+            long t2 = System.nanoTime();
+            dotNanos += t1 - t0;
+            activationNanos += t2 - t1;
+            t0 = t2;
+        }
+        LayerMetrics layer = Metrics.layer(weights.getRowSize(), n);
+        layer.getDotNanos().record(dotNanos);
+        layer.getActivationNanos().record(activationNanos);
+    }
+
+    private static void activate(double[] c, int cOff, int ldc, int n, Matrix bias, Activation activation,
+                                 int from, int to) {
+        for (int row = from; row < to; row++) {
+            int offset = cOff + row * ldc;
+            if (bias != null) {
+                addBias(c, offset, bias.data, n);
+            }
+            activation.apply(c, offset, n);
+        }
+    }
+
+    private static void addBias(double[] c, int offset, double[] bias, int n) {
+        for (int j = 0; j < n; j++) {
+            c[offset + j] += bias[j];
+        }
+    }
+}
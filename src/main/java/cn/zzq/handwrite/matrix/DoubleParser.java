@@ -0,0 +1,224 @@
+package cn.zzq.handwrite.matrix;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * 直接从字节解析十进制浮点数，结果与{@link Double#parseDouble(String)}逐位一致
+ * <p>
+ * 有效数字不超过19位时用Clinger快速路径或Eisel-Lemire算法(128位的5的幂近似)直接得到正确舍入的结果，
+ * 其余少见情况(超过19位有效数字、非规格化数、nan/inf等)才构造字符串交给{@link Double#parseDouble(String)}。
+ */
+final class DoubleParser {
+    private static final int SMALLEST_POWER = -342;
+    private static final int LARGEST_POWER = 308;
+
+    /**
+     * 5^q的128位近似，q从SMALLEST_POWER到LARGEST_POWER，每个q占高64位与低64位两项
+     */
+    private static final long[] POWERS_OF_FIVE = powersOfFive();
+
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private DoubleParser() {
+    }
+
+    /**
+     * 解析buffer中[start, end)的字节
+     * @return 解析结果
+     * @throws NumberFormatException 不是合法的浮点数
+     */
+    static double parse(ByteBuffer buffer, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;             //有效数字位数，不含前导零
+        int exponent = 0;           //小数点带来的指数修正
+        boolean anyDigit = false;
+        for (; pos < end; pos++) {
+            int d = buffer.get(pos) - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            anyDigit = true;
+            if (mantissa != 0 || d != 0) {
+                mantissa = mantissa * 10 + d;
+                digits++;
+            }
+        }
+        if (pos < end && buffer.get(pos) == '.') {
+            pos++;
+            for (; pos < end; pos++) {
+                int d = buffer.get(pos) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                anyDigit = true;
+                exponent--;
+                if (mantissa != 0 || d != 0) {
+                    mantissa = mantissa * 10 + d;
+                    digits++;
+                }
+            }
+        }
+        if (!anyDigit) {
+            return slowPath(buffer, start, end);
+        }
+        if (pos < end && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negativeExponent = buffer.get(pos) == '-';
+                pos++;
+            }
+            if (pos == end) {
+                throw new NumberFormatException(text(buffer, start, end));
+            }
+            int explicit = 0;
+            for (; pos < end; pos++) {
+                int d = buffer.get(pos) - '0';
+                if (d < 0 || d > 9) {
+                    throw new NumberFormatException(text(buffer, start, end));
+                }
+                if (explicit < 100000) {
+                    explicit = explicit * 10 + d;
+                }
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (pos != end) {
+            return slowPath(buffer, start, end);
+        }
+        if (digits > 19) {
+            return slowPath(buffer, start, end);
+        }
+
+        double value = fastPath(mantissa, exponent);
+        if (Double.isNaN(value)) {
+            return slowPath(buffer, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 计算 mantissa * 10^exponent 的正确舍入结果，无法确定时返回NaN
+     */
+    static double fastPath(long mantissa, int exponent) {
+        if (mantissa == 0 || exponent < SMALLEST_POWER) {
+            return 0;
+        }
+        if (exponent > LARGEST_POWER) {
+            return Double.POSITIVE_INFINITY;
+        }
+        //Clinger快速路径：尾数与10的幂都能精确表示时，一次乘除即为正确舍入
+        if (mantissa >= 0 && mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+            return exponent >= 0 ? mantissa * EXACT_POWERS_OF_TEN[exponent]
+                    : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+        }
+        return eiselLemire(mantissa, exponent);
+    }
+
+    /**
+     * Eisel-Lemire算法，mantissa按无符号数处理
+     */
+    private static double eiselLemire(long w, int q) {
+        int lz = Long.numberOfLeadingZeros(w);
+        w <<= lz;
+
+        int index = 2 * (q - SMALLEST_POWER);
+        long firstHigh = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+        long firstLow = w * POWERS_OF_FIVE[index];
+        long precisionMask = 0xFFFFFFFFFFFFFFFFL >>> 55;
+        if ((firstHigh & precisionMask) == precisionMask) {
+            long secondHigh = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+            firstLow += secondHigh;
+            if (Long.compareUnsigned(secondHigh, firstLow) > 0) {
+                firstHigh++;
+            }
+        }
+        if (firstLow == 0xFFFFFFFFFFFFFFFFL) {
+            return Double.NaN;  //近似不足以确定舍入方向
+        }
+
+        int upperBit = (int) (firstHigh >>> 63);
+        long mantissa = firstHigh >>> (upperBit + 9);
+        int power2 = power(q) + upperBit - lz + 1023;
+        if (power2 <= 0) {
+            return Double.NaN;  //非规格化数
+        }
+        //恰好位于两个浮点数正中间时向偶数舍入
+        if (Long.compareUnsigned(firstLow, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1
+                && (mantissa << (upperBit + 9)) == firstHigh) {
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= (2L << 52)) {
+            mantissa = 1L << 52;
+            power2++;
+        }
+        mantissa &= ~(1L << 52);
+        if (power2 >= 0x7FF) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Double.longBitsToDouble(mantissa | (long) power2 << 52);
+    }
+
+    /**
+     * floor(log2(10^q)) + 63
+     */
+    private static int power(int q) {
+        return (((152170 + 65536) * q) >> 16) + 63;
+    }
+
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static double slowPath(ByteBuffer buffer, int start, int end) {
+        return Double.parseDouble(text(buffer, start, end));
+    }
+
+    static String text(ByteBuffer buffer, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buffer.get(i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 生成5的幂的128位近似表：q非负时截断5^q，q为负时取2^b/5^-q向上的近似
+     */
+    private static long[] powersOfFive() {
+        long[] table = new long[2 * (LARGEST_POWER - SMALLEST_POWER + 1)];
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+            BigInteger c;
+            if (q >= 0) {
+                BigInteger power = five.pow(q);
+                int shift = power.bitLength() - 128;
+                c = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {
+                BigInteger power = five.pow(-q);
+                int z = power.bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                c = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+                while (c.bitLength() > 128) {
+                    c = c.shiftRight(1);
+                }
+            }
+            int index = 2 * (q - SMALLEST_POWER);
+            table[index] = c.shiftRight(64).longValue();
+            table[index + 1] = c.longValue();
+        }
+        return table;
+    }
+}
@@ -0,0 +1,5 @@
+package cn.zzq.handwrite.matrix;
+
+public interface FloatFunction {
+    float activate(float x);
+}
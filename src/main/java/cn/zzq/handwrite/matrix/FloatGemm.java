@@ -0,0 +1,281 @@
+package cn.zzq.handwrite.matrix;
+
+import java.util.Arrays;
+
+/**
+ * 单精度稠密矩阵乘法内核，计算 C = A * B，A、B、C均为行主序存储
+ * <p>
+ * 分块方式与{@link Gemm}相同，元素只占一半字节，KC可以加倍而面板仍驻留在同一级缓存中。
+ * <p>
+ * 小行数矩阵(例如推理时的1*784行向量)直接按行做 c[i,:] += a[i,k] * b[k,:]，
+ * 顺序访问B的每一行，不需要打包；
+ * 开启{@link Gemm#SKIP_ZEROS}时只累加非零的a[i,k]，行数较多但A足够稀疏时同样按行计算，判断方式与{@link Gemm#isSparse}相同；
+ * 其余情况按L1/L2缓存分块，将B打包成连续的NR列面板，A打包成连续的MR行面板，
+ * 再由MR*NR的寄存器分块微内核完成计算。
+ * <p>
+ * 所有路径对C中每个元素都按k从小到大的顺序累加，结果与朴素三重循环逐位一致。
+ */
+final class FloatGemm {
+    static final int MR = Gemm.MR;  //微内核行数
+    static final int NR = Gemm.NR;  //微内核列数
+
+    static final int MC = 64;       //A分块行数，MC*KC的A块驻留L2
+    static final int KC = 512;      //公共维度分块，KC*NR的B面板驻留L1
+    static final int NC = 512;      //B分块列数
+
+    /**
+     * 行数不超过该值时使用按行累加的内核，打包B的代价无法被摊销
+     */
+    static final int ROW_KERNEL_MAX_ROWS = 2 * MR;
+
+    /**
+     * 每个线程独享的打包缓冲区，避免每次乘法都分配
+     */
+    private static final ThreadLocal<float[][]> PACK_BUFFERS =
+            ThreadLocal.withInitial(() -> new float[][]{new float[MC * KC], new float[KC * NC], new float[MR * NR]});
+
+    /**
+     * 每个线程独享的非零元素下标缓冲区，长度不足时扩容
+     */
+    private static final ThreadLocal<int[]> NONZERO_BUFFERS = ThreadLocal.withInitial(() -> new int[784]);
+
+    private FloatGemm() {
+    }
+
+    /**
+     * 计算 c = a * b，调用方负责保证形状相容
+     */
+    static void multiply(FloatMatrix a, FloatMatrix b, FloatMatrix c) {
+        multiply(a, b, c, 0, a.getRowSize(), 0, b.getColumnSize());
+    }
+
+    /**
+     * 只计算c中[rowFrom, rowTo)行、[colFrom, colTo)列的子块，供并行引擎按块划分任务
+     */
+    static void multiply(FloatMatrix a, FloatMatrix b, FloatMatrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+        int k = a.getColumnSize();
+        int lda = a.getColumnSize();
+        int ldb = b.getColumnSize();
+        int ldc = c.getColumnSize();
+        int m = rowTo - rowFrom;
+        int n = colTo - colFrom;
+        if (m <= 0 || n <= 0) {
+            return;
+        }
+        if (m <= ROW_KERNEL_MAX_ROWS || Gemm.SKIP_ZEROS && isSparse(m, k, a.data, rowFrom * lda, lda)) {
+            rowKernel(m, n, k,
+                    a.data, rowFrom * lda, lda,
+                    b.data, colFrom, ldb,
+                    c.data, rowFrom * ldc + colFrom, ldc);
+        } else {
+            blocked(m, n, k,
+                    a.data, rowFrom * lda, lda,
+                    b.data, colFrom, ldb,
+                    c.data, rowFrom * ldc + colFrom, ldc);
+        }
+    }
+
+    /**
+     * A的m*k子块中非零元素的比例是否不超过{@link Gemm#SPARSE_MAX_DENSITY}
+     */
+    static boolean isSparse(int m, int k, float[] a, int aOff, int lda) {
+        long limit = (long) (Gemm.SPARSE_MAX_DENSITY * m * k);
+        long count = 0;
+        for (int i = 0; i < m; i++) {
+            int aRow = aOff + i * lda;
+            for (int p = 0; p < k; p++) {
+                count += a[aRow + p] != 0 ? 1 : 0;
+            }
+            if (count > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按行累加：对A的每一行，先收集要累加的下标，再依次把a[i,k]乘以B的第k行累加到C的第i行
+     * 开启{@link Gemm#SKIP_ZEROS}时只收集非零元素的下标，否则收集全部下标
+     */
+    static void rowKernel(int m, int n, int k,
+                          float[] a, int aOff, int lda,
+                          float[] b, int bOff, int ldb,
+                          float[] c, int cOff, int ldc) {
+        int[] nonzero = NONZERO_BUFFERS.get();
+        if (nonzero.length < k) {
+            nonzero = new int[k];
+            NONZERO_BUFFERS.set(nonzero);
+        }
+        for (int i = 0; i < m; i++) {
+            int cRow = cOff + i * ldc;
+            int aRow = aOff + i * lda;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0;
+            }
+            int count = 0;
+            for (int p = 0; p < k; p++) {
+                nonzero[count] = p;                     //无分支地收集下标
+                count += !Gemm.SKIP_ZEROS || a[aRow + p] != 0 ? 1 : 0;
+            }
+            for (int t = 0; t < count; t++) {
+                int p = nonzero[t];
+                float aik = a[aRow + p];
+                int bRow = bOff + p * ldb;
+                for (int j = 0; j < n; j++) {
+                    c[cRow + j] += aik * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * 分块并打包后的矩阵乘法
+     */
+    static void blocked(int m, int n, int k,
+                        float[] a, int aOff, int lda,
+                        float[] b, int bOff, int ldb,
+                        float[] c, int cOff, int ldc) {
+        float[][] buffers = PACK_BUFFERS.get();
+        float[] packA = buffers[0];
+        float[] packB = buffers[1];
+        float[] edge = buffers[2];
+
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(c, cOff + i * ldc, cOff + i * ldc + n, 0);
+        }
+        if (k == 0) {
+            return;
+        }
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+                packB(kc, nc, b, bOff + pc * ldb + jc, ldb, packB);
+                for (int ic = 0; ic < m; ic += MC) {
+                    int mc = Math.min(MC, m - ic);
+                    packA(mc, kc, a, aOff + ic * lda + pc, lda, packA);
+                    for (int jr = 0; jr < nc; jr += NR) {
+                        int nr = Math.min(NR, nc - jr);
+                        for (int ir = 0; ir < mc; ir += MR) {
+                            int mr = Math.min(MR, mc - ir);
+                            microKernel(kc, packA, ir * kc, packB, jr * kc,
+                                    c, cOff + (ic + ir) * ldc + jc + jr, ldc, mr, nr, edge);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 将A的mc*kc子块打包为若干MR行面板，面板内按列连续存放，不足MR行的部分补零
+     */
+    private static void packA(int mc, int kc, float[] a, int aOff, int lda, float[] dst) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                int src = aOff + ir * lda + p;
+                for (int i = 0; i < mr; i++) {
+                    dst[idx++] = a[src + i * lda];
+                }
+                for (int i = mr; i < MR; i++) {
+                    dst[idx++] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * 将B的kc*nc子块打包为若干NR列面板，面板内按行连续存放，不足NR列的部分补零
+     */
+    private static void packB(int kc, int nc, float[] b, int bOff, int ldb, float[] dst) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                int src = bOff + p * ldb + jr;
+                for (int j = 0; j < nr; j++) {
+                    dst[idx++] = b[src + j];
+                }
+                for (int j = nr; j < NR; j++) {
+                    dst[idx++] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * MR*NR寄存器分块微内核，先读入C的部分和再继续累加，保证累加顺序与朴素算法一致
+     */
+    private static void microKernel(int kc, float[] pa, int aIdx, float[] pb, int bIdx,
+                                    float[] c, int cOff, int ldc, int mr, int nr, float[] t) {
+        float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        if (mr == MR && nr == NR) {
+            int r0 = cOff, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+            c00 = c[r0]; c01 = c[r0 + 1]; c02 = c[r0 + 2]; c03 = c[r0 + 3];
+            c10 = c[r1]; c11 = c[r1 + 1]; c12 = c[r1 + 2]; c13 = c[r1 + 3];
+            c20 = c[r2]; c21 = c[r2 + 1]; c22 = c[r2 + 2]; c23 = c[r2 + 3];
+            c30 = c[r3]; c31 = c[r3 + 1]; c32 = c[r3 + 2]; c33 = c[r3 + 3];
+        } else {
+            loadEdge(c, cOff, ldc, mr, nr, t);
+            c00 = t[0]; c01 = t[1]; c02 = t[2]; c03 = t[3];
+            c10 = t[4]; c11 = t[5]; c12 = t[6]; c13 = t[7];
+            c20 = t[8]; c21 = t[9]; c22 = t[10]; c23 = t[11];
+            c30 = t[12]; c31 = t[13]; c32 = t[14]; c33 = t[15];
+        }
+
+        for (int p = 0; p < kc; p++) {
+            float a0 = pa[aIdx], a1 = pa[aIdx + 1], a2 = pa[aIdx + 2], a3 = pa[aIdx + 3];
+            float b0 = pb[bIdx], b1 = pb[bIdx + 1], b2 = pb[bIdx + 2], b3 = pb[bIdx + 3];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+            aIdx += MR;
+            bIdx += NR;
+        }
+
+        if (mr == MR && nr == NR) {
+            int r0 = cOff, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+            c[r0] = c00; c[r0 + 1] = c01; c[r0 + 2] = c02; c[r0 + 3] = c03;
+            c[r1] = c10; c[r1 + 1] = c11; c[r1 + 2] = c12; c[r1 + 3] = c13;
+            c[r2] = c20; c[r2 + 1] = c21; c[r2 + 2] = c22; c[r2 + 3] = c23;
+            c[r3] = c30; c[r3 + 1] = c31; c[r3 + 2] = c32; c[r3 + 3] = c33;
+        } else {
+            t[0] = c00; t[1] = c01; t[2] = c02; t[3] = c03;
+            t[4] = c10; t[5] = c11; t[6] = c12; t[7] = c13;
+            t[8] = c20; t[9] = c21; t[10] = c22; t[11] = c23;
+            t[12] = c30; t[13] = c31; t[14] = c32; t[15] = c33;
+            storeEdge(c, cOff, ldc, mr, nr, t);
+        }
+    }
+
+    /**
+     * 边缘不完整分块：只读入有效的mr*nr部分，其余补零
+     */
+    private static void loadEdge(float[] c, int cOff, int ldc, int mr, int nr, float[] t) {
+        Arrays.fill(t, 0);
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                t[i * NR + j] = c[cOff + i * ldc + j];
+            }
+        }
+    }
+
+    /**
+     * 边缘不完整分块：只写回有效的mr*nr部分
+     */
+    private static void storeEdge(float[] c, int cOff, int ldc, int mr, int nr, float[] t) {
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                c[cOff + i * ldc + j] = t[i * NR + j];
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixDotException;
+import cn.zzq.handwrite.matrix.exception.MatrixIndexOutOfBoundException;
+import cn.zzq.handwrite.matrix.exception.MatrixReshapeException;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 单精度矩阵，运算与{@link Matrix}一一对应
+ * <p>
+ * 元素只占4字节，同样的权重与激活值只需一半的内存带宽。
+ * 像素本身只有8位，sigmoid的输出也不需要双精度，推理与训练的精度损失可以忽略。
+ */
+public class FloatMatrix {
+    private int rowSize;
+    private int columnSize;
+
+    final float[] data;
+
+    /**
+     * 初始化行列
+     * @param rowSize 矩阵的行
+     * @param columnSize 矩阵的列
+     */
+    public FloatMatrix(int rowSize, int columnSize) {
+        this.rowSize = rowSize;
+        this.columnSize = columnSize;
+        this.data = new float[rowSize * columnSize];
+    }
+
+    /**
+     * 从数组初始化一个行向量
+     * @param data 行向量元素值
+     */
+    public FloatMatrix(float[] data) {
+        this.rowSize = 1;
+        this.columnSize = data.length;
+        this.data = data;
+    }
+
+    public static FloatMatrix valueOf(float... data) {
+        return new FloatMatrix(data);
+    }
+
+    /**
+     * 将双精度矩阵转换为单精度矩阵
+     * @param matrix 双精度矩阵
+     * @return 形状相同的新矩阵
+     */
+    public static FloatMatrix valueOf(Matrix matrix) {
+        FloatMatrix floatMatrix = new FloatMatrix(matrix.getRowSize(), matrix.getColumnSize());
+        floatMatrix.fill(matrix);
+        return floatMatrix;
+    }
+
+    /**
+     * 转换为双精度矩阵，转换是精确的
+     * @return 形状相同的新矩阵
+     */
+    public Matrix toMatrix() {
+        Matrix matrix = new Matrix(rowSize, columnSize);
+        toMatrix(matrix);
+        return matrix;
+    }
+
+    /**
+     * 转换后写入out，不分配新矩阵
+     * @param out 形状相同的双精度矩阵
+     */
+    public void toMatrix(Matrix out) {
+        if (out.getRowSize() != rowSize || out.getColumnSize() != columnSize) {
+            throw new MatrixShapeException(rowSize, columnSize, out.getRowSize(), out.getColumnSize());
+        }
+        for (int i = 0; i < data.length; i++) {
+            out.data[i] = data[i];
+        }
+    }
+
+    public void fill(FloatMatrix other) {
+        System.arraycopy(other.data, 0, this.data, 0, data.length);
+    }
+
+    /**
+     * 用双精度矩阵的值填充该矩阵，元素舍入到最近的单精度数
+     * @param other 形状相同的双精度矩阵
+     */
+    public void fill(Matrix other) {
+        if (other.getRowSize() != rowSize || other.getColumnSize() != columnSize) {
+            throw new MatrixShapeException(rowSize, columnSize, other.getRowSize(), other.getColumnSize());
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) other.data[i];
+        }
+    }
+
+    /**
+     * 按索引从另一个矩阵中抽取若干行填充到该矩阵，用于组装小批量
+     * 该矩阵的第i行为source的第indices[offset + i]行
+     * @param source 源矩阵，列数需与该矩阵相同
+     * @param indices 行索引
+     * @param offset 从indices的该位置开始取
+     */
+    public void gatherRows(FloatMatrix source, int[] indices, int offset) {
+        if (source.getColumnSize() != getColumnSize()) {
+            throw new MatrixShapeException(source.getRowSize(), getColumnSize(), source.getRowSize(), source.getColumnSize());
+        }
+        for (int row = 0; row < rowSize; row++) {
+            int sourceRow = indices[offset + row];
+            if (sourceRow >= source.getRowSize()) {
+                throw new MatrixIndexOutOfBoundException(sourceRow, 0, source.getRowSize(), source.getColumnSize());
+            }
+            System.arraycopy(source.data, sourceRow * columnSize, this.data, row * columnSize, columnSize);
+        }
+    }
+
+    /**
+     * 按照正态分布生成一个随机矩阵
+     * @param rowSize 行数
+     * @param columnSize 列数
+     * @param loc 正态分布的均值
+     * @param scale 正态分布的标准差
+     * @return 返回该矩阵
+     */
+    public static FloatMatrix normals(int rowSize, int columnSize, double loc, double scale) {
+        Random r = new Random();
+        FloatMatrix matrix = new FloatMatrix(rowSize, columnSize);
+        for (int i = 0; i < matrix.data.length; i++) {
+            matrix.data[i] = (float) (scale * r.nextGaussian() + loc);
+        }
+        return matrix;
+    }
+
+    /**
+     * 矩阵清零
+     */
+    public void clear() {
+        Arrays.fill(data, 0);
+    }
+
+    /**
+     * 拷贝出一个新矩阵
+     * @return 新矩阵
+     */
+    public FloatMatrix copy() {
+        FloatMatrix matrix = FloatMatrix.valueOf(this.data.clone());
+        matrix.reshape(this.rowSize, this.columnSize);
+        return matrix;
+    }
+
+    public int getRowSize() {
+        return rowSize;
+    }
+
+    public int getColumnSize() {
+        return columnSize;
+    }
+
+    public float get(int row, int column) {
+        if (row >= getRowSize() || column >= getColumnSize()) {
+            throw new MatrixIndexOutOfBoundException(row, column, getRowSize(), getColumnSize());
+        }
+        return this.data[row * getColumnSize() + column];
+    }
+
+    public void set(int row, int column, float value) {
+        if (row >= getRowSize() || column >= getColumnSize()) {
+            throw new MatrixIndexOutOfBoundException(row, column, getRowSize(), getColumnSize());
+        }
+        this.data[row * getColumnSize() + column] = value;
+    }
+
+    /**
+     * 重定义矩阵的形状
+     * @param rowSize 行数
+     * @param columnSize 列数
+     */
+    public void reshape(int rowSize, int columnSize) {
+        if (this.rowSize * this.columnSize != rowSize * columnSize) {
+            throw new MatrixReshapeException(this.rowSize, this.columnSize, rowSize, columnSize);
+        }
+        this.rowSize = rowSize;
+        this.columnSize = columnSize;
+    }
+
+    /**
+     * 矩阵的转置
+     */
+    public FloatMatrix transpose() {
+        FloatMatrix matrix = new FloatMatrix(getColumnSize(), getRowSize());
+        transposeInto(matrix);
+        return matrix;
+    }
+
+    /**
+     * 将矩阵的转置写入out中，out的形状必须为(列数, 行数)
+     * @param out 结果矩阵
+     */
+    public void transposeInto(FloatMatrix out) {
+        if (out.getRowSize() != getColumnSize() || out.getColumnSize() != getRowSize()) {
+            throw new MatrixShapeException(getColumnSize(), getRowSize(), out.getRowSize(), out.getColumnSize());
+        }
+        for (int row = 0; row < rowSize; row++) {
+            for (int column = 0; column < columnSize; column++) {
+                out.data[column * rowSize + row] = this.data[row * columnSize + column];
+            }
+        }
+    }
+
+    /**
+     * 判定矩阵形状是否不同
+     * @return 矩阵形状是否不同
+     */
+    public boolean diffShape(FloatMatrix other) {
+        return this.getRowSize() != other.getRowSize() || this.getColumnSize() != other.getColumnSize();
+    }
+
+    private void checkShape(FloatMatrix other) {
+        if (diffShape(other)) {
+            throw new MatrixShapeException(rowSize, columnSize, other.getRowSize(), other.getColumnSize());
+        }
+    }
+
+    /**
+     * 矩阵加法运算
+     */
+    public void addWith(FloatMatrix other) {
+        checkShape(other);
+        for (int i = 0; i < data.length; i++) {
+            this.data[i] += other.data[i];
+        }
+    }
+
+    /**
+     * 加上另一个矩阵的scale倍，即 this += scale * other
+     * @param other 另一个矩阵
+     * @param scale 倍数
+     */
+    public void addScaledWith(FloatMatrix other, float scale) {
+        checkShape(other);
+        for (int i = 0; i < data.length; i++) {
+            this.data[i] += scale * other.data[i];
+        }
+    }
+
+    /**
+     * 矩阵的数乘运算
+     * @param num 数
+     */
+    public void mulWith(float num) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] *= num;
+        }
+    }
+
+    /**
+     * 矩阵的哈达马积，即矩阵的每一个元素对应相乘
+     */
+    public void mulWith(FloatMatrix other) {
+        checkShape(other);
+        for (int i = 0; i < data.length; i++) {
+            this.data[i] *= other.data[i];
+        }
+    }
+
+    /**
+     * 矩阵的减法运算
+     * @param other 减矩阵
+     */
+    public void subWith(FloatMatrix other) {
+        checkShape(other);
+        for (int i = 0; i < data.length; i++) {
+            this.data[i] -= other.data[i];
+        }
+    }
+
+    /**
+     * 对矩阵的每个数值做一个值映射
+     * @param function 映射函数
+     */
+    public void mapWith(FloatFunction function) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = function.activate(data[i]);
+        }
+    }
+
+    /**
+     * 矩阵的点乘运算，将该矩阵右乘另一个矩阵，前提是矩阵的列数和另一个矩阵的行数相同
+     * @param other 右乘矩阵
+     * @return 运算结果
+     */
+    public FloatMatrix dot(FloatMatrix other) {
+        if (this.getColumnSize() != other.getRowSize()) {
+            throw new MatrixDotException(rowSize, columnSize, other.getRowSize(), other.getColumnSize());
+        }
+        FloatMatrix matrix = new FloatMatrix(this.getRowSize(), other.getColumnSize());
+        FloatGemm.multiply(this, other, matrix);
+        return matrix;
+    }
+
+    /**
+     * 将 this * other 的结果写入out，不分配新矩阵
+     * out的形状必须为(该矩阵的行数, other的列数)，且不能与this或other共享数组
+     * @param other 右乘矩阵
+     * @param out 结果矩阵
+     */
+    public void dotInto(FloatMatrix other, FloatMatrix out) {
+        checkDotInto(this, other, out);
+        FloatGemm.multiply(this, other, out);
+    }
+
+    static void checkDotInto(FloatMatrix m1, FloatMatrix m2, FloatMatrix out) {
+        if (m1.getColumnSize() != m2.getRowSize()) {
+            throw new MatrixDotException(m1.getRowSize(), m1.getColumnSize(), m2.getRowSize(), m2.getColumnSize());
+        }
+        if (out.getRowSize() != m1.getRowSize() || out.getColumnSize() != m2.getColumnSize()) {
+            throw new MatrixShapeException(m1.getRowSize(), m2.getColumnSize(), out.getRowSize(), out.getColumnSize());
+        }
+        if (out.data == m1.data || out.data == m2.data) {
+            throw new IllegalArgumentException("结果矩阵不能与参与乘法的矩阵共享数组");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toMatrix().toString();
+    }
+}
@@ -0,0 +1,396 @@
+package cn.zzq.handwrite.matrix;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 稠密矩阵乘法内核，计算 C = A * B，A、B、C均为行主序存储
+ * <p>
+ * 小行数矩阵(例如推理时的1*784行向量)直接按行做 c[i,:] += a[i,k] * b[k,:]，
+ * 顺序访问B的每一行，不需要打包；
+ * 开启{@link #SKIP_ZEROS}时只累加非零的a[i,k]，行数较多但A足够稀疏时(例如一批MNIST图片，约80%的像素为0)
+ * 同样按行计算，乘加次数与非零元素数成正比；
+ * 其余情况按L1/L2缓存分块，将B打包成连续的NR列面板，A打包成连续的MR行面板，
+ * 再由MR*NR的寄存器分块微内核完成计算。
+ * <p>
+ * 所有路径对C中每个元素都按k从小到大的顺序累加，结果与朴素三重循环逐位一致。
+ * 跳过a[i,k]为0的项不改变结果，前提是B中没有无穷大或NaN(0乘以它们得到NaN)，
+ * 乘法内核无法廉价地确认这一点，因此跳过零元素需要调用方显式开启。
+ * 按行累加的内层循环与整块微内核在{@link MatrixKernels}提供SIMD实现时使用向量指令。
+ * <p>
+ * A、B可以是{@link MatrixView}，按行跨度与列跨度访问，转置视图只是交换两个跨度；
+ * 打包时按跨度读取，打包后的面板与连续矩阵完全相同，因此转置不需要单独复制。
+ * 按行累加要求B的每一行连续，B的列跨度不为1时(如转置的权重)总是使用分块内核。
+ * <p>
+ * B也可以是{@link OffHeapMatrix}：按行累加时向量指令直接读取堆外缓冲区，分块计算时打包阶段从缓冲区读入，
+ * 其余部分与堆上矩阵完全相同。
+ */
+final class Gemm {
+    static final int MR = 4;        //微内核行数
+    static final int NR = 4;        //微内核列数
+
+    static final int MC = 64;       //A分块行数，MC*KC的A块驻留L2
+    static final int KC = 256;      //公共维度分块，KC*NR的B面板驻留L1
+    static final int NC = 512;      //B分块列数
+
+    /**
+     * 当前使用的分块大小{mc, kc, nc}，默认为MC、KC、NC，安装{@link KernelProfile}时替换为本机测得最快的组合
+     * 分块大小只影响速度：C的每个元素仍按k从小到大累加，结果与分块大小无关
+     */
+    private static volatile int[] blocking = {MC, KC, NC};
+
+    /**
+     * 行数不超过该值时使用按行累加的内核，打包B的代价无法被摊销
+     */
+    static final int ROW_KERNEL_MAX_ROWS = 2 * MR;
+
+    /**
+     * 开启跳过零元素的系统属性
+     */
+    static final String SPARSE_PROPERTY = "handwrite.sparse";
+
+    /**
+     * 是否跳过A中为0的元素，启动参数加入{@code -Dhandwrite.sparse=true}时开启，类加载时确定
+     * 开启后0 * b不再累加，B中有无穷大或NaN时结果与IEEE 754的语义不同(本应得到NaN)，例如训练发散后的权重，
+     * 只应在确认右乘矩阵都是有限值时开启，默认关闭时所有路径都累加全部的项
+     */
+    static final boolean SKIP_ZEROS = Boolean.getBoolean(SPARSE_PROPERTY);
+
+    /**
+     * A中非零元素的比例不超过该值时按行计算，只累加非零元素对应的B行
+     * 分块内核每次乘加的代价更低，A较稠密时跳过零元素省下的计算抵不过这一差距
+     */
+    static final double SPARSE_MAX_DENSITY = 0.3;
+
+    /**
+     * 每个线程独享的打包缓冲区，避免每次乘法都分配
+     */
+    private static final MatrixKernels KERNELS = MatrixKernels.get();
+
+    private static final ThreadLocal<double[][]> PACK_BUFFERS =
+            ThreadLocal.withInitial(() -> new double[][]{new double[MC * KC], new double[KC * NC], new double[MR * NR]});
+
+    /**
+     * 每个线程独享的非零元素下标缓冲区，长度不足时扩容
+     */
+    private static final ThreadLocal<int[]> NONZERO_BUFFERS = ThreadLocal.withInitial(() -> new int[784]);
+
+    private Gemm() {
+    }
+
+    /**
+     * 设置分块大小，mc与nc必须分别是MR与NR的倍数
+     */
+    static void setBlocking(int mc, int kc, int nc) {
+        if (mc <= 0 || kc <= 0 || nc <= 0 || mc % MR != 0 || nc % NR != 0) {
+            throw new IllegalArgumentException(String.format("不合法的分块大小(%d, %d, %d)", mc, kc, nc));
+        }
+        blocking = new int[]{mc, kc, nc};
+    }
+
+    /**
+     * 当前的分块大小{mc, kc, nc}
+     */
+    static int[] getBlocking() {
+        return blocking.clone();
+    }
+
+    /**
+     * 计算 c = a * b，调用方负责保证形状相容
+     */
+    static void multiply(Matrix a, Matrix b, Matrix c) {
+        multiply(a, b, c, 0, a.getRowSize(), 0, b.getColumnSize());
+    }
+
+    /**
+     * 只计算c中[rowFrom, rowTo)行、[colFrom, colTo)列的子块，供并行引擎按块划分任务
+     */
+    static void multiply(Matrix a, Matrix b, Matrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+        int lda = a.getColumnSize();
+        int ldb = b.getColumnSize();
+        multiply(rowTo - rowFrom, colTo - colFrom, a.getColumnSize(),
+                a.data, rowFrom * lda, lda, 1,
+                b.data, null, colFrom, ldb, 1,
+                c.data, rowFrom * c.getColumnSize() + colFrom, c.getColumnSize());
+    }
+
+    /**
+     * 计算 c = a * b，b位于堆外，调用方负责保证形状相容
+     */
+    static void multiply(Matrix a, OffHeapMatrix b, Matrix c) {
+        multiply(a, b, c, 0, a.getRowSize(), 0, b.getColumnSize());
+    }
+
+    /**
+     * 堆外右乘矩阵的子块计算，供并行引擎按块划分任务
+     */
+    static void multiply(Matrix a, OffHeapMatrix b, Matrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+        int lda = a.getColumnSize();
+        int ldb = b.getColumnSize();
+        multiply(rowTo - rowFrom, colTo - colFrom, a.getColumnSize(),
+                a.data, rowFrom * lda, lda, 1,
+                null, b.bytes, colFrom, ldb, 1,
+                c.data, rowFrom * c.getColumnSize() + colFrom, c.getColumnSize());
+    }
+
+    /**
+     * 计算 c = a * b，a、b为任意跨度的视图，调用方负责保证形状相容
+     */
+    static void multiply(MatrixView a, MatrixView b, Matrix c) {
+        multiply(a, b, c, 0, a.rowSize, 0, b.columnSize);
+    }
+
+    /**
+     * 视图版本的子块计算，供并行引擎按块划分任务
+     */
+    static void multiply(MatrixView a, MatrixView b, Matrix c, int rowFrom, int rowTo, int colFrom, int colTo) {
+        multiply(rowTo - rowFrom, colTo - colFrom, a.columnSize,
+                a.data, a.offset + rowFrom * a.rowStride, a.rowStride, a.columnStride,
+                b.data, null, b.offset + colFrom * b.columnStride, b.rowStride, b.columnStride,
+                c.data, rowFrom * c.getColumnSize() + colFrom, c.getColumnSize());
+    }
+
+    /**
+     * 结果也是视图的子块计算，c的每一行必须连续(列跨度为1)，例如执行计划中复用同一块缓冲区的中间结果
+     */
+    static void multiply(MatrixView a, MatrixView b, MatrixView c, int rowFrom, int rowTo, int colFrom, int colTo) {
+        multiply(rowTo - rowFrom, colTo - colFrom, a.columnSize,
+                a.data, a.offset + rowFrom * a.rowStride, a.rowStride, a.columnStride,
+                b.data, null, b.offset + colFrom * b.columnStride, b.rowStride, b.columnStride,
+                c.data, c.offset + rowFrom * c.rowStride + colFrom, c.rowStride);
+    }
+
+    /**
+     * 计算c中[rowFrom, rowTo)行的全部列，a与c以起点和跨度给出，供{@link Dense}对矩阵与视图共用同一套分块逻辑
+     */
+    static void multiply(double[] a, int aOff, int rsa, int csa, Matrix b,
+                         double[] c, int cOff, int ldc, int rowFrom, int rowTo) {
+        int ldb = b.getColumnSize();
+        multiply(rowTo - rowFrom, ldb, b.getRowSize(),
+                a, aOff + rowFrom * rsa, rsa, csa,
+                b.data, null, 0, ldb, 1,
+                c, cOff + rowFrom * ldc, ldc);
+    }
+
+    /**
+     * 按跨度计算m*n的子块，rsa/csa与rsb/csb分别为A、B的行跨度与列跨度
+     * B位于堆外时b为null，bBytes为本机字节序的缓冲区，bOff等仍以元素计
+     */
+    private static void multiply(int m, int n, int k,
+                                 double[] a, int aOff, int rsa, int csa,
+                                 double[] b, ByteBuffer bBytes, int bOff, int rsb, int csb,
+                                 double[] c, int cOff, int ldc) {
+        if (m <= 0 || n <= 0) {
+            return;
+        }
+        if (csb == 1 && (m <= ROW_KERNEL_MAX_ROWS || SKIP_ZEROS && isSparse(m, k, a, aOff, rsa, csa))) {
+            rowKernel(m, n, k, a, aOff, rsa, csa, b, bBytes, bOff, rsb, c, cOff, ldc);
+        } else {
+            blocked(m, n, k, a, aOff, rsa, csa, b, bBytes, bOff, rsb, csb, c, cOff, ldc);
+        }
+    }
+
+    /**
+     * A的m*k子块中非零元素的比例是否不超过{@link #SPARSE_MAX_DENSITY}，超过后立即返回
+     */
+    static boolean isSparse(int m, int k, double[] a, int aOff, int rsa, int csa) {
+        long limit = (long) (SPARSE_MAX_DENSITY * m * k);
+        long count = 0;
+        for (int i = 0; i < m; i++) {
+            int aRow = aOff + i * rsa;
+            for (int p = 0; p < k; p++) {
+                count += a[aRow + p * csa] != 0 ? 1 : 0;
+            }
+            if (count > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按行累加：对A的每一行，先收集要累加的下标，再依次把a[i,k]乘以B的第k行累加到C的第i行
+     * 开启{@link #SKIP_ZEROS}时只收集非零元素的下标，否则收集全部下标
+     * A按跨度访问，B的每一行必须连续
+     */
+    static void rowKernel(int m, int n, int k,
+                          double[] a, int aOff, int rsa, int csa,
+                          double[] b, ByteBuffer bBytes, int bOff, int ldb,
+                          double[] c, int cOff, int ldc) {
+        int[] nonzero = NONZERO_BUFFERS.get();
+        if (nonzero.length < k) {
+            nonzero = new int[k];
+            NONZERO_BUFFERS.set(nonzero);
+        }
+        for (int i = 0; i < m; i++) {
+            int cRow = cOff + i * ldc;
+            int aRow = aOff + i * rsa;
+            for (int j = 0; j < n; j++) {
+                c[cRow + j] = 0;
+            }
+            int count = 0;
+            for (int p = 0; p < k; p++) {
+                nonzero[count] = p;                     //无分支地收集下标，零元素的位置会被下一个覆盖
+                count += !SKIP_ZEROS || a[aRow + p * csa] != 0 ? 1 : 0;
+            }
+            if (bBytes == null) {
+                for (int t = 0; t < count; t++) {
+                    int p = nonzero[t];
+                    KERNELS.axpy(n, a[aRow + p * csa], b, bOff + p * ldb, c, cRow);
+                }
+            } else {
+                for (int t = 0; t < count; t++) {
+                    int p = nonzero[t];
+                    KERNELS.axpy(n, a[aRow + p * csa], bBytes, (bOff + p * ldb) * Double.BYTES, c, cRow);
+                }
+            }
+        }
+    }
+
+    /**
+     * 分块并打包后的矩阵乘法，打包时按跨度读取A、B
+     */
+    static void blocked(int m, int n, int k,
+                        double[] a, int aOff, int rsa, int csa,
+                        double[] b, ByteBuffer bBytes, int bOff, int rsb, int csb,
+                        double[] c, int cOff, int ldc) {
+        int[] blocks = blocking;
+        int mcMax = blocks[0], kcMax = blocks[1], ncMax = blocks[2];
+        double[][] buffers = PACK_BUFFERS.get();
+        if (buffers[0].length < mcMax * kcMax) {
+            buffers[0] = new double[mcMax * kcMax];     //分块变大后扩容
+        }
+        if (buffers[1].length < kcMax * ncMax) {
+            buffers[1] = new double[kcMax * ncMax];
+        }
+        double[] packA = buffers[0];
+        double[] packB = buffers[1];
+        double[] edge = buffers[2];
+
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(c, cOff + i * ldc, cOff + i * ldc + n, 0);
+        }
+        if (k == 0) {
+            return;
+        }
+
+        for (int jc = 0; jc < n; jc += ncMax) {
+            int nc = Math.min(ncMax, n - jc);
+            for (int pc = 0; pc < k; pc += kcMax) {
+                int kc = Math.min(kcMax, k - pc);
+                if (bBytes == null) {
+                    packB(kc, nc, b, bOff + pc * rsb + jc * csb, rsb, csb, packB);
+                } else {
+                    packB(kc, nc, bBytes, bOff + pc * rsb + jc * csb, rsb, csb, packB);
+                }
+                for (int ic = 0; ic < m; ic += mcMax) {
+                    int mc = Math.min(mcMax, m - ic);
+                    packA(mc, kc, a, aOff + ic * rsa + pc * csa, rsa, csa, packA);
+                    for (int jr = 0; jr < nc; jr += NR) {
+                        int nr = Math.min(NR, nc - jr);
+                        for (int ir = 0; ir < mc; ir += MR) {
+                            int mr = Math.min(MR, mc - ir);
+                            microKernel(kc, packA, ir * kc, packB, jr * kc,
+                                    c, cOff + (ic + ir) * ldc + jc + jr, ldc, mr, nr, edge);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 将A的mc*kc子块打包为若干MR行面板，面板内按列连续存放，不足MR行的部分补零
+     * A为转置视图时行跨度为1，面板的每一列恰好是原矩阵中连续的MR个元素
+     */
+    private static void packA(int mc, int kc, double[] a, int aOff, int rsa, int csa, double[] dst) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                int src = aOff + ir * rsa + p * csa;
+                for (int i = 0; i < mr; i++) {
+                    dst[idx++] = a[src + i * rsa];
+                }
+                for (int i = mr; i < MR; i++) {
+                    dst[idx++] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * 将B的kc*nc子块打包为若干NR列面板，面板内按行连续存放，不足NR列的部分补零
+     */
+    private static void packB(int kc, int nc, double[] b, int bOff, int rsb, int csb, double[] dst) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                int src = bOff + p * rsb + jr * csb;
+                for (int j = 0; j < nr; j++) {
+                    dst[idx++] = b[src + j * csb];
+                }
+                for (int j = nr; j < NR; j++) {
+                    dst[idx++] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * 与上面相同，B位于堆外缓冲区中，bOff以元素计
+     */
+    private static void packB(int kc, int nc, ByteBuffer b, int bOff, int rsb, int csb, double[] dst) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                int src = bOff + p * rsb + jr * csb;
+                for (int j = 0; j < nr; j++) {
+                    dst[idx++] = b.getDouble((src + j * csb) * Double.BYTES);
+                }
+                for (int j = nr; j < NR; j++) {
+                    dst[idx++] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * MR*NR寄存器分块微内核，先读入C的部分和再继续累加，保证累加顺序与朴素算法一致
+     */
+    private static void microKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx,
+                                    double[] c, int cOff, int ldc, int mr, int nr, double[] t) {
+        if (mr == MR && nr == NR) {
+            KERNELS.tileKernel(kc, pa, aIdx, pb, bIdx, c, cOff, ldc);
+        } else {
+            loadEdge(c, cOff, ldc, mr, nr, t);
+            KERNELS.tileKernel(kc, pa, aIdx, pb, bIdx, t, 0, NR);
+            storeEdge(c, cOff, ldc, mr, nr, t);
+        }
+    }
+
+    /**
+     * 边缘不完整分块：只读入有效的mr*nr部分，其余补零
+     */
+    private static void loadEdge(double[] c, int cOff, int ldc, int mr, int nr, double[] t) {
+        Arrays.fill(t, 0);
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                t[i * NR + j] = c[cOff + i * ldc + j];
+            }
+        }
+    }
+
+    /**
+     * 边缘不完整分块：只写回有效的mr*nr部分
+     */
+    private static void storeEdge(double[] c, int cOff, int ldc, int mr, int nr, double[] t) {
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                c[cOff + i * ldc + j] = t[i * NR + j];
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package cn.zzq.handwrite.matrix;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 一台主机上的矩阵乘法内核配置：{@link Gemm}的分块大小，以及每种矩阵形状在默认线程池上划分的行块数与列块数
+ * <p>
+ * 配置由{@link KernelTuner}在本机实测各候选内核后得到，保存为一个很小的properties文件，之后启动时直接加载。
+ * 通过{@link MatrixDotParallel#setProfile}安装后，默认线程池上的矩阵乘法与全连接层按配置划分，
+ * 配置中没有的形状、或线程池的并行度与测量时不同，仍由成本模型决定。
+ * 配置只影响速度：分块与划分方式不同时C的每个元素仍按k从小到大累加，结果逐位相同。
+ * <p>
+ * 文件中记录测量时的主机指纹(CPU架构与核数、线程池并行度、Java版本与内核实现)，
+ * 换了机器或启动参数后指纹不同，应重新测量而不是沿用别处的配置。
+ */
+public final class KernelProfile {
+    /**
+     * 配置文件路径的系统属性，未设置时为用户目录下的.handwrite/kernels-主机名.properties
+     */
+    public static final String PATH_PROPERTY = "handwrite.profile";
+
+    private static final int SHAPE_BITS = 21;      //形状的每一维占的位数，打包成一个long作为键
+    private static final int MAX_DIMENSION = (1 << SHAPE_BITS) - 1;
+
+    private final String host;
+    private final int parallelism;
+    private final int mc;
+    private final int kc;
+    private final int nc;
+
+    //开放寻址散列表，键为打包后的形状，0表示空位；值与MatrixDotParallel.plan的返回值格式相同
+    //安装后只读，查询时不分配对象
+    private long[] keys = new long[16];
+    private long[] values = new long[16];
+    private int size;
+
+    /**
+     * @param host 主机指纹
+     * @param parallelism 测量时默认线程池的并行度
+     * @param mc A分块行数，必须是微内核行数的倍数
+     * @param kc 公共维度分块大小
+     * @param nc B分块列数，必须是微内核列数的倍数
+     */
+    KernelProfile(String host, int parallelism, int mc, int kc, int nc) {
+        if (mc <= 0 || kc <= 0 || nc <= 0 || mc % Gemm.MR != 0 || nc % Gemm.NR != 0) {
+            throw new IllegalArgumentException(String.format("不合法的分块大小(%d, %d, %d)", mc, kc, nc));
+        }
+        this.host = host;
+        this.parallelism = parallelism;
+        this.mc = mc;
+        this.kc = kc;
+        this.nc = nc;
+    }
+
+    /**
+     * 当前主机的指纹，例如 amd64/8cpu/parallelism7/java17.0.9/simd
+     */
+    public static String currentHost() {
+        return String.format("%s/%dcpu/parallelism%d/java%s/%s", System.getProperty("os.arch"),
+                Runtime.getRuntime().availableProcessors(), MatrixDotParallel.getPool().getParallelism(),
+                System.getProperty("java.version"), MatrixKernels.get().name());
+    }
+
+    /**
+     * 配置文件的默认路径，系统属性{@value #PATH_PROPERTY}优先
+     */
+    public static Path defaultPath() {
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path != null) {
+            return Paths.get(path);
+        }
+        String hostName = System.getenv("HOSTNAME");
+        if (hostName == null || hostName.isEmpty()) {
+            hostName = System.getenv("COMPUTERNAME");
+        }
+        if (hostName == null || hostName.isEmpty()) {
+            hostName = "localhost";
+        }
+        return Paths.get(System.getProperty("user.home"), ".handwrite",
+                "kernels-" + hostName.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * 是否在当前主机上测得，指纹不同时不应使用
+     */
+    public boolean isForCurrentHost() {
+        return host.equals(currentHost());
+    }
+
+    /**
+     * 分块大小{mc, kc, nc}
+     */
+    public int[] getBlocking() {
+        return new int[]{mc, kc, nc};
+    }
+
+    /**
+     * 是否记录了(m, k)与(k, n)相乘的划分方式
+     */
+    public boolean contains(int m, int n, int k) {
+        return tiles(m, n, k) != 0;
+    }
+
+    /**
+     * 已记录的形状数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查询形状对应的块数，格式与{@link MatrixDotParallel#plan}相同，没有记录时为0
+     */
+    long tiles(int m, int n, int k) {
+        long key = key(m, n, k);
+        if (key == 0) {
+            return 0;
+        }
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            if (keys[i] == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 记录形状的划分方式，只在安装之前调用
+     * @param tiles 行块数与列块数，格式与{@link MatrixDotParallel#plan}相同
+     */
+    void put(int m, int n, int k, long tiles) {
+        long key = key(m, n, k);
+        if (key == 0) {
+            return;     //超出打包范围的形状交给成本模型
+        }
+        if ((size + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        insert(key, tiles);
+    }
+
+    private void insert(long key, long tiles) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == 0) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = tiles;
+    }
+
+    /**
+     * 复制一份配置，在副本上追加形状后再安装，已安装的配置保持只读
+     */
+    KernelProfile copy() {
+        KernelProfile copy = new KernelProfile(host, parallelism, mc, kc, nc);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * 形状打包为m(21位) n(21位) k(21位)，任一维为0或超出范围时返回0
+     */
+    private static long key(int m, int n, int k) {
+        if (m <= 0 || n <= 0 || k <= 0 || m > MAX_DIMENSION || n > MAX_DIMENSION || k > MAX_DIMENSION) {
+            return 0;
+        }
+        return (long) m << (2 * SHAPE_BITS) | (long) n << SHAPE_BITS | k;
+    }
+
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    /**
+     * 保存到文件，先写入同目录下的临时文件再原子地替换，其他进程不会读到写了一半的配置
+     * @param path 文件路径，所在目录不存在时自动创建
+     * @throws IOException 写入失败
+     */
+    public void save(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path dir = absolute.getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, absolute.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write("# 矩阵乘法内核配置，由KernelTuner测量生成\n");
+                writer.write("host=" + host + "\n");
+                writer.write("parallelism=" + parallelism + "\n");
+                writer.write("blocking=" + mc + "," + kc + "," + nc + "\n");
+                for (String line : shapeLines()) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 从文件加载配置
+     * @param path 文件路径
+     * @return 配置
+     * @throws IOException 文件不存在或格式不合法
+     */
+    public static KernelProfile load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            String[] blocking = required(properties, "blocking", path).split(",");
+            KernelProfile profile = new KernelProfile(required(properties, "host", path),
+                    Integer.parseInt(required(properties, "parallelism", path)),
+                    Integer.parseInt(blocking[0].trim()), Integer.parseInt(blocking[1].trim()),
+                    Integer.parseInt(blocking[2].trim()));
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.startsWith("shape.")) {
+                    continue;
+                }
+                String[] shape = name.substring("shape.".length()).split("x");
+                String[] tiles = properties.getProperty(name).split("x");
+                profile.put(Integer.parseInt(shape[0]), Integer.parseInt(shape[1]), Integer.parseInt(shape[2]),
+                        (long) Integer.parseInt(tiles[0].trim()) << 32 | Integer.parseInt(tiles[1].trim()));
+            }
+            return profile;
+        } catch (RuntimeException e) {
+            throw new IOException("内核配置文件格式不合法: " + path, e);
+        }
+    }
+
+    private static String required(Properties properties, String name, Path path) throws IOException {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IOException("内核配置文件缺少" + name + ": " + path);
+        }
+        return value.trim();
+    }
+
+    /**
+     * 每个形状一行，shape.M x N x K = 行块数 x 列块数，按形状排序
+     */
+    private List<String> shapeLines() {
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                entries.add(new long[]{keys[i], values[i]});
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<String> lines = new ArrayList<>();
+        for (long[] entry : entries) {
+            long key = entry[0];
+            lines.add(String.format("shape.%dx%dx%d=%dx%d", key >>> (2 * SHAPE_BITS), (key >>> SHAPE_BITS) & MAX_DIMENSION,
+                    key & MAX_DIMENSION, MatrixDotParallel.rowTiles(entry[1]), MatrixDotParallel.columnTiles(entry[1])));
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder()
+                .append(host).append("，分块(mc=").append(mc).append(", kc=").append(kc).append(", nc=").append(nc).append(')');
+        for (String line : shapeLines()) {
+            builder.append("\n  ").append(line.substring("shape.".length()).replace("=", " -> "));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package cn.zzq.handwrite.matrix;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 启动时的内核自动调优：对网络实际用到的矩阵形状逐一测量各候选内核，选出本机最快的配置
+ * <p>
+ * 测量分两步。先在计算量最大的分块乘法形状上依次调整{@link Gemm}的kc、mc、nc(每次固定其余两个，保留最快者)；
+ * 再对每个形状比较串行计算与在默认线程池上划分为不同块数的并行计算。
+ * 块数决定了同时参与计算的线程数，最多为线程池的并行度，因此候选块数覆盖了一倍到四倍并行度。
+ * 候选与成本模型的选择相差不到{@link #MIN_GAIN}时保留成本模型的选择，避免测量噪声来回改变配置。
+ * <p>
+ * 测量结果保存为{@link KernelProfile}，{@link #ensure}在之后启动时直接加载；主机指纹不符时重新测量，
+ * 缺少部分形状时只测量缺少的形状并追加到文件中。测量时会临时修改全局的分块大小，应在开始计算之前调用。
+ * 系统属性{@code handwrite.tune}为false时既不测量也不加载，只使用成本模型。
+ */
+public final class KernelTuner {
+    /**
+     * 是否启用调优的系统属性，默认启用
+     */
+    public static final String PROPERTY = "handwrite.tune";
+
+    /**
+     * 候选至少快这么多(比例)才替换当前的选择
+     */
+    static final double MIN_GAIN = 0.03;
+
+    private static final long WARMUP_NS = 50_000_000;   //每个候选至少预热的时间
+    private static final long SAMPLE_NS = 2_000_000;    //每次采样至少运行的时间
+    private static final int SAMPLES = 5;               //取多次采样中最快的一次，排除GC与调度的干扰
+    private static final int MAX_REPS = 1 << 20;
+    private static final int[] KC_CANDIDATES = {128, 256, 512};
+    private static final int[] MC_CANDIDATES = {32, 64, 128};
+    private static final int[] NC_CANDIDATES = {256, 512, 1024};
+
+    private static volatile IOException loadFailure;    //最近一次ensure时无法读取配置文件的原因
+
+    private KernelTuner() {
+    }
+
+    /**
+     * 最近一次{@link #ensure}时配置文件存在但无法读取的原因，此时已忽略该文件并重新测量
+     * @return 读取失败的异常，文件不存在或读取成功时为null
+     */
+    public static IOException getLoadFailure() {
+        return loadFailure;
+    }
+
+    /**
+     * 加载或测量覆盖给定形状的内核配置，保存到{@link KernelProfile#defaultPath()}并安装
+     * @param shapes 形状列表，每个为{m, n, k}，表示(m, k)与(k, n)相乘
+     * @return 安装的配置，调优被系统属性关闭时为null
+     * @throws IOException 配置文件写入失败
+     */
+    public static KernelProfile ensure(List<int[]> shapes) throws IOException {
+        return ensure(shapes, KernelProfile.defaultPath());
+    }
+
+    /**
+     * 加载或测量覆盖给定形状的内核配置，保存到path并安装
+     * 文件存在且主机指纹相同时沿用其中的配置，只测量缺少的形状；文件损坏或指纹不同时全部重新测量，
+     * 文件损坏的原因可由{@link #getLoadFailure()}取得
+     * @param shapes 形状列表，每个为{m, n, k}，表示(m, k)与(k, n)相乘
+     * @param path 配置文件
+     * @return 安装的配置，调优被系统属性关闭时为null
+     * @throws IOException 配置文件写入失败
+     */
+    public static KernelProfile ensure(List<int[]> shapes, Path path) throws IOException {
+        if (!Boolean.parseBoolean(System.getProperty(PROPERTY, "true"))) {
+            return null;
+        }
+        KernelProfile loaded = null;
+        loadFailure = null;
+        if (Files.exists(path)) {
+            try {
+                loaded = KernelProfile.load(path);
+            } catch (IOException e) {
+                loadFailure = e;    //忽略无法读取的配置，重新测量
+            }
+        }
+        KernelProfile profile;
+        if (loaded != null && loaded.isForCurrentHost()) {
+            List<int[]> missing = new ArrayList<>();
+            for (int[] shape : shapes) {
+                if (!loaded.contains(shape[0], shape[1], shape[2])) {
+                    missing.add(shape);
+                }
+            }
+            if (missing.isEmpty()) {
+                MatrixDotParallel.setProfile(loaded);
+                return loaded;
+            }
+            profile = loaded.copy();
+            int[] blocking = profile.getBlocking();
+            int[] previous = Gemm.getBlocking();
+            Gemm.setBlocking(blocking[0], blocking[1], blocking[2]);
+            try {
+                tuneTiles(profile, missing);
+            } finally {
+                Gemm.setBlocking(previous[0], previous[1], previous[2]);
+            }
+        } else {
+            profile = tune(shapes);
+        }
+        profile.save(path);
+        MatrixDotParallel.setProfile(profile);
+        return profile;
+    }
+
+    /**
+     * 在本机上测量给定形状的最快配置，不保存也不安装，测量结束后恢复原来的分块大小
+     * @param shapes 形状列表，每个为{m, n, k}
+     * @return 测得的配置
+     */
+    public static KernelProfile tune(List<int[]> shapes) {
+        int[] previous = Gemm.getBlocking();
+        try {
+            int[] blocking = tuneBlocking(shapes);
+            Gemm.setBlocking(blocking[0], blocking[1], blocking[2]);
+            KernelProfile profile = new KernelProfile(KernelProfile.currentHost(),
+                    MatrixDotParallel.getPool().getParallelism(), blocking[0], blocking[1], blocking[2]);
+            tuneTiles(profile, shapes);
+            return profile;
+        } finally {
+            Gemm.setBlocking(previous[0], previous[1], previous[2]);
+        }
+    }
+
+    /**
+     * 坐标下降：在计算量最大的分块乘法形状上依次调整kc、mc、nc，
+     * 行数不超过{@link Gemm#ROW_KERNEL_MAX_ROWS}的形状走按行累加的内核，与分块大小无关，没有这样的形状时保留默认值
+     */
+    private static int[] tuneBlocking(List<int[]> shapes) {
+        int[] largest = null;
+        for (int[] shape : shapes) {
+            if (shape[0] > Gemm.ROW_KERNEL_MAX_ROWS && (largest == null || work(shape) > work(largest))) {
+                largest = shape;
+            }
+        }
+        int[] best = {Gemm.MC, Gemm.KC, Gemm.NC};
+        if (largest == null) {
+            return best;
+        }
+        //稠密的随机矩阵，保证走分块内核而不是稀疏的按行累加
+        Matrix a = Matrix.normals(largest[0], largest[2], 0, 1);
+        Matrix b = Matrix.normals(largest[2], largest[1], 0, 1);
+        Matrix c = new Matrix(largest[0], largest[1]);
+        double bestNs = measureBlocking(best, a, b, c);
+        int[][] candidates = {MC_CANDIDATES, KC_CANDIDATES, NC_CANDIDATES};
+        for (int dimension : new int[]{1, 0, 2}) {      //kc、mc、nc的顺序
+            for (int value : candidates[dimension]) {
+                if (value == best[dimension]) {
+                    continue;
+                }
+                int[] candidate = best.clone();
+                candidate[dimension] = value;
+                double ns = measureBlocking(candidate, a, b, c);
+                bestNs = Math.min(bestNs, measureBlocking(best, a, b, c));     //交替测量，减少预热先后的影响
+                if (ns < bestNs * (1 - MIN_GAIN)) {
+                    best = candidate;
+                    bestNs = ns;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static double measureBlocking(int[] blocking, Matrix a, Matrix b, Matrix c) {
+        Gemm.setBlocking(blocking[0], blocking[1], blocking[2]);
+        return measure(() -> Gemm.multiply(a, b, c));
+    }
+
+    /**
+     * 对每个形状比较成本模型的选择与各候选块数，记录最快者
+     * 线程池只有一个线程时并行没有意义，直接记录为串行
+     */
+    private static void tuneTiles(KernelProfile profile, List<int[]> shapes) {
+        ForkJoinPool pool = MatrixDotParallel.getPool();
+        int parallelism = pool.getParallelism();
+        for (int[] shape : shapes) {
+            int m = shape[0], n = shape[1], k = shape[2];
+            if (profile.contains(m, n, k)) {
+                continue;
+            }
+            if (parallelism <= 1) {
+                profile.put(m, n, k, MatrixDotParallel.tiles(1, 1));
+                continue;
+            }
+            Matrix a = Matrix.normals(m, k, 0, 1);
+            Matrix b = Matrix.normals(k, n, 0, 1);
+            Matrix c = new Matrix(m, n);
+            long best = MatrixDotParallel.costModel(m, n, k, parallelism);
+            double bestNs = measureTiles(a, b, c, best, pool);
+            for (long candidate : candidates(m, n, parallelism)) {
+                if (candidate == best) {
+                    continue;
+                }
+                double ns = measureTiles(a, b, c, candidate, pool);
+                bestNs = Math.min(bestNs, measureTiles(a, b, c, best, pool));
+                if (ns < bestNs * (1 - MIN_GAIN)) {
+                    best = candidate;
+                    bestNs = ns;
+                }
+            }
+            profile.put(m, n, k, best);
+        }
+    }
+
+    /**
+     * 候选块数：串行，以及共一倍、两倍、四倍并行度的块，优先按行划分
+     */
+    static long[] candidates(int m, int n, int parallelism) {
+        long[] candidates = new long[4];
+        int count = 0;
+        candidates[count++] = MatrixDotParallel.tiles(1, 1);
+        int maxRowTiles = Math.max(1, m / Gemm.MR);
+        int maxColumnTiles = Math.max(1, n / Gemm.NR);
+        for (int multiple = 1; multiple <= 4; multiple *= 2) {
+            int tiles = parallelism * multiple;
+            int rowTiles = Math.min(tiles, maxRowTiles);
+            int columnTiles = Math.min((tiles + rowTiles - 1) / rowTiles, maxColumnTiles);
+            long candidate = MatrixDotParallel.tiles(rowTiles, columnTiles);
+            boolean duplicate = false;
+            for (int i = 0; i < count; i++) {
+                duplicate |= candidates[i] == candidate;
+            }
+            if (!duplicate) {
+                candidates[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    private static double measureTiles(Matrix a, Matrix b, Matrix c, long tiles, ForkJoinPool pool) {
+        return measure(() -> MatrixDotParallel.multiply(a, b, c, tiles, pool));
+    }
+
+    /**
+     * 测量一次运行的耗时：先预热并估计每次采样的运行次数，再取多次采样中每次运行的最短时间
+     * @return 纳秒
+     */
+    static double measure(Runnable kernel) {
+        int reps = 1;
+        long warmupStart = System.nanoTime();
+        long start = warmupStart;
+        kernel.run();
+        long elapsed = System.nanoTime() - start;
+        //预热直到即时编译完成，同时估计运行次数使每次采样不短于SAMPLE_NS
+        for (int i = 0; i < 3 || (elapsed < SAMPLE_NS && reps < MAX_REPS)
+                || System.nanoTime() - warmupStart < WARMUP_NS; i++) {
+            if (elapsed < SAMPLE_NS && reps < MAX_REPS) {
+                reps *= 2;
+            }
+            start = System.nanoTime();
+            for (int r = 0; r < reps; r++) {
+                kernel.run();
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        double best = Double.MAX_VALUE;
+        for (int s = 0; s < SAMPLES; s++) {
+            start = System.nanoTime();
+            for (int r = 0; r < reps; r++) {
+                kernel.run();
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / reps);
+        }
+        return best;
+    }
+
+    private static long work(int[] shape) {
+        return (long) shape[0] * shape[1] * shape[2];
+    }
+}
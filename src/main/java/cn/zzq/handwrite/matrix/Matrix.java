@@ -61,6 +61,26 @@ public class Matrix{
         System.arraycopy(other.data, 0, this.data, 0, data.length);
     }
 
+    /**
+     * 按索引从另一个矩阵中抽取若干行填充到该矩阵，用于组装小批量
+     * 该矩阵的第i行为source的第indices[offset + i]行
+     * @param source 源矩阵，列数需与该矩阵相同
+     * @param indices 行索引
+     * @param offset 从indices的该位置开始取
+     */
+    public void gatherRows(Matrix source, int[] indices, int offset){
+        if(source.getColumnSize() != getColumnSize()){
+            throw new MatrixShapeException(getRowSize(), getColumnSize(), source.getRowSize(), source.getColumnSize());
+        }
+        for (int row = 0; row < rowSize; row++) {
+            int sourceRow = indices[offset + row];
+            if(sourceRow < 0 || sourceRow >= source.getRowSize()){
+                throw new MatrixIndexOutOfBoundException(sourceRow, 0, source.getRowSize(), source.getColumnSize());
+            }
+            System.arraycopy(source.data, sourceRow * columnSize, this.data, row * columnSize, columnSize);
+        }
+    }
+
     /**
      * 获取一个单位矩阵
      * @param dimension 矩阵的维度
@@ -149,24 +169,51 @@ public class Matrix{
         return this.data[row * getColumnSize() + column];
     }
 
-    public IVector get(final int row){
-        return new IVector() {
-            @Override
-            public double get(int index) {
-                return Matrix.this.get(row,index);
-            }
+    /**
+     * 获取第row行的向量视图，读写直接作用于该矩阵
+     * @param row 行
+     * @return 行向量视图
+     */
+    public IVector get(int row){
+        return rowView(row);
+    }
 
-            @Override
-            public void set(int index,double value) {
-                Matrix.this.set(row,index,value);
-            }
+    /**
+     * 整个矩阵的视图，与该矩阵共享数组，见{@link MatrixView}
+     * 视图创建后不应再对该矩阵调用reshape
+     */
+    public MatrixView view(){
+        return new MatrixView(data, 0, rowSize, columnSize, columnSize, 1);
+    }
 
-            @Override
-            public int size() {
-                return getColumnSize();
-            }
-        };
+    /**
+     * 第row行的视图，(1, 列数)，不复制
+     */
+    public MatrixView rowView(int row){
+        return view().row(row);
     }
+
+    /**
+     * 第column列的视图，(行数, 1)，不复制
+     */
+    public MatrixView columnView(int column){
+        return view().column(column);
+    }
+
+    /**
+     * [rowFrom, rowTo)行的视图，不复制，例如从数据集矩阵中切出一批连续的样本
+     */
+    public MatrixView rowsView(int rowFrom, int rowTo){
+        return view().rows(rowFrom, rowTo);
+    }
+
+    /**
+     * 转置视图，(列数, 行数)，不复制，可直接交给{@link MatrixView#dot(MatrixView)}
+     */
+    public MatrixView transposeView(){
+        return new MatrixView(data, 0, columnSize, rowSize, 1, columnSize);
+    }
+
     /**
      * 设置矩阵的值
      * @param row 行
@@ -194,16 +241,27 @@ public class Matrix{
     }
 
     /**
-     * 矩阵的转置
+     * 矩阵的转置，复制出一个新矩阵；只用于乘法时使用{@link #transposeView()}即可
      */
     public Matrix transpose(){
         Matrix matrix = new Matrix(getColumnSize(),getRowSize());
-        for(int row = 0;row < matrix.getRowSize();row++){
-            for(int column = 0;column < matrix.getColumnSize();column++){
-                matrix.set(row,column,this.get(column,row));
+        transposeInto(matrix);
+        return matrix;
+    }
+
+    /**
+     * 将矩阵的转置写入out中，out的形状必须为(列数, 行数)
+     * @param out 结果矩阵
+     */
+    public void transposeInto(Matrix out){
+        if(out.getRowSize() != getColumnSize() || out.getColumnSize() != getRowSize()){
+            throw new MatrixShapeException(getColumnSize(), getRowSize(), out.getRowSize(), out.getColumnSize());
+        }
+        for(int row = 0;row < rowSize;row++){
+            for(int column = 0;column < columnSize;column++){
+                out.data[column * rowSize + row] = this.data[row * columnSize + column];
             }
         }
-        return matrix;
     }
 
     /**
@@ -223,9 +281,7 @@ public class Matrix{
         if(diffShape(other)){
             throw new MatrixShapeException(this,other);
         }
-        for (int i = 0; i < data.length; i++) {
-            this.data[i] += other.data[i];
-        }
+        MatrixKernels.get().add(this.data, other.data, 0, data.length);
     }
 
 
@@ -234,18 +290,42 @@ public class Matrix{
         matrix.addWith(other);
         return matrix;
     }
+
+    /**
+     * 加上另一个矩阵的scale倍，即 this += scale * other
+     * @param other 另一个矩阵
+     * @param scale 倍数
+     */
+    public void addScaledWith(Matrix other, double scale){
+        addScaledWith(other, scale, 0, rowSize);
+    }
+
+    /**
+     * 只对[rowFrom, rowTo)行做 this += scale * other，便于多个线程各自处理一段行
+     * @param other 另一个矩阵
+     * @param scale 倍数
+     * @param rowFrom 起始行(含)
+     * @param rowTo 终止行(不含)
+     */
+    public void addScaledWith(Matrix other, double scale, int rowFrom, int rowTo){
+        if(diffShape(other)){
+            throw new MatrixShapeException(this,other);
+        }
+        if(rowFrom < 0 || rowTo > rowSize){
+            throw new MatrixIndexOutOfBoundException(rowFrom < 0 ? rowFrom : rowTo, 0, rowSize, columnSize);
+        }
+        MatrixKernels.get().addScaled(this.data, other.data, scale, rowFrom * columnSize, rowTo * columnSize);
+    }
     /**
      * 矩阵的数乘运算
      * @param num 数
      */
     public void mulWith(double num){
-        for (int i = 0; i < data.length; i++) {
-            data[i] *= num;
-        }
+        MatrixKernels.get().scale(data, num, 0, data.length);
     }
     public Matrix mul(double num){
         Matrix matrix = this.copy();
-        matrix.mul(num);
+        matrix.mulWith(num);
         return matrix;
     }
 
@@ -256,9 +336,7 @@ public class Matrix{
         if(diffShape(other)){
             throw new MatrixShapeException(this,other);
         }
-        for (int i = 0; i < data.length; i++) {
-            this.data[i] *= other.data[i];
-        }
+        MatrixKernels.get().mul(this.data, other.data, 0, data.length);
     }
 
     public Matrix mul(Matrix other){
@@ -275,9 +353,7 @@ public class Matrix{
         if(diffShape(other)){
             throw new MatrixShapeException(this,other);
         }
-        for (int i = 0; i < data.length; i++) {
-            this.data[i] -= other.data[i];
-        }
+        MatrixKernels.get().sub(this.data, other.data, 0, data.length);
     }
 
     public Matrix sub(Matrix other){
@@ -295,6 +371,36 @@ public class Matrix{
         }
     }
 
+    /**
+     * 对矩阵的每个数值应用sigmoid函数 1 / (1 + e^-x)，
+     * 与mapWith相比可以使用SIMD实现
+     */
+    public void sigmoidWith(){
+        MatrixKernels.get().sigmoid(data, 0, data.length);
+    }
+
+    /**
+     * 对矩阵的每一行应用内置激活函数，与mapWith相比使用专门的标量或SIMD实现
+     * @param activation 激活函数
+     */
+    public void mapWith(Activation activation){
+        activation.apply(this);
+    }
+
+    /**
+     * 将映射后的值写入out，不修改该矩阵也不分配新矩阵
+     * @param function 映射函数
+     * @param out 形状相同的结果矩阵，可以是该矩阵本身
+     */
+    public void mapInto(Function function, Matrix out){
+        if(diffShape(out)){
+            throw new MatrixShapeException(this,out);
+        }
+        for (int i = 0; i < data.length; i++) {
+            out.data[i] = function.activate(data[i]);
+        }
+    }
+
     public Matrix map(Function function){
         Matrix matrix = this.copy();
         matrix.mapWith(function);
@@ -315,25 +421,64 @@ public class Matrix{
             throw new MatrixDotException(this,other);
         }
 
-        int sameVal = this.getColumnSize(); //保存中间相等的行列数据
-
         // 乘完之后，mat = this * other
         // 得到新矩阵mat的行数为this的行数
         // 列数为other的列数
         Matrix matrix = new Matrix(this.getRowSize(),other.getColumnSize());
-        for(int row = 0;row < matrix.getRowSize();row++){
-            for(int column = 0;column < matrix.getColumnSize();column++){
-                //新矩阵的行索引为row,列索引为column
-                double val = 0;
-                for(int i = 0;i<sameVal;i++){
-                    val += this.get(row,i) * other.get(i,column);
-                }
-                matrix.set(row,column,val);
-            }
-        }
+        Gemm.multiply(this, other, matrix);   //分块矩阵乘法内核，直接访问底层数组
         return matrix;
     }
 
+    /**
+     * 将 this * other 的结果写入out，不分配新矩阵
+     * out的形状必须为(该矩阵的行数, other的列数)，且不能与this或other共享数组
+     *
+     * @param other 右乘矩阵
+     * @param out 结果矩阵
+     * @throws IllegalArgumentException out与this或other共享数组
+     */
+    public void dotInto(Matrix other, Matrix out){
+        checkDotInto(this, other, out);
+        Gemm.multiply(this, other, out);
+    }
+
+    /**
+     * 将 this * other 的结果写入out，other位于堆外，例如映射自模型文件的权重
+     * 结果与other为堆上矩阵时逐位一致
+     *
+     * @param other 堆外的右乘矩阵
+     * @param out 结果矩阵，形状为(该矩阵的行数, other的列数)，不能与该矩阵共享数组
+     */
+    public void dotInto(OffHeapMatrix other, Matrix out){
+        checkDotInto(this, other, out);
+        Gemm.multiply(this, other, out);
+    }
+
+    static void checkDotInto(Matrix m1, OffHeapMatrix m2, Matrix out){
+        m2.ensureOpen();
+        if(m1.getColumnSize() != m2.getRowSize()){
+            throw new MatrixDotException(m1.getRowSize(), m1.getColumnSize(), m2.getRowSize(), m2.getColumnSize());
+        }
+        if(out.getRowSize() != m1.getRowSize() || out.getColumnSize() != m2.getColumnSize()){
+            throw new MatrixShapeException(m1.getRowSize(), m2.getColumnSize(), out.getRowSize(), out.getColumnSize());
+        }
+        if(out.data == m1.data){
+            throw new IllegalArgumentException("结果矩阵不能与参与乘法的矩阵共享数组");
+        }
+    }
+
+    static void checkDotInto(Matrix m1, Matrix m2, Matrix out){
+        if(m1.getColumnSize() != m2.getRowSize()){
+            throw new MatrixDotException(m1,m2);
+        }
+        if(out.getRowSize() != m1.getRowSize() || out.getColumnSize() != m2.getColumnSize()){
+            throw new MatrixShapeException(m1.getRowSize(), m2.getColumnSize(), out.getRowSize(), out.getColumnSize());
+        }
+        if(out.data == m1.data || out.data == m2.data){
+            throw new IllegalArgumentException("结果矩阵不能与参与乘法的矩阵共享数组");
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
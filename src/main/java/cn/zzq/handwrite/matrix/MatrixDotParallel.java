@@ -2,42 +2,342 @@ package cn.zzq.handwrite.matrix;
 
 import cn.zzq.handwrite.matrix.exception.MatrixDotException;
 
-import java.util.stream.IntStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * 矩阵乘法并行
+ * <p>
+ * 将结果矩阵按行、列划分为若干块，每块交给{@link Gemm}(单精度为{@link FloatGemm})的分块内核串行计算，
+ * 块在{@link ForkJoinPool}上以二分的方式分叉执行。
+ * 是否并行以及划分多少块由M*N*K的计算量决定，计算量不足时直接串行计算，
+ * 保证小规模矩阵(例如推理时1*784与784*100相乘)不会比串行更慢。
+ * 安装了{@link KernelProfile}后，配置中记录的形状按本机实测最快的方式划分，其余形状仍由成本模型决定。
  */
 public class MatrixDotParallel {
 
+    /**
+     * 计算量(M*N*K次乘加)低于该值时串行计算，线程调度的开销无法被摊销
+     */
+    static final long SERIAL_THRESHOLD = 1L << 20;
+
+    /**
+     * 每个块至少分到的计算量
+     */
+    static final long MIN_TILE_WORK = 1L << 18;
+
+    /**
+     * 每个线程平均分到的块数，多划分一些块便于负载均衡
+     */
+    static final int TILES_PER_THREAD = 4;
+
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private static volatile KernelProfile profile;  //为null时只使用成本模型
+
+    /**
+     * 设置默认使用的线程池
+     * @param forkJoinPool 线程池
+     */
+    public static void setPool(ForkJoinPool forkJoinPool) {
+        pool = forkJoinPool;
+    }
+
+    /**
+     * 获取默认使用的线程池
+     * @return 线程池
+     */
+    public static ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 安装内核配置，同时把{@link Gemm}的分块大小设为配置中的值，之后开始的矩阵乘法都按配置计算
+     * @param kernelProfile 内核配置，为null时恢复默认的分块大小与成本模型
+     */
+    public static void setProfile(KernelProfile kernelProfile) {
+        if (kernelProfile == null) {
+            Gemm.setBlocking(Gemm.MC, Gemm.KC, Gemm.NC);
+        } else {
+            int[] blocking = kernelProfile.getBlocking();
+            Gemm.setBlocking(blocking[0], blocking[1], blocking[2]);
+        }
+        profile = kernelProfile;
+    }
+
+    /**
+     * 获取已安装的内核配置
+     * @return 内核配置，没有安装时为null
+     */
+    public static KernelProfile getProfile() {
+        return profile;
+    }
+
     public static Matrix dot(Matrix m1, Matrix m2) {
+        return dot(m1, m2, pool);
+    }
+
+    /**
+     * 在指定线程池上计算 m1 * m2
+     * @param m1 左矩阵
+     * @param m2 右乘矩阵
+     * @param forkJoinPool 线程池
+     * @return 运算结果
+     */
+    public static Matrix dot(Matrix m1, Matrix m2, ForkJoinPool forkJoinPool) {
         //矩阵相乘的前提条件为矩阵的列数和另一个矩阵的行数相同
         if (m1.getColumnSize() != m2.getRowSize()) {
             throw new MatrixDotException(m1, m2);
         }
 
-        int sameVal = m1.getColumnSize(); //保存中间相等的行列数据
-
         // 乘完之后，mat = this * other
         // 得到新矩阵mat的行数为this的行数
         // 列数为other的列数
         Matrix matrix = new Matrix(m1.getRowSize(), m2.getColumnSize());
+        multiply(m1, m2, matrix, forkJoinPool);
+        return matrix;
+    }
 
-        IntStream.range(0, matrix.getRowSize() * matrix.getColumnSize())    //生成一个用于循环的range
-                .parallel() //并行化流
-                .forEach(value -> { //并行化for循环
-                    int row = value / matrix.getColumnSize();
-                    int column = value % matrix.getColumnSize();
-
-                    //新矩阵的行索引为row,列索引为column
-                    double val = 0;
-                    for (int i = 0; i < sameVal; i++) {
-                        val += m1.get(row, i) * m2.get(i, column);
-                    }
-                    matrix.set(row, column, val);
-                });
+    /**
+     * 将 m1 * m2 的结果写入out，不分配新矩阵
+     * @param m1 左矩阵
+     * @param m2 右乘矩阵
+     * @param out 结果矩阵，形状为(m1的行数, m2的列数)
+     */
+    public static void dotInto(Matrix m1, Matrix m2, Matrix out) {
+        Matrix.checkDotInto(m1, m2, out);
+        multiply(m1, m2, out, pool);
+    }
+
+    /**
+     * 将视图 m1 * m2 的结果写入out，两侧视图都不复制，例如直接使用转置视图
+     * @param m1 左视图
+     * @param m2 右乘视图
+     * @param out 结果矩阵，形状为(m1的行数, m2的列数)
+     */
+    public static void dotInto(MatrixView m1, MatrixView m2, Matrix out) {
+        MatrixView.checkDotInto(m1, m2, out);
+        long tiles = plan(m1.getRowSize(), m2.getColumnSize(), m1.getColumnSize(), pool.getParallelism());
+        int rowTiles = rowTiles(tiles);
+        int columnTiles = columnTiles(tiles);
+        if (rowTiles * columnTiles <= 1) {
+            Gemm.multiply(m1, m2, out);
+        } else {
+            pool.invoke(new TileTask(
+                    (rowFrom, rowTo, colFrom, colTo) -> Gemm.multiply(m1, m2, out, rowFrom, rowTo, colFrom, colTo),
+                    out.getRowSize(), out.getColumnSize(), rowTiles, columnTiles, 0, rowTiles * columnTiles));
+        }
+    }
+
+    /**
+     * 将视图 m1 * m2 的结果写入视图out，out的每一行必须连续
+     * @param m1 左视图
+     * @param m2 右乘视图
+     * @param out 结果视图，形状为(m1的行数, m2的列数)
+     */
+    public static void dotInto(MatrixView m1, MatrixView m2, MatrixView out) {
+        MatrixView.checkDotInto(m1, m2, out);
+        long tiles = plan(m1.getRowSize(), m2.getColumnSize(), m1.getColumnSize(), pool.getParallelism());
+        int rowTiles = rowTiles(tiles);
+        int columnTiles = columnTiles(tiles);
+        if (rowTiles * columnTiles <= 1) {
+            Gemm.multiply(m1, m2, out, 0, out.rowSize, 0, out.columnSize);
+        } else {
+            pool.invoke(new TileTask(
+                    (rowFrom, rowTo, colFrom, colTo) -> Gemm.multiply(m1, m2, out, rowFrom, rowTo, colFrom, colTo),
+                    out.rowSize, out.columnSize, rowTiles, columnTiles, 0, rowTiles * columnTiles));
+        }
+    }
+
+    /**
+     * 按成本模型判断(m, k)与(k, n)的乘法在默认线程池上是否会划分为多块并行计算
+     * @param m 结果矩阵行数
+     * @param n 结果矩阵列数
+     * @param k 公共维度
+     * @return 是否并行
+     */
+    public static boolean isParallel(int m, int n, int k) {
+        long tiles = plan(m, n, k, pool.getParallelism());
+        return rowTiles(tiles) * columnTiles(tiles) > 1;
+    }
+
+    /**
+     * 在默认线程池上计算单精度的 m1 * m2
+     * @param m1 左矩阵
+     * @param m2 右乘矩阵
+     * @return 运算结果
+     */
+    public static FloatMatrix dot(FloatMatrix m1, FloatMatrix m2) {
+        return dot(m1, m2, pool);
+    }
+
+    public static FloatMatrix dot(FloatMatrix m1, FloatMatrix m2, ForkJoinPool forkJoinPool) {
+        if (m1.getColumnSize() != m2.getRowSize()) {
+            throw new MatrixDotException(m1.getRowSize(), m1.getColumnSize(), m2.getRowSize(), m2.getColumnSize());
+        }
+        FloatMatrix matrix = new FloatMatrix(m1.getRowSize(), m2.getColumnSize());
+        multiply(m1, m2, matrix, forkJoinPool);
         return matrix;
     }
 
+    /**
+     * 将单精度的 m1 * m2 的结果写入out，不分配新矩阵
+     * @param m1 左矩阵
+     * @param m2 右乘矩阵
+     * @param out 结果矩阵，形状为(m1的行数, m2的列数)
+     */
+    public static void dotInto(FloatMatrix m1, FloatMatrix m2, FloatMatrix out) {
+        FloatMatrix.checkDotInto(m1, m2, out);
+        multiply(m1, m2, out, pool);
+    }
+
+    private static void multiply(Matrix m1, Matrix m2, Matrix matrix, ForkJoinPool forkJoinPool) {
+        multiply(m1, m2, matrix, plan(m1.getRowSize(), m2.getColumnSize(), m1.getColumnSize(),
+                forkJoinPool.getParallelism()), forkJoinPool);
+    }
+
+    /**
+     * 按指定的块数计算 m1 * m2，{@link KernelTuner}用它测量各种划分方式
+     * @param tiles 行块数与列块数，格式与{@link #plan}的返回值相同
+     */
+    static void multiply(Matrix m1, Matrix m2, Matrix matrix, long tiles, ForkJoinPool forkJoinPool) {
+        int rowTiles = rowTiles(tiles);
+        int columnTiles = columnTiles(tiles);
+        if (rowTiles * columnTiles <= 1) {
+            Gemm.multiply(m1, m2, matrix);
+        } else {
+            forkJoinPool.invoke(new TileTask(
+                    (rowFrom, rowTo, colFrom, colTo) -> Gemm.multiply(m1, m2, matrix, rowFrom, rowTo, colFrom, colTo),
+                    matrix.getRowSize(), matrix.getColumnSize(), rowTiles, columnTiles, 0, rowTiles * columnTiles));
+        }
+    }
+
+    private static void multiply(FloatMatrix m1, FloatMatrix m2, FloatMatrix matrix, ForkJoinPool forkJoinPool) {
+        long tiles = plan(m1.getRowSize(), m2.getColumnSize(), m1.getColumnSize(), forkJoinPool.getParallelism());
+        int rowTiles = rowTiles(tiles);
+        int columnTiles = columnTiles(tiles);
+        if (rowTiles * columnTiles <= 1) {
+            FloatGemm.multiply(m1, m2, matrix);
+        } else {
+            forkJoinPool.invoke(new TileTask(
+                    (rowFrom, rowTo, colFrom, colTo) -> FloatGemm.multiply(m1, m2, matrix, rowFrom, rowTo, colFrom, colTo),
+                    matrix.getRowSize(), matrix.getColumnSize(), rowTiles, columnTiles, 0, rowTiles * columnTiles));
+        }
+    }
+
+    /**
+     * 根据矩阵形状与并行度决定行方向与列方向的块数：已安装的内核配置中有该形状且并行度相同时按配置划分，否则使用成本模型
+     * @param m 结果矩阵行数
+     * @param n 结果矩阵列数
+     * @param k 公共维度
+     * @param parallelism 并行度
+     * @return 行块数与列块数，分别由{@link #rowTiles(long)}与{@link #columnTiles(long)}取出，乘积为1时表示串行计算。
+     * 两者打包在一个long中，串行计算的小矩阵乘法不会因此分配数组
+     */
+    static long plan(int m, int n, int k, int parallelism) {
+        KernelProfile kernelProfile = profile;
+        if (kernelProfile != null && kernelProfile.getParallelism() == parallelism) {
+            long tiles = kernelProfile.tiles(m, n, k);
+            if (tiles != 0) {
+                return tiles;
+            }
+        }
+        return costModel(m, n, k, parallelism);
+    }
+
+    /**
+     * 成本模型：按计算量估计块数，不依赖测量结果
+     */
+    static long costModel(int m, int n, int k, int parallelism) {
+        long work = (long) m * n * k;
+        if (parallelism <= 1 || work < SERIAL_THRESHOLD) {
+            return tiles(1, 1);
+        }
+        long tiles = Math.min((long) parallelism * TILES_PER_THREAD, work / MIN_TILE_WORK);
+
+        //优先按行划分，各块共享同一份B，每块行数不少于微内核的行数
+        int maxRowTiles = Math.max(1, m / Gemm.MR);
+        int rowTiles = (int) Math.min(tiles, maxRowTiles);
+
+        //行数不够时再按列划分，每块列数不少于微内核的列数
+        int maxColumnTiles = Math.max(1, n / Gemm.NR);
+        int columnTiles = (int) Math.min((tiles + rowTiles - 1) / rowTiles, maxColumnTiles);
+        return tiles(rowTiles, columnTiles);
+    }
+
+    static long tiles(int rowTiles, int columnTiles) {
+        return (long) rowTiles << 32 | columnTiles;
+    }
+
+    static int rowTiles(long tiles) {
+        return (int) (tiles >>> 32);
+    }
+
+    static int columnTiles(long tiles) {
+        return (int) tiles;
+    }
+
+    /**
+     * 计算结果矩阵中[rowFrom, rowTo)行、[colFrom, colTo)列的子块
+     */
+    @FunctionalInterface
+    interface TileKernel {
+        void multiply(int rowFrom, int rowTo, int colFrom, int colTo);
+    }
+
+    /**
+     * 按块号区间二分的分治任务，叶子任务计算一个结果块
+     */
+    static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TileKernel kernel;
+        private final int rows;     //结果矩阵行数
+        private final int columns;  //结果矩阵列数
+        private final int rowTiles;
+        private final int columnTiles;
+        private final int from;     //块号区间起点(含)
+        private final int to;       //块号区间终点(不含)
+
+        TileTask(TileKernel kernel, int rows, int columns, int rowTiles, int columnTiles, int from, int to) {
+            this.kernel = kernel;
+            this.rows = rows;
+            this.columns = columns;
+            this.rowTiles = rowTiles;
+            this.columnTiles = columnTiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(kernel, rows, columns, rowTiles, columnTiles, from, mid),
+                        new TileTask(kernel, rows, columns, rowTiles, columnTiles, mid, to));
+                return;
+            }
+            int rowTile = from / columnTiles;
+            int columnTile = from % columnTiles;
+            int rowFrom = bound(rowTile, rowTiles, rows, Gemm.MR);
+            int rowTo = bound(rowTile + 1, rowTiles, rows, Gemm.MR);
+            int colFrom = bound(columnTile, columnTiles, columns, Gemm.NR);
+            int colTo = bound(columnTile + 1, columnTiles, columns, Gemm.NR);
+            kernel.multiply(rowFrom, rowTo, colFrom, colTo);
+        }
+
+        /**
+         * 第index块的起始位置，按align对齐使各块边界落在微内核分块上
+         */
+        private static int bound(int index, int count, int size, int align) {
+            if (index >= count) {
+                return size;
+            }
+            int units = (size + align - 1) / align;
+            return Math.min(size, (int) ((long) units * index / count) * align);
+        }
+    }
+
     public static void main(String[] args) {
 
         final int SIZE = 600;  //矩阵的规模为600*600
@@ -0,0 +1,277 @@
+package cn.zzq.handwrite.matrix;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 矩阵运算最内层循环的实现，分为标量与SIMD两种
+ * <p>
+ * SIMD实现基于孵化模块jdk.incubator.vector，只有在启动参数中加入
+ * {@code --add-modules jdk.incubator.vector}时才可用。类加载时检查该模块，
+ * 不可用或系统属性{@code handwrite.simd}为false时退回标量实现。
+ * <p>
+ * 加、减、乘与矩阵乘法的累加在两种实现下逐位一致，SIMD实现不使用FMA；
+ * sigmoid、exp与tanh在两种实现下都逐个调用{@link Math}中的对应函数，结果逐位一致且不随即时编译变化。
+ * 快速sigmoid使用{@link #fastExp(double)}，两种实现的运算顺序相同，结果逐位一致。
+ */
+abstract class MatrixKernels {
+    static final String SIMD_PROPERTY = "handwrite.simd";
+
+    private static final MatrixKernels INSTANCE = load();
+
+    //快速指数函数的常量：e^x = 2^n * e^r，n = round(x / ln2)，r = x - n * ln2
+    static final double LOG2E = 1.4426950408889634;
+    static final double LN2_HI = 6.93147180369123816490e-01;   //ln2的高位部分，与n相乘没有舍入误差
+    static final double LN2_LO = 1.90821492927058770002e-10;   //ln2的低位部分
+    static final double ROUND = 0x1.8p52;                      //加上后小数部分被舍去，低位即为round(x)
+    static final long ROUND_BITS = Double.doubleToRawLongBits(ROUND);
+    static final double EXP_MIN = -708;
+    static final double EXP_MAX = 709;
+    //e^r在|r| <= ln2/2上的6阶泰勒多项式系数，相对截断误差不超过2e-7
+    static final double P2 = 1.0 / 2, P3 = 1.0 / 6, P4 = 1.0 / 24, P5 = 1.0 / 120, P6 = 1.0 / 720;
+
+    /**
+     * 获取当前使用的实现
+     */
+    static MatrixKernels get() {
+        return INSTANCE;
+    }
+
+    private static MatrixKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty(SIMD_PROPERTY, "true"))
+                || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return new ScalarKernels();
+        }
+        try {
+            //反射加载，保证在没有该模块的JVM上本类仍能正常加载
+            return (MatrixKernels) Class.forName("cn.zzq.handwrite.matrix.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarKernels();
+        }
+    }
+
+    /**
+     * 实现的名称，用于在基准测试与日志中区分
+     */
+    abstract String name();
+
+    /**
+     * a[i] += b[i]，i属于[from, to)
+     */
+    abstract void add(double[] a, double[] b, int from, int to);
+
+    /**
+     * a[i] -= b[i]
+     */
+    abstract void sub(double[] a, double[] b, int from, int to);
+
+    /**
+     * a[i] *= b[i]
+     */
+    abstract void mul(double[] a, double[] b, int from, int to);
+
+    /**
+     * a[i] *= num
+     */
+    abstract void scale(double[] a, double num, int from, int to);
+
+    /**
+     * a[i] += scale * b[i]
+     */
+    abstract void addScaled(double[] a, double[] b, double scale, int from, int to);
+
+    /**
+     * a[i] = 1 / (1 + exp(-a[i]))
+     */
+    abstract void sigmoid(double[] a, int from, int to);
+
+    /**
+     * a[i] = 1 / (1 + fastExp(-a[i]))，与精确的sigmoid相差不超过1e-7
+     */
+    abstract void fastSigmoid(double[] a, int from, int to);
+
+    /**
+     * a[i] = e^a[i]
+     */
+    abstract void exp(double[] a, int from, int to);
+
+    /**
+     * a[i] = tanh(a[i])
+     */
+    abstract void tanh(double[] a, int from, int to);
+
+    /**
+     * a[i] = max(a[i], 0)
+     */
+    abstract void relu(double[] a, int from, int to);
+
+    /**
+     * 快速指数函数，相对误差不超过2e-7，x超出[-708, 709]时按边界计算
+     * 比{@link Math#exp(double)}少了查表与特殊值处理，以精度换取速度
+     */
+    static double fastExp(double x) {
+        x = x < EXP_MIN ? EXP_MIN : x > EXP_MAX ? EXP_MAX : x;
+        double t = x * LOG2E + ROUND;
+        double n = t - ROUND;
+        double r = x - n * LN2_HI - n * LN2_LO;
+        double p = 1 + r * (1 + r * (P2 + r * (P3 + r * (P4 + r * (P5 + r * P6)))));
+        long scale = (Double.doubleToRawLongBits(t) - ROUND_BITS + 1023) << 52;    //2^n
+        return p * Double.longBitsToDouble(scale);
+    }
+
+    /**
+     * y[yOff + j] += alpha * x[xOff + j]，j属于[0, n)，矩阵乘法按行累加的内层循环
+     */
+    abstract void axpy(int n, double alpha, double[] x, int xOff, double[] y, int yOff);
+
+    /**
+     * 与{@link #axpy(int, double, double[], int, double[], int)}相同，x位于本机字节序的堆外缓冲区中
+     * @param xByteOff x[0]在缓冲区中的字节偏移
+     */
+    abstract void axpy(int n, double alpha, ByteBuffer x, int xByteOff, double[] y, int yOff);
+
+    /**
+     * 无符号字节x与有符号字节w的整数点积，以int累加，量化推理的内层循环
+     * 调用方保证n * 255 * 127不超过int的范围
+     */
+    abstract int dotU8S8(int n, byte[] x, int xOff, byte[] w, int wOff);
+
+    /**
+     * 4*4整块微内核：c的4*4子块依次累加kc个打包好的A列与B行的外积
+     * 先读入C的部分和再继续累加，各实现的累加顺序相同，结果逐位一致
+     */
+    abstract void tileKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx, double[] c, int cOff, int ldc);
+
+    /**
+     * {@link #tileKernel}的标量实现，16个部分和全部放在寄存器中
+     */
+    static void scalarTileKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx, double[] c, int cOff, int ldc) {
+        int r0 = cOff, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+        double c00 = c[r0], c01 = c[r0 + 1], c02 = c[r0 + 2], c03 = c[r0 + 3];
+        double c10 = c[r1], c11 = c[r1 + 1], c12 = c[r1 + 2], c13 = c[r1 + 3];
+        double c20 = c[r2], c21 = c[r2 + 1], c22 = c[r2 + 2], c23 = c[r2 + 3];
+        double c30 = c[r3], c31 = c[r3 + 1], c32 = c[r3 + 2], c33 = c[r3 + 3];
+        for (int p = 0; p < kc; p++) {
+            double a0 = pa[aIdx], a1 = pa[aIdx + 1], a2 = pa[aIdx + 2], a3 = pa[aIdx + 3];
+            double b0 = pb[bIdx], b1 = pb[bIdx + 1], b2 = pb[bIdx + 2], b3 = pb[bIdx + 3];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+            aIdx += Gemm.MR;
+            bIdx += Gemm.NR;
+        }
+        c[r0] = c00; c[r0 + 1] = c01; c[r0 + 2] = c02; c[r0 + 3] = c03;
+        c[r1] = c10; c[r1 + 1] = c11; c[r1 + 2] = c12; c[r1 + 3] = c13;
+        c[r2] = c20; c[r2 + 1] = c21; c[r2 + 2] = c22; c[r2 + 3] = c23;
+        c[r3] = c30; c[r3 + 1] = c31; c[r3 + 2] = c32; c[r3 + 3] = c33;
+    }
+
+    /**
+     * 标量实现，依赖C2的自动向量化
+     */
+    static final class ScalarKernels extends MatrixKernels {
+        @Override
+        String name() {
+            return "scalar";
+        }
+
+        @Override
+        void add(double[] a, double[] b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] += b[i];
+            }
+        }
+
+        @Override
+        void sub(double[] a, double[] b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] -= b[i];
+            }
+        }
+
+        @Override
+        void mul(double[] a, double[] b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] *= b[i];
+            }
+        }
+
+        @Override
+        void scale(double[] a, double num, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] *= num;
+            }
+        }
+
+        @Override
+        void addScaled(double[] a, double[] b, double scale, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] += scale * b[i];
+            }
+        }
+
+        @Override
+        void sigmoid(double[] a, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] = 1 / (1 + Math.exp(-a[i]));
+            }
+        }
+
+        @Override
+        void fastSigmoid(double[] a, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] = 1 / (1 + fastExp(-a[i]));
+            }
+        }
+
+        @Override
+        void exp(double[] a, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] = Math.exp(a[i]);
+            }
+        }
+
+        @Override
+        void tanh(double[] a, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] = Math.tanh(a[i]);
+            }
+        }
+
+        @Override
+        void relu(double[] a, int from, int to) {
+            for (int i = from; i < to; i++) {
+                a[i] = Math.max(a[i], 0);
+            }
+        }
+
+        @Override
+        void axpy(int n, double alpha, double[] x, int xOff, double[] y, int yOff) {
+            for (int j = 0; j < n; j++) {
+                y[yOff + j] += alpha * x[xOff + j];
+            }
+        }
+
+        @Override
+        void axpy(int n, double alpha, ByteBuffer x, int xByteOff, double[] y, int yOff) {
+            for (int j = 0; j < n; j++) {
+                y[yOff + j] += alpha * x.getDouble(xByteOff + j * Double.BYTES);
+            }
+        }
+
+        @Override
+        int dotU8S8(int n, byte[] x, int xOff, byte[] w, int wOff) {
+            int acc = 0;
+            for (int k = 0; k < n; k++) {
+                acc += (x[xOff + k] & 0xFF) * w[wOff + k];
+            }
+            return acc;
+        }
+
+        @Override
+        void tileKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx, double[] c, int cOff, int ldc) {
+            scalarTileKernel(kc, pa, aIdx, pb, bIdx, c, cOff, ldc);
+        }
+    }
+}
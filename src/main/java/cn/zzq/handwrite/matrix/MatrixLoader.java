@@ -1,48 +1,56 @@
 package cn.zzq.handwrite.matrix;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import cn.zzq.handwrite.matrix.exception.MatrixParseException;
+
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * 矩阵加载器，从外部读入矩阵
  */
 public final class MatrixLoader {
     /**
-     * 从Csv文件加载矩阵，如果找不到文件，返回null
+     * 从Csv文件加载矩阵
      * @param fileName 文件名
      * @return 矩阵
+     * @throws MatrixParseException 文件内容不合法，异常中记录了出错的行与列
+     * @throws IOException 文件不存在或无法读取
      */
-    public static Matrix loadCsv(String fileName) {
-        try {
-            FileReader fr = new FileReader(fileName);
-            BufferedReader br = new BufferedReader(fr);
+    public static Matrix loadCsv(String fileName) throws IOException {
+        return loadCsv(Paths.get(fileName));
+    }
 
-            String line;
-            ArrayList<double[]> doubleLines = new ArrayList<>();
-            int rowSize = 0;
-            int columnSize = 0;
-            while (null != (line = br.readLine())){
-                //得到csv一行
-                double[] doubleLine = Arrays.stream(line.split(",")).mapToDouble(Double::parseDouble).toArray();
-                doubleLines.add(doubleLine);
-                rowSize++;
-                columnSize = doubleLine.length;
-            }
-            Matrix matrix = new Matrix(rowSize,columnSize);
-            for(int row = 0;row < rowSize;row++){
-                for(int column = 0;column < columnSize;column++){
-                    matrix.set(row,column,doubleLines.get(row)[column]);
-                }
+    /**
+     * 从Csv文件加载矩阵，文件被映射到内存后直接按字节解析，较大的文件分块并行解析
+     * @param path 文件路径
+     * @return 矩阵
+     * @throws MatrixParseException 文件内容不合法，异常中记录了出错的行与列
+     * @throws IOException 文件不存在或无法读取
+     */
+    public static Matrix loadCsv(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("csv文件不能超过2GB: " + path);
             }
-
-            fr.close();
-            return matrix;
-        } catch (IOException e) {
-            e.printStackTrace();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
-        return null;
+        return new CsvParser(buffer, path.toString()).parse(MatrixDotParallel.getPool());
+    }
+
+    /**
+     * 从Csv文本解析矩阵
+     * @param csv csv文本
+     * @return 矩阵
+     * @throws MatrixParseException 内容不合法，异常中记录了出错的行与列
+     */
+    public static Matrix parseCsv(String csv) throws MatrixParseException {
+        ByteBuffer buffer = ByteBuffer.wrap(csv.getBytes(StandardCharsets.UTF_8));
+        return new CsvParser(buffer, "<csv>").parse(MatrixDotParallel.getPool());
     }
 }
@@ -0,0 +1,316 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixDotException;
+import cn.zzq.handwrite.matrix.exception.MatrixIndexOutOfBoundException;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+/**
+ * 矩阵的视图，与原矩阵共享底层数组，不复制任何元素
+ * <p>
+ * 第(row, column)个元素位于data[offset + row * rowStride + column * columnStride]，
+ * 行、列、连续若干行、子块都只是改变起点与形状，转置只是交换行列的跨度，创建视图的代价与矩阵大小无关。
+ * 原矩阵的修改对视图立即可见，反之亦然。
+ * <p>
+ * {@link #dot(MatrixView)}与{@link #dotInto(MatrixView, Matrix)}直接按跨度读取两侧的视图，
+ * 转置后的矩阵在打包时顺带完成转置，不需要先写出一份转置的副本，结果与先复制再相乘逐位一致。
+ * 视图同时实现{@link IVector}，按行主序依次访问全部元素，行、列视图即为向量。
+ */
+public final class MatrixView implements IVector {
+    final double[] data;
+    final int offset;
+    final int rowSize;
+    final int columnSize;
+    final int rowStride;        //相邻两行同一列元素在data中的距离
+    final int columnStride;     //同一行相邻两列元素在data中的距离
+
+    MatrixView(double[] data, int offset, int rowSize, int columnSize, int rowStride, int columnStride) {
+        this.data = data;
+        this.offset = offset;
+        this.rowSize = rowSize;
+        this.columnSize = columnSize;
+        this.rowStride = rowStride;
+        this.columnStride = columnStride;
+    }
+
+    /**
+     * 把数组的前rowSize * columnSize个元素当作行主序的矩阵，数组可以更长
+     * 同一个数组可以先后以不同的形状包装，例如多个生命期不重叠的中间结果共用一块缓冲区
+     * @param data 数组
+     * @param rowSize 行数
+     * @param columnSize 列数
+     * @return 连续的视图
+     */
+    public static MatrixView wrap(double[] data, int rowSize, int columnSize) {
+        if (rowSize < 0 || columnSize < 0 || (long) rowSize * columnSize > data.length) {
+            throw new IllegalArgumentException(String.format("长度为%d的数组不足以容纳(%d, %d)的矩阵",
+                    data.length, rowSize, columnSize));
+        }
+        return new MatrixView(data, 0, rowSize, columnSize, columnSize, 1);
+    }
+
+    public int getRowSize() {
+        return rowSize;
+    }
+
+    public int getColumnSize() {
+        return columnSize;
+    }
+
+    /**
+     * 获取视图的值
+     * @param row 行
+     * @param column 列
+     * @return 值
+     */
+    public double get(int row, int column) {
+        return data[index(row, column)];
+    }
+
+    /**
+     * 设置视图的值，原矩阵中对应的元素随之改变
+     * @param row 行
+     * @param column 列
+     * @param value 值
+     */
+    public void set(int row, int column, double value) {
+        data[index(row, column)] = value;
+    }
+
+    private int index(int row, int column) {
+        if (row < 0 || row >= rowSize || column < 0 || column >= columnSize) {
+            throw new MatrixIndexOutOfBoundException(row, column, rowSize, columnSize);
+        }
+        return offset + row * rowStride + column * columnStride;
+    }
+
+    /**
+     * 按行主序获取第index个元素，行、列视图中即为向量的第index个元素
+     */
+    @Override
+    public double get(int index) {
+        return data[index(index)];
+    }
+
+    @Override
+    public void set(int index, double value) {
+        data[index(index)] = value;
+    }
+
+    @Override
+    public int size() {
+        return rowSize * columnSize;
+    }
+
+    private int index(int index) {
+        if (index < 0 || index >= rowSize * columnSize) {
+            throw new MatrixIndexOutOfBoundException(index / Math.max(columnSize, 1), index % Math.max(columnSize, 1),
+                    rowSize, columnSize);
+        }
+        if (rowSize == 1) {
+            return offset + index * columnStride;
+        }
+        if (columnSize == 1) {
+            return offset + index * rowStride;
+        }
+        return offset + index / columnSize * rowStride + index % columnSize * columnStride;
+    }
+
+    /**
+     * 第row行，(1, 列数)
+     */
+    public MatrixView row(int row) {
+        return block(row, 0, 1, columnSize);
+    }
+
+    /**
+     * 第column列，(行数, 1)
+     */
+    public MatrixView column(int column) {
+        return block(0, column, rowSize, 1);
+    }
+
+    /**
+     * [rowFrom, rowTo)行，例如从整个数据集中取出一批连续的样本
+     */
+    public MatrixView rows(int rowFrom, int rowTo) {
+        return block(rowFrom, 0, rowTo - rowFrom, columnSize);
+    }
+
+    /**
+     * 从(row, column)开始的rows行columns列的子块
+     */
+    public MatrixView block(int row, int column, int rows, int columns) {
+        if (row < 0 || column < 0 || rows < 0 || columns < 0
+                || row + rows > rowSize || column + columns > columnSize) {
+            throw new MatrixIndexOutOfBoundException(row + rows, column + columns, rowSize, columnSize);
+        }
+        return new MatrixView(data, offset + row * rowStride + column * columnStride,
+                rows, columns, rowStride, columnStride);
+    }
+
+    /**
+     * 转置视图，只交换行列的跨度
+     */
+    public MatrixView transpose() {
+        return new MatrixView(data, offset, columnSize, rowSize, columnStride, rowStride);
+    }
+
+    /**
+     * 视图是否覆盖底层数组中一段连续的行主序区间
+     */
+    public boolean isContiguous() {
+        return (columnStride == 1 || columnSize <= 1) && (rowStride == columnSize || rowSize <= 1);
+    }
+
+    /**
+     * 将视图的元素写入out，out的形状必须与视图相同
+     * 连续的视图只需一次数组复制，每行连续的视图逐行复制
+     * @param out 结果矩阵
+     */
+    public void copyInto(Matrix out) {
+        if (out.getRowSize() != rowSize || out.getColumnSize() != columnSize) {
+            throw new MatrixShapeException(rowSize, columnSize, out.getRowSize(), out.getColumnSize());
+        }
+        out.view().assign(this);
+    }
+
+    /**
+     * 复制出一个新矩阵
+     * @return 新矩阵
+     */
+    public Matrix toMatrix() {
+        Matrix matrix = new Matrix(rowSize, columnSize);
+        copyInto(matrix);
+        return matrix;
+    }
+
+    /**
+     * 将source的元素写入该视图覆盖的位置，形状必须相同，两者不能重叠
+     * @param source 源视图
+     */
+    public void assign(MatrixView source) {
+        if (source.rowSize != rowSize || source.columnSize != columnSize) {
+            throw new MatrixShapeException(rowSize, columnSize, source.rowSize, source.columnSize);
+        }
+        if (isContiguous() && source.isContiguous()) {
+            System.arraycopy(source.data, source.offset, data, offset, rowSize * columnSize);
+        } else if (columnStride == 1 && source.columnStride == 1) {
+            for (int row = 0; row < rowSize; row++) {
+                System.arraycopy(source.data, source.offset + row * source.rowStride,
+                        data, offset + row * rowStride, columnSize);
+            }
+        } else {
+            for (int row = 0; row < rowSize; row++) {
+                int src = source.offset + row * source.rowStride;
+                int dst = offset + row * rowStride;
+                for (int column = 0; column < columnSize; column++) {
+                    data[dst + column * columnStride] = source.data[src + column * source.columnStride];
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐元素减去other，this = this - other，形状必须相同
+     * @param other 减数视图
+     */
+    public void subWith(MatrixView other) {
+        if (other.rowSize != rowSize || other.columnSize != columnSize) {
+            throw new MatrixShapeException(rowSize, columnSize, other.rowSize, other.columnSize);
+        }
+        for (int row = 0; row < rowSize; row++) {
+            int dst = offset + row * rowStride;
+            int src = other.offset + row * other.rowStride;
+            for (int column = 0; column < columnSize; column++) {
+                data[dst + column * columnStride] -= other.data[src + column * other.columnStride];
+            }
+        }
+    }
+
+    /**
+     * 视图的点乘运算 this * other，两侧都不复制
+     * @param other 右乘视图
+     * @return 运算结果
+     */
+    public Matrix dot(MatrixView other) {
+        if (columnSize != other.rowSize) {
+            throw new MatrixDotException(rowSize, columnSize, other.rowSize, other.columnSize);
+        }
+        Matrix matrix = new Matrix(rowSize, other.columnSize);
+        Gemm.multiply(this, other, matrix);
+        return matrix;
+    }
+
+    /**
+     * 将 this * other 的结果写入out，不分配新矩阵
+     * out的形状必须为(该视图的行数, other的列数)，且不能与this或other共享数组
+     * @param other 右乘视图
+     * @param out 结果矩阵
+     * @throws IllegalArgumentException out与this或other共享数组
+     */
+    public void dotInto(MatrixView other, Matrix out) {
+        checkDotInto(this, other, out);
+        Gemm.multiply(this, other, out);
+    }
+
+    /**
+     * 将 this * other 的结果写入视图out，不分配任何对象
+     * out的每一行必须连续，且不能与this或other重叠，共享数组时各自在数组中的下标范围不能相交
+     * @param other 右乘视图
+     * @param out 结果视图，(该视图的行数, other的列数)
+     * @throws IllegalArgumentException out与this或other的下标范围相交
+     */
+    public void dotInto(MatrixView other, MatrixView out) {
+        checkDotInto(this, other, out);
+        Gemm.multiply(this, other, out, 0, rowSize, 0, other.columnSize);
+    }
+
+    static void checkDotInto(MatrixView m1, MatrixView m2, MatrixView out) {
+        if (m1.columnSize != m2.rowSize) {
+            throw new MatrixDotException(m1.rowSize, m1.columnSize, m2.rowSize, m2.columnSize);
+        }
+        if (out.rowSize != m1.rowSize || out.columnSize != m2.columnSize) {
+            throw new MatrixShapeException(m1.rowSize, m2.columnSize, out.rowSize, out.columnSize);
+        }
+        if (out.columnStride != 1 && out.columnSize > 1) {
+            throw new IllegalArgumentException("结果视图的每一行必须连续");
+        }
+        if (out.overlaps(m1) || out.overlaps(m2)) {
+            throw new IllegalArgumentException("结果视图不能与参与乘法的视图重叠");
+        }
+    }
+
+    static void checkDotInto(MatrixView m1, MatrixView m2, Matrix out) {
+        if (m1.columnSize != m2.rowSize) {
+            throw new MatrixDotException(m1.rowSize, m1.columnSize, m2.rowSize, m2.columnSize);
+        }
+        if (out.getRowSize() != m1.rowSize || out.getColumnSize() != m2.columnSize) {
+            throw new MatrixShapeException(m1.rowSize, m2.columnSize, out.getRowSize(), out.getColumnSize());
+        }
+        if (out.data == m1.data || out.data == m2.data) {
+            throw new IllegalArgumentException("结果矩阵不能与参与乘法的视图共享数组");
+        }
+    }
+
+    /**
+     * 两个视图是否位于同一数组且下标范围相交，按跨度交错而实际元素不重叠的视图也视为相交
+     */
+    private boolean overlaps(MatrixView other) {
+        if (data != other.data || isEmpty() || other.isEmpty()) {
+            return false;
+        }
+        return firstIndex() <= other.lastIndex() && other.firstIndex() <= lastIndex();
+    }
+
+    private boolean isEmpty() {
+        return rowSize == 0 || columnSize == 0;
+    }
+
+    private long firstIndex() {
+        return offset + Math.min(0L, (long) (rowSize - 1) * rowStride) + Math.min(0L, (long) (columnSize - 1) * columnStride);
+    }
+
+    private long lastIndex() {
+        return offset + Math.max(0L, (long) (rowSize - 1) * rowStride) + Math.max(0L, (long) (columnSize - 1) * columnStride);
+    }
+}
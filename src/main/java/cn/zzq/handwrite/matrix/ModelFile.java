@@ -0,0 +1,429 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.BPNetwork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * 二进制模型文件，保存若干个具名矩阵，读取时直接映射文件
+ * <p>
+ * 文件格式(小端字节序)：
+ * <pre>
+ * 文件头    magic "BPNM"(4字节) | 版本号 u32 | 矩阵个数 u32 | 头部校验和 u32
+ * 矩阵表    每个矩阵占56字节：名称(32字节UTF-8，不足补0) | 数据类型 u32 | 行数 u32 | 列数 u32 | 数据校验和 u32 | 数据偏移 u64
+ * 数据区    每个矩阵的元素按行主序连续存放，起始位置按64字节对齐
+ * </pre>
+ * 头部校验和为矩阵表的CRC32，数据校验和为该矩阵数据区的CRC32。
+ * <p>
+ * 映射区在{@link #close()}时立即解除，不关闭时随对象被GC回收。
+ */
+public final class ModelFile implements Closeable {
+    static final int MAGIC = 0x4D4E5042;    //"BPNM"按小端读出的值
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 56;
+    static final int NAME_SIZE = 32;
+    static final int ALIGNMENT = 64;
+
+    /**
+     * 元素的数据类型
+     */
+    public enum DType {
+        FLOAT64(1, Double.BYTES),
+        FLOAT32(2, Float.BYTES);
+
+        final int code;
+        final int bytes;
+
+        DType(int code, int bytes) {
+            this.code = code;
+            this.bytes = bytes;
+        }
+
+        static DType of(int code) throws IOException {
+            for (DType type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("不支持的数据类型: " + code);
+        }
+    }
+
+    /**
+     * 矩阵表中的一项
+     */
+    private static final class Entry {
+        final DType type;
+        final int rows;
+        final int columns;
+        final int checksum;
+        final long offset;
+
+        Entry(DType type, int rows, int columns, int checksum, long offset) {
+            this.type = type;
+            this.rows = rows;
+            this.columns = columns;
+            this.checksum = checksum;
+            this.offset = offset;
+        }
+
+        long length() {
+            return (long) rows * columns * type.bytes;
+        }
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Entry> entries;
+    private final List<OffHeapMatrix> mapped = new ArrayList<>();  //直接映射出的矩阵，关闭时一并失效
+    private boolean closed;
+
+    private ModelFile(Path path, MappedByteBuffer buffer, Map<String, Entry> entries) {
+        this.path = path;
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    /**
+     * 以双精度写入模型文件，已存在的文件会被覆盖
+     * @param path 文件路径
+     * @param matrices 名称到矩阵的映射，按迭代顺序写入
+     * @throws IOException 写入失败
+     */
+    public static void write(Path path, Map<String, Matrix> matrices) throws IOException {
+        write(path, matrices, DType.FLOAT64);
+    }
+
+    /**
+     * 以指定的数据类型写入模型文件，已存在的文件会被覆盖
+     * <p>
+     * 先写入同目录下的临时文件并同步到磁盘，再原子地替换，其他进程不会读到写了一半的文件，
+     * 正在映射旧文件的读者仍然看到旧文件的内容，不会因为截断而访问到文件末尾之外
+     * @param path 文件路径
+     * @param matrices 名称到矩阵的映射，按迭代顺序写入
+     * @param type 数据类型，FLOAT32会损失精度
+     * @throws IOException 写入失败
+     */
+    public static void write(Path path, Map<String, Matrix> matrices, DType type) throws IOException {
+        int count = matrices.size();
+        long offset = align(HEADER_SIZE + (long) count * ENTRY_SIZE);
+        long[] offsets = new long[count];
+        int i = 0;
+        for (Matrix matrix : matrices.values()) {
+            offsets[i++] = offset;
+            offset = align(offset + (long) matrix.data.length * type.bytes);
+        }
+        long fileSize = offset;
+
+        Path absolute = path.toAbsolutePath();
+        //临时文件以默认权限新建，替换后与直接写入目标文件的权限相同
+        Path temp = absolute.resolveSibling(String.format("%s.%x.tmp", absolute.getFileName(),
+                ThreadLocalRandom.current().nextLong()));
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        try {
+            try (channel) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                try {
+                    writeTo(out, matrices, type, offsets);
+                    out.force();
+                    channel.force(true);    //文件长度等元数据也落盘
+                } finally {
+                    OffHeapMatrix.release(out);     //先解除映射，Windows上仍被映射的文件不能被替换
+                }
+            }
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 把文件头、矩阵表与各矩阵的数据写入映射区
+     */
+    private static void writeTo(MappedByteBuffer out, Map<String, Matrix> matrices, DType type, long[] offsets) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer table = out.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        table.position(HEADER_SIZE);
+        int i = 0;
+        for (Map.Entry<String, Matrix> e : matrices.entrySet()) {
+            Matrix matrix = e.getValue();
+            ByteBuffer data = slice(out, offsets[i], (long) matrix.data.length * type.bytes);
+            if (type == DType.FLOAT64) {
+                data.asDoubleBuffer().put(matrix.data);
+            } else {
+                FloatBuffer floats = data.asFloatBuffer();
+                for (double value : matrix.data) {
+                    floats.put((float) value);
+                }
+            }
+            table.put(encodeName(e.getKey()));
+            table.putInt(type.code);
+            table.putInt(matrix.getRowSize());
+            table.putInt(matrix.getColumnSize());
+            table.putInt(crc(data));
+            table.putLong(offsets[i]);
+            i++;
+        }
+
+        int count = matrices.size();
+        out.putInt(0, MAGIC);
+        out.putInt(4, VERSION);
+        out.putInt(8, count);
+        out.putInt(12, crc(slice(out, HEADER_SIZE, (long) count * ENTRY_SIZE)));
+    }
+
+    /**
+     * 映射并校验模型文件
+     * @param path 文件路径
+     * @return 模型文件
+     * @throws IOException 文件不存在、格式不合法或校验和不符
+     */
+    public static ModelFile open(Path path) throws IOException {
+        return open(path, true);
+    }
+
+    /**
+     * 映射模型文件
+     * @param path 文件路径
+     * @param verify 是否校验各矩阵数据的校验和，矩阵表的校验和总是会检查
+     * @return 模型文件
+     * @throws IOException 文件不存在、格式不合法或校验和不符
+     */
+    public static ModelFile open(Path path, boolean verify) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("不合法的模型文件: " + path);
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(String.format("不支持的模型文件版本%d: %s", version, path));
+        }
+        int count = buffer.getInt(8);
+        long tableEnd = HEADER_SIZE + (long) count * ENTRY_SIZE;
+        if (count < 0 || tableEnd > buffer.capacity()) {
+            throw new IOException("模型文件已截断: " + path);
+        }
+        if (crc(slice(buffer, HEADER_SIZE, tableEnd - HEADER_SIZE)) != buffer.getInt(12)) {
+            throw new IOException("模型文件矩阵表校验和不符: " + path);
+        }
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        ByteBuffer table = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        table.position(HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            byte[] nameBytes = new byte[NAME_SIZE];
+            table.get(nameBytes);
+            String name = decodeName(nameBytes);
+            Entry entry = new Entry(DType.of(table.getInt()), table.getInt(), table.getInt(), table.getInt(), table.getLong());
+            if (entry.rows < 0 || entry.columns < 0 || entry.offset < HEADER_SIZE
+                    || entry.offset + entry.length() > buffer.capacity()) {
+                throw new IOException(String.format("模型文件中的矩阵%s越界: %s", name, path));
+            }
+            if (verify && crc(slice(buffer, entry.offset, entry.length())) != entry.checksum) {
+                throw new IOException(String.format("模型文件中的矩阵%s校验和不符: %s", name, path));
+            }
+            entries.put(name, entry);
+        }
+        return new ModelFile(path, buffer, entries);
+    }
+
+    /**
+     * 获取所有矩阵的名称
+     * @return 按写入顺序排列的名称
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int getRowSize(String name) {
+        return entry(name).rows;
+    }
+
+    public int getColumnSize(String name) {
+        return entry(name).columns;
+    }
+
+    public DType getType(String name) {
+        return entry(name).type;
+    }
+
+    /**
+     * 获取矩阵数据在映射文件上的视图，不复制数据
+     * @param name 矩阵名称
+     * @return 只读的小端字节缓冲区，元素类型见{@link #getType(String)}
+     */
+    public ByteBuffer getBuffer(String name) {
+        Entry entry = entry(name);
+        return slice(buffer, entry.offset, entry.length()).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 把矩阵直接当作堆外矩阵使用，不复制到堆中
+     * 双精度数据且本机为小端字节序时直接指向映射区，该文件关闭后矩阵随之失效；
+     * 否则复制到新分配的堆外矩阵中，由调用方关闭
+     * @param name 矩阵名称
+     * @return 只读或独立的堆外矩阵
+     */
+    public synchronized OffHeapMatrix map(String name) {
+        Entry entry = entry(name);
+        if (entry.type == DType.FLOAT64 && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            OffHeapMatrix matrix = OffHeapMatrix.wrap(getBuffer(name), entry.rows, entry.columns);
+            mapped.add(matrix);
+            return matrix;
+        }
+        return OffHeapMatrix.copyOf(read(name));
+    }
+
+    /**
+     * 读出矩阵，双精度数据从映射区一次性整块复制到矩阵中
+     * @param name 矩阵名称
+     * @return 矩阵
+     */
+    public Matrix read(String name) {
+        Entry entry = entry(name);
+        Matrix matrix = new Matrix(entry.rows, entry.columns);
+        ByteBuffer data = getBuffer(name);
+        if (entry.type == DType.FLOAT64) {
+            data.asDoubleBuffer().get(matrix.data);
+        } else {
+            FloatBuffer floats = data.asFloatBuffer();
+            for (int i = 0; i < matrix.data.length; i++) {
+                matrix.data[i] = floats.get(i);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * 以单精度读出矩阵，单精度数据从映射区一次性整块复制，双精度数据逐个舍入
+     * @param name 矩阵名称
+     * @return 单精度矩阵
+     */
+    public FloatMatrix readFloat(String name) {
+        Entry entry = entry(name);
+        FloatMatrix matrix = new FloatMatrix(entry.rows, entry.columns);
+        ByteBuffer data = getBuffer(name);
+        if (entry.type == DType.FLOAT32) {
+            data.asFloatBuffer().get(matrix.data);
+        } else {
+            DoubleBuffer doubles = data.asDoubleBuffer();
+            for (int i = 0; i < matrix.data.length; i++) {
+                matrix.data[i] = (float) doubles.get(i);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * 立即解除文件映射，由{@link #map(String)}直接映射出的矩阵随之关闭
+     * 关闭后不能再读取该文件的任何矩阵，关闭时不能有其他线程正在读取
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (OffHeapMatrix matrix : mapped) {
+            matrix.close();
+        }
+        mapped.clear();
+        OffHeapMatrix.release(buffer);
+    }
+
+    private Entry entry(String name) {
+        if (closed) {
+            throw new IllegalStateException("模型文件已关闭: " + path);
+        }
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException(String.format("模型文件%s中没有矩阵%s", path, name));
+        }
+        return entry;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        if (offset + length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("单个模型文件不能超过2GB");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) (offset + length));
+        view.position((int) offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int crc(ByteBuffer data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data.duplicate());
+        return (int) crc32.getValue();
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > NAME_SIZE) {
+            throw new IllegalArgumentException(String.format("矩阵名称%s超过%d字节", name, NAME_SIZE));
+        }
+        byte[] padded = new byte[NAME_SIZE];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        return padded;
+    }
+
+    private static String decodeName(byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 将csv权重转换为二进制模型文件
+     * 参数依次为：输入层到隐藏层的csv 隐藏层到输出层的csv 输出文件，
+     * 默认为assets/inputHidden.csv assets/hiddenOutput.csv assets/model.bpnm
+     */
+    public static void main(String[] args) throws IOException {
+        String inputHidden = args.length > 0 ? args[0] : "assets/inputHidden.csv";
+        String hiddenOutput = args.length > 1 ? args[1] : "assets/hiddenOutput.csv";
+        Path out = Paths.get(args.length > 2 ? args[2] : "assets/model.bpnm");
+
+        Map<String, Matrix> matrices = new LinkedHashMap<>();
+        matrices.put(BPNetwork.INPUT_HIDDEN_NAME, MatrixLoader.loadCsv(inputHidden));
+        matrices.put(BPNetwork.HIDDEN_OUTPUT_NAME, MatrixLoader.loadCsv(hiddenOutput));
+        write(out, matrices);
+
+        try (ModelFile file = open(out)) {
+            System.out.printf("已写入%s，共%d个矩阵%n", out, file.getNames().size());
+        }
+    }
+}
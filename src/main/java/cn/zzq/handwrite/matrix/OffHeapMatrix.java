@@ -0,0 +1,275 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixIndexOutOfBoundException;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 存放在Java堆外的矩阵，元素按行主序、本机字节序连续存放在直接缓冲区或文件映射区中
+ * <p>
+ * 堆外矩阵不计入Java堆，也不会被GC复制或扫描，适合存放很大的批数据与同时驻留的多个模型的权重；
+ * {@link #map}可以直接把文件中的一段区域当作矩阵使用，不需要先读入堆中。
+ * <p>
+ * 计算仍然使用堆上矩阵的内核：作为右乘矩阵(权重)时，{@link Gemm}按行累加时直接以向量指令读取缓冲区，
+ * 分块计算时在打包阶段从缓冲区整块读入堆上的打包缓冲区，结果与堆上矩阵逐位一致；
+ * 作为左矩阵或结果时，调用方以{@link #copyRowsInto}与{@link #copyRowsFrom}按块搬运到固定大小的堆上矩阵中计算，
+ * 堆上只需要与块大小相当的临时空间，与数据总量无关。
+ * <p>
+ * 生命周期由调用方显式管理：{@link #allocate}与{@link #map}创建的矩阵在{@link #close()}时立即释放内存或解除映射，
+ * 不等待GC；关闭后任何访问都抛出{@link IllegalStateException}。关闭时不能有其他线程正在使用该矩阵。
+ * <p>
+ * Java 17中外部内存API(MemorySegment/Arena)仍处于孵化阶段且之后的版本不兼容，这里基于ByteBuffer实现，
+ * 因此单个堆外矩阵不超过2GB，更大的数据应按行拆成多个矩阵。
+ * {@link #allocate}分配的总量受{@code -XX:MaxDirectMemorySize}限制，未设置时等于最大堆大小；文件映射不受此限制。
+ */
+public final class OffHeapMatrix implements AutoCloseable {
+    /**
+     * 单个堆外矩阵的最大字节数，受ByteBuffer以int为下标的限制
+     */
+    public static final long MAX_BYTES = Integer.MAX_VALUE - Integer.MAX_VALUE % Double.BYTES;
+
+    private static final MethodHandle INVOKE_CLEANER = findCleaner();
+
+    private final int rowSize;
+    private final int columnSize;
+    final ByteBuffer bytes;         //本机字节序，供向量指令直接读取
+    private final DoubleBuffer doubles;
+    private final boolean owned;    //是否由该矩阵分配或映射，关闭时释放
+    private volatile boolean closed;
+
+    private OffHeapMatrix(ByteBuffer bytes, int rowSize, int columnSize, boolean owned) {
+        this.rowSize = rowSize;
+        this.columnSize = columnSize;
+        this.bytes = bytes;
+        this.doubles = bytes.asDoubleBuffer();
+        this.owned = owned;
+    }
+
+    /**
+     * 在堆外分配一个全零矩阵
+     * @param rowSize 行数
+     * @param columnSize 列数
+     * @return 矩阵，使用完后应关闭
+     */
+    public static OffHeapMatrix allocate(int rowSize, int columnSize) {
+        int size = checkSize(rowSize, columnSize);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        return new OffHeapMatrix(buffer, rowSize, columnSize, true);
+    }
+
+    /**
+     * 在堆外分配矩阵并复制堆上矩阵的元素
+     * @param matrix 堆上矩阵
+     * @return 矩阵，使用完后应关闭
+     */
+    public static OffHeapMatrix copyOf(Matrix matrix) {
+        OffHeapMatrix offHeap = allocate(matrix.getRowSize(), matrix.getColumnSize());
+        offHeap.copyRowsFrom(0, matrix);
+        return offHeap;
+    }
+
+    /**
+     * 把文件中从offset开始的一段区域映射为矩阵，不读入堆中
+     * 以读写方式映射时文件不存在则创建，长度不足则扩展，对矩阵的修改写回文件
+     * @param path 文件路径
+     * @param offset 区域在文件中的字节偏移，必须是8的倍数
+     * @param rowSize 行数
+     * @param columnSize 列数
+     * @param writable 是否以读写方式映射
+     * @return 矩阵，关闭时解除映射
+     * @throws IOException 文件无法打开或长度不足
+     */
+    public static OffHeapMatrix map(Path path, long offset, int rowSize, int columnSize, boolean writable)
+            throws IOException {
+        if (offset < 0 || offset % Double.BYTES != 0) {
+            throw new IllegalArgumentException("offset必须是8的非负倍数: " + offset);
+        }
+        int size = checkSize(rowSize, columnSize);
+        ByteBuffer buffer;
+        if (writable) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (offset + size > channel.size()) {
+                    throw new IOException(String.format("文件%s长度为%d，不足以映射[%d, %d)",
+                            path, channel.size(), offset, offset + size));
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+        }
+        return new OffHeapMatrix(buffer.order(ByteOrder.nativeOrder()), rowSize, columnSize, true);
+    }
+
+    /**
+     * 把已有的直接缓冲区当作矩阵，不复制；缓冲区的字节序必须与本机相同
+     * 缓冲区由调用方管理，关闭矩阵时不释放
+     * @param buffer 直接缓冲区，从position开始的rowSize * columnSize个double
+     * @param rowSize 行数
+     * @param columnSize 列数
+     * @return 矩阵
+     */
+    public static OffHeapMatrix wrap(ByteBuffer buffer, int rowSize, int columnSize) {
+        int size = checkSize(rowSize, columnSize);
+        if (!buffer.isDirect() || buffer.order() != ByteOrder.nativeOrder() || buffer.remaining() < size) {
+            throw new IllegalArgumentException("需要本机字节序且长度不少于" + size + "字节的直接缓冲区");
+        }
+        ByteBuffer view = buffer.slice().order(ByteOrder.nativeOrder());
+        view.limit(size);
+        return new OffHeapMatrix(view, rowSize, columnSize, false);
+    }
+
+    private static int checkSize(int rowSize, int columnSize) {
+        long size = (long) rowSize * columnSize * Double.BYTES;
+        if (rowSize < 0 || columnSize < 0 || size > MAX_BYTES) {
+            throw new IllegalArgumentException(String.format("堆外矩阵(%d, %d)超过%d字节的上限", rowSize, columnSize, MAX_BYTES));
+        }
+        return (int) size;
+    }
+
+    public int getRowSize() {
+        return rowSize;
+    }
+
+    public int getColumnSize() {
+        return columnSize;
+    }
+
+    /**
+     * 占用的堆外字节数
+     */
+    public long getByteSize() {
+        return (long) rowSize * columnSize * Double.BYTES;
+    }
+
+    public boolean isReadOnly() {
+        return bytes.isReadOnly();
+    }
+
+    public double get(int row, int column) {
+        return doubles.get(index(row, column));
+    }
+
+    public void set(int row, int column, double value) {
+        doubles.put(index(row, column), value);
+    }
+
+    private int index(int row, int column) {
+        ensureOpen();
+        if (row < 0 || row >= rowSize || column < 0 || column >= columnSize) {
+            throw new MatrixIndexOutOfBoundException(row, column, rowSize, columnSize);
+        }
+        return row * columnSize + column;
+    }
+
+    /**
+     * 把从row开始的若干行整块复制到堆上矩阵，行数为dst的行数
+     * @param row 起始行
+     * @param dst 列数相同的堆上矩阵
+     */
+    public void copyRowsInto(int row, Matrix dst) {
+        checkRows(row, dst);
+        doubles.get(row * columnSize, dst.data, 0, dst.getRowSize() * columnSize);
+    }
+
+    /**
+     * 把堆上矩阵的全部行整块写入从row开始的若干行
+     * @param row 起始行
+     * @param src 列数相同的堆上矩阵
+     */
+    public void copyRowsFrom(int row, Matrix src) {
+        checkRows(row, src);
+        doubles.put(row * columnSize, src.data, 0, src.getRowSize() * columnSize);
+    }
+
+    private void checkRows(int row, Matrix matrix) {
+        ensureOpen();
+        if (matrix.getColumnSize() != columnSize) {
+            throw new MatrixShapeException(matrix.getRowSize(), columnSize, matrix.getRowSize(), matrix.getColumnSize());
+        }
+        if (row < 0 || row + matrix.getRowSize() > rowSize) {
+            throw new MatrixIndexOutOfBoundException(row + matrix.getRowSize(), 0, rowSize, columnSize);
+        }
+    }
+
+    /**
+     * 复制到一个新的堆上矩阵
+     */
+    public Matrix toMatrix() {
+        Matrix matrix = new Matrix(rowSize, columnSize);
+        copyRowsInto(0, matrix);
+        return matrix;
+    }
+
+    void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("堆外矩阵已关闭");
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 释放分配的内存或解除文件映射；由{@link #wrap}创建的矩阵只标记为关闭，缓冲区由调用方管理
+     * 重复关闭没有影响
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (owned) {
+            release(bytes);
+        }
+    }
+
+    /**
+     * 立即释放直接缓冲区的内存或解除映射，之后不能再访问该缓冲区
+     * 运行时不提供sun.misc.Unsafe时什么也不做，内存在缓冲区被GC回收时释放
+     * @param buffer 由allocateDirect或FileChannel.map返回的缓冲区，不能是其切片
+     */
+    static void release(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(buffer);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * 通过反射取得sun.misc.Unsafe.invokeCleaner，该方法属于jdk.unsupported模块，编译时不依赖它
+     */
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixIndexOutOfBoundException;
+
+/**
+ * int8量化的权重矩阵，只用于推理
+ * <p>
+ * 每列(即下一层的一个节点)单独对称量化：scale = max|w| / 127，q = round(w / scale)，
+ * 反量化的值为q * scale。矩阵按列连续存放，与输入行向量相乘时每列是一次顺序读取的整数点积。
+ */
+public final class QuantizedMatrix {
+    private static final int WEIGHT_MAX = 127;     //对称量化不使用-128
+
+    /**
+     * 最大行数，保证255 * 127 * 行数不超过int的范围
+     */
+    public static final int MAX_ROW_SIZE = Integer.MAX_VALUE / (255 * WEIGHT_MAX);
+
+    private final int rowSize;
+    private final int columnSize;
+    final byte[] data;              //第j列位于[j * rowSize, (j + 1) * rowSize)
+    private final double[] scales;  //每列的量化步长
+
+    private QuantizedMatrix(int rowSize, int columnSize) {
+        this.rowSize = rowSize;
+        this.columnSize = columnSize;
+        this.data = new byte[rowSize * columnSize];
+        this.scales = new double[columnSize];
+    }
+
+    /**
+     * 按列量化双精度矩阵
+     * @param matrix 双精度矩阵，行数不能超过{@link #MAX_ROW_SIZE}
+     * @return 形状相同的量化矩阵
+     */
+    public static QuantizedMatrix quantize(Matrix matrix) {
+        int rows = matrix.getRowSize();
+        int columns = matrix.getColumnSize();
+        if (rows > MAX_ROW_SIZE) {
+            throw new IllegalArgumentException(String.format("行数%d超过%d，整数点积可能溢出", rows, MAX_ROW_SIZE));
+        }
+        QuantizedMatrix quantized = new QuantizedMatrix(rows, columns);
+        for (int j = 0; j < columns; j++) {
+            double max = 0;
+            for (int k = 0; k < rows; k++) {
+                max = Math.max(max, Math.abs(matrix.data[k * columns + j]));
+            }
+            double scale = max == 0 ? 1 : max / WEIGHT_MAX;
+            for (int k = 0; k < rows; k++) {
+                quantized.data[j * rows + k] = (byte) Math.round(matrix.data[k * columns + j] / scale);
+            }
+            quantized.scales[j] = scale;
+        }
+        return quantized;
+    }
+
+    public int getRowSize() {
+        return rowSize;
+    }
+
+    public int getColumnSize() {
+        return columnSize;
+    }
+
+    /**
+     * 获取第column列的量化步长
+     */
+    public double getScale(int column) {
+        return scales[column];
+    }
+
+    /**
+     * 获取反量化后的值
+     */
+    public double get(int row, int column) {
+        if (row < 0 || row >= rowSize || column < 0 || column >= columnSize) {
+            throw new MatrixIndexOutOfBoundException(row, column, rowSize, columnSize);
+        }
+        return data[column * rowSize + row] * scales[column];
+    }
+
+    /**
+     * 反量化为双精度矩阵，可用于衡量量化误差
+     * @return 形状相同的新矩阵
+     */
+    public Matrix toMatrix() {
+        Matrix matrix = new Matrix(rowSize, columnSize);
+        for (int k = 0; k < rowSize; k++) {
+            for (int j = 0; j < columnSize; j++) {
+                matrix.data[k * columnSize + j] = data[j * rowSize + k] * scales[j];
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * 计算行向量x与量化矩阵的整数乘积 acc[j] = sum(x[offset + k] * q[k, j])，x的每个字节按无符号解释
+     * 乘积的真实值为acc[j] * getScale(j) * (x的量化步长)
+     * @param x 输入字节数组，例如0-255的原始灰度
+     * @param offset 行向量的起始位置，行向量长度为矩阵行数
+     * @param acc 结果数组，长度不小于矩阵列数
+     */
+    public void dotInto(byte[] x, int offset, int[] acc) {
+        if (offset < 0 || offset + rowSize > x.length || acc.length < columnSize) {
+            throw new IndexOutOfBoundsException(String.format("输入数组须容纳从%d开始的%d个元素，结果数组长度须不小于%d",
+                    offset, rowSize, columnSize));
+        }
+        MatrixKernels kernels = MatrixKernels.get();
+        for (int j = 0; j < columnSize; j++) {
+            acc[j] = kernels.dotU8S8(rowSize, x, offset, data, j * rowSize);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package cn.zzq.handwrite.matrix;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 基于jdk.incubator.vector的SIMD实现，只由{@link MatrixKernels}反射加载
+ * <p>
+ * 所有运算都使用平台首选宽度的向量，剩余不足一个向量的元素按标量处理。
+ * 4*4微内核的每行恰好是4个double，只在首选宽度为256位时使用向量，其他宽度下按标量计算：
+ * 同一个JVM中混用两种宽度的向量会污染Vector API内部的类型profile，C2无法消除向量对象的分配，反而比标量慢数倍。
+ */
+final class VectorKernels extends MatrixKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final ByteOrder NATIVE_ORDER = ByteOrder.nativeOrder();
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    //与INT_SPECIES通道数相同的字节向量，读入后逐通道扩展为int
+    private static final VectorSpecies<Byte> BYTE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(INT_SPECIES.length() * Byte.SIZE));
+
+    @Override
+    String name() {
+        return "simd-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    void add(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] += b[i];
+        }
+    }
+
+    @Override
+    void sub(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] -= b[i];
+        }
+    }
+
+    @Override
+    void mul(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] *= b[i];
+        }
+    }
+
+    @Override
+    void scale(double[] a, double num, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).mul(num).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] *= num;
+        }
+    }
+
+    @Override
+    void addScaled(double[] a, double[] b, double scale, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+            va.add(DoubleVector.fromArray(SPECIES, b, i).mul(scale)).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] += scale * b[i];
+        }
+    }
+
+    /**
+     * lanewise(EXP)在解释执行与C2编译后的结果可能相差最后一位，同一输入的结果随运行时长变化，
+     * 因此sigmoid、exp与tanh与标量实现一样逐个调用Math，需要向量化时使用fastSigmoid
+     */
+    @Override
+    void sigmoid(double[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            a[i] = 1 / (1 + Math.exp(-a[i]));
+        }
+    }
+
+    @Override
+    void fastSigmoid(double[] a, int from, int to) {
+        int i = from;
+        DoubleVector one = DoubleVector.broadcast(SPECIES, 1);
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector x = DoubleVector.fromArray(SPECIES, a, i).neg().max(EXP_MIN).min(EXP_MAX);
+            DoubleVector t = x.mul(LOG2E).add(ROUND);
+            DoubleVector n = t.sub(ROUND);
+            DoubleVector r = x.sub(n.mul(LN2_HI)).sub(n.mul(LN2_LO));
+            DoubleVector p = r.mul(P6).add(P5).mul(r).add(P4)
+                    .mul(r).add(P3).mul(r).add(P2).mul(r).add(1).mul(r).add(1);
+            LongVector scale = t.reinterpretAsLongs().sub(ROUND_BITS - 1023)
+                    .lanewise(VectorOperators.LSHL, 52);
+            one.div(p.mul(scale.reinterpretAsDoubles()).add(1)).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] = 1 / (1 + fastExp(-a[i]));
+        }
+    }
+
+    @Override
+    void exp(double[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            a[i] = Math.exp(a[i]);
+        }
+    }
+
+    @Override
+    void tanh(double[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            a[i] = Math.tanh(a[i]);
+        }
+    }
+
+    @Override
+    void relu(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).max(0).intoArray(a, i);
+        }
+        for (; i < to; i++) {
+            a[i] = Math.max(a[i], 0);
+        }
+    }
+
+    @Override
+    void axpy(int n, double alpha, double[] x, int xOff, double[] y, int yOff) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(n); j < bound; j += SPECIES.length()) {
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + j);
+            vy.add(DoubleVector.fromArray(SPECIES, x, xOff + j).mul(alpha)).intoArray(y, yOff + j);
+        }
+        for (; j < n; j++) {
+            y[yOff + j] += alpha * x[xOff + j];
+        }
+    }
+
+    @Override
+    void axpy(int n, double alpha, ByteBuffer x, int xByteOff, double[] y, int yOff) {
+        int j = 0;
+        for (int bound = SPECIES.loopBound(n); j < bound; j += SPECIES.length()) {
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + j);
+            DoubleVector vx = DoubleVector.fromByteBuffer(SPECIES, x, xByteOff + j * Double.BYTES, NATIVE_ORDER);
+            vy.add(vx.mul(alpha)).intoArray(y, yOff + j);
+        }
+        for (; j < n; j++) {
+            y[yOff + j] += alpha * x.getDouble(xByteOff + j * Double.BYTES);
+        }
+    }
+
+    @Override
+    int dotU8S8(int n, byte[] x, int xOff, byte[] w, int wOff) {
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        int k = 0;
+        for (int bound = BYTE_SPECIES.loopBound(n); k < bound; k += BYTE_SPECIES.length()) {
+            IntVector vx = (IntVector) ByteVector.fromArray(BYTE_SPECIES, x, xOff + k)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            IntVector vw = (IntVector) ByteVector.fromArray(BYTE_SPECIES, w, wOff + k)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            acc = acc.add(vx.and(0xFF).mul(vw));    //x按符号扩展，与0xFF相与得到无符号值
+        }
+        int result = acc.reduceLanes(VectorOperators.ADD);
+        for (; k < n; k++) {
+            result += (x[xOff + k] & 0xFF) * w[wOff + k];
+        }
+        return result;
+    }
+
+    @Override
+    void tileKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx, double[] c, int cOff, int ldc) {
+        if (SPECIES.length() != Gemm.NR) {
+            scalarTileKernel(kc, pa, aIdx, pb, bIdx, c, cOff, ldc);     //常量条件，JIT只保留其中一个分支
+            return;
+        }
+        int r0 = cOff, r1 = r0 + ldc, r2 = r1 + ldc, r3 = r2 + ldc;
+        DoubleVector c0 = DoubleVector.fromArray(SPECIES, c, r0);
+        DoubleVector c1 = DoubleVector.fromArray(SPECIES, c, r1);
+        DoubleVector c2 = DoubleVector.fromArray(SPECIES, c, r2);
+        DoubleVector c3 = DoubleVector.fromArray(SPECIES, c, r3);
+        for (int p = 0; p < kc; p++) {
+            DoubleVector b = DoubleVector.fromArray(SPECIES, pb, bIdx);
+            c0 = c0.add(b.mul(pa[aIdx]));
+            c1 = c1.add(b.mul(pa[aIdx + 1]));
+            c2 = c2.add(b.mul(pa[aIdx + 2]));
+            c3 = c3.add(b.mul(pa[aIdx + 3]));
+            aIdx += Gemm.MR;
+            bIdx += Gemm.NR;
+        }
+        c0.intoArray(c, r0);
+        c1.intoArray(c, r1);
+        c2.intoArray(c, r2);
+        c3.intoArray(c, r3);
+    }
+}
@@ -3,7 +3,13 @@ package cn.zzq.handwrite.matrix.exception;
 import cn.zzq.handwrite.matrix.Matrix;
 
 public class MatrixDotException extends RuntimeException{
+    private static final long serialVersionUID = 1L;
+
     public MatrixDotException(Matrix m1, Matrix m2){
-        super(String.format("Matrix1(%d, %d) and Matrix2(%d, %d) cannot to dot",m1.getRowSize(),m1.getColumnSize(),m2.getRowSize(),m2.getColumnSize()));
+        this(m1.getRowSize(),m1.getColumnSize(),m2.getRowSize(),m2.getColumnSize());
+    }
+
+    public MatrixDotException(int rowSize1, int columnSize1, int rowSize2, int columnSize2){
+        super(String.format("Matrix1(%d, %d) and Matrix2(%d, %d) cannot to dot",rowSize1,columnSize1,rowSize2,columnSize2));
     }
 }
@@ -1,6 +1,8 @@
 package cn.zzq.handwrite.matrix.exception;
 
 public class MatrixIndexOutOfBoundException extends IndexOutOfBoundsException{
+    private static final long serialVersionUID = 1L;
+
     public MatrixIndexOutOfBoundException() {
     }
 
@@ -0,0 +1,43 @@
+package cn.zzq.handwrite.matrix.exception;
+
+import java.io.IOException;
+
+/**
+ * 矩阵文件内容不合法，记录出错的行与列
+ * <p>
+ * 行号指矩阵中的行，文件中的空行不计入
+ */
+public class MatrixParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int row;
+    private final int column;
+
+    /**
+     * @param source 数据来源，通常为文件名
+     * @param row 出错的行，从0开始
+     * @param column 出错的列，从0开始
+     * @param reason 原因
+     */
+    public MatrixParseException(String source, int row, int column, String reason) {
+        super(String.format("%s: 第%d行第%d列: %s", source, row + 1, column + 1, reason));
+        this.row = row;
+        this.column = column;
+    }
+
+    /**
+     * 获取出错的行
+     * @return 行号，从0开始
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * 获取出错的列
+     * @return 列号，从0开始
+     */
+    public int getColumn() {
+        return column;
+    }
+}
@@ -3,8 +3,13 @@ package cn.zzq.handwrite.matrix.exception;
 import cn.zzq.handwrite.matrix.Matrix;
 
 public class MatrixReshapeException extends RuntimeException{
+    private static final long serialVersionUID = 1L;
 
     public MatrixReshapeException(Matrix matrix, int targetRow, int targetColumn){
-        super(String.format("Reshape cn.zzq.handwriter.matrix (%d, %d) to (%d, %d) failed!!!",matrix.getRowSize(),matrix.getColumnSize(),targetRow,targetColumn));
+        this(matrix.getRowSize(),matrix.getColumnSize(),targetRow,targetColumn);
+    }
+
+    public MatrixReshapeException(int rowSize, int columnSize, int targetRow, int targetColumn){
+        super(String.format("Reshape cn.zzq.handwriter.matrix (%d, %d) to (%d, %d) failed!!!",rowSize,columnSize,targetRow,targetColumn));
     }
 }
@@ -3,6 +3,8 @@ package cn.zzq.handwrite.matrix.exception;
 import cn.zzq.handwrite.matrix.Matrix;
 
 public class MatrixShapeException extends RuntimeException{
+    private static final long serialVersionUID = 1L;
+
     public MatrixShapeException(int expectedRow,int expectedColumn,int receivedRow,int receivedColumn){
         super(String.format("Excepted a cn.zzq.handwriter.matrix(%d, %d), but received (%d, %d)", expectedRow, expectedColumn, receivedRow, receivedColumn));
     }
@@ -0,0 +1,180 @@
+package cn.zzq.handwrite.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数-线性直方图，记录非负整数(纳秒、字节数、批大小等)的分布
+ * <p>
+ * 小于16的值各占一个桶；更大的值按最高位所在的2的幂分段，每段再等分为16个桶，
+ * 因此任何值所在桶的宽度不超过该值的1/16，分位数的相对误差不超过约6%。
+ * 全部桶共960个，覆盖整个long的范围，记录一次只是几次原子加，不加锁也不分配对象。
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final String name;
+    private final String unit;          //报告中显示的单位
+    private final double unitScale;     //记录的值乘以该系数后按unit显示
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name 名称
+     * @param unit 报告中显示的单位
+     * @param unitScale 记录的值乘以该系数后按unit显示，例如记录纳秒、显示微秒时为1e-3
+     */
+    public Histogram(String name, String unit, double unitScale) {
+        this.name = name;
+        this.unit = unit;
+        this.unitScale = unitScale;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //其他线程同时更新了最大值，重新比较
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶内值的上界(含)
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * 清空全部记录，与并发的记录之间不保证原子性
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * 获取当前分布的快照，各项按显示单位换算
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        long maxValue = max.get();
+        return new Snapshot(count, sum.sum() * unitScale,
+                percentile(copy, count, 0.50, maxValue) * unitScale,
+                percentile(copy, count, 0.90, maxValue) * unitScale,
+                percentile(copy, count, 0.99, maxValue) * unitScale,
+                maxValue * unitScale);
+    }
+
+    /**
+     * 最近秩法求分位数，返回所在桶的上界，不超过记录到的最大值
+     */
+    private static long percentile(long[] counts, long count, double p, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 直方图在某一时刻的统计量，可经JMX读取
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double total;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        Snapshot(long count, double total, double p50, double p90, double p99, double max) {
+            this.count = count;
+            this.total = total;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 全部记录值之和
+         */
+        public double getTotal() {
+            return total;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package cn.zzq.handwrite.metrics;
+
+/**
+ * 一个全连接层的耗时，按权重矩阵的形状区分层
+ */
+public final class LayerMetrics {
+    private final int inputSize;
+    private final int outputSize;
+    private final Histogram dotNanos;           //每次调用中矩阵乘法的耗时
+    private final Histogram activationNanos;    //每次调用中加偏置与激活函数的耗时
+
+    LayerMetrics(int inputSize, int outputSize) {
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        String name = "dense." + inputSize + "x" + outputSize;
+        this.dotNanos = new Histogram(name + ".dot", "us", 1e-3);
+        this.activationNanos = new Histogram(name + ".activation", "us", 1e-3);
+    }
+
+    boolean matches(int inputSize, int outputSize) {
+        return this.inputSize == inputSize && this.outputSize == outputSize;
+    }
+
+    public Histogram getDotNanos() {
+        return dotNanos;
+    }
+
+    public Histogram getActivationNanos() {
+        return activationNanos;
+    }
+}
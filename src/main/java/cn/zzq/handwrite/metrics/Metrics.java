@@ -0,0 +1,293 @@
+package cn.zzq.handwrite.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 矩阵运算、推理与训练的耗时与吞吐量指标
+ * <p>
+ * 默认关闭，启动参数加入{@code -Dhandwrite.metrics=true}时开启。开关是static final常量，
+ * 埋点处都写成{@code if (Metrics.ENABLED) {...}}，关闭时JIT把整个分支当作死代码删除，热路径上不留任何开销。
+ * 开启后：
+ * <ul>
+ *     <li>每个全连接层(按权重形状区分)记录每次调用中矩阵乘法与激活函数各自的耗时</li>
+ *     <li>推理记录端到端耗时、批大小与当前线程分配的字节数</li>
+ *     <li>训练记录每次计算梯度的耗时、累计样本数与每轮的耗时</li>
+ * </ul>
+ * 指标以{@link MetricsMXBean}注册到平台MBeanServer，可用jconsole查看；
+ * 同时设置{@code -Dhandwrite.metrics.period=秒数}时按该周期向标准输出打印文本报告。
+ */
+public final class Metrics {
+    public static final String PROPERTY = "handwrite.metrics";
+    public static final String PERIOD_PROPERTY = "handwrite.metrics.period";
+    public static final String OBJECT_NAME = "cn.zzq.handwrite:type=Metrics";
+
+    /**
+     * 指标是否开启，类加载时确定，之后不能改变
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    /**
+     * 每次推理的端到端耗时
+     */
+    public static final Histogram QUERY_NANOS = new Histogram("query.latency", "us", 1e-3);
+
+    /**
+     * 每次推理的图片张数
+     */
+    public static final Histogram QUERY_BATCH_SIZE = new Histogram("query.batchSize", "", 1);
+
+    /**
+     * 每次推理在当前线程上分配的字节数
+     */
+    public static final Histogram QUERY_ALLOCATED_BYTES = new Histogram("query.allocatedBytes", "B", 1);
+
+    /**
+     * 每次计算一批样本梯度的耗时
+     */
+    public static final Histogram TRAIN_BATCH_NANOS = new Histogram("train.batch", "us", 1e-3);
+
+    /**
+     * 每轮训练的耗时
+     */
+    public static final Histogram EPOCH_NANOS = new Histogram("train.epoch", "ms", 1e-6);
+
+    private static final LongAdder TRAIN_SAMPLES = new LongAdder();     //计算过梯度的样本数
+    private static final LongAdder EPOCH_SAMPLES = new LongAdder();     //已完成的各轮样本数之和
+    private static final LongAdder EPOCH_TOTAL_NANOS = new LongAdder(); //已完成的各轮耗时之和
+
+    private static final Object LOCK = new Object();
+    private static volatile LayerMetrics[] layers = new LayerMetrics[0];
+    private static ScheduledExecutorService reporter;
+    private static JMException registrationFailure;     //注册到JMX失败的原因，只在类加载时赋值
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                registrationFailure = e;
+            }
+            long period = Long.getLong(PERIOD_PROPERTY, 0);
+            if (period > 0) {
+                startReporter(TimeUnit.SECONDS.toMillis(period), System.out);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * 获取权重形状为(inputSize, outputSize)的全连接层的指标，第一次使用时创建
+     * 层数很少，顺序查找，不分配对象
+     */
+    public static LayerMetrics layer(int inputSize, int outputSize) {
+        for (LayerMetrics layer : layers) {
+            if (layer.matches(inputSize, outputSize)) {
+                return layer;
+            }
+        }
+        synchronized (LOCK) {
+            for (LayerMetrics layer : layers) {
+                if (layer.matches(inputSize, outputSize)) {
+                    return layer;
+                }
+            }
+            LayerMetrics layer = new LayerMetrics(inputSize, outputSize);
+            LayerMetrics[] grown = Arrays.copyOf(layers, layers.length + 1);
+            grown[grown.length - 1] = layer;
+            layers = grown;
+            return layer;
+        }
+    }
+
+    /**
+     * 指标注册到JMX失败的原因，例如同名的MBean已被注册；失败时仍可通过{@link #report()}读取指标
+     * @return 失败原因，未开启指标或注册成功时为null
+     */
+    public static JMException getRegistrationFailure() {
+        return registrationFailure;
+    }
+
+    /**
+     * 当前线程累计分配的字节数，用于计算一段代码分配的字节数
+     */
+    public static long allocatedBytes() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * 记录一次推理
+     * @param nanos 耗时
+     * @param batchSize 图片张数
+     * @param allocatedBytes 推理期间当前线程分配的字节数
+     */
+    public static void recordQuery(long nanos, int batchSize, long allocatedBytes) {
+        QUERY_NANOS.record(nanos);
+        QUERY_BATCH_SIZE.record(batchSize);
+        QUERY_ALLOCATED_BYTES.record(allocatedBytes);
+    }
+
+    /**
+     * 记录一次梯度计算
+     * @param nanos 耗时
+     * @param samples 样本数
+     */
+    public static void recordTrainBatch(long nanos, int samples) {
+        TRAIN_BATCH_NANOS.record(nanos);
+        TRAIN_SAMPLES.add(samples);
+    }
+
+    /**
+     * 记录一轮训练
+     * @param nanos 耗时
+     * @param samples 本轮样本数
+     */
+    public static void recordEpoch(long nanos, int samples) {
+        EPOCH_NANOS.record(nanos);
+        EPOCH_SAMPLES.add(samples);
+        EPOCH_TOTAL_NANOS.add(nanos);
+    }
+
+    /**
+     * 全部直方图，按固定顺序排列，各层在最后
+     */
+    public static Map<String, Histogram> histograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        for (Histogram histogram : new Histogram[]{QUERY_NANOS, QUERY_BATCH_SIZE, QUERY_ALLOCATED_BYTES,
+                TRAIN_BATCH_NANOS, EPOCH_NANOS}) {
+            histograms.put(histogram.getName(), histogram);
+        }
+        for (LayerMetrics layer : layers) {
+            histograms.put(layer.getDotNanos().getName(), layer.getDotNanos());
+            histograms.put(layer.getActivationNanos().getName(), layer.getActivationNanos());
+        }
+        return histograms;
+    }
+
+    public static long getTrainingSamples() {
+        return TRAIN_SAMPLES.sum();
+    }
+
+    /**
+     * 按已完成的各轮计算训练吞吐量
+     */
+    public static double getTrainingSamplesPerSecond() {
+        double seconds = EPOCH_TOTAL_NANOS.sum() / 1e9;
+        return seconds == 0 ? 0 : EPOCH_SAMPLES.sum() / seconds;
+    }
+
+    /**
+     * 生成文本报告，没有记录的直方图不输出
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %10s %10s %10s %10s %10s %10s%n",
+                "metrics", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Histogram histogram : histograms().values()) {
+            Histogram.Snapshot s = histogram.snapshot();
+            if (s.getCount() == 0) {
+                continue;
+            }
+            String name = histogram.getUnit().isEmpty() ? histogram.getName()
+                    : histogram.getName() + "(" + histogram.getUnit() + ")";
+            sb.append(String.format("%-28s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name,
+                    s.getCount(), s.getMean(), s.getP50(), s.getP90(), s.getP99(), s.getMax()));
+        }
+        if (getTrainingSamples() > 0) {
+            sb.append(String.format("训练样本%d个，%.0f samples/s%n", getTrainingSamples(), getTrainingSamplesPerSecond()));
+        }
+        if (registrationFailure != null) {
+            sb.append("指标注册到JMX失败: ").append(registrationFailure).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 清空全部指标
+     */
+    public static void reset() {
+        for (Histogram histogram : histograms().values()) {
+            histogram.reset();
+        }
+        TRAIN_SAMPLES.reset();
+        EPOCH_SAMPLES.reset();
+        EPOCH_TOTAL_NANOS.reset();
+    }
+
+    /**
+     * 按周期输出文本报告，重复调用时替换之前的周期
+     * @param periodMillis 周期
+     * @param out 输出位置
+     */
+    public static void startReporter(long periodMillis, PrintStream out) {
+        synchronized (LOCK) {
+            stopReporter();
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> out.print(report()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 停止定期输出
+     */
+    public static void stopReporter() {
+        synchronized (LOCK) {
+            if (reporter != null) {
+                reporter.shutdownNow();
+                reporter = null;
+            }
+        }
+    }
+
+    private static final class MBean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return ENABLED;
+        }
+
+        @Override
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            Map<String, Histogram.Snapshot> snapshots = new LinkedHashMap<>();
+            histograms().forEach((name, histogram) -> snapshots.put(name, histogram.snapshot()));
+            return snapshots;
+        }
+
+        @Override
+        public long getTrainingSamples() {
+            return Metrics.getTrainingSamples();
+        }
+
+        @Override
+        public double getTrainingSamplesPerSecond() {
+            return Metrics.getTrainingSamplesPerSecond();
+        }
+
+        @Override
+        public String getReport() {
+            return report();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
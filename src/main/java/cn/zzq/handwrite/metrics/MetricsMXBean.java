@@ -0,0 +1,38 @@
+package cn.zzq.handwrite.metrics;
+
+import java.util.Map;
+
+/**
+ * 经JMX导出的指标，对象名为{@link Metrics#OBJECT_NAME}
+ */
+public interface MetricsMXBean {
+    /**
+     * 指标是否开启，关闭时所有统计量都为0
+     */
+    boolean isEnabled();
+
+    /**
+     * 全部直方图的快照，键为直方图名称
+     */
+    Map<String, Histogram.Snapshot> getHistograms();
+
+    /**
+     * 累计训练的样本数
+     */
+    long getTrainingSamples();
+
+    /**
+     * 训练吞吐量，即已完成各轮的样本数之和除以耗时之和
+     */
+    double getTrainingSamplesPerSecond();
+
+    /**
+     * 与定期输出相同的文本报告
+     */
+    String getReport();
+
+    /**
+     * 清空全部指标
+     */
+    void reset();
+}
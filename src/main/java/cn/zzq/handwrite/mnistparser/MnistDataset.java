@@ -0,0 +1,344 @@
+package cn.zzq.handwrite.mnistparser;
+
+import cn.zzq.handwrite.matrix.Matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 基于内存映射的MNIST数据集，图片与标签保持idx文件中的原始字节
+ * <p>
+ * 打开时只映射文件并校验文件头，不读取像素，6万张训练图片只占约47MB的页缓存而不是数百MB的堆。
+ * 单张图片与一批图片都以视图的形式给出，只有在调用{@link Batch#inputsInto(Matrix)}等方法时
+ * 才把像素归一化后写入调用方提供的矩阵或数组。
+ * <p>
+ * 所有读取都使用绝对位置，多个线程可以同时读取同一个数据集。
+ */
+public final class MnistDataset {
+    static final int IMAGE_MAGIC = 0x00000803;
+    static final int LABEL_MAGIC = 0x00000801;
+    static final int IMAGE_HEADER_SIZE = 16;
+    static final int LABEL_HEADER_SIZE = 8;
+
+    /**
+     * 默认的归一化系数，将0-255的灰度值缩放到[0,1]
+     */
+    public static final double SCALE = 1 / 255.0;
+
+    private final ByteBuffer images;    //所有图片的像素，不含文件头
+    private final ByteBuffer labels;    //所有标签，不含文件头
+    private final int size;
+    private final int height;
+    private final int width;
+
+    private MnistDataset(ByteBuffer images, ByteBuffer labels, int size, int height, int width) {
+        this.images = images;
+        this.labels = labels;
+        this.size = size;
+        this.height = height;
+        this.width = width;
+    }
+
+    public static MnistDataset open(File imageFile, File labelFile) throws IOException {
+        return open(imageFile.toPath(), labelFile.toPath());
+    }
+
+    /**
+     * 映射图片与标签文件
+     * @param imageFile idx3格式的图片文件
+     * @param labelFile idx1格式的标签文件
+     * @return 数据集
+     * @throws IOException 文件不存在、格式不合法或图片与标签数目不一致
+     */
+    public static MnistDataset open(Path imageFile, Path labelFile) throws IOException {
+        MappedByteBuffer imageBuffer = map(imageFile);
+        MappedByteBuffer labelBuffer = map(labelFile);
+        if (imageBuffer.capacity() < IMAGE_HEADER_SIZE || imageBuffer.getInt(0) != IMAGE_MAGIC) {
+            throw new IOException("不合法的图像文件: " + imageFile);
+        }
+        if (labelBuffer.capacity() < LABEL_HEADER_SIZE || labelBuffer.getInt(0) != LABEL_MAGIC) {
+            throw new IOException("不合法的标签文件: " + labelFile);
+        }
+        int size = imageBuffer.getInt(4);
+        int height = imageBuffer.getInt(8);
+        int width = imageBuffer.getInt(12);
+        if (size < 0 || height <= 0 || width <= 0
+                || IMAGE_HEADER_SIZE + (long) size * height * width > imageBuffer.capacity()) {
+            throw new IOException("图像文件已截断: " + imageFile);
+        }
+        int labelSize = labelBuffer.getInt(4);
+        if (labelSize != size) {
+            throw new IOException(String.format("图像文件有%d张图片，标签文件却有%d个标签", size, labelSize));
+        }
+        if (LABEL_HEADER_SIZE + (long) size > labelBuffer.capacity()) {
+            throw new IOException("标签文件已截断: " + labelFile);
+        }
+        return new MnistDataset(slice(imageBuffer, IMAGE_HEADER_SIZE, size * height * width),
+                slice(labelBuffer, LABEL_HEADER_SIZE, size), size, height, width);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * 每张图片的像素数
+     * @return height * width
+     */
+    public int getPixelCount() {
+        return height * width;
+    }
+
+    /**
+     * 获取第index个标签
+     * @param index 索引
+     * @return 标签对应的数字(0-9)
+     */
+    public int getLabel(int index) {
+        return Byte.toUnsignedInt(labels.get(checkIndex(index)));
+    }
+
+    /**
+     * 获取第index张图片的原始像素，不复制数据
+     * @param index 索引
+     * @return 只读的字节缓冲区，按行展开，每个字节为0-255的灰度值
+     */
+    public ByteBuffer getImage(int index) {
+        int pixels = getPixelCount();
+        return slice(images, checkIndex(index) * pixels, pixels).asReadOnlyBuffer();
+    }
+
+    /**
+     * 将第index张图片的原始像素复制到dst[offset, offset + 像素数)，不分配任何对象
+     * @param index 索引
+     * @param dst 目标数组，每个字节按无符号解释为0-255的灰度值
+     * @param offset 起始位置
+     */
+    public void pixelsInto(int index, byte[] dst, int offset) {
+        int pixels = getPixelCount();
+        images.get(checkIndex(index) * pixels, dst, offset, pixels);
+    }
+
+    /**
+     * 将第index张图片的原始灰度值(0-255)写入out，out的元素个数须为height * width
+     * @param index 索引
+     * @param out 输出矩阵，例如(height, width)或(1, height * width)
+     */
+    public void imageInto(int index, Matrix out) {
+        int pixels = getPixelCount();
+        int columns = out.getColumnSize();
+        if (out.getRowSize() * columns != pixels) {
+            throw new IllegalArgumentException(String.format("输出矩阵(%d, %d)的元素个数应为%d",
+                    out.getRowSize(), columns, pixels));
+        }
+        int base = checkIndex(index) * pixels;
+        for (int p = 0; p < pixels; p++) {
+            out.set(p / columns, p % columns, Byte.toUnsignedInt(images.get(base + p)));
+        }
+    }
+
+    /**
+     * 连续的一批样本[from, from + count)
+     * @param from 起始索引
+     * @param count 样本数
+     * @return 批视图
+     */
+    public Batch batch(int from, int count) {
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d)超出数据集范围[0, %d)", from, from + count, size));
+        }
+        return new Batch(null, from, count);
+    }
+
+    /**
+     * 由indices[offset, offset + count)指定的一批样本，常与打乱后的样本顺序配合使用
+     * @param indices 样本索引
+     * @param offset 起始位置
+     * @param count 样本数
+     * @return 批视图，不复制indices
+     */
+    public Batch batch(int[] indices, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > indices.length) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d)超出索引数组范围[0, %d)",
+                    offset, offset + count, indices.length));
+        }
+        return new Batch(indices, offset, count);
+    }
+
+    /**
+     * 一批样本的视图，像素仍在映射区中，按需转换后写入调用方提供的缓冲区
+     */
+    public final class Batch {
+        private final int[] indices;    //为null时表示连续的样本
+        private final int offset;
+        private final int count;
+
+        private Batch(int[] indices, int offset, int count) {
+            this.indices = indices;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        public int getSize() {
+            return count;
+        }
+
+        /**
+         * 批内第i个样本在数据集中的索引
+         */
+        public int indexOf(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException(String.format("批内索引%d超出范围[0, %d)", i, count));
+            }
+            return indices == null ? offset + i : indices[offset + i];
+        }
+
+        public ByteBuffer getImage(int i) {
+            return MnistDataset.this.getImage(indexOf(i));
+        }
+
+        public int getLabel(int i) {
+            return MnistDataset.this.getLabel(indexOf(i));
+        }
+
+        /**
+         * 将每张图片的原始像素依次复制到dst，第i张图片从dst[offset + i * 像素数]开始
+         * @param dst 目标数组
+         * @param offset 起始位置
+         */
+        public void pixelsInto(byte[] dst, int offset) {
+            int pixels = getPixelCount();
+            if (offset < 0 || offset + (long) count * pixels > dst.length) {
+                throw new IndexOutOfBoundsException("输出数组长度不足");
+            }
+            for (int i = 0; i < count; i++) {
+                MnistDataset.this.pixelsInto(indexOf(i), dst, offset + i * pixels);
+            }
+        }
+
+        /**
+         * 按默认系数归一化后写入out
+         * @param out (批大小, 像素数)的矩阵
+         */
+        public void inputsInto(Matrix out) {
+            inputsInto(out, SCALE);
+        }
+
+        /**
+         * 将每张图片的灰度值乘以scale后写入out的对应行
+         * @param out (批大小, 像素数)的矩阵
+         * @param scale 归一化系数
+         */
+        public void inputsInto(Matrix out, double scale) {
+            int pixels = getPixelCount();
+            checkShape(out, pixels);
+            for (int i = 0; i < count; i++) {
+                int base = indexOf(i) * pixels;
+                for (int p = 0; p < pixels; p++) {
+                    out.set(i, p, Byte.toUnsignedInt(images.get(base + p)) * scale);
+                }
+            }
+        }
+
+        /**
+         * 将每张图片的灰度值乘以scale后以单精度写入out，第i张图片从out[outOffset + i * 像素数]开始
+         * @param out 输出数组
+         * @param outOffset 起始位置
+         * @param scale 归一化系数
+         */
+        public void inputsInto(float[] out, int outOffset, float scale) {
+            int pixels = getPixelCount();
+            if (outOffset < 0 || outOffset + (long) count * pixels > out.length) {
+                throw new IndexOutOfBoundsException("输出数组长度不足");
+            }
+            for (int i = 0; i < count; i++) {
+                int base = indexOf(i) * pixels;
+                int dst = outOffset + i * pixels;
+                for (int p = 0; p < pixels; p++) {
+                    out[dst + p] = Byte.toUnsignedInt(images.get(base + p)) * scale;
+                }
+            }
+        }
+
+        /**
+         * 将标签写入out[0, 批大小)
+         * @param out 输出数组
+         */
+        public void labelsInto(int[] out) {
+            if (out.length < count) {
+                throw new IndexOutOfBoundsException("输出数组长度不足");
+            }
+            for (int i = 0; i < count; i++) {
+                out[i] = getLabel(i);
+            }
+        }
+
+        /**
+         * 将标签以one-hot编码写入out
+         * @param out (批大小, 类别数)的矩阵
+         * @param off 非目标类别的值
+         * @param on 目标类别的值
+         */
+        public void oneHotInto(Matrix out, double off, double on) {
+            checkShape(out, out.getColumnSize());
+            for (int i = 0; i < count; i++) {
+                for (int column = 0; column < out.getColumnSize(); column++) {
+                    out.set(i, column, off);
+                }
+                out.set(i, getLabel(i), on);
+            }
+        }
+
+        private void checkShape(Matrix out, int columns) {
+            if (out.getRowSize() != count || out.getColumnSize() != columns) {
+                throw new IllegalArgumentException(String.format("输出矩阵应为(%d, %d)，实际为(%d, %d)",
+                        count, columns, out.getRowSize(), out.getColumnSize()));
+            }
+        }
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("索引%d超出数据集范围[0, %d)", index, size));
+        }
+        return index;
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("idx文件不能超过2GB: " + path);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    @Override
+    public String toString() {
+        return "MnistDataset{" +
+                "size=" + size +
+                ", height=" + height +
+                ", width=" + width +
+                '}';
+    }
+}
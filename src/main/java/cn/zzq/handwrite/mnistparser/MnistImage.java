@@ -28,6 +28,23 @@ public class MnistImage {
         return images;
     }
 
+    /**
+     * 将所有图片展开为一个矩阵，每行为一张图片按行展开后的像素
+     * @return (size, height*width)的矩阵，元素为0-255的灰度值
+     */
+    public Matrix toMatrix() {
+        Matrix matrix = new Matrix(size, height * width);
+        for (int i = 0; i < size; i++) {
+            Matrix image = images.get(i);
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    matrix.set(i, row * width + column, image.get(row, column));
+                }
+            }
+        }
+        return matrix;
+    }
+
     public MnistImage(InputStream in) throws IOException {
         if(ParseUtil.parseU32bit(in.readNBytes(4)) != 0x00000803){
             throw new IOException("不合法的图像文件");
@@ -6,14 +6,28 @@ import java.io.InputStream;
 public class MnistLabel {
     final int size; //标签数目
     final byte[] labels; //标签
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 获取第index个标签
+     * @param index 索引
+     * @return 标签对应的数字(0-9)
+     */
+    public int getLabel(int index) {
+        return Byte.toUnsignedInt(labels[index]);
+    }
+
     public MnistLabel(InputStream in) throws IOException {
         if(ParseUtil.parseU32bit(in.readNBytes(4)) != 0x00000801){
             throw new IOException("不合法的标签文件");
         }
         size = (int) ParseUtil.parseU32bit(in.readNBytes(4));
-        labels = new byte[size];
-        for(int i = 0;i<size;i++){
-            labels[i] = (byte) in.read();
+        labels = in.readNBytes(size);
+        if (labels.length != size) {
+            throw new IOException("标签文件已截断");
         }
     }
 
@@ -0,0 +1,436 @@
+package cn.zzq.handwrite.server;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.Classifier;
+import cn.zzq.handwrite.ModelRegistry;
+import cn.zzq.handwrite.ModelSnapshot;
+import cn.zzq.handwrite.ModelWatcher;
+import cn.zzq.handwrite.eval.Evaluator;
+import cn.zzq.handwrite.matrix.KernelTuner;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.MatrixDotParallel;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于JDK内置HTTP服务器的推理服务
+ * <p>
+ * POST /predict?k=3 的请求体为若干张连续存放的28*28原始灰度图(长度为784的整数倍)，
+ * 或一个idx3格式的图片文件(16字节文件头加图片，长度除以784余16)，两者按长度区分。
+ * 响应为JSON，每张图片给出置信度最高的k个数字及其置信度，并带有产生结果的模型版本。
+ * GET /health 运行中返回200，关闭过程中返回503。
+ * <p>
+ * 每个请求在单独的线程上处理：运行在Java 21及以上时使用虚拟线程，否则使用按需创建的平台线程。
+ * 推理本身提交到{@link MatrixDotParallel}的线程池，计算密集的部分只占用固定数目的平台线程，
+ * 矩阵乘法的线程局部缓冲区也不会随每个虚拟线程重新分配。
+ * 指定{@link MicroBatcher}时，图片数不超过一批上限的请求交给它与其他并发请求合并推理，更大的请求单独推理。
+ * 同时处理的请求数超过上限或调度队列已满时立即返回503并带上Retry-After，不让请求排队使延迟无限增长。
+ * {@link #stop(long)}先拒绝新请求，再等待处理中的请求完成，最后关闭监听端口。
+ */
+public class InferenceServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final int DEFAULT_TOP_K = 3;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 200;
+
+    static final int IMAGE_BYTES = 28 * 28;
+    static final int IDX_MAGIC = 0x00000803;
+    static final int IDX_HEADER_SIZE = 16;
+
+    /**
+     * 请求体的最大字节数，约两万张图片
+     */
+    static final int MAX_BODY_BYTES = 16 << 20;
+
+    static {
+        //JDK的HTTP服务器默认不关闭Nagle算法，响应头与响应体分两次写出，小请求每次都要等待对端的延迟确认(约40ms)
+        //该属性在服务器配置类加载时读取，须在第一次创建HttpServer之前设置，启动参数中已指定时不覆盖
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Classifier classifier;
+    private final MicroBatcher batcher;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    private volatile boolean stopping;
+    private final AtomicLong servedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * 创建服务并绑定端口，调用{@link #start()}后开始处理请求
+     * @param classifier 分类器
+     * @param address 监听地址，端口为0时由系统分配
+     * @param maxInFlight 同时处理的最大请求数
+     * @throws IOException 端口绑定失败
+     */
+    public InferenceServer(Classifier classifier, InetSocketAddress address, int maxInFlight) throws IOException {
+        this(classifier, address, maxInFlight, null);
+    }
+
+    /**
+     * 创建服务并绑定端口，调用{@link #start()}后开始处理请求
+     * @param classifier 分类器
+     * @param address 监听地址，端口为0时由系统分配
+     * @param maxInFlight 同时处理的最大请求数
+     * @param batcher 合并并发请求的调度器，为null时每个请求单独推理；其生命周期由调用方管理
+     * @throws IOException 端口绑定失败
+     */
+    public InferenceServer(Classifier classifier, InetSocketAddress address, int maxInFlight,
+                           MicroBatcher batcher) throws IOException {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight必须为正数");
+        }
+        this.classifier = classifier;
+        this.batcher = batcher;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(new RequestThreadFactory());
+
+        this.httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/predict", this::predict);
+        httpServer.createContext("/health", this::health);
+        httpServer.setExecutor(executor);
+    }
+
+    /**
+     * 通过反射创建每个任务一个虚拟线程的执行器，Java 21以下返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;    //方法不存在，或在Java 19/20上未开启预览特性
+        }
+    }
+
+    public void start() {
+        httpServer.start();
+    }
+
+    /**
+     * 获取实际监听的端口
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * 请求是否在虚拟线程上处理
+     */
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * 获取正在处理的请求数
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * 获取成功处理的请求数
+     */
+    public long getServedCount() {
+        return servedCount.get();
+    }
+
+    /**
+     * 获取因超过并发上限或正在关闭而拒绝的请求数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * 优雅关闭：拒绝新请求，等待处理中的请求完成后关闭端口与线程
+     * @param timeoutMillis 等待处理中请求的最长时间
+     * @return 是否所有请求都在超时前完成
+     * @throws InterruptedException 等待时被中断
+     */
+    public boolean stop(long timeoutMillis) throws InterruptedException {
+        stopping = true;
+        boolean drained = permits.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS);
+        httpServer.stop(0);
+        if (drained) {
+            executor.shutdown();
+        } else {
+            executor.shutdownNow();
+        }
+        return drained;
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        try {
+            if (stopping) {
+                send(exchange, 503, "{\"status\":\"stopping\"}");
+            } else {
+                send(exchange, 200, "{\"status\":\"ok\"}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "只支持POST");
+                return;
+            }
+            if (stopping || !permits.tryAcquire()) {
+                rejectedCount.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, stopping ? "服务正在关闭" : "请求过多");
+                return;
+            }
+            try {
+                int k = parseTopK(exchange.getRequestURI().getRawQuery(), classifier.getOutputNodeCount());
+                Matrix inputs = decode(readBody(exchange));
+                BatchPrediction prediction = infer(inputs);
+                send(exchange, 200, toJson(prediction, k));
+                servedCount.incrementAndGet();
+            } finally {
+                permits.release();
+            }
+        } catch (RequestException e) {
+            if (e.status == 503) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+            }
+            sendError(exchange, e.status, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 交给调度器合并推理，或在矩阵乘法的线程池上单独推理，当前线程只等待结果
+     */
+    private BatchPrediction infer(Matrix inputs) throws RequestException {
+        try {
+            if (batcher != null && inputs.getRowSize() <= batcher.getMaxBatchSize()) {
+                return batcher.submit(inputs).get();
+            }
+            return MatrixDotParallel.getPool().submit(() -> classifier.queryBatch(inputs)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestException(503, "推理被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                rejectedCount.incrementAndGet();
+                throw new RequestException(503, "请求过多");
+            }
+            throw new RequestException(500, "推理出错: " + e.getCause());
+        }
+    }
+
+    private static int parseTopK(String query, int max) throws RequestException {
+        if (query == null) {
+            return Math.min(DEFAULT_TOP_K, max);
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("k=")) {
+                try {
+                    int k = Integer.parseInt(parameter.substring(2));
+                    if (k >= 1 && k <= max) {
+                        return k;
+                    }
+                } catch (NumberFormatException ignored) {
+                    //与超出范围相同处理
+                }
+                throw new RequestException(400, "k必须为1到" + max + "之间的整数");
+            }
+        }
+        return Math.min(DEFAULT_TOP_K, max);
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException, RequestException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new RequestException(413, "请求体超过" + MAX_BODY_BYTES + "字节");
+            }
+            return body;
+        }
+    }
+
+    /**
+     * 将原始图片或idx3文件解码为归一化的输入矩阵，每行为一张图片
+     */
+    static Matrix decode(byte[] body) throws RequestException {
+        int offset;
+        int count;
+        if (body.length > 0 && body.length % IMAGE_BYTES == 0) {
+            offset = 0;
+            count = body.length / IMAGE_BYTES;
+        } else if (body.length % IMAGE_BYTES == IDX_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.wrap(body, 0, IDX_HEADER_SIZE);
+            int magic = header.getInt();
+            count = header.getInt();
+            int rows = header.getInt();
+            int columns = header.getInt();
+            if (magic != IDX_MAGIC || rows * columns != IMAGE_BYTES
+                    || IDX_HEADER_SIZE + (long) count * IMAGE_BYTES != body.length) {
+                throw new RequestException(400, "不合法的idx3图片数据");
+            }
+            offset = IDX_HEADER_SIZE;
+        } else {
+            throw new RequestException(400, "请求体应为784字节整数倍的原始图片或idx3格式的图片");
+        }
+        Matrix inputs = new Matrix(count, IMAGE_BYTES);
+        for (int i = 0; i < count; i++) {
+            for (int p = 0; p < IMAGE_BYTES; p++) {
+                inputs.set(i, p, Byte.toUnsignedInt(body[offset + i * IMAGE_BYTES + p]) / 255f);    //与Main相同的归一化
+            }
+        }
+        return inputs;
+    }
+
+    static String toJson(BatchPrediction prediction, int k) {
+        int[] digits = prediction.topK(k);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"modelVersion\":").append(prediction.getModelVersion())
+                .append(",\"count\":").append(prediction.getSize()).append(",\"predictions\":[");
+        for (int row = 0; row < prediction.getSize(); row++) {
+            if (row > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"digits\":[");
+            for (int i = 0; i < k; i++) {
+                sb.append(i > 0 ? "," : "").append(digits[row * k + i]);
+            }
+            sb.append("],\"confidences\":[");
+            for (int i = 0; i < k; i++) {
+                sb.append(i > 0 ? "," : "").append(prediction.getConfidence(row, digits[row * k + i]));
+            }
+            sb.append("]}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * 请求无法正常处理，携带应返回的HTTP状态码
+     */
+    static final class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * 没有虚拟线程时使用的守护线程
+     */
+    private static final class RequestThreadFactory implements ThreadFactory {
+        private final AtomicInteger index = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "inference-request-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * 使用assets中的权重启动服务，权重文件变化时自动加载为新版本，Ctrl+C时优雅关闭
+     * 参数依次为：端口(默认8080) 最大并发请求数(默认64) 一批最多合并的图片数(默认32，为0时不合并) 最长等待微秒数(默认200)
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_IN_FLIGHT;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_BATCH_SIZE;
+        long maxWaitMicros = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_MAX_WAIT_MICROS;
+
+        BPNetwork network = Evaluator.loadNetwork();
+        network.tuneKernels(1, Math.max(1, maxBatchSize));     //单张与合并后的批
+        if (KernelTuner.getLoadFailure() != null) {
+            System.err.println("忽略无法读取的内核配置，重新测量: " + KernelTuner.getLoadFailure().getMessage());
+        }
+        ModelRegistry registry = new ModelRegistry(network);
+        ModelWatcher watcher = ModelWatcher.watchAssets(registry);
+        watcher.setListener(new ModelWatcher.Listener() {
+            @Override
+            public void reloaded(ModelSnapshot snapshot) {
+                System.out.printf("已重新加载权重，当前版本%d%n", snapshot.getVersion());
+            }
+
+            @Override
+            public void failed(Exception e) {
+                System.err.printf("重新加载权重失败，继续使用版本%d: %s%n", registry.getVersion(), e);
+            }
+        });
+        MicroBatcher batcher = maxBatchSize > 0
+                ? new MicroBatcher(registry, IMAGE_BYTES, maxBatchSize, maxWaitMicros, maxInFlight) : null;
+        InferenceServer server = new InferenceServer(registry, new InetSocketAddress(port), maxInFlight, batcher);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+                boolean drained = server.stop(10_000);
+                System.out.printf("服务已关闭，共处理%d个请求，拒绝%d个%s%n", server.getServedCount(),
+                        server.getRejectedCount(), drained ? "" : "，部分请求未完成");
+                if (batcher != null) {
+                    batcher.close();
+                    System.out.printf("共合并%d批，平均每批%.2f张图片%n", batcher.getBatchCount(), batcher.getAverageBatchSize());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        server.start();
+        System.out.printf("推理服务监听端口%d，最大并发请求数%d，请求线程: %s，%s%n", server.getPort(), maxInFlight,
+                server.isUsingVirtualThreads() ? "虚拟线程" : "平台线程",
+                batcher != null ? String.format("每批最多合并%d张图片，最长等待%dus", maxBatchSize, maxWaitMicros) : "不合并请求");
+    }
+}
@@ -0,0 +1,213 @@
+package cn.zzq.handwrite.server;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.FileDefinition;
+import cn.zzq.handwrite.eval.Evaluator;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 推理服务的压测工具，测量本机上的延迟分位数与吞吐量
+ * <p>
+ * 每个工作线程循环发送请求，收到响应后立即发送下一个(闭环)，并发数即同时在途的请求数。
+ * 第一秒作为预热不计入统计。被服务拒绝的503与其他错误单独计数，不计入延迟。
+ */
+public class LoadGenerator {
+    private static final int WARMUP_MILLIS = 1000;
+
+    /**
+     * 参数依次为：服务地址或embedded(默认，在本进程内启动服务) 并发数(默认8) 持续秒数(默认10) 每个请求的图片张数(默认1)
+     * 内置服务还可以指定：一批最多合并的图片数(默认0，即不合并) 最长等待微秒数(默认200)
+     */
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "embedded";
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int imagesPerRequest = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int maxBatchSize = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        long maxWaitMicros = args.length > 5 ? Long.parseLong(args[5]) : InferenceServer.DEFAULT_MAX_WAIT_MICROS;
+
+        InferenceServer server = null;
+        MicroBatcher batcher = null;
+        String url = target;
+        if ("embedded".equals(target)) {
+            BPNetwork network = Evaluator.loadNetwork();
+            int maxInFlight = InferenceServer.DEFAULT_MAX_IN_FLIGHT;
+            if (maxBatchSize > 0) {
+                batcher = new MicroBatcher(network, InferenceServer.IMAGE_BYTES, maxBatchSize, maxWaitMicros, maxInFlight);
+            }
+            server = new InferenceServer(network, new InetSocketAddress("127.0.0.1", 0), maxInFlight, batcher);
+            server.start();
+            url = "http://127.0.0.1:" + server.getPort();
+            System.out.printf("已在端口%d启动服务，请求线程: %s%n", server.getPort(),
+                    server.isUsingVirtualThreads() ? "虚拟线程" : "平台线程");
+        }
+
+        byte[][] bodies = loadBodies(imagesPerRequest, 64);
+        Result result = run(URI.create(url + "/predict"), bodies, concurrency, seconds);
+        result.print(concurrency, imagesPerRequest);
+
+        if (server != null) {
+            boolean drained = server.stop(5000);
+            System.out.printf("服务已关闭%s，处理%d个请求，拒绝%d个%n", drained ? "" : "(超时)",
+                    server.getServedCount(), server.getRejectedCount());
+        }
+        if (batcher != null) {
+            batcher.close();
+            System.out.printf("合并%d批，平均每批%.2f张图片，批大小分布: %s%n", batcher.getBatchCount(),
+                    batcher.getAverageBatchSize(), Arrays.toString(batcher.getBatchSizeHistogram()));
+        }
+    }
+
+    /**
+     * 生成请求体：测试集存在时取其中的图片，否则生成约20%像素非零的随机图片
+     */
+    private static byte[][] loadBodies(int imagesPerRequest, int count) {
+        int imageBytes = InferenceServer.IMAGE_BYTES;
+        byte[][] bodies = new byte[count][imagesPerRequest * imageBytes];
+        MnistDataset dataset = null;
+        try {
+            dataset = MnistDataset.open(FileDefinition.TEST_IMAGE_FILE, FileDefinition.TEST_LABELS_FILE);
+        } catch (IOException e) {
+            System.out.println("未找到测试集，使用随机图片");
+        }
+        Random random = new Random(42);
+        int index = 0;
+        for (byte[] body : bodies) {
+            for (int i = 0; i < imagesPerRequest; i++) {
+                if (dataset != null) {
+                    dataset.pixelsInto(index++ % dataset.getSize(), body, i * imageBytes);
+                } else {
+                    for (int p = 0; p < imageBytes; p++) {
+                        body[i * imageBytes + p] = random.nextDouble() < 0.2 ? (byte) random.nextInt(256) : 0;
+                    }
+                }
+            }
+        }
+        return bodies;
+    }
+
+    static Result run(URI uri, byte[][] bodies, int concurrency, int seconds) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        long start = System.nanoTime();
+        long measureFrom = start + WARMUP_MILLIS * 1_000_000L;
+        long end = measureFrom + seconds * 1_000_000_000L;
+
+        Result result = new Result();
+        Worker[] workers = new Worker[concurrency];
+        Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            workers[i] = new Worker(client, uri, bodies, i, measureFrom, end, result);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (int i = 0; i < concurrency; i++) {
+            threads[i].join();
+            result.merge(workers[i]);
+        }
+        result.elapsedNs = Math.min(System.nanoTime(), end) - measureFrom;
+        return result;
+    }
+
+    /**
+     * 单个闭环工作线程，延迟记录在线程自己的数组中，结束后合并
+     */
+    private static final class Worker implements Runnable {
+        private final HttpClient client;
+        private final URI uri;
+        private final byte[][] bodies;
+        private final long measureFrom;
+        private final long end;
+        private final Result result;
+        private int next;
+        long[] latencies = new long[1024];
+        int count;
+
+        Worker(HttpClient client, URI uri, byte[][] bodies, int index, long measureFrom, long end, Result result) {
+            this.client = client;
+            this.uri = uri;
+            this.bodies = bodies;
+            this.next = index;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/octet-stream")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(bodies[next++ % bodies.length]))
+                        .build();
+                int status;
+                try {
+                    status = client.send(request, HttpResponse.BodyHandlers.ofByteArray()).statusCode();
+                } catch (IOException e) {
+                    status = -1;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long latency = System.nanoTime() - now;
+                if (now < measureFrom) {
+                    continue;
+                }
+                if (status == 200) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = latency;
+                } else if (status == 503) {
+                    result.rejected.incrementAndGet();
+                } else {
+                    result.errors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    static final class Result {
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        long[] latencies = new long[0];
+        long elapsedNs;
+
+        void merge(Worker worker) {
+            int size = latencies.length;
+            latencies = Arrays.copyOf(latencies, size + worker.count);
+            System.arraycopy(worker.latencies, 0, latencies, size, worker.count);
+        }
+
+        /**
+         * 第p百分位的延迟(毫秒)，使用最近秩法
+         */
+        double percentile(double p) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            int rank = (int) Math.ceil(p / 100 * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        void print(int concurrency, int imagesPerRequest) {
+            Arrays.sort(latencies);
+            double qps = latencies.length / (elapsedNs / 1e9);
+            System.out.printf("并发%d 每请求%d张图片 持续%.1fs%n", concurrency, imagesPerRequest, elapsedNs / 1e9);
+            System.out.printf("成功%d 拒绝(503)%d 错误%d%n", latencies.length, rejected.get(), errors.get());
+            System.out.printf("QPS %.1f 图片/秒 %.1f%n", qps, qps * imagesPerRequest);
+            System.out.printf("延迟(ms): p50 %.3f p90 %.3f p99 %.3f max %.3f%n",
+                    percentile(50), percentile(90), percentile(99), percentile(100));
+        }
+    }
+}
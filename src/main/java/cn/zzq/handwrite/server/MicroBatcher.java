@@ -0,0 +1,284 @@
+package cn.zzq.handwrite.server;
+
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.Classifier;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 动态小批量调度器，把并发到达的少量图片合并为一次批量推理
+ * <p>
+ * 单张图片的推理是1*784的行向量乘以784*100的权重矩阵，每次都要完整读一遍权重，受内存带宽限制；
+ * 合并为N行后权重只读一次，单张图片的耗时随N近似成比例下降。
+ * 调用方通过{@link #submit(Matrix)}提交图片并得到future，图片进入有界队列；
+ * 调度线程取出第一个请求后继续收集，直到合并的图片数达到上限或等待超过最长等待时间，
+ * 然后一次调用{@link Classifier#queryBatch(Matrix)}，再把输出按请求拆分并完成各自的future，同一批的结果来自同一个模型版本。
+ * 推理进行期间到达的请求在队列中累积，负载越高批越大，空闲时单个请求最多多等待一个最长等待时间。
+ * 已提交而未完成的请求都已在当前批中时不再等待：调用方等待结果期间不会再提交，等下去只会增加延迟。
+ * <p>
+ * future在调度线程上完成，依赖它的回调应尽量轻，耗时的处理应交给其他线程。
+ */
+public final class MicroBatcher implements AutoCloseable {
+    private static final long IDLE_POLL_MILLIS = 100;  //空闲时检查是否已关闭的间隔
+
+    private final Classifier classifier;
+    private final int inputSize;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+    private final AtomicInteger outstanding = new AtomicInteger();    //已进入队列而future尚未完成的请求数
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong imageCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLongArray batchSizeCounts;     //第i项为恰好合并了i张图片的批数
+
+    /**
+     * 创建调度器并启动调度线程
+     * @param classifier 分类器，只在调度线程上调用
+     * @param inputSize 每张图片的像素数，即输入矩阵的列数
+     * @param maxBatchSize 一批最多合并的图片数
+     * @param maxWaitMicros 收到第一个请求后最多等待的微秒数，为0时只合并已在队列中的请求
+     * @param queueCapacity 队列中最多等待的请求数，队列满时拒绝新请求
+     */
+    public MicroBatcher(Classifier classifier, int inputSize, int maxBatchSize, long maxWaitMicros, int queueCapacity) {
+        if (inputSize <= 0 || maxBatchSize <= 0 || maxWaitMicros < 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException(String.format("参数不合法: inputSize=%d maxBatchSize=%d maxWaitMicros=%d queueCapacity=%d",
+                    inputSize, maxBatchSize, maxWaitMicros, queueCapacity));
+        }
+        this.classifier = classifier;
+        this.inputSize = inputSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSizeCounts = new AtomicLongArray(maxBatchSize + 1);
+        this.dispatcher = new Thread(this::dispatch, "micro-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * 提交一组图片，推理完成前调用方不能修改inputs
+     * @param inputs 输入矩阵，每行为一张归一化后的图片，行数不能超过一批的上限
+     * @return 这组图片的推理结果；队列已满或调度器已关闭时以{@link RejectedExecutionException}失败
+     */
+    public CompletableFuture<BatchPrediction> submit(Matrix inputs) {
+        int rows = inputs.getRowSize();
+        if (inputs.getColumnSize() != inputSize) {
+            throw new MatrixShapeException(rows, inputSize, rows, inputs.getColumnSize());
+        }
+        if (rows == 0 || rows > maxBatchSize) {
+            throw new IllegalArgumentException(String.format("每次提交的图片数须在1到%d之间，实际为%d", maxBatchSize, rows));
+        }
+        Request request = new Request(inputs);
+        outstanding.incrementAndGet();
+        if (closed || !queue.offer(request)) {
+            outstanding.decrementAndGet();
+            return reject(request, closed ? "调度器已关闭" : "队列已满");
+        }
+        //offer与close并发时，close可能已经清空过队列，此时由提交方自行撤回
+        if (closed && queue.remove(request)) {
+            outstanding.decrementAndGet();
+            return reject(request, "调度器已关闭");
+        }
+        return request.future;
+    }
+
+    private CompletableFuture<BatchPrediction> reject(Request request, String reason) {
+        rejectedCount.incrementAndGet();
+        request.future.completeExceptionally(new RejectedExecutionException(reason));
+        return request.future;
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        Request carry = null;   //上一批放不下、留到下一批的请求
+        try {
+            while (true) {
+                Request first = carry != null ? carry : queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                carry = null;
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                int rows = first.rows;
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (rows < maxBatchSize) {
+                    Request next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || closed || outstanding.get() == batch.size()) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    if (rows + next.rows > maxBatchSize) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next);
+                    rows += next.rows;
+                }
+                flush(batch, rows);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            if (carry != null) {
+                outstanding.decrementAndGet();
+                reject(carry, "调度器已关闭");
+            }
+        }
+    }
+
+    /**
+     * 合并一批请求的输入，推理后按请求拆分输出
+     */
+    private void flush(List<Request> batch, int rows) {
+        try {
+            Matrix inputs;
+            if (batch.size() == 1) {
+                inputs = batch.get(0).inputs;
+            } else {
+                inputs = new Matrix(rows, inputSize);
+                int row = 0;
+                for (Request request : batch) {
+                    inputs.rowsView(row, row + request.rows).assign(request.inputs.view());
+                    row += request.rows;
+                }
+            }
+            BatchPrediction prediction = classifier.queryBatch(inputs);
+            Matrix output = prediction.getOutput();
+            if (batch.size() == 1) {
+                batch.get(0).future.complete(prediction);
+            } else {
+                int row = 0;
+                for (Request request : batch) {
+                    Matrix own = output.rowsView(row, row + request.rows).toMatrix();
+                    row += request.rows;
+                    request.future.complete(new BatchPrediction(own, prediction.getModelVersion()));
+                }
+            }
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        outstanding.addAndGet(-batch.size());
+        batchCount.incrementAndGet();
+        requestCount.addAndGet(batch.size());
+        imageCount.addAndGet(rows);
+        batchSizeCounts.incrementAndGet(rows);
+    }
+
+    /**
+     * 停止接受新请求，处理完队列中已有的请求后停止调度线程
+     * 等待期间被中断时不再等待，恢复中断标志，队列中剩余的请求被拒绝
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            outstanding.decrementAndGet();
+            reject(request, "调度器已关闭");
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * 获取队列中等待的请求数
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 获取已执行的批数
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * 获取已处理的请求数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 获取已推理的图片张数
+     */
+    public long getImageCount() {
+        return imageCount.get();
+    }
+
+    /**
+     * 获取因队列已满或已关闭而拒绝的请求数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * 获取平均每批的图片张数
+     */
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) imageCount.get() / batches;
+    }
+
+    /**
+     * 获取批大小的分布
+     * @return 长度为上限+1的数组，第i项为恰好合并了i张图片的批数
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[batchSizeCounts.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = batchSizeCounts.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * 一次提交，对应一个future
+     */
+    private static final class Request {
+        final Matrix inputs;
+        final int rows;
+        final CompletableFuture<BatchPrediction> future = new CompletableFuture<>();
+
+        Request(Matrix inputs) {
+            this.inputs = inputs;
+            this.rows = inputs.getRowSize();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.ModelFile;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 训练期间的异步权重检查点，写盘不阻塞训练线程
+ * <p>
+ * 训练线程在两步之间调用{@link #checkpoint}，只把inputHiddenW与hiddenOutputW复制到预先分配的暂存区，
+ * 之后由后台线程写成{@link ModelFile}格式的模型文件(矩阵名称与{@link BPNetwork#save}相同)，
+ * 文件中另有一个名为{@value #TRAINING_STATE_NAME}的矩阵记录训练进度({@link TrainingState})。
+ * 暂存区有两份：一份正在被后台线程写盘时，训练线程复制到另一份；
+ * 后台线程还没开始写上一个快照时又来了新的快照，新快照直接覆盖上一个(计入{@link #getSupersededCount()})，
+ * 训练线程因此从不等待磁盘。暂存区分配一次后反复使用，复制不分配对象。
+ * <p>
+ * 每个检查点先写入临时文件并同步到磁盘，再原子地重命名为checkpoint-步数.bpnm并同步目录，
+ * 崩溃时目录中只会有完整的检查点；之后只保留最近的若干个，更早的被删除。
+ * {@link #list(Path)}列出目录中的检查点，任意一个都可以通过{@link Checkpoint#restore}恢复权重、
+ * 通过{@link Checkpoint#readState}读出训练进度，再由{@link MiniBatchTrainer#resume}从该步继续训练。
+ * <p>
+ * 后台写盘失败时不影响训练，失败记录在{@link #getFailureCount()}中，并由下一次{@link #flush()}或{@link #close()}抛出。
+ */
+public class CheckpointService implements Closeable {
+    /**
+     * 默认保留的检查点个数
+     */
+    public static final int DEFAULT_KEEP = 3;
+
+    /**
+     * 检查点文件中训练进度矩阵的名称
+     */
+    public static final String TRAINING_STATE_NAME = "trainingState";
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bpnm";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern NAME = Pattern.compile("checkpoint-(\\d+)\\.bpnm");
+
+    private final Path directory;
+    private final int keep;
+    private final Staging[] buffers = {new Staging(), new Staging()};
+    private final Thread writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition staged = lock.newCondition();   //有新的快照等待写盘
+    private final Condition idle = lock.newCondition();     //快照全部写完
+    private Staging pending;        //已复制完、等待写盘的快照
+    private Staging writing;        //后台线程正在写的快照
+    private IOException failure;    //尚未报告的写盘失败
+    private boolean closed;
+
+    private long stagedCount;       //只由训练线程修改
+    private long stageNanos;
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    /**
+     * 创建检查点目录并启动后台写盘线程，上次崩溃留下的临时文件被删除
+     * @param directory 检查点目录，不存在时自动创建
+     * @param keep 保留的检查点个数
+     * @throws IOException 无法创建目录或清理临时文件
+     */
+    public CheckpointService(Path directory, int keep) throws IOException {
+        if (keep <= 0) {
+            throw new IllegalArgumentException("保留的检查点个数必须为正数: " + keep);
+        }
+        this.directory = directory;
+        this.keep = keep;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path temp : stream) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        this.writer = new Thread(this::write, "checkpoint-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 在两步之间调用，把网络当前的权重与训练进度复制到暂存区后立即返回，由后台线程写盘
+     * 调用期间网络不能被训练；调用返回后网络可以继续训练，不影响已暂存的快照
+     * @param network 网络
+     * @param state 训练进度，其中已完成的步数作为检查点的编号
+     * @throws IllegalStateException 已经关闭
+     */
+    public void checkpoint(BPNetwork network, TrainingState state) {
+        long start = System.nanoTime();
+        Staging target;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("检查点服务已关闭");
+            }
+            if (pending != null) {
+                //后台线程还没开始写，新快照取代它
+                target = pending;
+                pending = null;
+                supersededCount.incrementAndGet();
+            } else {
+                target = buffers[0] == writing ? buffers[1] : buffers[0];
+            }
+        } finally {
+            lock.unlock();
+        }
+        //target既不是pending也不是writing，后台线程不会访问它，复制无需持有锁
+        target.copyFrom(network, state);
+        lock.lock();
+        try {
+            pending = target;
+            staged.signal();
+        } finally {
+            lock.unlock();
+        }
+        stagedCount++;
+        stageNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * 等待已暂存的快照全部写盘
+     * @throws IOException 上次报告之后有快照写盘失败
+     * @throws InterruptedException 等待时被中断
+     */
+    public void flush() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (pending != null || writing != null) {
+                idle.await();
+            }
+            reportFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写完已暂存的快照后停止后台线程
+     * @throws IOException 有快照写盘失败
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            staged.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            reportFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reportFailure() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private void write() {
+        while (true) {
+            Staging snapshot;
+            lock.lock();
+            try {
+                while (pending == null && !closed) {
+                    staged.awaitUninterruptibly();
+                }
+                if (pending == null) {
+                    return;     //已关闭且没有待写的快照
+                }
+                snapshot = pending;
+                pending = null;
+                writing = snapshot;
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            IOException error = null;
+            try {
+                write(snapshot);
+                writtenCount.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                error = e instanceof IOException ? (IOException) e : new IOException("写入检查点失败", e);
+                failureCount.incrementAndGet();
+            }
+            writeNanos.addAndGet(System.nanoTime() - start);
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    if (failure == null) {
+                        failure = error;
+                    } else {
+                        failure.addSuppressed(error);
+                    }
+                }
+                writing = null;
+                idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 由{@link ModelFile#write}写入临时文件、同步并原子地重命名，之后同步目录，最后删除多余的旧检查点
+     */
+    private void write(Staging snapshot) throws IOException {
+        Map<String, Matrix> matrices = new LinkedHashMap<>();
+        matrices.put(BPNetwork.INPUT_HIDDEN_NAME, snapshot.inputHidden);
+        matrices.put(BPNetwork.HIDDEN_OUTPUT_NAME, snapshot.hiddenOutput);
+        matrices.put(TRAINING_STATE_NAME, snapshot.state);
+        ModelFile.write(directory.resolve(fileName(snapshot.step)), matrices);
+        syncDirectory();
+        List<Checkpoint> checkpoints = list(directory);
+        for (int i = 0; i < checkpoints.size() - keep; i++) {
+            Files.deleteIfExists(checkpoints.get(i).getPath());
+        }
+    }
+
+    /**
+     * 同步目录，使重命名本身落盘；有的平台不能以通道打开目录，此时只能依赖文件系统
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //忽略
+        }
+    }
+
+    private static String fileName(long step) {
+        return String.format("%s%012d%s", PREFIX, step, SUFFIX);
+    }
+
+    /**
+     * 暂存的次数，包括被取代的快照
+     */
+    public long getStagedCount() {
+        return stagedCount;
+    }
+
+    /**
+     * 训练线程在{@link #checkpoint}中花费的总时间(纳秒)
+     */
+    public long getStageNanos() {
+        return stageNanos;
+    }
+
+    /**
+     * 成功写盘的检查点个数
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * 写盘之前被更新的快照取代的快照个数，持续增长说明检查点间隔短于写盘时间
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * 后台线程写盘的总时间(纳秒)
+     */
+    public long getWriteNanos() {
+        return writeNanos.get();
+    }
+
+    /**
+     * 列出目录中的检查点
+     * @param directory 检查点目录
+     * @return 按步数从小到大排列，目录不存在时为空
+     * @throws IOException 读取目录失败
+     */
+    public static List<Checkpoint> list(Path directory) throws IOException {
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return checkpoints;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                Matcher matcher = NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    checkpoints.add(new Checkpoint(path, Long.parseLong(matcher.group(1))));
+                }
+            }
+        }
+        checkpoints.sort(Comparator.comparingLong(Checkpoint::getStep));
+        return checkpoints;
+    }
+
+    /**
+     * 目录中步数最大的检查点
+     * @param directory 检查点目录
+     * @return 检查点，没有时为null
+     * @throws IOException 读取目录失败
+     */
+    public static Checkpoint latest(Path directory) throws IOException {
+        List<Checkpoint> checkpoints = list(directory);
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    /**
+     * 目录中的一个检查点
+     */
+    public static final class Checkpoint {
+        private final Path path;
+        private final long step;
+
+        Checkpoint(Path path, long step) {
+            this.path = path;
+            this.step = step;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * 写入检查点时已完成的训练步数
+         */
+        public long getStep() {
+            return step;
+        }
+
+        /**
+         * 把检查点中的权重加载到网络，文件损坏(校验和不符)时抛出异常，可以改用更早的检查点
+         * @param network 形状相同的网络
+         * @throws IOException 读取失败或文件损坏
+         */
+        public void restore(BPNetwork network) throws IOException {
+            network.load(path);
+        }
+
+        /**
+         * 读出检查点中的训练进度
+         * @return 训练进度，检查点中没有记录时为null
+         * @throws IOException 读取失败、文件损坏或训练进度的格式不合法
+         */
+        public TrainingState readState() throws IOException {
+            try (ModelFile file = ModelFile.open(path)) {
+                if (!file.getNames().contains(TRAINING_STATE_NAME)) {
+                    return null;
+                }
+                return TrainingState.readFrom(file.read(TRAINING_STATE_NAME));
+            } catch (MatrixShapeException e) {
+                throw new IOException("检查点中的训练进度格式不合法: " + path, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return path.getFileName() + "(第" + step + "步)";
+        }
+    }
+
+    /**
+     * 一份暂存区，形状与网络不同时重新分配
+     */
+    private static final class Staging {
+        Matrix inputHidden;
+        Matrix hiddenOutput;
+        final Matrix state = new Matrix(1, TrainingState.SIZE);
+        long step;
+
+        void copyFrom(BPNetwork network, TrainingState trainingState) {
+            inputHidden = copy(network.getInputHiddenMatrix(), inputHidden);
+            hiddenOutput = copy(network.getHiddenOutputMatrix(), hiddenOutput);
+            trainingState.writeTo(state);
+            this.step = trainingState.getStep();
+        }
+
+        private static Matrix copy(Matrix source, Matrix target) {
+            if (target == null || target.diffShape(source)) {
+                return source.copy();
+            }
+            target.fill(source);
+            return target;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.FileDefinition;
+import cn.zzq.handwrite.TrainWorkspace;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 数据并行训练器，多个工作线程共同训练同一个网络
+ * <p>
+ * 同步模式下每个小批量被切分为threads份，各线程把自己那一份的梯度算到独占的工作区中，
+ * 之后各线程分别负责权重矩阵的一段行，把所有线程的梯度归约到共享权重上，再进入下一批。
+ * <p>
+ * Hogwild模式下各线程在本轮打乱后的样本中各取一段，独立地按小批量计算梯度并直接更新共享权重，
+ * 不加锁也不等待其他线程，个别更新可能互相覆盖，换取更高的吞吐。
+ * 由于计算梯度期间权重可能已被其他线程更新，梯度会滞后若干步，线程较多时应适当调小学习率。
+ */
+public class DataParallelTrainer implements AutoCloseable {
+
+    /**
+     * 并行训练的模式
+     */
+    public enum Mode {
+        SYNCHRONOUS,    //同步，每批梯度归约后统一更新
+        HOGWILD         //异步，各线程无锁地直接更新共享权重
+    }
+
+    private final BPNetwork network;
+    private final int threads;
+    private final int batchSize;
+    private final int epochs;
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Worker[] workers;
+    private Random random = new Random();
+    private EpochListener listener;     //每轮结束时的回调，为null时不回调
+
+    /**
+     * @param network 待训练的网络
+     * @param threads 工作线程数
+     * @param batchSize 每批样本数，同步模式下为所有线程合计的批大小，Hogwild模式下为每个线程的批大小
+     * @param epochs 训练轮数
+     * @param mode 并行模式
+     */
+    public DataParallelTrainer(BPNetwork network, int threads, int batchSize, int epochs, Mode mode) {
+        if (threads <= 0 || batchSize <= 0 || epochs <= 0) {
+            throw new IllegalArgumentException("threads、batchSize与epochs必须为正数");
+        }
+        this.network = network;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.epochs = epochs;
+        this.mode = mode;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "trainer-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+    }
+
+    /**
+     * 设置打乱样本顺序所用的随机数发生器
+     * @param random 随机数发生器
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * 设置每轮结束时的回调
+     * @param listener 回调，为null时不回调
+     */
+    public void setEpochListener(EpochListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 在训练数据上训练epochs轮
+     * @param data 训练数据
+     * @return 每秒训练的样本数(所有轮次的平均值)
+     */
+    public double fit(TrainingData data) {
+        int size = data.getSize();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        long totalNs = 0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            long ns = System.nanoTime();
+            MiniBatchTrainer.shuffle(order, random);
+            if (mode == Mode.SYNCHRONOUS) {
+                synchronousEpoch(data, order);
+            } else {
+                hogwildEpoch(data, order);
+            }
+            long deltaNs = System.nanoTime() - ns;
+            totalNs += deltaNs;
+            if (Metrics.ENABLED) {
+                Metrics.recordEpoch(deltaNs, size);
+            }
+            if (listener != null) {
+                listener.onEpoch(epoch, size, deltaNs);
+            }
+        }
+        return (double) size * epochs / (totalNs / 1e9);
+    }
+
+    /**
+     * 同步模式的一轮：每批先并行计算梯度，再并行归约
+     */
+    private void synchronousEpoch(TrainingData data, int[] order) {
+        int size = data.getSize();
+        List<Callable<Void>> computeTasks = new ArrayList<>(threads);
+        List<Callable<Void>> reduceTasks = new ArrayList<>(threads);
+        for (int offset = 0; offset < size; offset += batchSize) {
+            int batch = Math.min(batchSize, size - offset);
+            double scale = network.getLearningRate() / batch;
+            int shards = Math.min(threads, batch);  //批太小时部分线程空闲
+            computeTasks.clear();
+            reduceTasks.clear();
+            for (int t = 0; t < shards; t++) {
+                Worker worker = workers[t];
+                int from = offset + (int) ((long) batch * t / shards);
+                int to = offset + (int) ((long) batch * (t + 1) / shards);
+                computeTasks.add(() -> {
+                    worker.computeGradients(data, order, from, to - from);
+                    return null;
+                });
+            }
+            invokeAll(computeTasks);
+
+            //第t个线程负责把所有线程梯度的第t段行累加到共享权重上
+            Matrix[] inputHiddenGradients = workerGradients(shards, true);
+            Matrix[] hiddenOutputGradients = workerGradients(shards, false);
+            for (int t = 0; t < shards; t++) {
+                int part = t;
+                reduceTasks.add(() -> {
+                    reduce(network.getInputHiddenMatrix(), inputHiddenGradients, scale, part, shards);
+                    reduce(network.getHiddenOutputMatrix(), hiddenOutputGradients, scale, part, shards);
+                    return null;
+                });
+            }
+            invokeAll(reduceTasks);
+        }
+    }
+
+    /**
+     * Hogwild模式的一轮：各线程取本轮样本的一段，无锁地训练
+     */
+    private void hogwildEpoch(TrainingData data, int[] order) {
+        int size = data.getSize();
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Worker worker = workers[t];
+            int from = (int) ((long) size * t / threads);
+            int to = (int) ((long) size * (t + 1) / threads);
+            tasks.add(() -> {
+                for (int offset = from; offset < to; offset += batchSize) {
+                    int batch = Math.min(batchSize, to - offset);
+                    worker.computeGradients(data, order, offset, batch);
+                    network.applyGradients(worker.workspace, network.getLearningRate() / batch);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    private Matrix[] workerGradients(int shards, boolean inputHidden) {
+        Matrix[] gradients = new Matrix[shards];
+        for (int t = 0; t < shards; t++) {
+            TrainWorkspace ws = workers[t].workspace;
+            gradients[t] = inputHidden ? ws.getInputHiddenGradient() : ws.getHiddenOutputGradient();
+        }
+        return gradients;
+    }
+
+    /**
+     * 将各线程梯度的第part段行按scale倍累加到权重上
+     */
+    private static void reduce(Matrix weight, Matrix[] gradients, double scale, int part, int parts) {
+        int rows = weight.getRowSize();
+        int rowFrom = (int) ((long) rows * part / parts);
+        int rowTo = (int) ((long) rows * (part + 1) / parts);
+        for (Matrix gradient : gradients) {
+            weight.addScaledWith(gradient, scale, rowFrom, rowTo);
+        }
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("训练被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("训练线程出错", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 工作线程独占的批数据与工作区
+     */
+    private final class Worker {
+        final TrainWorkspace workspace = new TrainWorkspace(network, false);
+        Matrix inputs;
+        Matrix labels;
+
+        /**
+         * 取order[offset, offset+count)对应的样本计算梯度之和
+         */
+        void computeGradients(TrainingData data, int[] order, int offset, int count) {
+            if (inputs == null || inputs.getRowSize() != count) {
+                inputs = new Matrix(count, data.getInputSize());
+                labels = new Matrix(count, data.getOutputSize());
+            }
+            data.gather(order, offset, inputs, labels);
+            network.computeGradients(inputs, labels, workspace);
+        }
+    }
+
+    /**
+     * 用MNIST训练集测量1到N个线程下的训练吞吐，观察内存带宽在几个线程时饱和
+     * 参数依次为：最大线程数(默认为CPU核数) 每批样本数(默认256) 模式(SYNCHRONOUS或HOGWILD，默认SYNCHRONOUS)
+     */
+    public static void main(String[] args) throws IOException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        Mode mode = args.length > 2 ? Mode.valueOf(args[2]) : Mode.SYNCHRONOUS;
+
+        TrainingData data = TrainingData.load(FileDefinition.TRAIN_IMAGE_FILE, FileDefinition.TRAIN_LABELS_FILE);
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            BPNetwork network = new BPNetwork(784, 100, 10, 1.0);
+            try (DataParallelTrainer trainer = new DataParallelTrainer(network, threads, batchSize, 1, mode)) {
+                int n = threads;
+                trainer.setEpochListener((epoch, samples, nanos) -> System.out.printf(
+                        "epoch %d: %.2f s, %.0f samples/s (%s, %d threads)%n",
+                        epoch + 1, nanos / 1e9, samples / (nanos / 1e9), mode, n));
+                double samplesPerSecond = trainer.fit(data);
+                if (threads == 1) {
+                    baseline = samplesPerSecond;
+                }
+                System.out.printf("threads=%d  %.0f samples/s  speedup %.2fx%n",
+                        threads, samplesPerSecond, samplesPerSecond / baseline);
+            }
+        }
+    }
+}
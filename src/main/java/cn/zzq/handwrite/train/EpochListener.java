@@ -0,0 +1,14 @@
+package cn.zzq.handwrite.train;
+
+/**
+ * 每轮训练结束时的回调，由训练器在训练线程上调用，用于输出进度或记录日志
+ */
+@FunctionalInterface
+public interface EpochListener {
+    /**
+     * @param epoch 轮次，从0开始
+     * @param samples 本轮训练的样本数
+     * @param nanos 本轮耗时(纳秒)
+     */
+    void onEpoch(int epoch, int samples, long nanos);
+}
@@ -0,0 +1,339 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.FileDefinition;
+import cn.zzq.handwrite.ModelRegistry;
+import cn.zzq.handwrite.matrix.KernelProfile;
+import cn.zzq.handwrite.matrix.KernelTuner;
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * 小批量训练器，按轮次遍历训练数据，每轮可打乱样本顺序，每次取batchSize个样本训练一步
+ */
+public class MiniBatchTrainer {
+    private final BPNetwork network;
+    private final int batchSize;    //每批样本数
+    private final int epochs;       //训练轮数
+    private final boolean shuffle;  //每轮开始前是否打乱样本顺序
+    private long seed = new Random().nextLong();     //打乱样本顺序的随机种子，每次fit从该种子开始
+    private ModelRegistry registry;     //每轮结束后发布权重的注册表，为null时不发布
+    private EpochListener listener;     //每轮结束时的回调，为null时不回调
+    private int prefetchDepth;          //预取的批数，为0时在训练线程上同步准备数据
+    private int prefetchThreads = 1;    //准备数据的后台线程数
+    private CheckpointService checkpoints;  //写检查点的服务，为null时不写
+    private int checkpointInterval;         //每隔多少步写一个检查点
+    private long resumeStep;                //从检查点恢复时已完成的步数，fit跳过这些批
+    private TrainingState resumeState;      //检查点中记录的训练进度，没有记录时为null
+    private int batchesPerEpoch;            //本次fit每轮的批数
+    private PrefetchingBatchLoader lastLoader;  //最近一次预取训练所用的加载器
+
+    /**
+     * @param network 待训练的网络
+     * @param batchSize 每批样本数
+     * @param epochs 训练轮数
+     * @param shuffle 每轮开始前是否打乱样本顺序
+     */
+    public MiniBatchTrainer(BPNetwork network, int batchSize, int epochs, boolean shuffle) {
+        if (batchSize <= 0 || epochs <= 0) {
+            throw new IllegalArgumentException("batchSize与epochs必须为正数");
+        }
+        this.network = network;
+        this.batchSize = batchSize;
+        this.epochs = epochs;
+        this.shuffle = shuffle;
+    }
+
+    /**
+     * 设置打乱样本顺序所用的随机种子，固定种子可复现训练过程；种子随检查点保存，{@link #resume}时恢复
+     * @param seed 随机种子
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * 设置发布权重的注册表，每轮结束后把网络的权重复制为新版本发布，训练期间推理方可以安全地使用最新一轮的权重
+     * @param registry 注册表，为null时不发布
+     */
+    public void setRegistry(ModelRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 设置每轮结束时的回调
+     * @param listener 回调，为null时不回调
+     */
+    public void setEpochListener(EpochListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 设置后台预取，数据的打乱、取样、归一化与训练计算重叠进行，见{@link PrefetchingBatchLoader}
+     * 固定随机种子时训练过程与同步准备数据完全相同
+     * @param depth 最多提前准备的批数，为0时不预取
+     * @param threads 准备数据的后台线程数
+     */
+    public void setPrefetch(int depth, int threads) {
+        if (depth < 0 || threads <= 0) {
+            throw new IllegalArgumentException("depth不能为负数，threads必须为正数");
+        }
+        this.prefetchDepth = depth;
+        this.prefetchThreads = threads;
+    }
+
+    /**
+     * 设置检查点，每训练interval步以及训练结束时把权重交给检查点服务异步写盘，训练线程只花费复制权重的时间
+     * @param service 检查点服务，为null时不写检查点
+     * @param interval 检查点间隔的步数
+     */
+    public void setCheckpoints(CheckpointService service, int interval) {
+        if (service != null && interval <= 0) {
+            throw new IllegalArgumentException("检查点间隔必须为正数: " + interval);
+        }
+        this.checkpoints = service;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * 从检查点恢复：加载其中的权重与训练进度，下一次{@link #fit}跳过检查点之前已训练的批，从下一批继续训练；
+     * 恢复只对下一次fit生效，之后的fit重新从第0步训练
+     * 随机种子恢复为原训练的种子，跳过的轮次仍按原来的顺序打乱，继续训练的结果与不间断训练逐位相同；
+     * 检查点中没有训练进度时只恢复步数，需要先通过{@link #setSeed}设置原训练的种子
+     * @param checkpoint 检查点
+     * @throws IOException 读取失败或文件损坏
+     * @throws IllegalArgumentException 检查点的批大小与训练器不同
+     */
+    public void resume(CheckpointService.Checkpoint checkpoint) throws IOException {
+        TrainingState state = checkpoint.readState();
+        if (state != null && state.getBatchSize() != batchSize) {
+            throw new IllegalArgumentException(String.format("检查点%s的批大小%d与训练器的批大小%d不同",
+                    checkpoint, state.getBatchSize(), batchSize));
+        }
+        checkpoint.restore(network);
+        if (state != null) {
+            this.seed = state.getSeed();
+        }
+        this.resumeState = state;
+        this.resumeStep = checkpoint.getStep();
+    }
+
+    /**
+     * 最近一次预取训练所用的加载器，训练结束后可读取训练线程等待数据的次数与时间
+     * @return 加载器，尚未以预取方式训练时为null
+     */
+    public PrefetchingBatchLoader getLastLoader() {
+        return lastLoader;
+    }
+
+    /**
+     * 在训练数据上训练epochs轮
+     * <p>
+     * 步数从0开始计数(从检查点恢复时从检查点的步数继续)，检查点以步数命名，
+     * 同一个训练器多次fit并写检查点时，后一次的检查点会覆盖前一次同一步的检查点，应为每次训练使用单独的检查点目录
+     * @param data 训练数据
+     * @throws IllegalArgumentException 从检查点恢复时，训练数据的样本数与检查点记录的进度不符，此时恢复仍然有效
+     */
+    public void fit(TrainingData data) {
+        batchesPerEpoch = (data.getSize() + batchSize - 1) / batchSize;
+        if (resumeState != null) {
+            TrainingState expected = TrainingState.of(resumeStep, seed, batchSize, batchesPerEpoch);
+            if (expected.getEpoch() != resumeState.getEpoch() || expected.getOffset() != resumeState.getOffset()) {
+                throw new IllegalArgumentException(String.format("检查点的训练进度%s与%d个样本的训练数据不符",
+                        resumeState, data.getSize()));
+            }
+        }
+        try {
+            train(data);
+        } finally {
+            //恢复只对这一次fit生效
+            resumeStep = 0;
+            resumeState = null;
+        }
+    }
+
+    private void train(TrainingData data) {
+        if (prefetchDepth > 0) {
+            fitPrefetching(data);
+            return;
+        }
+        int size = data.getSize();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+
+        //整批与最后不足一批的样本分别复用同一组矩阵
+        Matrix batchInputs = new Matrix(batchSize, data.getInputSize());
+        Matrix batchLabels = new Matrix(batchSize, data.getOutputSize());
+        int tail = size % batchSize;
+        Matrix tailInputs = new Matrix(tail, data.getInputSize());
+        Matrix tailLabels = new Matrix(tail, data.getOutputSize());
+
+        Random random = new Random(seed);
+        long step = 0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            long ns = System.nanoTime();
+            if (shuffle) {
+                shuffle(order, random);
+            }
+            for (int offset = 0; offset < size; offset += batchSize) {
+                if (step < resumeStep) {
+                    step++;     //恢复前已训练的批，只保持打乱顺序所用的随机数序列
+                    continue;
+                }
+                boolean full = offset + batchSize <= size;
+                Matrix x = full ? batchInputs : tailInputs;
+                Matrix y = full ? batchLabels : tailLabels;
+                data.gather(order, offset, x, y);
+                network.trainBatch(x, y);
+                endStep(++step);
+            }
+            if (step > resumeStep) {
+                endEpoch(epoch, size, System.nanoTime() - ns);
+            }
+        }
+        endFit(step);
+    }
+
+    private void fitPrefetching(TrainingData data) {
+        try (PrefetchingBatchLoader loader = new PrefetchingBatchLoader(data, batchSize, epochs, shuffle, new Random(seed),
+                prefetchDepth, prefetchThreads)) {
+            lastLoader = loader;
+            long ns = System.nanoTime();
+            long step = 0;
+            PrefetchingBatchLoader.Batch batch;
+            while ((batch = loader.next()) != null) {
+                if (step < resumeStep) {
+                    step++;     //恢复前已训练的批，取出后直接归还
+                    loader.release(batch);
+                    ns = System.nanoTime();
+                    continue;
+                }
+                network.trainBatch(batch.getInputs(), batch.getLabels());
+                endStep(++step);
+                int epoch = batch.getEpoch();
+                boolean epochEnd = batch.isEpochEnd();
+                loader.release(batch);
+                if (epochEnd) {
+                    endEpoch(epoch, data.getSize(), System.nanoTime() - ns);
+                    ns = System.nanoTime();
+                }
+            }
+            endFit(step);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("训练被中断", e);
+        }
+    }
+
+    /**
+     * 一步训练完成后，到了检查点间隔时暂存权重
+     */
+    private void endStep(long step) {
+        if (checkpoints != null && step % checkpointInterval == 0) {
+            checkpoints.checkpoint(network, TrainingState.of(step, seed, batchSize, batchesPerEpoch));
+        }
+    }
+
+    /**
+     * 训练结束时为最后一步补写检查点
+     */
+    private void endFit(long step) {
+        if (checkpoints != null && step > resumeStep && step % checkpointInterval != 0) {
+            checkpoints.checkpoint(network, TrainingState.of(step, seed, batchSize, batchesPerEpoch));
+        }
+    }
+
+    private void endEpoch(int epoch, int size, long deltaNs) {
+        if (Metrics.ENABLED) {
+            Metrics.recordEpoch(deltaNs, size);
+        }
+        if (listener != null) {
+            listener.onEpoch(epoch, size, deltaNs);
+        }
+        if (registry != null) {
+            registry.publish(network);
+        }
+    }
+
+    /**
+     * Fisher-Yates洗牌
+     */
+    static void shuffle(int[] order, Random random) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * 用MNIST训练集从头训练一个网络
+     * 参数依次为：轮数(默认1) 每批样本数(默认32) 学习率(默认1.0) 预取批数(默认4，为0时不预取) 预取线程数(默认1)
+     * 检查点间隔步数(默认0，不写检查点) 检查点目录(默认checkpoints)；目录中已有检查点时从最新的一个继续训练
+     */
+    public static void main(String[] args) throws IOException {
+        int epochs = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        double learningRate = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int prefetchDepth = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int prefetchThreads = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int checkpointInterval = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        Path checkpointDirectory = Paths.get(args.length > 6 ? args[6] : "checkpoints");
+
+        long ns = System.nanoTime();
+        TrainingData data = TrainingData.load(FileDefinition.TRAIN_IMAGE_FILE, FileDefinition.TRAIN_LABELS_FILE);
+        System.out.printf("加载%d个训练样本用时%.2f s%n", data.getSize(), (System.nanoTime() - ns) / 1e9);
+
+        BPNetwork network = new BPNetwork(784, 100, 10, learningRate);
+        ns = System.nanoTime();
+        KernelProfile profile = network.tuneKernels(batchSize);
+        if (KernelTuner.getLoadFailure() != null) {
+            System.err.println("忽略无法读取的内核配置，重新测量: " + KernelTuner.getLoadFailure().getMessage());
+        }
+        if (profile != null) {
+            System.out.printf("内核配置用时%.2f s: %s%n", (System.nanoTime() - ns) / 1e9, profile);
+        }
+        MiniBatchTrainer trainer = new MiniBatchTrainer(network, batchSize, epochs, true);
+        trainer.setPrefetch(prefetchDepth, prefetchThreads);
+        trainer.setEpochListener((epoch, samples, nanos) -> System.out.printf("epoch %d: %.2f s, %.0f samples/s%n",
+                epoch + 1, nanos / 1e9, samples / (nanos / 1e9)));
+        if (checkpointInterval <= 0) {
+            trainer.fit(data);
+        } else {
+            try (CheckpointService checkpoints = new CheckpointService(checkpointDirectory, CheckpointService.DEFAULT_KEEP)) {
+                CheckpointService.Checkpoint latest = CheckpointService.latest(checkpointDirectory);
+                if (latest != null) {
+                    trainer.resume(latest);
+                    System.out.println("从检查点" + latest + "继续训练，随机种子" + trainer.getSeed());
+                }
+                trainer.setCheckpoints(checkpoints, checkpointInterval);
+                trainer.fit(data);
+                checkpoints.flush();
+                System.out.printf("写入%d个检查点，训练线程每次暂存%.1f us，后台每次写盘%.2f ms%n",
+                        checkpoints.getWrittenCount(), checkpoints.getStageNanos() / 1e3 / Math.max(1, checkpoints.getStagedCount()),
+                        checkpoints.getWriteNanos() / 1e6 / Math.max(1, checkpoints.getWrittenCount()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        PrefetchingBatchLoader loader = trainer.getLastLoader();
+        if (loader != null) {
+            System.out.printf("预取：等待数据%d次共%.1f ms，取批时平均已就绪%.2f批，后台线程等待空槽%.1f ms%n",
+                    loader.getStallCount(), loader.getStallNanos() / 1e6, loader.getAverageReadyDepth(),
+                    loader.getProducerWaitNanos() / 1e6);
+        }
+    }
+}
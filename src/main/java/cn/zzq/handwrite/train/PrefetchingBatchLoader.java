@@ -0,0 +1,352 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.matrix.Matrix;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 预取小批量的加载器，数据准备与训练计算在不同线程上重叠进行
+ * <p>
+ * 后台线程按轮次打乱样本顺序，取出每批样本、归一化并生成one-hot标签，写入预先分配的环形缓冲区；
+ * 训练线程通过{@link #next()}按顺序取出已准备好的批，训练完后以{@link #release(Batch)}归还缓冲区。
+ * 缓冲区数目即最多提前准备的批数，全部占满时后台线程等待，不会无限占用内存。
+ * 每批都有全局序号，多个后台线程各自领取序号并写入序号对应的槽，训练线程仍然按序号顺序取出，
+ * 因此在固定随机种子时，批的顺序与内容和同步准备完全相同，与后台线程数无关。
+ * <p>
+ * {@link #getStallNanos()}是训练线程等待数据的累计时间，不为0说明后台线程跟不上，应增加线程数或缓冲区数；
+ * {@link #getAverageReadyDepth()}是每次取批时已准备好的批数，长期接近缓冲区数说明缓冲区可以减少。
+ */
+public class PrefetchingBatchLoader implements AutoCloseable {
+    private final TrainingData data;
+    private final int batchSize;
+    private final boolean shuffle;
+    private final Random random;
+    private final int batchesPerEpoch;
+    private final long totalBatches;
+    private final Slot[] slots;
+    private final Thread[] workers;
+
+    //各轮的样本顺序，按轮次依次生成，该轮最后一批被取出后删除
+    private final ConcurrentHashMap<Integer, int[]> orders = new ConcurrentHashMap<>();
+    private int nextOrderEpoch;     //下一个需要生成顺序的轮次，由orderOf同步访问
+    private int[] lastOrder;        //最近生成的顺序，下一轮在其基础上打乱，与同步训练的顺序一致
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private final Condition slotReady = lock.newCondition();
+    private final AtomicLong nextClaim = new AtomicLong();  //下一个待领取的序号
+    private long nextTake;          //训练线程下一个取出的序号
+    private long released;          //已归还的批数，序号小于released + 槽数的批可以开始准备
+    private int readyCount;         //已准备好而未取出的批数
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong stallCount = new AtomicLong();
+    private final AtomicLong producerWaitNanos = new AtomicLong();
+    private long readyDepthSum;     //每次取批时已准备好的批数之和
+
+    /**
+     * 创建加载器并启动后台线程
+     * @param data 训练数据
+     * @param batchSize 每批样本数，每轮最后一批可能较少
+     * @param epochs 轮数
+     * @param shuffle 每轮开始前是否打乱样本顺序
+     * @param random 打乱顺序所用的随机数发生器，只在后台线程中按轮次顺序使用
+     * @param depth 环形缓冲区的槽数，即最多提前准备的批数
+     * @param threads 后台线程数
+     */
+    public PrefetchingBatchLoader(TrainingData data, int batchSize, int epochs, boolean shuffle, Random random,
+                                  int depth, int threads) {
+        if (batchSize <= 0 || epochs <= 0 || depth <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("batchSize、epochs、depth与threads必须为正数");
+        }
+        this.data = data;
+        this.batchSize = batchSize;
+        this.shuffle = shuffle;
+        this.random = random;
+        this.batchesPerEpoch = (data.getSize() + batchSize - 1) / batchSize;
+        this.totalBatches = (long) batchesPerEpoch * epochs;
+
+        int tail = data.getSize() % batchSize;
+        this.slots = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            slots[i] = new Slot(data, batchSize, tail);
+        }
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::produce, "batch-loader-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getBatchesPerEpoch() {
+        return batchesPerEpoch;
+    }
+
+    /**
+     * 按顺序取出下一批，尚未准备好时等待
+     * @return 下一批，全部轮次结束后返回null
+     * @throws IllegalStateException 后台线程准备数据时出错
+     * @throws InterruptedException 等待时被中断
+     */
+    public Batch next() throws InterruptedException {
+        if (nextTake >= totalBatches) {
+            return null;
+        }
+        long sequence = nextTake;
+        Slot slot = slots[(int) (sequence % slots.length)];
+        lock.lock();
+        try {
+            readyDepthSum += readyCount;
+            if (slot.readySequence != sequence) {
+                long start = System.nanoTime();
+                while (slot.readySequence != sequence) {
+                    checkFailure();
+                    slotReady.await();
+                }
+                stallNanos.addAndGet(System.nanoTime() - start);
+                stallCount.incrementAndGet();
+            }
+            readyCount--;
+        } finally {
+            lock.unlock();
+        }
+        nextTake++;
+        int epoch = (int) (sequence / batchesPerEpoch);
+        boolean epochEnd = sequence % batchesPerEpoch == batchesPerEpoch - 1;
+        if (epochEnd) {
+            orders.remove(epoch);
+        }
+        slot.batch.set(sequence, epoch, epochEnd);
+        return slot.batch;
+    }
+
+    /**
+     * 归还一批的缓冲区，之后不能再使用该批的矩阵；必须按取出的顺序归还
+     * @param batch {@link #next()}返回的批
+     */
+    public void release(Batch batch) {
+        lock.lock();
+        try {
+            if (batch.sequence != released) {
+                throw new IllegalStateException(String.format("应先归还第%d批，实际归还第%d批", released, batch.sequence));
+            }
+            released++;
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void produce() {
+        try {
+            long sequence;
+            while (!closed && (sequence = nextClaim.getAndIncrement()) < totalBatches) {
+                Slot slot = slots[(int) (sequence % slots.length)];
+                lock.lock();
+                try {
+                    if (sequence - slots.length >= released) {
+                        long start = System.nanoTime();
+                        while (sequence - slots.length >= released) {
+                            slotFreed.await();
+                        }
+                        producerWaitNanos.addAndGet(System.nanoTime() - start);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                int epoch = (int) (sequence / batchesPerEpoch);
+                int offset = (int) (sequence % batchesPerEpoch) * batchSize;
+                boolean full = offset + batchSize <= data.getSize();
+                Matrix x = full ? slot.inputs : slot.tailInputs;
+                Matrix y = full ? slot.labels : slot.tailLabels;
+                data.gather(orderOf(epoch), offset, x, y);
+                slot.batch.inputs = x;
+                slot.batch.labels = y;
+
+                lock.lock();
+                try {
+                    slot.readySequence = sequence;
+                    readyCount++;
+                    slotReady.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            //关闭
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            lock.lock();
+            try {
+                slotReady.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 获取某一轮的样本顺序，按轮次顺序使用随机数发生器，保证与后台线程的调度无关
+     * 每轮复制上一轮的顺序再打乱，而不是从0..n-1重新打乱，与{@link MiniBatchTrainer}同步训练时相同
+     */
+    private int[] orderOf(int epoch) {
+        int[] order = orders.get(epoch);
+        if (order != null) {
+            return order;
+        }
+        synchronized (orders) {
+            while (nextOrderEpoch <= epoch) {
+                int[] generated;
+                if (lastOrder == null) {
+                    generated = new int[data.getSize()];
+                    for (int i = 0; i < generated.length; i++) {
+                        generated[i] = i;
+                    }
+                } else {
+                    generated = lastOrder.clone();
+                }
+                if (shuffle) {
+                    MiniBatchTrainer.shuffle(generated, random);
+                }
+                orders.put(nextOrderEpoch++, generated);
+                lastOrder = generated;
+            }
+            return orders.get(epoch);
+        }
+    }
+
+    private void checkFailure() {
+        Throwable t = failure;
+        if (t != null) {
+            throw new IllegalStateException("后台线程准备数据失败", t);
+        }
+    }
+
+    /**
+     * 获取训练线程等待数据的累计纳秒数
+     */
+    public long getStallNanos() {
+        return stallNanos.get();
+    }
+
+    /**
+     * 获取训练线程等待数据的次数
+     */
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    /**
+     * 获取后台线程因缓冲区全部占用而等待的累计纳秒数
+     */
+    public long getProducerWaitNanos() {
+        return producerWaitNanos.get();
+    }
+
+    /**
+     * 获取当前已准备好而未取出的批数
+     */
+    public int getReadyDepth() {
+        lock.lock();
+        try {
+            return readyCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取每次取批时已准备好的平均批数
+     */
+    public double getAverageReadyDepth() {
+        lock.lock();
+        try {
+            return nextTake == 0 ? 0 : (double) readyDepthSum / nextTake;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 停止后台线程，未取出的批被丢弃
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 一个槽的缓冲区，整批与每轮最后不足一批各用一组矩阵
+     */
+    private static final class Slot {
+        final Matrix inputs;
+        final Matrix labels;
+        final Matrix tailInputs;
+        final Matrix tailLabels;
+        final Batch batch = new Batch();
+        volatile long readySequence = -1;   //已准备好的批的序号
+
+        Slot(TrainingData data, int batchSize, int tail) {
+            inputs = new Matrix(batchSize, data.getInputSize());
+            labels = new Matrix(batchSize, data.getOutputSize());
+            tailInputs = tail == 0 ? null : new Matrix(tail, data.getInputSize());
+            tailLabels = tail == 0 ? null : new Matrix(tail, data.getOutputSize());
+        }
+    }
+
+    /**
+     * 一批训练数据，矩阵属于加载器，归还后会被覆盖
+     */
+    public static final class Batch {
+        Matrix inputs;
+        Matrix labels;
+        long sequence;
+        int epoch;
+        boolean epochEnd;
+
+        void set(long sequence, int epoch, boolean epochEnd) {
+            this.sequence = sequence;
+            this.epoch = epoch;
+            this.epochEnd = epochEnd;
+        }
+
+        /**
+         * 归一化后的输入，(批大小, 输入层节点数)
+         */
+        public Matrix getInputs() {
+            return inputs;
+        }
+
+        /**
+         * one-hot编码的期望输出，(批大小, 输出层节点数)
+         */
+        public Matrix getLabels() {
+            return labels;
+        }
+
+        /**
+         * 所属轮次，从0开始
+         */
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * 是否为该轮的最后一批
+         */
+        public boolean isEpochEnd() {
+            return epochEnd;
+        }
+    }
+}
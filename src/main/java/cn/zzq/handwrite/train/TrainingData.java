@@ -0,0 +1,135 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.mnistparser.MnistDataset;
+import cn.zzq.handwrite.mnistparser.MnistLabel;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 训练数据，输入与期望输出均按行存放
+ */
+public class TrainingData {
+    /**
+     * one-hot编码中非目标类别的值，sigmoid的输出无法达到0
+     */
+    public static final double OFF_VALUE = 0.01;
+
+    /**
+     * one-hot编码中目标类别的值，sigmoid的输出无法达到1
+     */
+    public static final double ON_VALUE = 0.99;
+
+    final Matrix inputs;            //(样本数, 输入层节点数)，数据来自MnistDataset时为null
+    final Matrix labels;            //(样本数, 输出层节点数)，数据来自MnistDataset时为null
+    final MnistDataset dataset;     //映射的MNIST数据集，按批转换
+    final int classes;
+
+    public TrainingData(Matrix inputs, Matrix labels) {
+        if (inputs.getRowSize() != labels.getRowSize()) {
+            throw new IllegalArgumentException(String.format("输入有%d个样本，标签却有%d个",
+                    inputs.getRowSize(), labels.getRowSize()));
+        }
+        this.inputs = inputs;
+        this.labels = labels;
+        this.dataset = null;
+        this.classes = labels.getColumnSize();
+    }
+
+    /**
+     * 以映射的MNIST数据集作为训练数据，像素保持原始字节，取批时才归一化
+     * @param dataset 数据集
+     * @param classes 类别数目
+     */
+    public TrainingData(MnistDataset dataset, int classes) {
+        this.inputs = null;
+        this.labels = null;
+        this.dataset = dataset;
+        this.classes = classes;
+    }
+
+    /**
+     * 获取全部输入，数据来自MnistDataset时会展开为一个新矩阵，占用大量内存
+     * @return (样本数, 输入层节点数)的矩阵
+     */
+    public Matrix getInputs() {
+        if (dataset == null) {
+            return inputs;
+        }
+        Matrix matrix = new Matrix(getSize(), getInputSize());
+        dataset.batch(0, getSize()).inputsInto(matrix);
+        return matrix;
+    }
+
+    /**
+     * 获取全部期望输出，数据来自MnistDataset时会展开为一个新矩阵
+     * @return (样本数, 输出层节点数)的矩阵
+     */
+    public Matrix getLabels() {
+        if (dataset == null) {
+            return labels;
+        }
+        Matrix matrix = new Matrix(getSize(), classes);
+        dataset.batch(0, getSize()).oneHotInto(matrix, OFF_VALUE, ON_VALUE);
+        return matrix;
+    }
+
+    public int getSize() {
+        return dataset == null ? inputs.getRowSize() : dataset.getSize();
+    }
+
+    public int getInputSize() {
+        return dataset == null ? inputs.getColumnSize() : dataset.getPixelCount();
+    }
+
+    public int getOutputSize() {
+        return classes;
+    }
+
+    /**
+     * 取order[offset, offset + 批大小)对应的样本写入x与y，批大小由x的行数决定
+     * @param order 样本顺序
+     * @param offset 起始位置
+     * @param x (批大小, 输入层节点数)的矩阵
+     * @param y (批大小, 输出层节点数)的矩阵
+     */
+    public void gather(int[] order, int offset, Matrix x, Matrix y) {
+        if (dataset == null) {
+            x.gatherRows(inputs, order, offset);
+            y.gatherRows(labels, order, offset);
+        } else {
+            MnistDataset.Batch batch = dataset.batch(order, offset, x.getRowSize());
+            batch.inputsInto(x);
+            batch.oneHotInto(y, OFF_VALUE, ON_VALUE);
+        }
+    }
+
+    /**
+     * 映射MNIST的idx文件作为训练数据，像素归一化到[0,1]，标签转为one-hot编码
+     * @param imageFile 图片文件
+     * @param labelFile 标签文件
+     * @return 训练数据
+     * @throws IOException 文件不存在或格式不合法
+     */
+    public static TrainingData load(File imageFile, File labelFile) throws IOException {
+        return new TrainingData(MnistDataset.open(imageFile, labelFile), 10);
+    }
+
+    /**
+     * 将标签转换为one-hot编码的矩阵
+     * @param labels 标签
+     * @param classes 类别数目
+     * @return (标签数目, classes)的矩阵
+     */
+    public static Matrix oneHot(MnistLabel labels, int classes) {
+        Matrix matrix = new Matrix(labels.getSize(), classes);
+        for (int row = 0; row < labels.getSize(); row++) {
+            for (int column = 0; column < classes; column++) {
+                matrix.set(row, column, OFF_VALUE);
+            }
+            matrix.set(row, labels.getLabel(row), ON_VALUE);
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,97 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+
+/**
+ * 检查点中与权重一起保存的训练进度：已完成的步数、打乱样本顺序的随机种子、批大小，以及下一批所在的轮次与轮内位置
+ * <p>
+ * 从检查点恢复时用同一个种子重新生成每轮的样本顺序，跳到记录的位置继续训练，结果与不间断训练逐位相同。
+ */
+public final class TrainingState {
+    static final int SIZE = 6;      //写入检查点时的元素个数
+
+    private final long step;
+    private final long seed;
+    private final int batchSize;
+    private final int epoch;
+    private final int offset;
+
+    /**
+     * @param step 已完成的训练步数
+     * @param seed 打乱样本顺序所用的随机种子
+     * @param batchSize 每批样本数
+     * @param epoch 下一批所在的轮次，从0开始
+     * @param offset 下一批在本轮样本顺序中的起始位置
+     */
+    public TrainingState(long step, long seed, int batchSize, int epoch, int offset) {
+        this.step = step;
+        this.seed = seed;
+        this.batchSize = batchSize;
+        this.epoch = epoch;
+        this.offset = offset;
+    }
+
+    /**
+     * 按步数计算训练进度，每轮的批数为样本数除以批大小向上取整
+     * @param step 已完成的训练步数
+     * @param seed 随机种子
+     * @param batchSize 每批样本数
+     * @param batchesPerEpoch 每轮的批数
+     * @return 训练进度
+     */
+    static TrainingState of(long step, long seed, int batchSize, int batchesPerEpoch) {
+        return new TrainingState(step, seed, batchSize, (int) (step / batchesPerEpoch),
+                (int) (step % batchesPerEpoch) * batchSize);
+    }
+
+    public long getStep() {
+        return step;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * 写入(1, 6)的矩阵，种子拆成高低两个32位整数，每个元素都能被double精确表示
+     */
+    void writeTo(Matrix row) {
+        row.set(0, 0, step);
+        row.set(0, 1, seed >> 32);
+        row.set(0, 2, seed & 0xFFFFFFFFL);
+        row.set(0, 3, batchSize);
+        row.set(0, 4, epoch);
+        row.set(0, 5, offset);
+    }
+
+    /**
+     * 从{@link #writeTo}写出的矩阵读出训练进度
+     * @throws MatrixShapeException 矩阵形状不是(1, 6)
+     */
+    static TrainingState readFrom(Matrix row) {
+        if (row.getRowSize() != 1 || row.getColumnSize() != SIZE) {
+            throw new MatrixShapeException(1, SIZE, row.getRowSize(), row.getColumnSize());
+        }
+        long seed = (long) row.get(0, 1) << 32 | (long) row.get(0, 2);
+        return new TrainingState((long) row.get(0, 0), seed, (int) row.get(0, 3), (int) row.get(0, 4),
+                (int) row.get(0, 5));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("第%d步(第%d轮第%d个样本，批大小%d，种子%d)", step, epoch + 1, offset, batchSize, seed);
+    }
+}
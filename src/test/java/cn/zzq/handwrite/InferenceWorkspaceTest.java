@@ -0,0 +1,51 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 预热之后，使用同一个工作区、批大小不变的推理不分配任何对象
+ */
+class InferenceWorkspaceTest {
+    private static final int WARMUP_IMAGES = 20000;
+    private static final int MEASURED_IMAGES = 10000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void singleImageQueryDoesNotAllocate() {
+        assertEquals(0, allocatedBytes(1));
+    }
+
+    @Test
+    void batchQueryDoesNotAllocate() {
+        assertEquals(0, allocatedBytes(8));
+    }
+
+    /**
+     * 预热后统计当前线程多次推理与取最大值下标共分配的字节数
+     */
+    private static long allocatedBytes(int batch) {
+        BPNetwork network = new BPNetwork(784, 100, 10, 0.05);
+        Matrix input = Matrix.normals(batch, 784, 0.5, 0.25);
+        InferenceWorkspace workspace = new InferenceWorkspace(network);
+        int[] digits = new int[batch];
+        for (int i = 0; i < WARMUP_IMAGES / batch; i++) {
+            new BatchPrediction(network.query(input, workspace)).argmaxInto(digits);
+        }
+
+        BatchPrediction prediction = new BatchPrediction(workspace.getOutput());
+        long threadId = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_IMAGES / batch; i++) {
+            network.query(input, workspace);
+            prediction.argmaxInto(digits);
+        }
+        return THREADS.getThreadAllocatedBytes(threadId) - before;
+    }
+}
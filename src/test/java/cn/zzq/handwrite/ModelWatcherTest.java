@@ -0,0 +1,120 @@
+package cn.zzq.handwrite;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 关心的文件写完后，加载器收到的是发生变化的那个文件，加载结果通过回调报告
+ */
+class ModelWatcherTest {
+    private static final long QUIET_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private Path directory;
+    private ModelRegistry registry;
+    private ModelWatcher watcher;
+    private final List<Path> loaded = new CopyOnWriteArrayList<>();
+    private final List<Object> reported = new CopyOnWriteArrayList<>();     //回调收到的快照或异常
+    private volatile boolean corrupt;   //为true时加载器抛出异常
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("model-watcher");
+        registry = new ModelRegistry(new BPNetwork(4, 3, 2, 0.05));
+        watcher = new ModelWatcher(registry, directory, Set.of("model.bpnm", "weights.csv"), changed -> {
+            loaded.add(changed);
+            if (corrupt) {
+                throw new IOException("文件已损坏");
+            }
+            return new BPNetwork(4, 3, 2, 0.05);
+        }, QUIET_MILLIS);
+        watcher.setListener(new ModelWatcher.Listener() {
+            @Override
+            public void reloaded(ModelSnapshot snapshot) {
+                reported.add(snapshot);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                reported.add(e);
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        watcher.close();
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    void loaderReceivesTheChangedFile() throws Exception {
+        Files.write(directory.resolve("weights.csv"), new byte[]{1});
+        awaitReloads(1);
+        assertEquals(directory.resolve("weights.csv"), loaded.get(0));
+
+        Files.write(directory.resolve("model.bpnm"), new byte[]{1});
+        awaitReloads(2);
+        assertEquals(directory.resolve("model.bpnm"), loaded.get(1));
+        assertEquals(3, registry.getVersion());
+    }
+
+    @Test
+    void ignoresOtherFiles() throws Exception {
+        Files.write(directory.resolve("notes.txt"), new byte[]{1});
+        Files.write(directory.resolve("model.bpnm"), new byte[]{1});
+        awaitReloads(1);
+        assertEquals(List.of(directory.resolve("model.bpnm")), loaded);
+    }
+
+    @Test
+    void failuresKeepTheCurrentVersion() throws Exception {
+        corrupt = true;
+        Files.write(directory.resolve("model.bpnm"), new byte[]{1});
+        awaitAttempts(1);
+        assertEquals(0, watcher.getReloadCount());
+        assertEquals(1, watcher.getFailureCount());
+        assertEquals(1, registry.getVersion());
+        assertTrue(reported.get(0) instanceof IOException);
+
+        corrupt = false;
+        Files.write(directory.resolve("model.bpnm"), new byte[]{2});
+        awaitAttempts(2);
+        assertEquals(1, watcher.getReloadCount());
+        assertEquals(2, registry.getVersion());
+        assertEquals(2, ((ModelSnapshot) reported.get(1)).getVersion());
+    }
+
+    private void awaitReloads(long count) throws InterruptedException {
+        awaitAttempts(count);
+        assertEquals(count, watcher.getReloadCount());
+        assertEquals(count, reported.size());
+    }
+
+    /**
+     * 等待成功与失败的加载次数之和达到count
+     */
+    private void awaitAttempts(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (reported.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, watcher.getReloadCount() + watcher.getFailureCount());
+    }
+}
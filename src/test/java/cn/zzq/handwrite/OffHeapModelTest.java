@@ -0,0 +1,105 @@
+package cn.zzq.handwrite;
+
+import cn.zzq.handwrite.matrix.Matrix;
+import cn.zzq.handwrite.matrix.OffHeapMatrix;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 映射模型文件的堆外模型：推理结果与堆上快照逐位一致，打开时不把权重读入堆中
+ * <p>
+ * 逐位比较依赖于激活函数的结果不随即时编译变化(见MatrixKernels)，逐块推理反复多轮，覆盖编译前后的比较。
+ */
+class OffHeapModelTest {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int TILED_ROUNDS = 20;
+
+    private BPNetwork network;
+    private Path path;
+
+    @BeforeEach
+    void saveModel() throws IOException {
+        network = new BPNetwork(784, 100, 10, 0.05);
+        path = Files.createTempFile("offheap", ".bpnm");
+        network.save(path);
+    }
+
+    @AfterEach
+    void deleteModel() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    void mappedModelMatchesHeapSnapshot() throws IOException {
+        ModelSnapshot snapshot = ModelSnapshot.of(network, 1);
+        Matrix input = Matrix.normals(32, 784, 0.5, 0.25);
+        try (OffHeapModel mapped = OffHeapModel.open(path, 1);
+             OffHeapModel copied = OffHeapModel.of(network, 1)) {
+            Matrix expected = snapshot.query(input);
+            assertBitwiseEquals(expected, mapped.query(input));
+            assertBitwiseEquals(expected, copied.query(input));
+        }
+    }
+
+    @Test
+    void tiledQueryMatchesWholeBatch() throws IOException {
+        int images = 1000;
+        Matrix input = Matrix.normals(images, 784, 0.5, 0.25);
+        Matrix expected = ModelSnapshot.of(network, 1).query(input);     //在推理路径被编译之前计算
+        try (OffHeapModel model = OffHeapModel.open(path, 1);
+             OffHeapMatrix inputs = OffHeapMatrix.copyOf(input);
+             OffHeapMatrix outputs = OffHeapMatrix.allocate(images, model.getOutputNodeCount())) {
+            for (int round = 0; round < TILED_ROUNDS; round++) {
+                model.queryInto(inputs, outputs, 256);      //最后一块不足256行
+                assertBitwiseEquals(expected, outputs.toMatrix());
+            }
+        }
+    }
+
+    @Test
+    void openingDoesNotCopyWeightsToHeap() throws IOException {
+        long threadId = Thread.currentThread().getId();
+        try (OffHeapModel warmup = OffHeapModel.open(path, 0)) {
+            warmup.getByteSize();
+        }
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        try (OffHeapModel model = OffHeapModel.open(path, 1)) {
+            long allocated = THREADS.getThreadAllocatedBytes(threadId) - before;
+            assertTrue(allocated < model.getByteSize() / 10,
+                    "打开映射模型分配了" + allocated + "字节，权重共" + model.getByteSize() + "字节");
+        }
+    }
+
+    @Test
+    void loadedNetworkMatchesSavedNetwork() throws IOException {
+        BPNetwork loaded = new BPNetwork(784, 100, 10, 0.05);
+        loaded.load(path);
+        assertBitwiseEquals(network.getInputHiddenMatrix(), loaded.getInputHiddenMatrix());
+        assertBitwiseEquals(network.getHiddenOutputMatrix(), loaded.getHiddenOutputMatrix());
+        //加载后模型文件已关闭，可以直接覆盖
+        new BPNetwork(784, 100, 10, 0.05).save(path);
+        loaded.load(path);
+    }
+
+    private static void assertBitwiseEquals(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRowSize(), actual.getRowSize());
+        assertEquals(expected.getColumnSize(), actual.getColumnSize());
+        for (int i = 0; i < expected.getRowSize(); i++) {
+            for (int j = 0; j < expected.getColumnSize(); j++) {
+                assertEquals(Double.doubleToLongBits(expected.get(i, j)), Double.doubleToLongBits(actual.get(i, j)),
+                        "(" + i + ", " + j + ")");
+            }
+        }
+    }
+}
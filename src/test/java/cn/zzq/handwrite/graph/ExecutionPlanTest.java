@@ -0,0 +1,138 @@
+package cn.zzq.handwrite.graph;
+
+import cn.zzq.handwrite.matrix.Activation;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 执行计划与逐层分配的推理结果逐位一致，预热后在执行计划上推理与训练不分配任何对象
+ * <p>
+ * 逐位比较依赖于激活函数的结果不随即时编译变化(见MatrixKernels)：逐层推理的结果在编译之前算出，
+ * 执行计划上的推理反复多轮，覆盖编译前后的比较。
+ */
+class ExecutionPlanTest {
+    private static final int BATCH = 8;
+    private static final int WARMUP_BATCHES = 300;
+    private static final int MEASURED_BATCHES = 100;
+    private static final int MEASURED_ROUNDS = 3;
+
+    private static final NetworkSpec SHALLOW =
+            NetworkSpec.input(784).dense(100, Activation.SIGMOID).dense(10, Activation.SIGMOID);
+    private static final NetworkSpec DEEP = NetworkSpec.input(784)
+            .dense(256, Activation.RELU, true)
+            .dense(128, Activation.TANH, true)
+            .dense(64, Activation.RELU, true)
+            .dense(10, Activation.SOFTMAX, true);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Random random = new Random(1);
+    private final Matrix inputs = sparseInputs(BATCH);
+    private final Matrix labels = oneHotLabels(BATCH);
+
+    @Test
+    void planQueryMatchesLayerByLayer() {
+        for (NetworkSpec spec : new NetworkSpec[]{SHALLOW, DEEP}) {
+            LayerGraph graph = new LayerGraph(spec, 0.05);
+            ExecutionPlan plan = graph.compile(32, ExecutionPlan.Mode.INFERENCE, false);
+            int[] rows = {1, BATCH, 32};
+            Matrix[] input = new Matrix[rows.length];
+            Matrix[] expected = new Matrix[rows.length];
+            for (int r = 0; r < rows.length; r++) {
+                input[r] = sparseInputs(rows[r]);
+                expected[r] = graph.query(input[r]);
+            }
+            for (int round = 0; round < WARMUP_BATCHES; round++) {
+                for (int r = 0; r < rows.length; r++) {
+                    assertBitwiseEquals(expected[r], graph.query(input[r], plan));
+                }
+            }
+        }
+    }
+
+    @Test
+    void intermediatesShareSlots() {
+        ExecutionPlan plan = new LayerGraph(DEEP, 0.05).compile(32, ExecutionPlan.Mode.INFERENCE, false);
+        assertEquals(2, plan.getSlotCount(), "推理时各隐藏层在两块缓冲区之间交替");
+        assertTrue(plan.getSlotBytes() < plan.getUnsharedBytes());
+    }
+
+    @Test
+    void inferenceDoesNotAllocate() {
+        for (NetworkSpec spec : new NetworkSpec[]{SHALLOW, DEEP}) {
+            LayerGraph graph = new LayerGraph(spec, 0.05);
+            ExecutionPlan plan = graph.compile(BATCH, ExecutionPlan.Mode.INFERENCE, false);
+            assertEquals(0, allocatedBytes(() -> graph.query(inputs, plan)), spec.toString());
+        }
+    }
+
+    @Test
+    void trainingDoesNotAllocate() {
+        for (NetworkSpec spec : new NetworkSpec[]{SHALLOW, DEEP}) {
+            LayerGraph graph = new LayerGraph(spec, 0.05);
+            ExecutionPlan plan = graph.compile(BATCH, ExecutionPlan.Mode.TRAINING, false);
+            assertEquals(0, allocatedBytes(() -> trainStep(graph, plan)), spec.toString());
+        }
+    }
+
+    /**
+     * 预热后分几轮统计当前线程运行batch共分配的字节数，取最少的一轮，
+     * 排除其他测试改变类型剖析后即时编译重新编译时的一次性分配
+     */
+    private static long allocatedBytes(Runnable batch) {
+        for (int i = 0; i < WARMUP_BATCHES; i++) {
+            batch.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS && least != 0; round++) {
+            long before = THREADS.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_BATCHES; i++) {
+                batch.run();
+            }
+            least = Math.min(least, THREADS.getThreadAllocatedBytes(threadId) - before);
+        }
+        return least;
+    }
+
+    private void trainStep(LayerGraph graph, ExecutionPlan plan) {
+        graph.computeGradients(inputs, labels, plan);
+        graph.applyGradients(plan, graph.getLearningRate() / BATCH);
+    }
+
+    private Matrix sparseInputs(int rows) {
+        Matrix matrix = new Matrix(rows, 784);
+        for (int i = 0; i < rows; i++) {
+            for (int k = 0; k < 784; k++) {
+                matrix.set(i, k, random.nextDouble() < 0.2 ? random.nextDouble() : 0);
+            }
+        }
+        return matrix;
+    }
+
+    private Matrix oneHotLabels(int rows) {
+        Matrix matrix = new Matrix(rows, 10);
+        for (int i = 0; i < rows; i++) {
+            matrix.set(i, random.nextInt(10), 1);
+        }
+        return matrix;
+    }
+
+    private static void assertBitwiseEquals(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRowSize(), actual.getRowSize());
+        assertEquals(expected.getColumnSize(), actual.getColumnSize());
+        for (int i = 0; i < expected.getRowSize(); i++) {
+            for (int j = 0; j < expected.getColumnSize(); j++) {
+                assertEquals(Double.doubleToLongBits(expected.get(i, j)), Double.doubleToLongBits(actual.get(i, j)),
+                        "(" + i + ", " + j + ")");
+            }
+        }
+    }
+}
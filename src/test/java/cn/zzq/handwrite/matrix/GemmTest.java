@@ -0,0 +1,84 @@
+package cn.zzq.handwrite.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 各条矩阵乘法路径与朴素三重循环逐位一致
+ */
+class GemmTest {
+
+    @Test
+    void matchesNaiveLoop() {
+        Random random = new Random(1);
+        int[][] shapes = {{1, 784, 100}, {5, 7, 9}, {32, 784, 100}, {64, 100, 10}, {130, 300, 517}, {17, 1000, 33}};
+        for (int[] shape : shapes) {
+            Matrix a = sparseInput(shape[0], shape[1], 0.2, random);
+            Matrix b = Matrix.normals(shape[1], shape[2], 0, 1);
+            assertBitwiseEquals(naive(a, b), a.dot(b));
+        }
+    }
+
+    @Test
+    void zeroTimesInfinityIsNaN() {
+        //默认不跳过零元素，0 * Inf与0 * NaN按IEEE 754得到NaN，不论按行累加还是分块计算
+        Random random = new Random(2);
+        for (int rows : new int[]{1, Gemm.ROW_KERNEL_MAX_ROWS, 64}) {
+            Matrix a = sparseInput(rows, 784, 0.2, random);
+            for (int i = 0; i < rows; i++) {
+                a.set(i, 0, 0);
+            }
+            Matrix b = Matrix.normals(784, 10, 0, 1);
+            b.set(0, 3, Double.POSITIVE_INFINITY);
+            b.set(0, 7, Double.NaN);
+            Matrix c = a.dot(b);
+            for (int i = 0; i < rows; i++) {
+                assertTrue(Double.isNaN(c.get(i, 3)), "0 * Inf");
+                assertTrue(Double.isNaN(c.get(i, 7)), "0 * NaN");
+            }
+            assertBitwiseEquals(naive(a, b), c);
+        }
+    }
+
+    /**
+     * 约density比例的元素为(0, 1]的随机数，其余为0，与MNIST图片的稀疏程度相当
+     */
+    private static Matrix sparseInput(int rows, int columns, double density, Random random) {
+        Matrix matrix = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                if (random.nextDouble() < density) {
+                    matrix.set(i, j, (1 + random.nextInt(255)) / 255.0);
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private static Matrix naive(Matrix a, Matrix b) {
+        Matrix c = new Matrix(a.getRowSize(), b.getColumnSize());
+        for (int i = 0; i < a.getRowSize(); i++) {
+            for (int j = 0; j < b.getColumnSize(); j++) {
+                double sum = 0;
+                for (int p = 0; p < a.getColumnSize(); p++) {
+                    sum += a.get(i, p) * b.get(p, j);
+                }
+                c.set(i, j, sum);
+            }
+        }
+        return c;
+    }
+
+    private static void assertBitwiseEquals(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRowSize(), actual.getRowSize());
+        assertEquals(expected.getColumnSize(), actual.getColumnSize());
+        for (int i = 0; i < expected.data.length; i++) {
+            assertEquals(Double.doubleToLongBits(expected.data[i]), Double.doubleToLongBits(actual.data[i]),
+                    "第" + i + "个元素");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cn.zzq.handwrite.matrix;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 内核配置只影响速度：任意分块大小与划分方式下结果逐位相同；配置文件损坏时重新测量并报告原因
+ */
+class KernelTunerTest {
+
+    @AfterEach
+    void uninstall() {
+        MatrixDotParallel.setProfile(null);
+    }
+
+    @Test
+    void resultsAreBitwiseIdenticalUnderAnyProfile() {
+        //784-100-10网络在批大小1与32下推理与训练的形状，以及一个各维都不整除分块的形状
+        int[][] shapes = {{1, 100, 784}, {32, 100, 784}, {784, 100, 32}, {32, 100, 10}, {130, 517, 300}};
+        int[][] blockings = {{Gemm.MC, Gemm.KC, Gemm.NC}, {32, 128, 256}, {128, 512, 1024}, {64, 256, 512}};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int[] shape : shapes) {
+                Matrix a = Matrix.normals(shape[0], shape[2], 0, 1);
+                Matrix b = Matrix.normals(shape[2], shape[1], 0, 1);
+                Matrix expected = new Matrix(shape[0], shape[1]);
+                Gemm.multiply(a, b, expected);
+                for (int[] blocking : blockings) {
+                    Gemm.setBlocking(blocking[0], blocking[1], blocking[2]);
+                    for (long tiles : KernelTuner.candidates(shape[0], shape[1], pool.getParallelism())) {
+                        Matrix c = new Matrix(shape[0], shape[1]);
+                        MatrixDotParallel.multiply(a, b, c, tiles, pool);
+                        assertBitwiseEquals(expected, c);
+                    }
+                }
+                Gemm.setBlocking(Gemm.MC, Gemm.KC, Gemm.NC);
+            }
+        } finally {
+            Gemm.setBlocking(Gemm.MC, Gemm.KC, Gemm.NC);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void installedProfileKeepsResults() {
+        Matrix a = Matrix.normals(32, 784, 0, 1);
+        Matrix b = Matrix.normals(784, 100, 0, 1);
+        Matrix expected = MatrixDotParallel.dot(a, b);
+        KernelProfile profile = new KernelProfile(KernelProfile.currentHost(),
+                MatrixDotParallel.getPool().getParallelism(), 32, 128, 256);
+        profile.put(32, 100, 784, MatrixDotParallel.tiles(4, 2));
+        MatrixDotParallel.setProfile(profile);
+        assertBitwiseEquals(expected, MatrixDotParallel.dot(a, b));
+    }
+
+    @Test
+    void candidatesStartWithSerialAndAreDistinct() {
+        for (int parallelism : new int[]{1, 2, 4, 8}) {
+            long[] candidates = KernelTuner.candidates(32, 100, parallelism);
+            assertEquals(MatrixDotParallel.tiles(1, 1), candidates[0]);
+            for (int i = 0; i < candidates.length; i++) {
+                for (int j = i + 1; j < candidates.length; j++) {
+                    assertTrue(candidates[i] != candidates[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void corruptProfileIsReportedAndReplaced() throws IOException {
+        Path path = Files.createTempFile("kernels", ".properties");
+        try {
+            Files.write(path, "blocking=oops".getBytes(StandardCharsets.UTF_8));
+            List<int[]> shapes = Collections.singletonList(new int[]{1, 10, 100});
+            KernelProfile tuned = KernelTuner.ensure(shapes, path);
+            assertNotNull(KernelTuner.getLoadFailure());
+            assertTrue(tuned.contains(1, 10, 100));
+
+            KernelProfile loaded = KernelTuner.ensure(shapes, path);
+            assertNull(KernelTuner.getLoadFailure());
+            assertEquals(tuned.toString(), loaded.toString());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static void assertBitwiseEquals(Matrix expected, Matrix actual) {
+        for (int i = 0; i < expected.data.length; i++) {
+            assertEquals(Double.doubleToLongBits(expected.data[i]), Double.doubleToLongBits(actual.data[i]),
+                    "第" + i + "个元素");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cn.zzq.handwrite.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.DoubleUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * sigmoid、exp与tanh在当前内核实现下与Math逐位一致，即时编译前后结果不变
+ */
+class MatrixKernelsTest {
+    private static final int SIZE = 4096;
+    private static final int ROUNDS = 2000;     //足以让内核被C2编译
+
+    private final MatrixKernels kernels = MatrixKernels.get();
+    private final double[] input = new double[SIZE];
+
+    MatrixKernelsTest() {
+        Random random = new Random(1);
+        for (int i = 0; i < SIZE; i++) {
+            input[i] = random.nextGaussian() * 8;
+        }
+    }
+
+    @Test
+    void sigmoidMatchesMath() {
+        assertStable(a -> kernels.sigmoid(a, 0, a.length), x -> 1 / (1 + Math.exp(-x)));
+    }
+
+    @Test
+    void expMatchesMath() {
+        assertStable(a -> kernels.exp(a, 0, a.length), Math::exp);
+    }
+
+    @Test
+    void tanhMatchesMath() {
+        assertStable(a -> kernels.tanh(a, 0, a.length), Math::tanh);
+    }
+
+    private void assertStable(Consumer<double[]> kernel, DoubleUnaryOperator expected) {
+        double[] a = new double[SIZE];
+        for (int round = 0; round < ROUNDS; round++) {
+            System.arraycopy(input, 0, a, 0, SIZE);
+            kernel.accept(a);
+            if (round == 0 || round == ROUNDS - 1) {
+                for (int i = 0; i < SIZE; i++) {
+                    assertEquals(Double.doubleToLongBits(expected.applyAsDouble(input[i])), Double.doubleToLongBits(a[i]),
+                            kernels.name() + "第" + round + "轮第" + i + "个元素");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package cn.zzq.handwrite.matrix;
+
+import cn.zzq.handwrite.matrix.exception.MatrixIndexOutOfBoundException;
+import cn.zzq.handwrite.matrix.exception.MatrixShapeException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 按索引抽取行组装小批量
+ */
+class MatrixTest {
+
+    @Test
+    void gatherRowsCopiesIndexedRows() {
+        Matrix source = Matrix.normals(5, 3, 0, 1);
+        Matrix batch = new Matrix(2, 3);
+        batch.gatherRows(source, new int[]{9, 4, 1}, 1);
+        for (int j = 0; j < 3; j++) {
+            assertEquals(source.get(4, j), batch.get(0, j));
+            assertEquals(source.get(1, j), batch.get(1, j));
+        }
+    }
+
+    @Test
+    void gatherRowsRejectsInvalidRows() {
+        Matrix source = Matrix.normals(5, 3, 0, 1);
+        Matrix batch = new Matrix(2, 3);
+        assertThrows(MatrixIndexOutOfBoundException.class, () -> batch.gatherRows(source, new int[]{0, -1}, 0));
+        assertThrows(MatrixIndexOutOfBoundException.class, () -> batch.gatherRows(source, new int[]{5, 0}, 0));
+
+        MatrixShapeException e = assertThrows(MatrixShapeException.class,
+                () -> batch.gatherRows(Matrix.normals(5, 4, 0, 1), new int[]{0, 1}, 0));
+        assertEquals("Excepted a cn.zzq.handwriter.matrix(2, 3), but received (5, 4)", e.getMessage());
+    }
+}
@@ -0,0 +1,94 @@
+package cn.zzq.handwrite.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 以视图参与乘法与先复制再相乘逐位一致
+ */
+class MatrixViewTest {
+
+    @Test
+    void transposeViewMatchesCopiedTranspose() {
+        //训练中的三处转置：inputs^T * hiddenDelta、hidden^T * outputDelta、outputDelta * W^T
+        Random random = new Random(1);
+        for (int batch : new int[]{1, 8, 32, 100}) {
+            Matrix inputs = sparseInput(batch, 784, random);
+            Matrix hiddenDelta = Matrix.normals(batch, 100, 0, 1);
+            assertBitwiseEquals(inputs.transpose().dot(hiddenDelta), viewDot(inputs.transposeView(), hiddenDelta.view()));
+
+            Matrix outputDelta = Matrix.normals(batch, 10, 0, 1);
+            Matrix weights = Matrix.normals(100, 10, 0, 0.1);
+            assertBitwiseEquals(outputDelta.dot(weights.transpose()), viewDot(outputDelta.view(), weights.transposeView()));
+        }
+    }
+
+    @Test
+    void blockViewMatchesCopiedBlock() {
+        Matrix a = Matrix.normals(40, 30, 0, 1);
+        Matrix b = Matrix.normals(30, 20, 0, 1);
+        MatrixView block = a.view().block(5, 3, 17, 11);
+        Matrix copy = new Matrix(17, 11);
+        for (int i = 0; i < 17; i++) {
+            for (int j = 0; j < 11; j++) {
+                copy.set(i, j, a.get(5 + i, 3 + j));
+            }
+        }
+        MatrixView rows = b.view().block(2, 0, 11, 20);
+        Matrix rowsCopy = new Matrix(11, 20);
+        for (int i = 0; i < 11; i++) {
+            for (int j = 0; j < 20; j++) {
+                rowsCopy.set(i, j, b.get(2 + i, j));
+            }
+        }
+        assertBitwiseEquals(copy.dot(rowsCopy), viewDot(block, rows));
+    }
+
+    @Test
+    void aliasedOutputIsRejected() {
+        Matrix square = Matrix.normals(4, 4, 0, 1);
+        Matrix other = Matrix.normals(4, 4, 0, 1);
+        assertThrows(IllegalArgumentException.class, () -> square.dotInto(other, square));
+        assertThrows(IllegalArgumentException.class, () -> other.dotInto(square, square));
+        assertThrows(IllegalArgumentException.class, () -> square.transposeView().dotInto(other.view(), square));
+
+        //同一数组中不相交的两块可以分别作为输入与结果
+        double[] buffer = new double[32];
+        MatrixView input = MatrixView.wrap(buffer, 4, 4);
+        MatrixView output = MatrixView.wrap(buffer, 8, 4).block(4, 0, 4, 4);
+        input.dotInto(other.view(), output);
+        MatrixView overlapping = MatrixView.wrap(buffer, 8, 4).block(2, 0, 4, 4);
+        assertThrows(IllegalArgumentException.class, () -> input.dotInto(other.view(), overlapping));
+    }
+
+    private static Matrix viewDot(MatrixView a, MatrixView b) {
+        Matrix out = new Matrix(a.getRowSize(), b.getColumnSize());
+        a.dotInto(b, out);
+        return out;
+    }
+
+    private static Matrix sparseInput(int rows, int columns, Random random) {
+        Matrix matrix = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                if (random.nextDouble() < 0.2) {
+                    matrix.set(i, j, random.nextDouble());
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private static void assertBitwiseEquals(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRowSize(), actual.getRowSize());
+        assertEquals(expected.getColumnSize(), actual.getColumnSize());
+        for (int i = 0; i < expected.data.length; i++) {
+            assertEquals(Double.doubleToLongBits(expected.data[i]), Double.doubleToLongBits(actual.data[i]),
+                    "第" + i + "个元素");
+        }
+    }
+}
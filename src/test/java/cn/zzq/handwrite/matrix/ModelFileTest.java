@@ -0,0 +1,66 @@
+package cn.zzq.handwrite.matrix;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 模型文件的替换写入与损坏矩阵表的检查
+ */
+class ModelFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rewriteKeepsDefaultPermissions() throws IOException {
+        assumeTrue(Files.getFileAttributeView(dir, PosixFileAttributeView.class) != null);
+        Path expected = Files.createFile(dir.resolve("plain"));
+        Path path = dir.resolve("model.bpnm");
+        ModelFile.write(path, matrices());
+        ModelFile.write(path, matrices());      //替换已存在的文件
+
+        assertEquals(Files.getPosixFilePermissions(expected), Files.getPosixFilePermissions(path));
+        try (ModelFile file = ModelFile.open(path)) {
+            assertEquals(2, file.getNames().size());
+        }
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count(), "临时文件应在替换后消失");
+        }
+    }
+
+    @Test
+    void negativeOffsetIsRejected() throws IOException {
+        Path path = dir.resolve("model.bpnm");
+        ModelFile.write(path, matrices());
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        int tableSize = 2 * ModelFile.ENTRY_SIZE;
+        bytes.putLong(ModelFile.HEADER_SIZE + ModelFile.ENTRY_SIZE - Long.BYTES, -ModelFile.ALIGNMENT);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), ModelFile.HEADER_SIZE, tableSize);
+        bytes.putInt(12, (int) crc.getValue());     //矩阵表校验和仍然正确，只有偏移不合法
+        Files.write(path, bytes.array());
+
+        assertThrows(IOException.class, () -> ModelFile.open(path));
+    }
+
+    private static Map<String, Matrix> matrices() {
+        Map<String, Matrix> matrices = new LinkedHashMap<>();
+        matrices.put("a", Matrix.normals(3, 4, 0, 1));
+        matrices.put("b", Matrix.normals(4, 2, 0, 1));
+        return matrices;
+    }
+}
@@ -0,0 +1,83 @@
+package cn.zzq.handwrite.server;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.BatchPrediction;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 合并推理的结果按请求拆分后与逐个推理相同
+ */
+class MicroBatcherTest {
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 50;
+
+    private final BPNetwork network = new BPNetwork(784, 100, 10, 0.05);
+
+    @Test
+    void mergedResultsMatchIndividualQueries() throws Exception {
+        Matrix[] images = new Matrix[THREADS * REQUESTS_PER_THREAD];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = Matrix.normals(1 + i % 3, 784, 0.5, 0.25);     //每次提交1到3张图片
+        }
+        BatchPrediction[] results = new BatchPrediction[images.length];
+        MicroBatcher batcher = new MicroBatcher(network, 784, 8, 1000, images.length);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int from = t * REQUESTS_PER_THREAD;
+            Thread thread = new Thread(() -> {
+                for (int i = from; i < from + REQUESTS_PER_THREAD; i++) {
+                    results[i] = batcher.submit(images[i]).join();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        batcher.close();    //调度线程在完成future之后才更新计数，关闭时等待它结束
+
+        assertEquals(images.length, batcher.getRequestCount());
+        assertTrue(batcher.getBatchCount() <= images.length);
+        long histogramImages = 0;
+        long[] histogram = batcher.getBatchSizeHistogram();
+        for (int size = 0; size < histogram.length; size++) {
+            histogramImages += size * histogram[size];
+        }
+        assertEquals(batcher.getImageCount(), histogramImages);
+        for (int i = 0; i < images.length; i++) {
+            BatchPrediction individual = network.queryBatch(images[i]);
+            Matrix expected = individual.getOutput();
+            Matrix actual = results[i].getOutput();
+            assertEquals(expected.getRowSize(), actual.getRowSize());
+            for (int row = 0; row < expected.getRowSize(); row++) {
+                for (int column = 0; column < expected.getColumnSize(); column++) {
+                    assertEquals(expected.get(row, column), actual.get(row, column), 1e-12);
+                }
+            }
+            assertArrayEquals(individual.argmax(), results[i].argmax());
+        }
+    }
+
+    @Test
+    void rejectsAfterClose() {
+        MicroBatcher batcher = new MicroBatcher(network, 784, 8, 0, 4);
+        batcher.close();
+        CompletableFuture<BatchPrediction> future = batcher.submit(new Matrix(1, 784));
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, batcher.getRejectedCount());
+    }
+}
@@ -0,0 +1,181 @@
+package cn.zzq.handwrite.train;
+
+import cn.zzq.handwrite.BPNetwork;
+import cn.zzq.handwrite.matrix.Matrix;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 从任意检查点恢复后继续训练，结果与不间断训练逐位相同
+ * <p>
+ * 恢复后的训练在即时编译之后运行，逐位比较依赖于激活函数的结果不随编译变化(见MatrixKernels)；
+ * 最后再不间断地训练一次，与最初未编译时的结果比较。
+ */
+class CheckpointServiceTest {
+    private static final int SIZE = 300;
+    private static final int BATCH = 32;        //每轮10批，最后一批12个样本
+    private static final int EPOCHS = 3;
+    private static final int INTERVAL = 7;
+    private static final long SEED = 3;
+
+    private Path directory;
+    private TrainingData data;
+    private BPNetwork initial;      //各次训练从相同的初始权重开始
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("checkpoints");
+        Random random = new Random(1);
+        Matrix inputs = new Matrix(SIZE, 784);
+        Matrix labels = new Matrix(SIZE, 10);
+        for (int i = 0; i < SIZE; i++) {
+            for (int k = 0; k < 784; k++) {
+                inputs.set(i, k, random.nextDouble() < 0.2 ? random.nextDouble() : 0.01);
+            }
+            labels.set(i, random.nextInt(10), 1);
+        }
+        data = new TrainingData(inputs, labels);
+        initial = new BPNetwork(784, 100, 10, 0.1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());     //先删文件再删目录
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void resumedTrainingMatchesUninterrupted() throws IOException {
+        for (int prefetch : new int[]{0, 2}) {
+            BPNetwork plain = train(prefetch, null, null);
+            List<CheckpointService.Checkpoint> checkpoints = writeCheckpoints(prefetch);
+            //间隔短于写盘时间时部分检查点被取代，但最后一步总会写盘
+            assertEquals(EPOCHS * 10, checkpoints.get(checkpoints.size() - 1).getStep());
+            for (CheckpointService.Checkpoint checkpoint : checkpoints) {
+                //恢复前的种子与原训练不同，resume应恢复检查点中记录的种子
+                assertSameWeights(plain, train(prefetch, null, checkpoint));
+            }
+            assertSameWeights(plain, train(prefetch, null, null));
+        }
+    }
+
+    @Test
+    void checkpointRecordsTrainingState() throws IOException {
+        for (CheckpointService.Checkpoint checkpoint : writeCheckpoints(0)) {
+            TrainingState state = checkpoint.readState();
+            long step = checkpoint.getStep();
+            assertEquals(step, state.getStep());
+            assertEquals(SEED, state.getSeed());
+            assertEquals(BATCH, state.getBatchSize());
+            assertEquals(step / 10, state.getEpoch());
+            assertEquals(step % 10 * BATCH, state.getOffset());
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve("prefetch0"), "*.tmp")) {
+            assertTrue(!stream.iterator().hasNext(), "写盘后不应留下临时文件");
+        }
+    }
+
+    @Test
+    void negativeSeedRoundTrips() throws IOException {
+        try (CheckpointService service = new CheckpointService(directory, 1)) {
+            service.checkpoint(initial, new TrainingState(5, -0x123456789ABCDEFL, BATCH, 0, 5 * BATCH));
+        }
+        assertEquals(-0x123456789ABCDEFL, CheckpointService.latest(directory).readState().getSeed());
+    }
+
+    @Test
+    void rejectsDifferentBatchSize() throws IOException {
+        CheckpointService.Checkpoint checkpoint = writeCheckpoints(0).get(0);
+        MiniBatchTrainer trainer = new MiniBatchTrainer(new BPNetwork(784, 100, 10, 0.1), 16, EPOCHS, true);
+        assertThrows(IllegalArgumentException.class, () -> trainer.resume(checkpoint));
+    }
+
+    @Test
+    void rejectsDifferentData() throws IOException {
+        CheckpointService.Checkpoint checkpoint = writeCheckpoints(0).get(0);
+        MiniBatchTrainer trainer = new MiniBatchTrainer(new BPNetwork(784, 100, 10, 0.1), BATCH, EPOCHS, true);
+        trainer.resume(checkpoint);
+        TrainingData smaller = new TrainingData(new Matrix(100, 784), new Matrix(100, 10));
+        assertThrows(IllegalArgumentException.class, () -> trainer.fit(smaller));
+    }
+
+    /**
+     * 训练并保留全部检查点，不同的预取方式写到不同的子目录
+     */
+    @Test
+    void resumeAppliesOnlyToTheNextFit() throws IOException {
+        CheckpointService.Checkpoint checkpoint = writeCheckpoints(0).get(0);
+        BPNetwork network = new BPNetwork(784, 100, 10, initial.getLearningRate());
+        network.setInputHiddenMatrix(initial.getInputHiddenMatrix().copy());
+        network.setHiddenOutputMatrix(initial.getHiddenOutputMatrix().copy());
+        MiniBatchTrainer trainer = new MiniBatchTrainer(network, BATCH, EPOCHS, true);
+        trainer.resume(checkpoint);
+        trainer.fit(data);
+        //第二次fit从第0步训练全部的批，不再跳过检查点之前的批，也不再检查检查点的训练进度
+        int[] epochs = new int[1];
+        trainer.setEpochListener((epoch, samples, nanos) -> epochs[0]++);
+        trainer.fit(new TrainingData(new Matrix(100, 784), new Matrix(100, 10)));
+        assertEquals(EPOCHS, epochs[0]);
+    }
+
+    private List<CheckpointService.Checkpoint> writeCheckpoints(int prefetch) throws IOException {
+        Path checkpoints = directory.resolve("prefetch" + prefetch);
+        try (CheckpointService service = new CheckpointService(checkpoints, 100)) {
+            train(prefetch, service, null);
+        }
+        return CheckpointService.list(checkpoints);
+    }
+
+    private BPNetwork train(int prefetch, CheckpointService service, CheckpointService.Checkpoint resume)
+            throws IOException {
+        BPNetwork network = new BPNetwork(784, 100, 10, initial.getLearningRate());
+        network.setInputHiddenMatrix(initial.getInputHiddenMatrix().copy());
+        network.setHiddenOutputMatrix(initial.getHiddenOutputMatrix().copy());
+        MiniBatchTrainer trainer = new MiniBatchTrainer(network, BATCH, EPOCHS, true);
+        trainer.setSeed(resume == null ? SEED : SEED + 1);
+        if (prefetch > 0) {
+            trainer.setPrefetch(prefetch, 1);
+        }
+        if (service != null) {
+            trainer.setCheckpoints(service, INTERVAL);
+        }
+        if (resume != null) {
+            trainer.resume(resume);
+        }
+        trainer.fit(data);
+        return network;
+    }
+
+    private static void assertSameWeights(BPNetwork expected, BPNetwork actual) {
+        Matrix[] left = {expected.getInputHiddenMatrix(), expected.getHiddenOutputMatrix()};
+        Matrix[] right = {actual.getInputHiddenMatrix(), actual.getHiddenOutputMatrix()};
+        for (int m = 0; m < left.length; m++) {
+            for (int i = 0; i < left[m].getRowSize(); i++) {
+                for (int j = 0; j < left[m].getColumnSize(); j++) {
+                    assertEquals(Double.doubleToRawLongBits(left[m].get(i, j)), Double.doubleToRawLongBits(right[m].get(i, j)),
+                            "第" + m + "个矩阵(" + i + ", " + j + ")");
+                }
+            }
+        }
+    }
+}